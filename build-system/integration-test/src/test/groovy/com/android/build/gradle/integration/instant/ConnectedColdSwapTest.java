@@ -134,53 +134,58 @@ public class ConnectedColdSwapTest {
         InstantRunClient client =
                 new InstantRunClient("com.example.helloworld", userFeedback, iLogger, token, 8125);
 
-        // Give the app a chance to start
-        messageListener.await();
+        try {
+            // Give the app a chance to start
+            messageListener.await();
+
+            // Check the app is running
+            assertThat(client.getAppState(device)).isEqualTo(AppState.FOREGROUND);
+
+            // Cold swap
+            makeColdSwapChange();
+            project.execute(InstantRunTestUtils.getInstantRunArgs(device, coldswapMode),
+                    instantRunModel.getIncrementalAssembleTaskName());
+
+            InstantRunBuildInfo coldSwapContext = InstantRunTestUtils.loadContext(instantRunModel);
+
+            if (thatUsesDalvik().matches(device.getVersion())) {
+                // No artifact should have been produced, and the verifier is marked as failed,
+                // so studio knows to then call assembleDebug.
+                assertThat(coldSwapContext.canHotswap()).named("verifier passed").isFalse();
+                assertThat(coldSwapContext.getArtifacts()).isEmpty();
+                device.uninstallPackage("com.example.helloworld");
+                return;
+            }
+
+            if (coldswapMode == ColdswapMode.MULTIAPK) {
+                InstantRunTestUtils.doInstall(device, info.getArtifacts());
+            } else {
+                UpdateMode updateMode = client
+                        .pushPatches(device, coldSwapContext,
+                                UpdateMode.HOT_SWAP,
+                                /* NB: Intentionally HOT_SWAP, pushPatches should automatically
+                                   determine that the changes cannot be hot-swapped */
+                                false /*restartActivity*/,
+                                true /*showToast*/);
+
+                assertThat(updateMode).named("updateMode").isEqualTo(UpdateMode.COLD_SWAP);
+                Mockito.verify(userFeedback).notifyEnd(UpdateMode.COLD_SWAP);
+            }
+            Mockito.verifyNoMoreInteractions(userFeedback);
+
+            Logcat.MessageListener afterMessageListener =
+                    logcat.listenForMessage("coldswaptest_after");
+
+            InstantRunTestUtils.runApp(device, "com.example.helloworld/.HelloWorld");
+
+            // Check the app is running
+            afterMessageListener.await();
+            assertThat(client.getAppState(device)).isEqualTo(AppState.FOREGROUND);
 
-        // Check the app is running
-        assertThat(client.getAppState(device)).isEqualTo(AppState.FOREGROUND);
-
-        // Cold swap
-        makeColdSwapChange();
-        project.execute(InstantRunTestUtils.getInstantRunArgs(device, coldswapMode),
-                instantRunModel.getIncrementalAssembleTaskName());
-
-        InstantRunBuildInfo coldSwapContext = InstantRunTestUtils.loadContext(instantRunModel);
-
-        if (thatUsesDalvik().matches(device.getVersion())) {
-            // No artifact should have been produced, and the verifier is marked as failed,
-            // so studio knows to then call assembleDebug.
-            assertThat(coldSwapContext.canHotswap()).named("verifier passed").isFalse();
-            assertThat(coldSwapContext.getArtifacts()).isEmpty();
             device.uninstallPackage("com.example.helloworld");
-            return;
-        }
-
-        if (coldswapMode == ColdswapMode.MULTIAPK) {
-            InstantRunTestUtils.doInstall(device, info.getArtifacts());
-        } else {
-            UpdateMode updateMode = client
-                    .pushPatches(device, coldSwapContext,
-                            UpdateMode.HOT_SWAP,
-                            /* NB: Intentionally HOT_SWAP, pushPatches should automatically
-                               determine that the changes cannot be hot-swapped */
-                            false /*restartActivity*/,
-                            true /*showToast*/);
-
-            assertThat(updateMode).named("updateMode").isEqualTo(UpdateMode.COLD_SWAP);
-            Mockito.verify(userFeedback).notifyEnd(UpdateMode.COLD_SWAP);
+        } finally {
+            client.disconnect();
         }
-        Mockito.verifyNoMoreInteractions(userFeedback);
-
-        Logcat.MessageListener afterMessageListener = logcat.listenForMessage("coldswaptest_after");
-
-        InstantRunTestUtils.runApp(device, "com.example.helloworld/.HelloWorld");
-
-        // Check the app is running
-        afterMessageListener.await();
-        assertThat(client.getAppState(device)).isEqualTo(AppState.FOREGROUND);
-
-        device.uninstallPackage("com.example.helloworld");
     }
 
     private void makeColdSwapChange() throws IOException {
@@ -58,6 +58,7 @@ class HotSwapTester {
         IDevice device = DeviceHelper.getIDevice();
         // TODO: Generalize apk deployment to any compatible device.
         Assume.assumeTrue(device.getVersion().equals(new AndroidVersion(23, null)));
+        InstantRunClient client = null;
         try {
             logcat.start(device, logTag);
 
@@ -89,8 +90,7 @@ class HotSwapTester {
             ILogger iLogger = Mockito.mock(ILogger.class);
 
             //Connect to device
-            InstantRunClient client =
-                    new InstantRunClient(packageName, userFeedback, iLogger, token, 8125);
+            client = new InstantRunClient(packageName, userFeedback, iLogger, token, 8125);
 
             // Give the app a chance to start
             Thread.sleep(2000); // TODO: Is there a way to determine that the app is ready?
@@ -128,6 +128,9 @@ class HotSwapTester {
 
             callbacks.verifyNewCode(client, logcat, device);
         } finally {
+            if (client != null) {
+                client.disconnect();
+            }
             try {
                 // Clean up
                 device.uninstallPackage(packageName);
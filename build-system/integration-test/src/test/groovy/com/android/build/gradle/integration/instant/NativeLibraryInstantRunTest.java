@@ -107,11 +107,15 @@ public class NativeLibraryInstantRunTest {
         InstantRunClient client =
                 new InstantRunClient("com.example.hellojni", userFeedback, iLogger, token, 8125);
 
-        // Give the app a chance to start
-        Thread.sleep(1000); // TODO: Is there a way to determine that the app is ready?
-
-        // Check the app is running
-        assertThat(client.getAppState(device)).isEqualTo(AppState.FOREGROUND);
+        try {
+            // Give the app a chance to start
+            Thread.sleep(1000); // TODO: Is there a way to determine that the app is ready?
+
+            // Check the app is running
+            assertThat(client.getAppState(device)).isEqualTo(AppState.FOREGROUND);
+        } finally {
+            client.disconnect();
+        }
 
         device.uninstallPackage("com.example.hellojni");
     }
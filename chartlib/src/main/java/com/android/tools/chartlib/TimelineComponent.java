@@ -38,9 +38,9 @@ import javax.swing.Icon;
 import gnu.trove.TIntObjectHashMap;
 
 /**
- * A component to display a TimelineData object. It locks the timeline object to prevent
- * modifications to it while it's begin rendered, but objects of this class should not be accessed
- * from different threads.
+ * A component to display a TimelineData object. It copies the visible part of the timeline
+ * without locking it, as at most two points per pixel, so samples can keep being added while it's
+ * being rendered, but objects of this class should not be accessed from different threads.
  */
 public final class TimelineComponent extends AnimatedComponent
         implements ActionListener, HierarchyListener {
@@ -145,7 +145,8 @@ public final class TimelineComponent extends AnimatedComponent
     private String mUnits;
 
     /**
-     * The number of available local samples.
+     * The number of available local samples, each of which may stand for several samples of the
+     * data.
      */
     private int mSize;
 
@@ -411,7 +412,8 @@ public final class TimelineComponent extends AnimatedComponent
             }
             addDebugInfo("Drawn segments: %d", drawnSegments);
         }
-        addDebugInfo("Total samples: %d", mSize);
+        addDebugInfo("Total samples: %d", mData.size());
+        addDebugInfo("Drawn samples: %d", mSize);
     }
 
     private float interpolate(int stream, int sample, float time) {
@@ -648,77 +650,72 @@ public final class TimelineComponent extends AnimatedComponent
 
     @Override
     protected void updateData() {
-        long start;
-        synchronized (mData) {
-            start = mData.getStartTime();
-            mSize = mData.size();
-            assert mData.getStreamCount() == mValues.length;
-            float lastUpdatedTime = mTimes != null ? mTimes[mTimes.length - 1] : 0;
-            if (mTimes == null || mTimes.length < mSize) {
-                int alloc = Math.max(mSize, mTimes == null ? 64 : mTimes.length * 2);
-                mTimes = new float[alloc];
-                mTypes = new int[alloc];
-                for (int j = 0; j < mData.getStreamCount(); ++j) {
-                    mValues[j] = new float[alloc];
-                }
-            }
-            float cappedMax = 0;
-            float cappedMin = 0;
-            for (int i = 0; i < mSize; ++i) {
-                TimelineData.Sample sample = mData.get(i);
-                mTimes[i] = sample.time;
-                mTypes[i] = sample.type;
-                float value = 0.0f;
-                float mirroredValue = 0.0f;
-                for (int j = 0; j < mData.getStreamCount(); ++j) {
-                    if (mStackStreams) {
-                        mValues[j][i] = mStreams.get(j).isMirrored ? (mirroredValue -= sample.values[j]) : (value += sample.values[j]);
-                    } else {
-                        mValues[j][i] = mStreams.get(j).isMirrored ? -sample.values[j] : sample.values[j];
-                    }
-                    if (mTimes[i] > lastUpdatedTime) {
-                        cappedMax = Math.max(cappedMax, mValues[j][i]);
-                        cappedMin = Math.min(cappedMin, mValues[j][i]);
-                    }
-                }
+        long start = mData.getStartTime();
+        assert mData.getStreamCount() == mValues.length;
+
+        // Calculate begin and end times in seconds.
+        mEndTime = mData.getEndTime() - mBufferTime;
+        mBeginTime = mEndTime - (mRight - LEFT_MARGIN) / X_SCALE;
+
+        // Copy the visible samples, at most two points per pixel, as samples beyond that would
+        // be drawn over each other.
+        int maxPoints = Math.max(2 * (mRight - LEFT_MARGIN), 2);
+        if (mTimes == null || mTimes.length < maxPoints) {
+            int alloc = Math.max(maxPoints, mTimes == null ? 64 : mTimes.length * 2);
+            mTimes = new float[alloc];
+            mTypes = new int[alloc];
+            for (int j = 0; j < mData.getStreamCount(); ++j) {
+                mValues[j] = new float[alloc];
             }
+        }
+        mSize = mData.read(mBeginTime, mEndTime, maxPoints, mTimes, mTypes, mValues);
+        float cappedMax = 0;
+        float cappedMin = 0;
+        for (int i = 0; i < mSize; ++i) {
+            float value = 0.0f;
+            float mirroredValue = 0.0f;
             for (int j = 0; j < mData.getStreamCount(); ++j) {
-                mCurrent[j] = mSize > 0 ? mData.get(mSize - 1).values[j] : 0.0f;
+                float sample = mValues[j][i];
+                if (mStackStreams) {
+                    mValues[j][i] = mStreams.get(j).isMirrored ? (mirroredValue -= sample) : (value += sample);
+                } else {
+                    mValues[j][i] = mStreams.get(j).isMirrored ? -sample : sample;
+                }
+                cappedMax = Math.max(cappedMax, mValues[j][i]);
+                cappedMin = Math.min(cappedMin, mValues[j][i]);
             }
+        }
+        mData.getLastValues(mCurrent);
 
-            // Calculate begin and end times in seconds.
-            mEndTime = mData.getEndTime() - mBufferTime;
-            mBeginTime = mEndTime - (mRight - LEFT_MARGIN) / X_SCALE;
-            // Animate the current maximum towards the real one.
-            cappedMax = Math.min(mAbsoluteMax, Math.max(mCurrentMax, cappedMax));
-            cappedMin = Math.max(-mAbsoluteMax, Math.min(mCurrentMin, cappedMin));
-            if (cappedMax > mCurrentMax) {
-                mCurrentMax = lerp(mCurrentMax, cappedMax, mFirstFrame ? 1.f : .95f);
-            }
-            if (cappedMin == 0.0f || cappedMin < mCurrentMin) {
-                mCurrentMin = lerp(mCurrentMin, cappedMin, mFirstFrame ? 1.f : .95f);
-            }
+        // Animate the current maximum towards the real one.
+        cappedMax = Math.min(mAbsoluteMax, Math.max(mCurrentMax, cappedMax));
+        cappedMin = Math.max(-mAbsoluteMax, Math.min(mCurrentMin, cappedMin));
+        if (cappedMax > mCurrentMax) {
+            mCurrentMax = lerp(mCurrentMax, cappedMax, mFirstFrame ? 1.f : .95f);
+        }
+        if (cappedMin == 0.0f || cappedMin < mCurrentMin) {
+            mCurrentMin = lerp(mCurrentMin, cappedMin, mFirstFrame ? 1.f : .95f);
+        }
 
-            // Animate the fade in/out of markers.
-            FontMetrics metrics = getFontMetrics(DEFAULT_FONT);
-            int ascent = metrics.getAscent();
-            float distance = mMarkerSeparation * mYScale;
-            float evenMarkersTarget = 1.0f;
-            if (distance < ascent * 2) { // Too many markers
-                if (mEvenMarkersAlpha < 0.1f) {
-                    mMarkerSeparation *= 2;
-                    mEvenMarkersAlpha = 1.0f;
-                } else {
-                    evenMarkersTarget = 0.0f;
-                }
-            } else if (distance > ascent * 5) { // Not enough
-                if (mEvenMarkersAlpha > 0.9f) {
-                    mMarkerSeparation /= 2;
-                    mEvenMarkersAlpha = 0.0f;
-                }
+        // Animate the fade in/out of markers.
+        FontMetrics metrics = getFontMetrics(DEFAULT_FONT);
+        int ascent = metrics.getAscent();
+        float distance = mMarkerSeparation * mYScale;
+        float evenMarkersTarget = 1.0f;
+        if (distance < ascent * 2) { // Too many markers
+            if (mEvenMarkersAlpha < 0.1f) {
+                mMarkerSeparation *= 2;
+                mEvenMarkersAlpha = 1.0f;
+            } else {
+                evenMarkersTarget = 0.0f;
+            }
+        } else if (distance > ascent * 5) { // Not enough
+            if (mEvenMarkersAlpha > 0.9f) {
+                mMarkerSeparation /= 2;
+                mEvenMarkersAlpha = 0.0f;
             }
-            mEvenMarkersAlpha = lerp(mEvenMarkersAlpha, evenMarkersTarget, 0.999f);
         }
+        mEvenMarkersAlpha = lerp(mEvenMarkersAlpha, evenMarkersTarget, 0.999f);
         synchronized (mEvents) {
             mEventsSize = mEvents.size();
             if (mEventStart == null || mEventStart.length < mEventsSize) {
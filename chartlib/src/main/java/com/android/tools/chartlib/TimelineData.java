@@ -15,6 +15,7 @@
  */
 package com.android.tools.chartlib;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.annotations.concurrency.GuardedBy;
@@ -23,43 +24,109 @@ import java.util.*;
 
 /**
  * A group of streams of data sampled over time. This object is thread safe as it can be
- * read/modified from any thread. It uses itself as the mutex object so it is possible to
- * synchronize on it if modifications from other threads want to be prevented.
+ * read/modified from any thread. Writers use it as the mutex object so it is possible to
+ * synchronize on it if modifications from other threads want to be prevented, but readers never
+ * lock it.
+ * <p/>
+ * The samples are stored in columns: a ring of times, a ring of types, and a ring of values for
+ * each stream, so adding a sample doesn't allocate. A sample is published by advancing the sample
+ * count once its columns are written, and readers check that what they read was not overwritten in
+ * the meantime, retrying otherwise.
+ * <p/>
+ * Each stream also has levels of detail, holding the minimum and maximum values over buckets of
+ * {@link #LEVEL_FACTOR} times as many samples at each level, so that the samples over a time range
+ * can be {@link #read read} as a bounded number of points, however many samples there are. Sample
+ * times are expected to never decrease.
  */
 public class TimelineData {
 
+    /**
+     * The number of samples per bucket of the first level of detail, and the number of buckets of
+     * each level per bucket of the next level.
+     */
+    static final int LEVEL_FACTOR = 1 << 2;
+
+    private static final int LEVEL_SHIFT = 2;
+
     private final int myStreams;
 
-    @GuardedBy("this")
-    private final List<Sample> mSamples;
+    private final int mCapacity;
 
-    @GuardedBy("this")
-    private long mStart;
+    /**
+     * The number of slots of the sample rings, one more than the capacity so that the slot being
+     * written never holds a sample that can be read.
+     */
+    private final int mSlots;
+
+    private final float[] mTimes;
+
+    private final int[] mTypes;
+
+    /**
+     * The sample values, as in mValues[stream][slot].
+     */
+    private final float[][] mValues;
+
+    /**
+     * The levels of detail, as in mMins[level - 1][stream][slot], where the buckets of a level are
+     * numbered by their first sample number, shifted right by the level times {@link #LEVEL_SHIFT}.
+     */
+    private final float[][][] mMins;
+
+    private final float[][][] mMaxs;
+
+    private final int[] mLevelSlots;
+
+    /**
+     * The number of samples added since the data was last cleared, only advanced by writers.
+     */
+    private volatile long mCount;
+
+    /**
+     * Incremented before the data is cleared, so that readers can tell.
+     */
+    private volatile int mGeneration;
+
+    private volatile long mStart;
 
     // The highest value across all streams being stacked together.
-    @GuardedBy("this")
-    private float mMaxTotal;
+    private volatile float mMaxTotal;
 
     // The lowest value across all streams being stacked together.
-    @GuardedBy("this")
-    private float mMinTotal;
+    private volatile float mMinTotal;
 
     // The highest value of any single stream.
-    @GuardedBy("this")
-    private float mStreamMax;
+    private volatile float mStreamMax;
 
     // The lowest value of any single stream.
-    @GuardedBy("this")
-    private float mStreamMin;
+    private volatile float mStreamMin;
 
     public TimelineData(int streams, int capacity) {
         myStreams = streams;
-        mSamples = new CircularArrayList<Sample>(capacity);
+        mCapacity = capacity;
+        mSlots = capacity + 1;
+        mTimes = new float[mSlots];
+        mTypes = new int[mSlots];
+        mValues = new float[streams][mSlots];
+
+        // Add levels until a bucket spans all the samples. A level needs a slot per bucket
+        // spanned by the samples, plus one for the bucket being written.
+        int levels = 0;
+        while ((1L << (++levels * LEVEL_SHIFT)) < capacity) {
+        }
+        mMins = new float[levels][][];
+        mMaxs = new float[levels][][];
+        mLevelSlots = new int[levels];
+        for (int level = 1; level <= levels; level++) {
+            mLevelSlots[level - 1] = (capacity >> (level * LEVEL_SHIFT)) + 2;
+            mMins[level - 1] = new float[streams][mLevelSlots[level - 1]];
+            mMaxs[level - 1] = new float[streams][mLevelSlots[level - 1]];
+        }
         clear();
     }
 
     @VisibleForTesting
-    public synchronized long getStartTime() {
+    public long getStartTime() {
         return mStart;
     }
 
@@ -67,25 +134,25 @@ public class TimelineData {
         return myStreams;
     }
 
-    public synchronized float getMaxTotal() {
+    public float getMaxTotal() {
         return mMaxTotal;
     }
 
 
-    public synchronized  float getMinTotal() {
+    public float getMinTotal() {
         return mMinTotal;
     }
 
-    public synchronized float getStreamMax() {
+    public float getStreamMax() {
         return mStreamMax;
     }
 
-    public synchronized float getStreamMin() {
+    public float getStreamMin() {
         return mStreamMin;
     }
 
     public synchronized void add(long time, int type, float... values) {
-        add(new Sample((time - mStart) / 1000.0f, type, values));
+        add((time - mStart) / 1000.0f, type, values);
     }
 
     /**
@@ -162,47 +229,196 @@ public class TimelineData {
      */
     public synchronized void addFromArea(long timeMills, int type, float... areas) {
         float timeForStart = (timeMills - mStart) / 1000.0f;
-        Sample lastSample = mSamples.isEmpty() ? null : mSamples.get(mSamples.size() - 1);
+        Sample lastSample = mCount == 0 ? null : getSample(mCount - 1);
         for (Sample sample : convertAreasToSamples(timeForStart, type, areas, lastSample)) {
-            add(sample);
+            add(sample.time, sample.type, sample.values);
         }
     }
 
-    private void add(Sample sample) {
-        float[] values = sample.values;
+    @GuardedBy("this")
+    private void add(float time, int type, float[] values) {
         assert values.length == myStreams;
+        long n = mCount;
+        int slot = (int) (n % mSlots);
+        mTimes[slot] = time;
+        mTypes[slot] = type;
         float stacked = 0.0f;
-        for (float value : values) {
+        for (int j = 0; j < myStreams; j++) {
+            float value = values[j];
+            mValues[j][slot] = value;
+            for (int level = 1; level <= mMins.length; level++) {
+                int shift = level * LEVEL_SHIFT;
+                int bucket = (int) ((n >> shift) % mLevelSlots[level - 1]);
+                float[] mins = mMins[level - 1][j];
+                float[] maxs = mMaxs[level - 1][j];
+                if ((n & ((1L << shift) - 1)) == 0) {
+                    // First sample of the bucket.
+                    mins[bucket] = value;
+                    maxs[bucket] = value;
+                } else {
+                    mins[bucket] = Math.min(mins[bucket], value);
+                    maxs[bucket] = Math.max(maxs[bucket], value);
+                }
+            }
             stacked += value;
             mMaxTotal = Math.max(mMaxTotal, stacked);
             mMinTotal = Math.min(mMinTotal, stacked);
             mStreamMax = Math.max(mStreamMax, value);
             mStreamMin = Math.min(mStreamMin, value);
         }
-        mSamples.add(sample);
+        // Publish the sample.
+        mCount = n + 1;
     }
 
     public synchronized void clear() {
-        mSamples.clear();
+        mGeneration++;
+        mCount = 0;
         mMaxTotal = 0.0f;
         mStreamMax = 0.0f;
         mStart = System.currentTimeMillis();
     }
 
     public int size() {
-        return mSamples.size();
+        return (int) Math.min(mCount, mCapacity);
     }
 
+    /**
+     * Returns a copy of a sample, which may be inconsistent if samples are added meanwhile. To read
+     * samples while others are being added, use {@link #read}.
+     */
     public Sample get(int index) {
-        return mSamples.get(index);
+        long count = mCount;
+        long oldest = Math.max(0, count - mCapacity);
+        if (index < 0 || index >= count - oldest) {
+            throw new IndexOutOfBoundsException();
+        }
+        return getSample(oldest + index);
+    }
+
+    @NonNull
+    private Sample getSample(long n) {
+        int slot = (int) (n % mSlots);
+        float[] values = new float[myStreams];
+        for (int j = 0; j < myStreams; j++) {
+            values[j] = mValues[j][slot];
+        }
+        return new Sample(mTimes[slot], mTypes[slot], values);
     }
 
     public boolean isEmpty() {
         return size() == 0;
     }
 
-    public synchronized float getEndTime() {
-        return (mSamples.isEmpty() ? 0.0f : (System.currentTimeMillis() - mStart)) / 1000.f;
+    public float getEndTime() {
+        return (mCount == 0 ? 0.0f : (System.currentTimeMillis() - mStart)) / 1000.f;
+    }
+
+    /**
+     * Copies the values of the last sample, or zeros if there are no samples.
+     */
+    public void getLastValues(@NonNull float[] values) {
+        while (true) {
+            int generation = mGeneration;
+            long count = mCount;
+            if (count == 0) {
+                Arrays.fill(values, 0, myStreams, 0.0f);
+                return;
+            }
+            int slot = (int) ((count - 1) % mSlots);
+            for (int j = 0; j < myStreams; j++) {
+                values[j] = mValues[j][slot];
+            }
+            if (isRetained(generation, count - 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the samples between two times, along with the samples right before and after them,
+     * as at most <var>maxPoints</var> points. When there are more samples than that, each point
+     * stands for a bucket of consecutive samples, taken from the coarsest level of detail needed,
+     * with the time and type of the first sample of the bucket, and for each stream the value of
+     * largest magnitude over the bucket.
+     *
+     * @param from the time to copy samples from, in seconds since the start.
+     * @param to the time to copy samples to, in seconds since the start.
+     * @param maxPoints the maximum number of points to copy, at least 2.
+     * @param times the times of the points.
+     * @param types the types of the points.
+     * @param values the values of the points, as in values[stream][point].
+     * @return the number of points copied.
+     */
+    public int read(float from, float to, int maxPoints, @NonNull float[] times,
+            @NonNull int[] types, @NonNull float[][] values) {
+        maxPoints = Math.max(maxPoints, 2);
+        while (true) {
+            int generation = mGeneration;
+            long count = mCount;
+            if (count == 0) {
+                return 0;
+            }
+            long oldest = Math.max(0, count - mCapacity);
+            long first = Math.max(oldest, search(oldest, count, from) - 1);
+            long last = Math.min(count - 1, search(oldest, count, to));
+
+            // Pick the finest level with few enough buckets.
+            int level = 0;
+            int shift = 0;
+            while ((last >> shift) - (first >> shift) + 1 > maxPoints && level < mMins.length) {
+                level++;
+                shift += LEVEL_SHIFT;
+            }
+
+            int points = 0;
+            for (long bucket = first >> shift; bucket <= last >> shift; bucket++, points++) {
+                int slot = (int) (Math.max(bucket << shift, first) % mSlots);
+                times[points] = mTimes[slot];
+                types[points] = mTypes[slot];
+                if (level == 0) {
+                    for (int j = 0; j < myStreams; j++) {
+                        values[j][points] = mValues[j][slot];
+                    }
+                } else {
+                    int levelSlot = (int) (bucket % mLevelSlots[level - 1]);
+                    for (int j = 0; j < myStreams; j++) {
+                        float min = mMins[level - 1][j][levelSlot];
+                        float max = mMaxs[level - 1][j][levelSlot];
+                        values[j][points] = Math.abs(max) >= Math.abs(min) ? max : min;
+                    }
+                }
+            }
+            // The buckets of the levels are kept longer than their samples, so checking that the
+            // samples are still there is enough.
+            if (isRetained(generation, first)) {
+                return points;
+            }
+        }
+    }
+
+    /**
+     * @return the number of the first sample at or after the given time, or <var>end</var> if
+     * there is none.
+     */
+    private long search(long start, long end, float time) {
+        while (start < end) {
+            long middle = (start + end) >>> 1;
+            if (mTimes[(int) (middle % mSlots)] < time) {
+                start = middle + 1;
+            } else {
+                end = middle;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @return true if the data was not cleared since the given generation, and the given sample was
+     * not overwritten since.
+     */
+    private boolean isRetained(int generation, long n) {
+        long count = mCount;
+        return generation == mGeneration && n >= count - mCapacity;
     }
 
     /**
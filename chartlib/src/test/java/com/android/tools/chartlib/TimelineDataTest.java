@@ -159,4 +159,71 @@ public class TimelineDataTest extends TestCase {
         assertEquals(0.0f, sample.values[0]);
         assertEquals(0.0f, sample.values[1]);
     }
+
+    public void testRead() {
+        TimelineData data = new TimelineData(1, 10);
+        long start = data.getStartTime();
+        for (int i = 0; i < 20; i++) {
+            data.add(start + i * 1000, i % 2, i);
+        }
+        float[] times = new float[10];
+        int[] types = new int[10];
+        float[][] values = new float[1][10];
+
+        // The samples in the range, and the ones right before and after it.
+        assertEquals(5, data.read(12.5f, 15.5f, 10, times, types, values));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(12.0f + i, times[i], 0.0001f);
+            assertEquals(i % 2, types[i]);
+            assertEquals(12.0f + i, values[0][i]);
+        }
+
+        // Only the retained samples.
+        assertEquals(10, data.read(0.0f, 100.0f, 10, times, types, values));
+        assertEquals(10.0f, times[0], 0.0001f);
+        assertEquals(19.0f, times[9], 0.0001f);
+
+        data.clear();
+        assertEquals(0, data.read(0.0f, 100.0f, 10, times, types, values));
+    }
+
+    public void testReadLevelOfDetail() {
+        TimelineData data = new TimelineData(1, 1000);
+        long start = data.getStartTime();
+        for (int i = 0; i < 1000; i++) {
+            data.add(start + i * 1000, 0, i == 500 ? 100.0f : i == 700 ? -200.0f : i % 7);
+        }
+        float[] times = new float[50];
+        int[] types = new int[50];
+        float[][] values = new float[1][50];
+
+        // Buckets of 64 samples, keeping the value of largest magnitude.
+        assertEquals(16, data.read(0.0f, 1000.0f, 50, times, types, values));
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i * 64.0f, times[i], 0.0001f);
+            assertEquals(i == 7 ? 100.0f : i == 10 ? -200.0f : 6.0f, values[0][i]);
+        }
+    }
+
+    public void testReadLevelOfDetailAfterWrapping() {
+        TimelineData data = new TimelineData(1, 100);
+        long start = data.getStartTime();
+        for (int i = 0; i < 1000; i++) {
+            data.add(start + i * 1000, 0, i);
+        }
+        float[] times = new float[10];
+        int[] types = new int[10];
+        float[][] values = new float[1][10];
+
+        // The samples 900 to 999, in buckets of 16 samples from 896 to 1007.
+        assertEquals(7, data.read(0.0f, 1000.0f, 10, times, types, values));
+        assertEquals(900.0f, times[0], 0.0001f);
+        assertEquals(911.0f, values[0][0]);
+        assertEquals(992.0f, times[6], 0.0001f);
+        assertEquals(999.0f, values[0][6]);
+
+        float[] last = new float[1];
+        data.getLastValues(last);
+        assertEquals(999.0f, last[0]);
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.ByteLineReceiver;
+import com.android.ddmlib.MultiLineReceiver;
+import com.google.common.base.Charsets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link LogCatMessageParser}, fed with the lines of {@link MultiLineReceiver}, to
+ * {@link LogCatBatchParser}, fed with the raw lines of {@link ByteLineReceiver}. The output of
+ * {@code adb logcat -v long} is generated, and split in packets as read from the adb socket.
+ * Scores are in lines per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LogCatParserBenchmark {
+    private static final int MESSAGE_COUNT = 50000;
+
+    /** Each message is a header, a message line and an empty line. */
+    private static final int LINE_COUNT = 3 * MESSAGE_COUNT;
+
+    private static final int PACKET_SIZE = 16384;
+
+    private static final String[] TAGS = new String[] {
+            "ActivityManager", "PackageManager", "dalvikvm", "art", "System.out", "WindowManager",
+            "InputReader", "ConnectivityService", "chromium", "NetworkController"};
+
+    private byte[][] mPackets;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            int pid = 100 + random.nextInt(400);
+            log.append(String.format("[ 08-18 16:%02d:%02d.%03d %5d:%5d %c/%-8s ]\n",
+                    i / 60000 % 60, i / 1000 % 60, i % 1000, pid, pid + random.nextInt(20),
+                    "VDIWEA".charAt(random.nextInt(6)), TAGS[random.nextInt(TAGS.length)]));
+            log.append("Message ").append(i).append(" with some text of variable length");
+            for (int words = random.nextInt(10); words > 0; words--) {
+                log.append(" word");
+            }
+            log.append("\n\n");
+        }
+
+        byte[] bytes = log.toString().getBytes(Charsets.UTF_8);
+        mPackets = new byte[(bytes.length + PACKET_SIZE - 1) / PACKET_SIZE][];
+        for (int i = 0; i < mPackets.length; i++) {
+            int start = i * PACKET_SIZE;
+            mPackets[i] = new byte[Math.min(PACKET_SIZE, bytes.length - start)];
+            System.arraycopy(bytes, start, mPackets[i], 0, mPackets[i].length);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public void regexParser(final Blackhole blackhole) {
+        final LogCatMessageParser parser = new LogCatMessageParser();
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            public void processNewLines(String[] lines) {
+                blackhole.consume(parser.processLogLines(lines, null));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        receiver.setTrimLine(false);
+        receive(receiver);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public void batchParser(final Blackhole blackhole) {
+        receive(new BatchReceiver(blackhole, true));
+    }
+
+    /** The batch parser, without creating {@link LogCatMessage} objects from the batches. */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public void batchParserWithoutMessages(final Blackhole blackhole) {
+        receive(new BatchReceiver(blackhole, false));
+    }
+
+    private void receive(@NonNull ByteLineReceiver receiver) {
+        for (byte[] packet : mPackets) {
+            receiver.addOutput(packet, 0, packet.length);
+        }
+        receiver.flush();
+    }
+
+    private static final class BatchReceiver extends ByteLineReceiver {
+        private final LogCatBatchParser mParser = new LogCatBatchParser(null);
+        private final LogCatMessageBatch mBatch = new LogCatMessageBatch();
+        private final Blackhole mBlackhole;
+        private final boolean mCreateMessages;
+
+        public BatchReceiver(@NonNull Blackhole blackhole, boolean createMessages) {
+            mBlackhole = blackhole;
+            mCreateMessages = createMessages;
+            setTrimLine(false);
+        }
+
+        @Override
+        protected void processLine(@NonNull byte[] data, int offset, int length) {
+            mParser.processLine(data, offset, length, mBatch);
+        }
+
+        @Override
+        protected void processEndOfBatch() {
+            if (mCreateMessages) {
+                mBlackhole.consume(mBatch.toMessages());
+            } else {
+                mBlackhole.consume(mBatch.size());
+            }
+            mBatch.clear();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The distinct stack frames of tracked allocations, each with an id. The frames are interned:
+ * a frame found in many allocations, or in several parsed messages, has a single
+ * {@link StackTraceElement} and a single id.
+ * <p/>Ids are consecutive, starting from 0.
+ */
+public final class AllocationFrameTable {
+    private final Map<StackTraceElement, Integer> mIds = new HashMap<StackTraceElement, Integer>();
+    private final List<StackTraceElement> mFrames = new ArrayList<StackTraceElement>();
+
+    /**
+     * Returns the id of a frame, adding it to the table if needed.
+     */
+    public int intern(@NonNull String className, @NonNull String methodName,
+            String fileName, int lineNumber) {
+        StackTraceElement frame = new StackTraceElement(className, methodName, fileName,
+                lineNumber);
+        Integer id = mIds.get(frame);
+        if (id == null) {
+            id = mFrames.size();
+            mIds.put(frame, id);
+            mFrames.add(frame);
+        }
+        return id;
+    }
+
+    /** Returns the number of frames in the table. */
+    public int size() {
+        return mFrames.size();
+    }
+
+    @NonNull
+    public StackTraceElement getFrame(int id) {
+        return mFrames.get(id);
+    }
+}
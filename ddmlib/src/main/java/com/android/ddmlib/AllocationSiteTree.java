@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.utils.LongIntMap;
+
+import java.util.Arrays;
+
+/**
+ * Tracked allocations aggregated by allocation site: each node of the tree is a stack prefix,
+ * starting from the outermost frame, with the number and total size of the allocations made
+ * under it. The memory used by the tree depends on the number of distinct sites, not on the
+ * number of allocations.
+ * <p/>The tree is filled as a {@link AllocationsParser.IAllocationVisitor}, with the frames of
+ * its {@link #getFrameTable() frame table}:
+ * <pre>
+ * AllocationSiteTree tree = new AllocationSiteTree();
+ * AllocationsParser.parse(data, tree.getFrameTable(), tree);
+ * </pre>
+ * Nodes are ints, from {@link #ROOT} to {@link #getNodeCount()} excluded.
+ */
+public final class AllocationSiteTree implements AllocationsParser.IAllocationVisitor {
+    /** The root node, with all the allocations. It has no frame. */
+    public static final int ROOT = 0;
+
+    /** Returned for missing nodes. */
+    public static final int NO_NODE = -1;
+
+    private final AllocationFrameTable mFrameTable;
+
+    private int mNodeCount = 1;
+    private int[] mFrameIds;
+    private int[] mParents;
+    private int[] mFirstChildren;
+    private int[] mNextSiblings;
+    private int[] mCounts;
+    private long[] mSizes;
+
+    /** The child of each node for each frame, keyed by node and frame id. */
+    private final LongIntMap mChildren = new LongIntMap();
+
+    public AllocationSiteTree() {
+        this(new AllocationFrameTable());
+    }
+
+    /**
+     * Creates a tree using an existing frame table, for instance to share it with other trees.
+     */
+    public AllocationSiteTree(@NonNull AllocationFrameTable frameTable) {
+        mFrameTable = frameTable;
+        int capacity = 64;
+        mFrameIds = new int[capacity];
+        mParents = new int[capacity];
+        mFirstChildren = new int[capacity];
+        mNextSiblings = new int[capacity];
+        mCounts = new int[capacity];
+        mSizes = new long[capacity];
+        mFrameIds[ROOT] = NO_NODE;
+        mParents[ROOT] = NO_NODE;
+        mFirstChildren[ROOT] = NO_NODE;
+        mNextSiblings[ROOT] = NO_NODE;
+    }
+
+    @NonNull
+    public AllocationFrameTable getFrameTable() {
+        return mFrameTable;
+    }
+
+    @Override
+    public void visitAllocation(int allocNumber, @NonNull String allocatedClass, int size,
+            short threadId, @NonNull int[] frameIds, int depth) {
+        int node = ROOT;
+        mCounts[node]++;
+        mSizes[node] += size;
+        for (int i = depth - 1; i >= 0; i--) {
+            node = getOrAddChild(node, frameIds[i]);
+            mCounts[node]++;
+            mSizes[node] += size;
+        }
+    }
+
+    private int getOrAddChild(int node, int frameId) {
+        long key = ((long) node << 32) | frameId;
+        int child = mChildren.get(key, NO_NODE);
+        if (child == NO_NODE) {
+            if (mNodeCount == mFrameIds.length) {
+                grow();
+            }
+            child = mNodeCount++;
+            mFrameIds[child] = frameId;
+            mParents[child] = node;
+            mFirstChildren[child] = NO_NODE;
+            mNextSiblings[child] = mFirstChildren[node];
+            mFirstChildren[node] = child;
+            mChildren.put(key, child);
+        }
+        return child;
+    }
+
+    private void grow() {
+        int capacity = mFrameIds.length * 2;
+        mFrameIds = Arrays.copyOf(mFrameIds, capacity);
+        mParents = Arrays.copyOf(mParents, capacity);
+        mFirstChildren = Arrays.copyOf(mFirstChildren, capacity);
+        mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+        mCounts = Arrays.copyOf(mCounts, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+    }
+
+    /** Returns the number of nodes, including the root. */
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /** Returns the id of the frame of a node in the frame table, or {@link #NO_NODE} for the root. */
+    public int getFrameId(int node) {
+        checkNode(node);
+        return mFrameIds[node];
+    }
+
+    /** Returns the frame of a node, or null for the root. */
+    @Nullable
+    public StackTraceElement getFrame(int node) {
+        int frameId = getFrameId(node);
+        return frameId == NO_NODE ? null : mFrameTable.getFrame(frameId);
+    }
+
+    /** Returns the parent of a node, called by the frame of the node. */
+    public int getParent(int node) {
+        checkNode(node);
+        return mParents[node];
+    }
+
+    /** Returns the first child of a node, or {@link #NO_NODE}. */
+    public int getFirstChild(int node) {
+        checkNode(node);
+        return mFirstChildren[node];
+    }
+
+    /** Returns the next child of the parent of a node, or {@link #NO_NODE}. */
+    public int getNextSibling(int node) {
+        checkNode(node);
+        return mNextSiblings[node];
+    }
+
+    /** Returns the child of a node for a frame, or {@link #NO_NODE}. */
+    public int getChild(int node, int frameId) {
+        checkNode(node);
+        return mChildren.get(((long) node << 32) | frameId, NO_NODE);
+    }
+
+    /** Returns the number of allocations made under a node. */
+    public int getCount(int node) {
+        checkNode(node);
+        return mCounts[node];
+    }
+
+    /** Returns the total size of the allocations made under a node. */
+    public long getSize(int node) {
+        checkNode(node);
+        return mSizes[node];
+    }
+
+    private void checkNode(int node) {
+        if (node < 0 || node >= mNodeCount) {
+            throw new IndexOutOfBoundsException(
+                    String.format("Node: %1$d, Count: %2$d", node, mNodeCount));
+        }
+    }
+}
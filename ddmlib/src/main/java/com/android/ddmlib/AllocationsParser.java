@@ -16,10 +16,32 @@
 package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
+import com.android.ddmlib.utils.LongIntMap;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public class AllocationsParser {
+  /**
+   * Receives the allocations of {@link #parse(ByteBuffer, AllocationFrameTable, IAllocationVisitor)},
+   * one at a time, without creating an {@link AllocationInfo} for each of them.
+   */
+  public interface IAllocationVisitor {
+    /**
+     * Called for each allocation, in the order of the message.
+     * @param allocNumber the number of the allocation, the most recent allocation having number 1
+     * @param allocatedClass the class of the allocated object
+     * @param size the size of the allocation
+     * @param threadId the thread which allocated the object
+     * @param frameIds the ids of the stack frames in the frame table, starting from the allocation
+     *     point. The array is reused for the next allocation.
+     * @param depth the number of frames in {@code frameIds}
+     */
+    void visitAllocation(int allocNumber, @NonNull String allocatedClass, int size, short threadId,
+                         @NonNull int[] frameIds, int depth);
+  }
+
   /**
    * Converts a VM class descriptor string ("Landroid/os/Debug;") to
    * a dot-notation class name ("android.os.Debug").
@@ -114,6 +136,31 @@ public class AllocationsParser {
   */
   @NonNull
   public static AllocationInfo[] parse(@NonNull ByteBuffer data) {
+    final AllocationFrameTable frameTable = new AllocationFrameTable();
+    final List<AllocationInfo> allocations = new ArrayList<AllocationInfo>();
+    parse(data, frameTable, new IAllocationVisitor() {
+      @Override
+      public void visitAllocation(int allocNumber, @NonNull String allocatedClass, int size,
+                                  short threadId, @NonNull int[] frameIds, int depth) {
+        // the frames are shared by all the allocations.
+        StackTraceElement[] steArray = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+          steArray[i] = frameTable.getFrame(frameIds[i]);
+        }
+        allocations.add(new AllocationInfo(allocNumber, allocatedClass, size, threadId, steArray));
+      }
+    });
+    return allocations.toArray(new AllocationInfo[allocations.size()]);
+  }
+
+  /**
+   * Parses the allocations of a message, and sends them to a visitor, one at a time. The stack
+   * frames are interned in a frame table, which can be shared by several calls, so that only
+   * one {@link StackTraceElement} is created for each distinct frame.
+   * <p/>See {@link #parse(ByteBuffer)} for the format of the message.
+   */
+  public static void parse(@NonNull ByteBuffer data, @NonNull AllocationFrameTable frameTable,
+                           @NonNull IAllocationVisitor visitor) {
     int messageHdrLen, entryHdrLen, stackFrameLen;
     int numEntries, offsetToStrings;
     int numClassNames, numMethodNames, numFileNames;
@@ -150,7 +197,10 @@ public class AllocationsParser {
      */
     data.position(messageHdrLen);
 
-    AllocationInfo[] allocations = new AllocationInfo[numEntries];
+    // the ids in the frame table of the frames of this message, by string indices and line.
+    LongIntMap frameIds = new LongIntMap();
+    int[] stack = new int[256];
+
     for (int i = 0; i < numEntries; i++) {
       int totalSize;
       int threadId, classNameIndex, stackDepth;
@@ -163,8 +213,6 @@ public class AllocationsParser {
       for (int skip = 9; skip < entryHdrLen; skip++)
         data.get();
 
-      StackTraceElement[] steArray = new StackTraceElement[stackDepth];
-
       /*
        * Pull out the stack trace.
        */
@@ -172,27 +220,30 @@ public class AllocationsParser {
         int methodClassNameIndex, methodNameIndex;
         int methodSourceFileIndex;
         short lineNumber;
-        String methodClassName, methodName, methodSourceFile;
 
         methodClassNameIndex = (data.getShort() & 0xffff);
         methodNameIndex = (data.getShort() & 0xffff);
         methodSourceFileIndex = (data.getShort() & 0xffff);
         lineNumber = data.getShort();
 
-        methodClassName = classNames[methodClassNameIndex];
-        methodName = methodNames[methodNameIndex];
-        methodSourceFile = fileNames[methodSourceFileIndex];
-
-        steArray[sti] = new StackTraceElement(methodClassName,
-                                              methodName, methodSourceFile, lineNumber);
+        long key = ((long) methodClassNameIndex << 48) | ((long) methodNameIndex << 32)
+                | ((long) methodSourceFileIndex << 16) | (lineNumber & 0xffff);
+        int frameId = frameIds.get(key, -1);
+        if (frameId < 0) {
+          frameId = frameTable.intern(classNames[methodClassNameIndex],
+                                      methodNames[methodNameIndex],
+                                      fileNames[methodSourceFileIndex], lineNumber);
+          frameIds.put(key, frameId);
+        }
+        stack[sti] = frameId;
 
         /* we've consumed 8 bytes; gobble up any extra */
         for (int skip = 8; skip < stackFrameLen; skip++)
           data.get();
       }
 
-      allocations[i] = new AllocationInfo(numEntries - i, classNames[classNameIndex], totalSize, (short) threadId, steArray);
+      visitor.visitAllocation(numEntries - i, classNames[classNameIndex], totalSize,
+                              (short) threadId, stack, stackDepth);
     }
-    return allocations;
   }
 }
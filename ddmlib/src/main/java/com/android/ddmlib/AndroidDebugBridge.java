@@ -470,6 +470,33 @@ public final class AndroidDebugBridge {
         return new IDevice[0];
     }
 
+    /**
+     * Runs an operation on all the online devices, operating on up to
+     * <var>maxConcurrency</var> devices at the same time.
+     * <p/>The future of each device completes as soon as the operation is done on it. An operation
+     * running longer than <var>timeout</var> on a device is interrupted, and its future fails
+     * with a {@link TimeoutException}.
+     * @param operation the operation, for instance {@link MultiDeviceExecutor#shellCommand}.
+     * @param maxConcurrency the maximum number of devices operated on at the same time.
+     * @param timeout the maximum time the operation can run on a single device. A time out of 0
+     *      means no time out.
+     * @param unit the unit of <var>timeout</var>.
+     * @return the future of the operation for each device.
+     * @see MultiDeviceExecutor
+     */
+    @NonNull
+    public <T> Map<IDevice, ListenableFuture<T>> executeOnDevices(
+            @NonNull MultiDeviceExecutor.IDeviceOperation<T> operation, int maxConcurrency,
+            long timeout, @NonNull TimeUnit unit) {
+        List<IDevice> devices = new ArrayList<IDevice>();
+        for (IDevice device : getDevices()) {
+            if (device.isOnline()) {
+                devices.add(device);
+            }
+        }
+        return new MultiDeviceExecutor(maxConcurrency).submit(devices, operation, timeout, unit);
+    }
+
     /**
      * Returns whether the bridge has acquired the initial list from adb after being created.
      * <p/>Calling {@link #getDevices()} right after {@link #createBridge(String, boolean)} will
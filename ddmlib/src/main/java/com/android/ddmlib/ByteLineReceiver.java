@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Base implementation of {@link IShellOutputReceiver} that splits the raw data coming from the
+ * socket into lines, without decoding whole packets into {@link String} objects first.
+ * <p/>Newlines are searched for in the raw bytes, and only lines spanning several packets are
+ * copied, into a buffer reused for all lines. Classes extending it override either
+ * {@link #processLine(byte[], int, int)} to receive the bytes of each line, or
+ * {@link #processLine(CharSequence)} to receive them decoded as UTF-8. Neither is valid after the
+ * call returns, so they must be copied to be kept.
+ * <p/>{@link #processEndOfBatch()} is called once all the complete lines of a packet have been
+ * processed, so that work can be batched per packet rather than done per line.
+ */
+public abstract class ByteLineReceiver implements IShellOutputReceiver {
+
+    private boolean mTrimLines = true;
+
+    /** Bytes of the unfinished line, stored for the next packet. */
+    private byte[] mUnfinishedLine = new byte[128];
+
+    private int mUnfinishedLineLength;
+
+    /** Whether any output was received, since the unfinished line is then flushed even if empty. */
+    private boolean mHasOutput;
+
+    /** Characters of the line being processed, lazily allocated. */
+    private CharBuffer mChars;
+
+    private CharsetDecoder mDecoder;
+
+    /**
+     * Set the trim lines flag.
+     * @param trim whether the lines are trimmed, or not.
+     */
+    public void setTrimLine(boolean trim) {
+        mTrimLines = trim;
+    }
+
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+        mHasOutput = true;
+
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+
+            if (mUnfinishedLineLength == 0) {
+                processRawLine(data, start, i - start, mTrimLines);
+            } else {
+                appendToUnfinishedLine(data, start, i - start);
+                processRawLine(mUnfinishedLine, 0, mUnfinishedLineLength, mTrimLines);
+                mUnfinishedLineLength = 0;
+            }
+            start = i + 1;
+        }
+
+        if (start < end) {
+            appendToUnfinishedLine(data, start, end - start);
+        }
+        processEndOfBatch();
+    }
+
+    @Override
+    public final void flush() {
+        // Like MultiLineReceiver, the unterminated end of the output is a last line, even if empty.
+        if (mHasOutput) {
+            processRawLine(mUnfinishedLine, 0, mUnfinishedLineLength, false);
+            mUnfinishedLineLength = 0;
+            processEndOfBatch();
+        }
+
+        done();
+    }
+
+    private void appendToUnfinishedLine(byte[] data, int offset, int length) {
+        int newLength = mUnfinishedLineLength + length;
+        if (newLength > mUnfinishedLine.length) {
+            byte[] line = new byte[Math.max(newLength, mUnfinishedLine.length * 2)];
+            System.arraycopy(mUnfinishedLine, 0, line, 0, mUnfinishedLineLength);
+            mUnfinishedLine = line;
+        }
+        System.arraycopy(data, offset, mUnfinishedLine, mUnfinishedLineLength, length);
+        mUnfinishedLineLength = newLength;
+    }
+
+    private void processRawLine(byte[] data, int offset, int length, boolean trim) {
+        // in older devices, \n is preceded by a \r
+        if (length > 0 && data[offset + length - 1] == '\r') {
+            length--;
+        }
+
+        if (trim) {
+            // same as String.trim(), as UTF-8 only encodes characters up to ' ' as single bytes
+            while (length > 0 && (data[offset] & 0xff) <= ' ') {
+                offset++;
+                length--;
+            }
+            while (length > 0 && (data[offset + length - 1] & 0xff) <= ' ') {
+                length--;
+            }
+        }
+
+        processLine(data, offset, length);
+    }
+
+    /**
+     * Called for each new line, with the bytes of the line without its line terminator. The
+     * bytes are only valid until this method returns.
+     * <p/>By default, the line is decoded into characters and passed on to
+     * {@link #processLine(CharSequence)}.
+     */
+    protected void processLine(@NonNull byte[] data, int offset, int length) {
+        processLine(decode(data, offset, length));
+    }
+
+    /**
+     * Called for each new line, unless {@link #processLine(byte[], int, int)} is overridden. The
+     * characters are only valid until this method returns.
+     */
+    protected void processLine(@NonNull CharSequence line) {
+    }
+
+    /**
+     * Called after the lines received in a packet of output have been processed.
+     */
+    protected void processEndOfBatch() {
+    }
+
+    /**
+     * Decodes UTF-8 bytes into a buffer reused for all lines.
+     */
+    @NonNull
+    protected final CharSequence decode(@NonNull byte[] data, int offset, int length) {
+        if (mChars == null || mChars.capacity() < length) {
+            mChars = CharBuffer.allocate(Math.max(length, 128));
+        }
+        mChars.clear();
+
+        int i = 0;
+        char[] chars = mChars.array();
+        for (; i < length && data[offset + i] >= 0; i++) {
+            chars[i] = (char) data[offset + i];
+        }
+        if (i == length) {
+            mChars.limit(length);
+            return mChars;
+        }
+
+        // Not only ASCII characters.
+        if (mDecoder == null) {
+            mDecoder = Charsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        mDecoder.reset();
+        mChars.position(i);
+        ByteBuffer bytes = ByteBuffer.wrap(data, offset + i, length - i);
+        // UTF-8 never has more characters than bytes, so the buffer can't overflow.
+        mDecoder.decode(bytes, mChars, true);
+        mDecoder.flush(mChars);
+        mChars.flip();
+        return mChars;
+    }
+
+    /**
+     * Terminates the process. This is called after the last lines have been processed.
+     */
+    public void done() {
+        // do nothing.
+    }
+}
@@ -798,6 +798,33 @@ public class ClientData {
         return null;
     }
 
+    /**
+     * Sends the tracked allocations to a visitor, one at a time, rather than creating an
+     * {@link AllocationInfo} for each of them.
+     * @param frameTable the table the stack frames are interned into.
+     * @param visitor the visitor receiving the allocations.
+     * @return false if there are no tracked allocations.
+     * @see Client#requestAllocationDetails()
+     */
+    public synchronized boolean visitAllocations(@NonNull AllocationFrameTable frameTable,
+            @NonNull AllocationsParser.IAllocationVisitor visitor) {
+        if (mAllocationsData != null) {
+            AllocationsParser.parse(ByteBuffer.wrap(mAllocationsData), frameTable, visitor);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the tracked allocations, aggregated by allocation site.
+     * @see Client#requestAllocationDetails()
+     */
+    @Nullable
+    public synchronized AllocationSiteTree getAllocationSites() {
+        AllocationSiteTree tree = new AllocationSiteTree();
+        return visitAllocations(tree.getFrameTable(), tree) ? tree : null;
+    }
+
     void addFeature(String feature) {
         mFeatures.add(feature);
     }
@@ -18,16 +18,19 @@ package com.android.ddmlib;
 
 import com.google.common.base.Charsets;
 
+import java.io.ByteArrayOutputStream;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A {@link IShellOutputReceiver} which collects the whole shell output into one
  * {@link String}.
+ * <p/>The raw bytes are collected, and only decoded when the output is requested, so that no
+ * {@link String} is created per packet of output.
  */
 public class CollectingOutputReceiver implements IShellOutputReceiver {
     private CountDownLatch mCompletionLatch;
-    private StringBuffer mOutputBuffer = new StringBuffer();
+    private final ByteArrayOutputStream mOutputBuffer = new ByteArrayOutputStream();
     private AtomicBoolean mIsCanceled = new AtomicBoolean(false);
 
     public CollectingOutputReceiver() {
@@ -38,7 +41,7 @@ public class CollectingOutputReceiver implements IShellOutputReceiver {
     }
 
     public String getOutput() {
-        return mOutputBuffer.toString();
+        return new String(mOutputBuffer.toByteArray(), Charsets.UTF_8);
     }
 
     @Override
@@ -56,9 +59,7 @@ public class CollectingOutputReceiver implements IShellOutputReceiver {
     @Override
     public void addOutput(byte[] data, int offset, int length) {
         if (!isCancelled()) {
-            String s;
-            s = new String(data, offset, length, Charsets.UTF_8);
-            mOutputBuffer.append(s);
+            mOutputBuffer.write(data, offset, length);
         }
     }
 
@@ -50,7 +50,7 @@ import java.util.regex.Pattern;
 /**
  * A Device. It can be a physical device or an emulator.
  */
-final class Device implements IDevice {
+final class Device implements IExecEnabledDevice {
     /** Emulator Serial Number regexp. */
     static final String RE_EMULATOR_SN = "emulator-(\\d+)"; //$NON-NLS-1$
 
@@ -118,6 +118,9 @@ final class Device implements IDevice {
     /** Flag indicating whether the device has the screen recorder binary. */
     private Boolean mHasScreenRecorder;
 
+    /** The file listing service, created when needed. */
+    private FileListingService mFileListingService;
+
     /** Cached list of hardware characteristics */
     private Set<String> mHardwareCharacteristics;
 
@@ -530,8 +533,12 @@ final class Device implements IDevice {
      * @see com.android.ddmlib.IDevice#getFileListingService()
      */
     @Override
-    public FileListingService getFileListingService() {
-        return new FileListingService(this);
+    public synchronized FileListingService getFileListingService() {
+        // a single service per device, so that its cached directories are shared.
+        if (mFileListingService == null) {
+            mFileListingService = new FileListingService(this);
+        }
+        return mFileListingService;
     }
 
     @Override
@@ -616,6 +623,16 @@ final class Device implements IDevice {
                 receiver, maxTimeToOutputResponse, maxTimeUnits);
     }
 
+    @Override
+    public void executeBinaryCommand(String command, IShellOutputReceiver receiver,
+            long maxTimeToOutputResponse, TimeUnit maxTimeUnits)
+            throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
+            IOException {
+        AdbHelper.executeRemoteCommand(AndroidDebugBridge.getSocketAddress(),
+                AdbHelper.AdbService.EXEC, command, this, receiver, maxTimeToOutputResponse,
+                maxTimeUnits, null /* inputStream */);
+    }
+
     @Override
     public void runEventLogService(LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
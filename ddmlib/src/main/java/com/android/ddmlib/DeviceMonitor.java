@@ -27,7 +27,7 @@ import com.android.ddmlib.utils.DebuggerPorts;
 import com.android.utils.Pair;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.IOException;
@@ -41,13 +41,16 @@ import java.nio.channels.SocketChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The {@link DeviceMonitor} monitors devices attached to adb.
@@ -59,28 +62,75 @@ import java.util.concurrent.TimeUnit;
  *
  * For each device that is detected to be online, it then opens a new socket connection to adb,
  * and issues a "track-jdwp" command to that device. On this connection, it monitors active
- * clients on the device. Note: a single thread monitors jdwp connections from all devices.
- * The different socket connections to adb (one per device) are multiplexed over a single selector.
+ * clients on the device. The different socket connections to adb (one per device) are
+ * multiplexed over the selector of the {@link MonitorThread}, which also handles the connections
+ * to the clients, so that a single event loop handles all the client traffic.
+ *
+ * Connecting to new clients blocks on adb, so it is done by a small pool of threads rather than
+ * by the event loop, which would otherwise stall while a device with many clients connects.
  */
 final class DeviceMonitor {
     private static final String ADB_TRACK_DEVICES_COMMAND = "host:track-devices";
     private static final String ADB_TRACK_JDWP_COMMAND = "track-jdwp";
 
-    private final byte[] mLengthBuffer2 = new byte[4];
+    /** Number of threads connecting to clients. */
+    private static final int CLIENT_OPENER_THREADS = 4;
+
+    /** Idle time after which the threads connecting to clients stop. */
+    private static final long CLIENT_OPENER_KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Delay before reopening a dropped client. If we don't wait a bit, the client will never
+     * answer the second handshake!
+     */
+    private static final long CLIENT_REOPEN_DELAY_MS = 1000;
+
+    /** Opens the connections to the clients of devices. */
+    @VisibleForTesting
+    interface ClientConnector {
+        @NonNull
+        SocketChannel connect(@NonNull Device device, int pid)
+                throws TimeoutException, AdbCommandRejectedException, IOException;
+    }
+
+    /** Connects to the clients through the adb server. */
+    private static final ClientConnector ADB_CLIENT_CONNECTOR = new ClientConnector() {
+        @NonNull
+        @Override
+        public SocketChannel connect(@NonNull Device device, int pid)
+                throws TimeoutException, AdbCommandRejectedException, IOException {
+            return AdbHelper.createPassThroughConnection(
+                    AndroidDebugBridge.getSocketAddress(), device, pid);
+        }
+    };
 
     private volatile boolean mQuit = false;
 
+    /** The running bridge, or null in tests which don't monitor the device list. */
+    @Nullable
     private final AndroidDebugBridge mServer;
+    @NonNull
+    private final ClientConnector mClientConnector;
     private DeviceListMonitorTask mDeviceListMonitorTask;
 
-    private Selector mSelector;
-
     private final List<Device> mDevices = Lists.newCopyOnWriteArrayList();
     private final DebuggerPorts mDebuggerPorts =
             new DebuggerPorts(DdmPreferences.getDebugPortBase());
-    private final Map<Client, Integer> mClientsToReopen = new HashMap<Client, Integer>();
-    private final BlockingQueue<Pair<SocketChannel,Device>> mChannelsToRegister =
-            Queues.newLinkedBlockingQueue();
+
+    /** Runs the blocking connections to clients, away from the {@link MonitorThread}. */
+    private final ScheduledThreadPoolExecutor mClientOpener;
+
+    /**
+     * Notifies the device listeners of the changes of client lists, in order and away from the
+     * {@link MonitorThread}, so that slow listeners don't hold up the clients of every device.
+     */
+    private final ThreadPoolExecutor mListenerNotifier;
+
+    /** The clients waiting to be dropped and reopened. */
+    private final Set<Client> mClientsToReopen = Sets.newConcurrentHashSet();
+
+    /** The devices and pids of the clients being opened. */
+    private final Set<Pair<Device, Integer>> mClientsBeingOpened = Sets.newConcurrentHashSet();
 
     /**
      * Creates a new {@link DeviceMonitor} object and links it to the running
@@ -88,13 +138,44 @@ final class DeviceMonitor {
      * @param server the running {@link AndroidDebugBridge}.
      */
     DeviceMonitor(@NonNull AndroidDebugBridge server) {
+        this(server, ADB_CLIENT_CONNECTOR);
+    }
+
+    @VisibleForTesting
+    DeviceMonitor(@Nullable AndroidDebugBridge server, @NonNull ClientConnector clientConnector) {
         mServer = server;
+        mClientConnector = clientConnector;
+
+        mClientOpener = new ScheduledThreadPoolExecutor(CLIENT_OPENER_THREADS,
+                createDaemonThreadFactory("Client Opener")); //$NON-NLS-1$
+        mClientOpener.setKeepAliveTime(CLIENT_OPENER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mClientOpener.allowCoreThreadTimeOut(true);
+
+        mListenerNotifier = new ThreadPoolExecutor(1, 1, CLIENT_OPENER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                createDaemonThreadFactory("Device Change Notifier")); //$NON-NLS-1$
+        mListenerNotifier.allowCoreThreadTimeOut(true);
+    }
+
+    @NonNull
+    private static ThreadFactory createDaemonThreadFactory(@NonNull final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, name + " #" + mCount.incrementAndGet()); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 
     /**
      * Starts the monitoring.
      */
     void start() {
+        assert mServer != null;
         mDeviceListMonitorTask = new DeviceListMonitorTask(mServer, new DeviceListUpdateListener());
         new Thread(mDeviceListMonitorTask, "Device List Monitor").start(); //$NON-NLS-1$
     }
@@ -109,10 +190,19 @@ final class DeviceMonitor {
             mDeviceListMonitorTask.stop();
         }
 
-        // wake up the secondary loop by closing the selector.
-        if (mSelector != null) {
-            mSelector.wakeup();
+        // stop monitoring the clients: closing the sockets removes them from the selector.
+        for (Device device : mDevices) {
+            SocketChannel channel = device.getClientMonitoringSocket();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // doesn't really matter if the close fails.
+                }
+            }
         }
+        mClientOpener.shutdownNow();
+        mListenerNotifier.shutdown();
     }
 
     /**
@@ -146,20 +236,50 @@ final class DeviceMonitor {
         return mDevices.toArray(new Device[0]);
     }
 
-    @NonNull
+    @Nullable
     AndroidDebugBridge getServer() {
         return mServer;
     }
 
-    void addClientToDropAndReopen(Client client, int port) {
-        synchronized (mClientsToReopen) {
-            Log.d("DeviceMonitor",
-                    "Adding " + client + " to list of client to reopen (" + port + ").");
-            if (mClientsToReopen.get(client) == null) {
-                mClientsToReopen.put(client, port);
-            }
+    /**
+     * Drops a client, and reopens it after a delay. This doesn't block: it can be called from the
+     * {@link MonitorThread}.
+     */
+    void addClientToDropAndReopen(final Client client, final int port) {
+        if (mQuit || !mClientsToReopen.add(client)) {
+            return;
         }
-        mSelector.wakeup();
+        Log.d("DeviceMonitor",
+                "Adding " + client + " to list of client to reopen (" + port + ").");
+
+        final Device device = client.getDeviceImpl();
+        final int pid = client.getClientData().getPid();
+        final Pair<Device, Integer> devicePid = Pair.of(device, pid);
+
+        // the pid isn't opened again by the jdwp tracking while the client is reopened.
+        mClientsBeingOpened.add(devicePid);
+        MonitorThread.getInstance().dropClient(client, false /* notify */);
+
+        mClientOpener.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mQuit) {
+                        return;
+                    }
+                    int clientPort = port;
+                    if (clientPort == IDebugPortProvider.NO_STATIC_PORT) {
+                        clientPort = getNextDebuggerPort();
+                    }
+                    Log.d("DeviceMonitor", "Reopening " + client);
+                    openClient(device, pid, clientPort, MonitorThread.getInstance());
+                    device.update(Device.CHANGE_CLIENT_LIST);
+                } finally {
+                    mClientsBeingOpened.remove(devicePid);
+                    mClientsToReopen.remove(client);
+                }
+            }
+        }, CLIENT_REOPEN_DELAY_MS, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -258,27 +378,28 @@ final class DeviceMonitor {
      * @return true if success.
      */
     private boolean startMonitoringDevice(@NonNull Device device) {
+        final MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread == null) {
+            return false;
+        }
+
         SocketChannel socketChannel = openAdbConnection();
 
         if (socketChannel != null) {
             try {
                 boolean result = sendDeviceMonitoringRequest(socketChannel, device);
                 if (result) {
-
-                    if (mSelector == null) {
-                        startDeviceMonitorThread();
-                    }
-
                     device.setClientMonitoringSocket(socketChannel);
 
                     socketChannel.configureBlocking(false);
 
-                    try {
-                        mChannelsToRegister.put(Pair.of(socketChannel, device));
-                    } catch (InterruptedException e) {
-                        // the queue is unbounded, and isn't going to block
-                    }
-                    mSelector.wakeup();
+                    final JdwpTracker tracker = new JdwpTracker(device, socketChannel);
+                    monitorThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            tracker.register(monitorThread.getSelector());
+                        }
+                    });
 
                     return true;
                 }
@@ -318,110 +439,97 @@ final class DeviceMonitor {
         return false;
     }
 
-    private void startDeviceMonitorThread() throws IOException {
-        mSelector = Selector.open();
-        new Thread("Device Client Monitor") { //$NON-NLS-1$
+    /**
+     * Restarts the monitoring of a device, away from the {@link MonitorThread}.
+     */
+    private void restartMonitoringDevice(@NonNull final Device device) {
+        if (mQuit) {
+            return;
+        }
+        mClientOpener.execute(new Runnable() {
             @Override
             public void run() {
-                deviceClientMonitorLoop();
+                if (!mQuit && mDevices.contains(device)) {
+                    Log.d("DeviceMonitor", "Restarting monitoring service for " + device);
+                    startMonitoringDevice(device);
+                }
             }
-        }.start();
+        });
     }
 
-    private void deviceClientMonitorLoop() {
-        do {
-            try {
-                int count = mSelector.select();
-
-                if (mQuit) {
-                    return;
-                }
-
-                synchronized (mClientsToReopen) {
-                    if (!mClientsToReopen.isEmpty()) {
-                        Set<Client> clients = mClientsToReopen.keySet();
-                        MonitorThread monitorThread = MonitorThread.getInstance();
-
-                        for (Client client : clients) {
-                            Device device = client.getDeviceImpl();
-                            int pid = client.getClientData().getPid();
-
-                            monitorThread.dropClient(client, false /* notify */);
+    /**
+     * Reads the lists of pids sent by the {@code track-jdwp} service of a device. It is attached
+     * to the key of its channel in the selector of the {@link MonitorThread}, and only used by
+     * that thread.
+     */
+    final class JdwpTracker {
+        private final Device mDevice;
+        private final SocketChannel mChannel;
 
-                            // This is kinda bad, but if we don't wait a bit, the client
-                            // will never answer the second handshake!
-                            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+        /** The data received and not processed yet, ready to be read into. */
+        private ByteBuffer mBuffer = ByteBuffer.allocate(256);
 
-                            int port = mClientsToReopen.get(client);
+        JdwpTracker(@NonNull Device device, @NonNull SocketChannel channel) {
+            mDevice = device;
+            mChannel = channel;
+        }
 
-                            if (port == IDebugPortProvider.NO_STATIC_PORT) {
-                                port = getNextDebuggerPort();
-                            }
-                            Log.d("DeviceMonitor", "Reopening " + client);
-                            openClient(device, pid, port, monitorThread);
-                            device.update(Device.CHANGE_CLIENT_LIST);
-                        }
+        void register(@NonNull Selector selector) {
+            try {
+                mChannel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                // the device was removed, or the monitor stopped, before the registration.
+                Log.d("DeviceMonitor", "Failed to register jdwp tracking: " + e.getMessage());
+            }
+        }
 
-                        mClientsToReopen.clear();
-                    }
+        /**
+         * Reads the available data, and processes the complete messages.
+         */
+        void processActivity(@NonNull SelectionKey key) {
+            try {
+                if (!key.isValid() || !key.isReadable()) {
+                    throw new IOException("Invalid key");
+                }
+                if (mChannel.read(mBuffer) < 0) {
+                    throw new IOException("EOF");
                 }
 
-                // register any new channels
-                while (!mChannelsToRegister.isEmpty()) {
-                    try {
-                        Pair<SocketChannel, Device> data = mChannelsToRegister.take();
-                        data.getFirst().register(mSelector, SelectionKey.OP_READ, data.getSecond());
-                    } catch (InterruptedException e) {
-                        // doesn't block: this thread is the only reader and it reads only when
-                        // there is data
+                mBuffer.flip();
+                while (mBuffer.remaining() >= 4) {
+                    int length = readLength(mBuffer);
+                    if (mBuffer.remaining() < 4 + length) {
+                        break;
                     }
+                    mBuffer.position(mBuffer.position() + 4);
+                    byte[] data = new byte[length];
+                    mBuffer.get(data);
+                    processIncomingJdwpData(mDevice,
+                            new String(data, AdbHelper.DEFAULT_ENCODING));
                 }
-
-                if (count == 0) {
-                    continue;
+                mBuffer.compact();
+
+                if (!mBuffer.hasRemaining()) {
+                    // the message doesn't fit.
+                    ByteBuffer buffer = ByteBuffer.allocate(mBuffer.capacity() * 2);
+                    mBuffer.flip();
+                    buffer.put(mBuffer);
+                    mBuffer = buffer;
                 }
-
-                Set<SelectionKey> keys = mSelector.selectedKeys();
-                Iterator<SelectionKey> iter = keys.iterator();
-
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    iter.remove();
-
-                    if (key.isValid() && key.isReadable()) {
-                        Object attachment = key.attachment();
-
-                        if (attachment instanceof Device) {
-                            Device device = (Device)attachment;
-
-                            SocketChannel socket = device.getClientMonitoringSocket();
-
-                            if (socket != null) {
-                                try {
-                                    int length = readLength(socket, mLengthBuffer2);
-
-                                    processIncomingJdwpData(device, socket, length);
-                                } catch (IOException ioe) {
-                                    Log.d("DeviceMonitor",
-                                            "Error reading jdwp list: " + ioe.getMessage());
-                                    socket.close();
-
-                                    // restart the monitoring of that device
-                                    if (mDevices.contains(device)) {
-                                        Log.d("DeviceMonitor",
-                                                "Restarting monitoring service for " + device);
-                                        startMonitoringDevice(device);
-                                    }
-                                }
-                            }
-                        }
-                    }
+            } catch (IOException ioe) {
+                Log.d("DeviceMonitor",
+                        "Error reading jdwp list: " + ioe.getMessage());
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    // doesn't really matter if the close fails.
                 }
-            } catch (IOException e) {
-                Log.e("DeviceMonitor", "Connection error while monitoring clients.");
-            }
+                key.cancel();
 
-        } while (!mQuit);
+                // restart the monitoring of that device
+                restartMonitoringDevice(mDevice);
+            }
+        }
     }
 
     private static boolean sendDeviceMonitoringRequest(@NonNull SocketChannel socket,
@@ -448,79 +556,112 @@ final class DeviceMonitor {
         }
     }
 
-    private void processIncomingJdwpData(@NonNull Device device,
-            @NonNull SocketChannel monitorSocket, int length) throws IOException {
+    @VisibleForTesting
+    void processIncomingJdwpData(@NonNull final Device device, @NonNull String result) {
 
-        // This methods reads @length bytes from the @monitorSocket channel.
-        // These bytes correspond to the pids of the current set of processes on the device.
+        // The message contains the pids of the current set of processes on the device.
         // It takes this set of pids and compares them with the existing set of clients
         // for the device. Clients that correspond to pids that are not alive anymore are
         // dropped, and new clients are created for pids that don't have a corresponding Client.
 
-        if (length >= 0) {
-            // array for the current pids.
-            Set<Integer> newPids = new HashSet<Integer>();
-
-            // get the string data if there are any
-            if (length > 0) {
-                byte[] buffer = new byte[length];
-                String result = read(monitorSocket, buffer);
+        // array for the current pids.
+        Set<Integer> newPids = new HashSet<Integer>();
 
-                // split each line in its own list and create an array of integer pid
-                String[] pids = result == null ? new String[0] : result.split("\n"); //$NON-NLS-1$
+        // split each line in its own list and create an array of integer pid
+        String[] pids = result.isEmpty() ? new String[0] : result.split("\n"); //$NON-NLS-1$
 
-                for (String pid : pids) {
-                    try {
-                        newPids.add(Integer.valueOf(pid));
-                    } catch (NumberFormatException nfe) {
-                        // looks like this pid is not really a number. Lets ignore it.
-                        continue;
-                    }
-                }
+        for (String pid : pids) {
+            try {
+                newPids.add(Integer.valueOf(pid));
+            } catch (NumberFormatException nfe) {
+                // looks like this pid is not really a number. Lets ignore it.
+                continue;
             }
+        }
 
-            MonitorThread monitorThread = MonitorThread.getInstance();
+        MonitorThread monitorThread = MonitorThread.getInstance();
 
-            List<Client> clients = device.getClientList();
-            Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
+        List<Client> clients = device.getClientList();
+        Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
 
-            synchronized (clients) {
-                for (Client c : clients) {
-                    existingClients.put(c.getClientData().getPid(), c);
-                }
+        synchronized (clients) {
+            for (Client c : clients) {
+                existingClients.put(c.getClientData().getPid(), c);
             }
+        }
 
-            Set<Client> clientsToRemove = new HashSet<Client>();
-            for (Integer pid : existingClients.keySet()) {
-                if (!newPids.contains(pid)) {
-                    clientsToRemove.add(existingClients.get(pid));
-                }
+        Set<Client> clientsToRemove = new HashSet<Client>();
+        for (Integer pid : existingClients.keySet()) {
+            if (!newPids.contains(pid)) {
+                clientsToRemove.add(existingClients.get(pid));
             }
+        }
+
+        Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
+        pidsToAdd.removeAll(existingClients.keySet());
 
-            Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
-            pidsToAdd.removeAll(existingClients.keySet());
+        monitorThread.dropClients(clientsToRemove, false);
 
-            monitorThread.dropClients(clientsToRemove, false);
+        if (!clientsToRemove.isEmpty()) {
+            notifyClientListChanged(device);
+        }
 
-            // at this point whatever pid is left in the list needs to be converted into Clients.
-            for (int newPid : pidsToAdd) {
-                openClient(device, newPid, getNextDebuggerPort(), monitorThread);
+        // at this point whatever pid is left in the list needs to be converted into Clients.
+        // The connections block, so they are opened on other threads, and the device is
+        // changed once they are all opened.
+        final List<Pair<Device, Integer>> toOpen = Lists.newArrayList();
+        for (int newPid : pidsToAdd) {
+            Pair<Device, Integer> devicePid = Pair.of(device, newPid);
+            if (mClientsBeingOpened.add(devicePid)) {
+                toOpen.add(devicePid);
             }
+        }
 
-            if (!pidsToAdd.isEmpty() || !clientsToRemove.isEmpty()) {
+        final AtomicInteger remaining = new AtomicInteger(toOpen.size());
+        for (final Pair<Device, Integer> devicePid : toOpen) {
+            mClientOpener.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (mQuit) {
+                            return;
+                        }
+                        openClient(device, devicePid.getSecond(), getNextDebuggerPort(),
+                                MonitorThread.getInstance());
+                    } finally {
+                        mClientsBeingOpened.remove(devicePid);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        notifyClientListChanged(device);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies the device listeners that the client list of a device changed. This doesn't block:
+     * it can be called from the {@link MonitorThread}.
+     */
+    private void notifyClientListChanged(@NonNull final Device device) {
+        if (mQuit) {
+            return;
+        }
+        mListenerNotifier.execute(new Runnable() {
+            @Override
+            public void run() {
                 AndroidDebugBridge.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
             }
-        }
+        });
     }
 
     /** Opens and creates a new client. */
-    private static void openClient(@NonNull Device device, int pid, int port,
+    private void openClient(@NonNull Device device, int pid, int port,
             @NonNull MonitorThread monitorThread) {
 
         SocketChannel clientSocket;
         try {
-            clientSocket = AdbHelper.createPassThroughConnection(
-                    AndroidDebugBridge.getSocketAddress(), device, pid);
+            clientSocket = mClientConnector.connect(device, pid);
 
             // required for Selector
             clientSocket.configureBlocking(false);
@@ -595,6 +736,26 @@ final class DeviceMonitor {
         mDebuggerPorts.free(port);
     }
 
+    /**
+     * Reads the length of the next message, without moving the position of the buffer.
+     * @param buffer the buffer, with at least 4 bytes remaining.
+     * @return the length.
+     * @throws IOException if the length couldn't be read.
+     */
+    private static int readLength(@NonNull ByteBuffer buffer) throws IOException {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(buffer.get(buffer.position() + i), 16);
+            if (digit < 0) {
+                // we receive something we can't read. It's better to reset the connection at
+                // this point.
+                throw new IOException("Unable to read length");
+            }
+            length = (length << 4) | digit;
+        }
+        return length;
+    }
+
     /**
      * Reads the length of the next message from a socket.
      * @param socket The {@link SocketChannel} to read from.
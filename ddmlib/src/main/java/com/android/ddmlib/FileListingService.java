@@ -16,17 +16,40 @@
 
 package com.android.ddmlib;
 
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.SyncService.FileStat;
+
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Provides {@link Device} side file listing service.
  * <p/>To get an instance for a known {@link Device}, call {@link Device#getFileListingService()}.
+ * <p/>Directories are listed with the sync protocol, and their children are cached in their
+ * {@link FileEntry}. Once the cache expires, a directory is only listed again if its
+ * modification time changed, so refreshing a large unchanged directory only costs a stat.
+ * <code>ls</code> is used if the sync protocol isn't available.
  */
 public final class FileListingService {
 
@@ -84,6 +107,15 @@ public final class FileListingService {
 
     private static final String FILE_ROOT = "/"; //$NON-NLS-1$
 
+    /** Lists the links given after it, to resolve them. */
+    private static final String LS_LINKS = "ls -l"; //$NON-NLS-1$
+
+    /**
+     * The longest <code>ls</code> command run to resolve links, as older adb daemons truncate
+     * shell commands of more than 1024 bytes.
+     */
+    private static final int MAX_LS_LINKS_COMMAND_LENGTH = 1000;
+
 
     /**
      * Regexp pattern to parse the result from ls.
@@ -104,6 +136,8 @@ public final class FileListingService {
             "$"); //$NON-NLS-1$
 
     private Device mDevice;
+    /** The address of adb, or null to use the one of {@link AndroidDebugBridge}. */
+    @Nullable private final InetSocketAddress mAddress;
     private FileEntry mRoot;
 
     // Used for locking so final.
@@ -153,6 +187,18 @@ public final class FileListingService {
          */
         long fetchTime = 0;
 
+        /**
+         * The modification time of the entry in seconds, as listed in its parent, or -1 if it
+         * was listed with <code>ls</code>.
+         */
+        int modifiedTime = -1;
+
+        /**
+         * The modification time of the directory in seconds when its children were listed with
+         * the sync protocol, or -1. Its children don't change until its modification time does.
+         */
+        int listedTime = -1;
+
         final ArrayList<FileEntry> mChildren = new ArrayList<FileEntry>();
 
         /**
@@ -215,6 +261,8 @@ public final class FileListingService {
 
         /**
          * Returns the owner string of the entry, as returned by <code>ls</code>.
+         * <p/>The sync protocol doesn't list owners, so this is null for entries that were never
+         * listed with <code>ls</code>.
          */
         public String getOwner() {
             return owner;
@@ -222,6 +270,8 @@ public final class FileListingService {
 
         /**
          * Returns the group owner of the entry, as returned by <code>ls</code>.
+         * <p/>Like the owner, this is null for entries that were never listed with
+         * <code>ls</code>.
          */
         public String getGroup() {
             return group;
@@ -648,7 +698,16 @@ public final class FileListingService {
      * @param device The Device the service is connected to.
      */
     FileListingService(Device device) {
+        this(device, null);
+    }
+
+    /**
+     * Creates a File Listing Service for a specified {@link Device}, through the adb server at
+     * the given address.
+     */
+    FileListingService(Device device, @Nullable InetSocketAddress address) {
         mDevice = device;
+        mAddress = address;
     }
 
     /**
@@ -682,7 +741,8 @@ public final class FileListingService {
      * The result for each <code>ls</code> command is cached in the parent
      * <code>FileEntry</code>. <var>useCache</var> allows usage of this cache, but only if the
      * cache is valid. The cache is valid only for {@link FileListingService#REFRESH_RATE} ms.
-     * After that a new <code>ls</code> command is always executed.
+     * After that the directory is listed again if it changed, and with <code>useCache ==
+     * false</code> it is always listed again, to refresh the sizes and dates of its children.
      * <p/>
      * If the cache is valid and <code>useCache == true</code>, the method will always simply
      * return the value of the cache, whether a {@link IListingReceiver} has been provided or not.
@@ -704,8 +764,9 @@ public final class FileListingService {
 
         // if there's no receiver, then this is a synchronous call, and we
         // return the result of ls
+        final boolean force = !useCache;
         if (receiver == null) {
-            doLs(entry);
+            doList(entry, force);
             return entry.getCachedChildren();
         }
 
@@ -715,7 +776,7 @@ public final class FileListingService {
         Thread t = new Thread("ls " + entry.getFullPath()) { //$NON-NLS-1$
             @Override
             public void run() {
-                doLs(entry);
+                doList(entry, force);
 
                 receiver.setChildren(entry, entry.getCachedChildren());
 
@@ -809,18 +870,305 @@ public final class FileListingService {
      */
     public FileEntry[] getChildrenSync(final FileEntry entry) throws TimeoutException,
             AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
-        doLsAndThrow(entry);
+        doListAndThrow(entry, true /* force */);
         return entry.getCachedChildren();
     }
 
-    private void doLs(FileEntry entry) {
+    /**
+     * Refreshes the cached children of an entry and of its subdirectories, listing up to
+     * <var>connectionCount</var> directories in parallel, each on its own sync connection.
+     * <p/>Like with {@link #getChildren(FileEntry, boolean, IListingReceiver)}, a directory is
+     * only listed again if its modification time changed. The modification times of the
+     * subdirectories of a listed directory come with the listing, so an unchanged directory
+     * costs a stat only if its parent didn't change either.
+     * <p/>Links to directories are not followed.
+     *
+     * @param entry The directory to refresh.
+     * @param depth The number of levels of subdirectories to refresh below the entry.
+     * @param connectionCount The maximum number of sync connections to use.
+     * @throws TimeoutException in case of timeout on the connections.
+     * @throws AdbCommandRejectedException if adb rejects the sync connections.
+     * @throws SyncException if a directory could not be listed.
+     * @throws IOException in case of I/O error on the connections.
+     */
+    public void refreshTree(@NonNull FileEntry entry, int depth, int connectionCount)
+            throws TimeoutException, AdbCommandRejectedException, SyncException, IOException {
+        final Queue<SyncService> connections = new ConcurrentLinkedQueue<SyncService>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(connectionCount, 1));
+        CompletionService<List<ListTask>> completionService =
+                new ExecutorCompletionService<List<ListTask>>(executor);
         try {
-            doLsAndThrow(entry);
+            completionService.submit(new ListTask(connections, entry, -1, depth));
+            for (int pending = 1; pending > 0; pending--) {
+                List<ListTask> subTasks;
+                try {
+                    subTasks = completionService.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TimeoutException(
+                            "Listing interrupted with immediate timeout via interruption.");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof TimeoutException) {
+                        throw (TimeoutException) cause;
+                    } else if (cause instanceof AdbCommandRejectedException) {
+                        throw (AdbCommandRejectedException) cause;
+                    } else if (cause instanceof SyncException) {
+                        throw (SyncException) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new SyncException(SyncException.SyncError.TRANSFER_PROTOCOL_ERROR,
+                            cause);
+                }
+                for (ListTask subTask : subTasks) {
+                    completionService.submit(subTask);
+                    pending++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(DdmPreferences.getTimeOut(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (SyncService sync : connections) {
+                sync.close();
+            }
+        }
+    }
+
+    /**
+     * Lists a directory for {@link #refreshTree(FileEntry, int, int)}, on one of the pooled
+     * sync connections, and returns the tasks listing its subdirectories.
+     */
+    private final class ListTask implements Callable<List<ListTask>> {
+        private final Queue<SyncService> mConnections;
+        private final FileEntry mEntry;
+        private final int mModifiedTime;
+        private final int mDepth;
+
+        ListTask(Queue<SyncService> connections, FileEntry entry, int modifiedTime, int depth) {
+            mConnections = connections;
+            mEntry = entry;
+            mModifiedTime = modifiedTime;
+            mDepth = depth;
+        }
+
+        @Override
+        public List<ListTask> call() throws Exception {
+            SyncService sync = mConnections.poll();
+            if (sync == null) {
+                sync = openSync();
+                if (sync == null) {
+                    throw new IOException("Unable to open sync connection!");
+                }
+            }
+            boolean listed;
+            try {
+                listed = syncList(sync, mEntry, mModifiedTime, false /* force */);
+            } finally {
+                mConnections.offer(sync);
+            }
+            if (listed) {
+                resolveLinks(mEntry);
+            }
+
+            List<ListTask> subTasks = new ArrayList<ListTask>();
+            if (mDepth > 0) {
+                for (FileEntry child : mEntry.getCachedChildren()) {
+                    if (child.type == TYPE_DIRECTORY) {
+                        subTasks.add(new ListTask(mConnections, child,
+                                listed ? child.modifiedTime : -1, mDepth - 1));
+                    }
+                }
+            }
+            return subTasks;
+        }
+    }
+
+    private void doList(FileEntry entry, boolean force) {
+        try {
+            doListAndThrow(entry, force);
         } catch (Exception e) {
             // do nothing
         }
     }
 
+    private void doListAndThrow(FileEntry entry, boolean force) throws TimeoutException,
+            AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+        SyncService sync = null;
+        try {
+            sync = openSync();
+        } catch (IOException e) {
+            Log.d("ddms", "Failed to open sync connection: " + e.getMessage());
+        } catch (AdbCommandRejectedException e) {
+            Log.d("ddms", "Failed to open sync connection: " + e.getMessage());
+        }
+        if (sync != null) {
+            try {
+                if (syncList(sync, entry, -1, force)) {
+                    resolveLinks(entry);
+                }
+                return;
+            } catch (SyncException e) {
+                Log.d("ddms", String.format("Failed to list %1$s with sync: %2$s",
+                        entry.getFullPath(), e.getMessage()));
+            } finally {
+                sync.close();
+            }
+        }
+        doLsAndThrow(entry);
+    }
+
+    @Nullable
+    private SyncService openSync() throws TimeoutException, AdbCommandRejectedException,
+            IOException {
+        InetSocketAddress address =
+                mAddress != null ? mAddress : AndroidDebugBridge.getSocketAddress();
+        SyncService sync = new SyncService(address, mDevice);
+        return sync.openSync() ? sync : null;
+    }
+
+    /**
+     * Lists the children of a directory with the sync protocol, unless the directory didn't
+     * change since they were last listed.
+     * @param sync the sync connection.
+     * @param entry the directory.
+     * @param modifiedTime the current modification time of the directory in seconds, or -1 to
+     *      stat it.
+     * @param force whether to list the directory even if it didn't change, to refresh the sizes
+     *      and dates of its children.
+     * @return true if the directory was listed, false if the cached children were kept.
+     */
+    private static boolean syncList(SyncService sync, FileEntry entry, int modifiedTime,
+            boolean force) throws SyncException, TimeoutException, IOException {
+        // with the trailing separator, links to directories are followed.
+        String path = entry.isRoot ? FILE_ROOT : entry.getFullPath() + FILE_SEPARATOR;
+        if (modifiedTime < 0) {
+            FileStat stat = sync.statFile(path);
+            if (stat != null) {
+                modifiedTime = (int) (stat.getLastModified().getTime() / 1000);
+            }
+        }
+        if (!force && modifiedTime >= 0 && modifiedTime == entry.listedTime) {
+            entry.fetchTime = System.currentTimeMillis();
+            return false;
+        }
+
+        // reuse the existing entries, to prevent collapse during update.
+        Map<String, FileEntry> currentChildren = new HashMap<String, FileEntry>();
+        for (FileEntry child : entry.getCachedChildren()) {
+            currentChildren.put(child.name, child);
+        }
+
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd"); //$NON-NLS-1$
+        DateFormat timeFormat = new SimpleDateFormat("HH:mm"); //$NON-NLS-1$
+        ArrayList<FileEntry> entryList = new ArrayList<FileEntry>();
+        for (Map.Entry<String, FileStat> listed : sync.listDirectory(path).entrySet()) {
+            String name = listed.getKey();
+            FileStat stat = listed.getValue();
+            int type = SyncService.getFileType(stat.getMode());
+
+            FileEntry child = currentChildren.get(name);
+            if (child == null) {
+                child = new FileEntry(entry, name, type, false /* isRoot */);
+            } else if (child.type != type) {
+                child.type = type;
+                child.checkAppPackageStatus();
+            }
+
+            Date date = stat.getLastModified();
+            child.permissions = SyncService.getPermissions(stat.getMode());
+            child.size = Long.toString(stat.getSize() & 0xffffffffL);
+            child.date = dateFormat.format(date);
+            child.time = timeFormat.format(date);
+            child.modifiedTime = (int) (date.getTime() / 1000);
+            entryList.add(child);
+        }
+
+        // stat the links through the separator, to figure out which point to directories.
+        for (FileEntry child : entryList) {
+            if (child.type == TYPE_LINK) {
+                FileStat target = sync.statFile(child.getFullPath() + FILE_SEPARATOR);
+                if (target != null &&
+                        SyncService.getFileType(target.getMode()) == TYPE_DIRECTORY) {
+                    child.type = TYPE_DIRECTORY_LINK;
+                }
+            }
+        }
+
+        Collections.sort(entryList, FileEntry.sEntryComparator);
+        entry.setChildren(entryList);
+        // modification times only have a precision of a second, so the directory may still
+        // change within the second it was last modified in, without its time changing.
+        long now = System.currentTimeMillis();
+        entry.listedTime = modifiedTime < now / 1000 - 1 ? modifiedTime : -1;
+        entry.fetchTime = now;
+        return true;
+    }
+
+    /**
+     * Sets the targets of the links among the children of a directory listed with the sync
+     * protocol, which doesn't give them, as the info of the links, with as few <code>ls</code> as
+     * the length of adb commands allows. The targets are left unset if <code>ls</code> fails.
+     */
+    private void resolveLinks(FileEntry entry) {
+        Map<String, FileEntry> links = new HashMap<String, FileEntry>();
+        StringBuilder command = new StringBuilder(LS_LINKS);
+        for (FileEntry child : entry.getCachedChildren()) {
+            if (child.type == TYPE_LINK || child.type == TYPE_DIRECTORY_LINK) {
+                String path = child.getFullEscapedPath();
+                if (!links.isEmpty()
+                        && command.length() + 1 + path.length() > MAX_LS_LINKS_COMMAND_LENGTH) {
+                    resolveLinks(entry, command.toString(), links);
+                    links = new HashMap<String, FileEntry>();
+                    command.setLength(LS_LINKS.length());
+                }
+                links.put(child.getFullPath(), child);
+                command.append(' ').append(path);
+            }
+        }
+        if (!links.isEmpty()) {
+            resolveLinks(entry, command.toString(), links);
+        }
+    }
+
+    private void resolveLinks(FileEntry entry, String command,
+            final Map<String, FileEntry> links) {
+        try {
+            mDevice.executeShellCommand(command, new MultiLineReceiver() {
+                @Override
+                public void processNewLines(String[] lines) {
+                    for (String line : lines) {
+                        Matcher m = LS_L_PATTERN.matcher(line);
+                        if (!m.matches()) {
+                            continue;
+                        }
+                        String[] segments = m.group(7).split("\\s->\\s"); //$NON-NLS-1$
+                        if (segments.length == 2) {
+                            FileEntry link = links.get(segments[0]);
+                            if (link != null) {
+                                link.info = "-> " + segments[1]; //$NON-NLS-1$
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            });
+        } catch (Exception e) {
+            Log.d("ddms", String.format("Failed to resolve the links in %1$s: %2$s",
+                    entry.getFullPath(), e.getMessage()));
+        }
+    }
+
     private void doLsAndThrow(FileEntry entry) throws TimeoutException,
             AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
         // create a list that will receive the list of the entries
@@ -850,6 +1198,7 @@ public final class FileListingService {
         } finally {
             // at this point we need to refresh the viewer
             entry.fetchTime = System.currentTimeMillis();
+            entry.listedTime = -1;
 
             // sort the children and set them as the new children
             Collections.sort(entryList, FileEntry.sEntryComparator);
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A device that can run commands through the exec service of adb, which sends their output
+ * unchanged. Kept apart from {@link IDevice} so that existing implementations of that interface
+ * don't need to implement it.
+ */
+public interface IExecEnabledDevice extends IDevice {
+
+    /**
+     * Executes a command on the device through the exec service, and sends its raw output to a
+     * <var>receiver</var>.
+     * <p/>Unlike {@link #executeShellCommand(String, IShellOutputReceiver, long, TimeUnit)}, the
+     * output doesn't go through a terminal, which may translate line endings, so binary output is
+     * received unchanged. The exec service is only available from API level 21.
+     *
+     * @param command the command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the
+     *            command
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is
+     *            allowed to not output any response. A value of 0 means the method will wait
+     *            forever (until the <var>receiver</var> cancels the execution) for command output
+     *            and never throw.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @throws TimeoutException in case of timeout on the connection when sending the command.
+     * @throws AdbCommandRejectedException if adb rejects the command.
+     * @throws ShellCommandUnresponsiveException in case the command doesn't send any output
+     *            for a period longer than <var>maxTimeToOutputResponse</var>.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    void executeBinaryCommand(String command, IShellOutputReceiver receiver,
+            long maxTimeToOutputResponse, TimeUnit maxTimeUnits)
+            throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
+            IOException;
+}
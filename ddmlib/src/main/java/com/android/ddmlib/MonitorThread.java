@@ -31,15 +31,22 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Monitor open connections.
+ * <p/>A single selector handles the connections to the clients, the debuggers, and the
+ * {@code track-jdwp} connections of the {@link DeviceMonitor}. Other threads never touch the
+ * selector: they hand tasks over to this thread through a lock-free queue, see
+ * {@link #execute(Runnable)}.
  */
 final class MonitorThread extends Thread {
 
@@ -48,25 +55,27 @@ final class MonitorThread extends Thread {
     private volatile boolean mQuit = false;
 
     // List of clients we're paying attention to
-    // Used for locking so final.
-    final private ArrayList<Client> mClientList;
+    final private List<Client> mClientList;
 
     // The almighty mux
-    private Selector mSelector;
+    private volatile Selector mSelector;
+
+    // Tasks handed over to this thread, run between two selections.
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
 
     private final List<JdwpExtension> mJdwpExtensions;
 
     // port for "debug selected"
     private ServerSocketChannel mDebugSelectedChan;
 
-    private int mNewDebugSelectedPort;
+    private volatile int mNewDebugSelectedPort;
 
     private int mDebugSelectedPort = -1;
 
     /**
      * "Selected" client setup to answer debugging connection to the mNewDebugSelectedPort port.
      */
-    private Client mSelectedClient = null;
+    private final AtomicReference<Client> mSelectedClient = new AtomicReference<Client>();
 
     // singleton
     private static MonitorThread sInstance;
@@ -76,7 +85,7 @@ final class MonitorThread extends Thread {
      */
     private MonitorThread() {
         super("Monitor");
-        mClientList = new ArrayList<Client>();
+        mClientList = new CopyOnWriteArrayList<Client>();
 
         mNewDebugSelectedPort = DdmPreferences.getSelectedDebugPort();
 
@@ -103,7 +112,7 @@ final class MonitorThread extends Thread {
     /**
      * Sets or changes the port number for "debug selected".
      */
-    synchronized void setDebugSelectedPort(int port) throws IllegalStateException {
+    void setDebugSelectedPort(int port) throws IllegalStateException {
         if (sInstance == null) {
             return;
         }
@@ -112,36 +121,30 @@ final class MonitorThread extends Thread {
             return;
         }
 
-        if (mDebugSelectedChan != null) {
-            Log.d("ddms", "Changing debug-selected port to " + port);
-            mNewDebugSelectedPort = port;
-            wakeup();
-        } else {
-            // we set mNewDebugSelectedPort instead of mDebugSelectedPort so that it's automatically
-            // opened on the first run loop.
-            mNewDebugSelectedPort = port;
-        }
+        // we set mNewDebugSelectedPort instead of mDebugSelectedPort so that it's automatically
+        // (re)opened on the next run loop.
+        Log.d("ddms", "Changing debug-selected port to " + port);
+        mNewDebugSelectedPort = port;
+        wakeup();
     }
 
     /**
      * Sets the client to accept debugger connection on the custom "Selected debug port".
      * @param selectedClient the client. Can be null.
      */
-    synchronized void setSelectedClient(Client selectedClient) {
+    void setSelectedClient(Client selectedClient) {
         if (sInstance == null) {
             return;
         }
 
-        if (mSelectedClient != selectedClient) {
-            Client oldClient = mSelectedClient;
-            mSelectedClient = selectedClient;
-
+        Client oldClient = mSelectedClient.getAndSet(selectedClient);
+        if (oldClient != selectedClient) {
             if (oldClient != null) {
                 oldClient.update(Client.CHANGE_PORT);
             }
 
-            if (mSelectedClient != null) {
-                mSelectedClient.update(Client.CHANGE_PORT);
+            if (selectedClient != null) {
+                selectedClient.update(Client.CHANGE_PORT);
             }
         }
     }
@@ -150,7 +153,7 @@ final class MonitorThread extends Thread {
      * Returns the client accepting debugger connection on the custom "Selected debug port".
      */
     Client getSelectedClient() {
-        return mSelectedClient;
+        return mSelectedClient.get();
     }
 
 
@@ -167,15 +170,15 @@ final class MonitorThread extends Thread {
      * Get an array of known clients.
      */
     Client[] getClients() {
-        synchronized (mClientList) {
-            return mClientList.toArray(new Client[mClientList.size()]);
-        }
+        // the list is copy on write, so let it provide an appropriately sized array
+        //noinspection ToArrayCallWithZeroLengthArrayArgument
+        return mClientList.toArray(new Client[0]);
     }
 
     /**
      * Register "handler" as the handler for type "type".
      */
-    synchronized void registerChunkHandler(int type, ChunkHandler handler) {
+    void registerChunkHandler(int type, ChunkHandler handler) {
         if (sInstance == null) {
             return;
         }
@@ -201,13 +204,8 @@ final class MonitorThread extends Thread {
         while (!mQuit) {
 
             try {
-                /*
-                 * sync with new registrations: we wait until addClient is done before going through
-                 * and doing mSelector.select() again.
-                 * @see {@link #addClient(Client)}
-                 */
-                synchronized (mClientList) {
-                }
+                // run the tasks handed over by other threads, such as new registrations.
+                runTasks();
 
                 // (re-)open the "debug selected" port, if it's not opened yet or
                 // if the port changed.
@@ -261,6 +259,9 @@ final class MonitorThread extends Thread {
                         else if (key.attachment() instanceof MonitorThread) {
                             processDebugSelectedActivity(key);
                         }
+                        else if (key.attachment() instanceof DeviceMonitor.JdwpTracker) {
+                            ((DeviceMonitor.JdwpTracker) key.attachment()).processActivity(key);
+                        }
                         else {
                             Log.e("ddms", "unknown activity key");
                         }
@@ -281,6 +282,36 @@ final class MonitorThread extends Thread {
     }
 
 
+    /**
+     * Runs a task on this thread, between two selections. This is the only way other threads can
+     * use the selector, for instance to register channels with it.
+     * <p/>This doesn't block: the task is queued, and the selector is woken up.
+     */
+    void execute(Runnable task) {
+        mTasks.offer(task);
+        wakeup();
+    }
+
+    /**
+     * Returns the selector of this thread. It must only be used from tasks run by
+     * {@link #execute(Runnable)}, or from the handlers of its selection keys.
+     */
+    Selector getSelector() {
+        return mSelector;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e("ddms", "Exception running task on Monitor thread");
+                Log.e("ddms", e);
+            }
+        }
+    }
+
     /**
      * Returns the port on which the selected client listen for debugger
      */
@@ -345,15 +376,13 @@ final class MonitorThread extends Thread {
      * @param client
      * @param notify
      */
-    synchronized void dropClient(Client client, boolean notify) {
+    void dropClient(Client client, boolean notify) {
         if (sInstance == null) {
             return;
         }
 
-        synchronized (mClientList) {
-            if (!mClientList.remove(client)) {
-                return;
-            }
+        if (!mClientList.remove(client)) {
+            return;
         }
         client.close(notify);
         mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, client);
@@ -369,7 +398,7 @@ final class MonitorThread extends Thread {
      * Drops the provided list of clients from the monitor. This will lock the {@link Client}
      * list of the {@link Device} running each of the clients.
      */
-    synchronized void dropClients(Collection<? extends Client> clients, boolean notify) {
+    void dropClients(Collection<? extends Client> clients, boolean notify) {
         for (Client c : clients) {
             dropClient(c, notify);
         }
@@ -402,39 +431,35 @@ final class MonitorThread extends Thread {
 
     /*
      * Accept a new connection from a debugger. If successful, register it with
-     * the Selector.
+     * the Selector. This runs on the monitor thread, so the registration doesn't block.
      */
     private void acceptNewDebugger(Debugger dbg, ServerSocketChannel acceptChan)
             throws IOException {
 
-        synchronized (mClientList) {
-            SocketChannel chan;
-
-            if (acceptChan == null)
-                chan = dbg.accept();
-            else
-                chan = dbg.accept(acceptChan);
+        SocketChannel chan;
 
-            if (chan != null) {
-                chan.socket().setTcpNoDelay(true);
+        if (acceptChan == null)
+            chan = dbg.accept();
+        else
+            chan = dbg.accept(acceptChan);
 
-                wakeup();
+        if (chan != null) {
+            chan.socket().setTcpNoDelay(true);
 
-                try {
-                    chan.register(mSelector, SelectionKey.OP_READ, dbg);
-                } catch (IOException ioe) {
-                    // failed, drop the connection
-                    dbg.closeData();
-                    throw ioe;
-                } catch (RuntimeException re) {
-                    // failed, drop the connection
-                    dbg.closeData();
-                    throw re;
-                }
-            } else {
-                Log.w("ddms", "ignoring duplicate debugger");
-                // new connection already closed
+            try {
+                chan.register(mSelector, SelectionKey.OP_READ, dbg);
+            } catch (IOException ioe) {
+                // failed, drop the connection
+                dbg.closeData();
+                throw ioe;
+            } catch (RuntimeException re) {
+                // failed, drop the connection
+                dbg.closeData();
+                throw re;
             }
+        } else {
+            Log.w("ddms", "ignoring duplicate debugger");
+            // new connection already closed
         }
     }
 
@@ -501,13 +526,16 @@ final class MonitorThread extends Thread {
      * Tell the thread that something has changed.
      */
     private void wakeup() {
-        mSelector.wakeup();
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
 
     /**
      * Tell the thread to stop. Called from UI thread.
      */
-    synchronized void quit() {
+    void quit() {
         mQuit = true;
         wakeup();
         Log.d("ddms", "Waiting for Monitor thread");
@@ -515,13 +543,11 @@ final class MonitorThread extends Thread {
             this.join();
             // since we're quitting, lets drop all the client and disconnect
             // the DebugSelectedPort
-            synchronized (mClientList) {
-                for (Client c : mClientList) {
-                    c.close(false /* notify */);
-                    mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, c);
-                }
-                mClientList.clear();
+            for (Client c : mClientList) {
+                c.close(false /* notify */);
+                mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, c);
             }
+            mClientList.clear();
 
             if (mDebugSelectedChan != null) {
                 mDebugSelectedChan.close();
@@ -545,42 +571,44 @@ final class MonitorThread extends Thread {
      * should only be called from one thread (the VMWatcherThread) to avoid a
      * race between "alreadyOpen" and Client creation.
      */
-    synchronized void addClient(Client client) {
+    void addClient(final Client client) {
         if (sInstance == null) {
             return;
         }
 
         Log.d("ddms", "Adding new client " + client);
 
-        synchronized (mClientList) {
-            mClientList.add(client);
-
-            for (JdwpExtension extension : mJdwpExtensions) {
-                extension.intercept(client);
-            }
-
-            /*
-             * Register the Client's socket channel with the selector. We attach
-             * the Client to the SelectionKey. If you try to register a new
-             * channel with the Selector while it is waiting for I/O, you will
-             * block. The solution is to call wakeup() and then hold a lock to
-             * ensure that the registration happens before the Selector goes
-             * back to sleep.
-             */
-            try {
-                wakeup();
+        for (JdwpExtension extension : mJdwpExtensions) {
+            extension.intercept(client);
+        }
+        mClientList.add(client);
 
-                client.register(mSelector);
+        /*
+         * Register the Client's socket channel with the selector. We attach
+         * the Client to the SelectionKey. Registering a channel with the
+         * Selector while it is waiting for I/O would block, so the registration
+         * is handed over to the monitor thread.
+         */
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClientList.contains(client)) {
+                    // dropped before it could be registered.
+                    return;
+                }
+                try {
+                    client.register(mSelector);
 
-                Debugger dbg = client.getDebugger();
-                if (dbg != null) {
-                    dbg.registerListener(mSelector);
+                    Debugger dbg = client.getDebugger();
+                    if (dbg != null) {
+                        dbg.registerListener(mSelector);
+                    }
+                } catch (IOException ioe) {
+                    // not really expecting this to happen
+                    ioe.printStackTrace();
                 }
-            } catch (IOException ioe) {
-                // not really expecting this to happen
-                ioe.printStackTrace();
             }
-        }
+        });
     }
 
     /**
@@ -605,8 +633,9 @@ final class MonitorThread extends Thread {
 
         try {
             mDebugSelectedChan.socket().bind(addr);
-            if (mSelectedClient != null) {
-                mSelectedClient.update(Client.CHANGE_PORT);
+            Client selectedClient = mSelectedClient.get();
+            if (selectedClient != null) {
+                selectedClient.update(Client.CHANGE_PORT);
             }
 
             mDebugSelectedChan.register(mSelector, SelectionKey.OP_ACCEPT, this);
@@ -634,8 +663,9 @@ final class MonitorThread extends Thread {
         /*
          * Find the debugger associated with the currently-selected client.
          */
-        if (mSelectedClient != null) {
-            Debugger dbg = mSelectedClient.getDebugger();
+        Client selectedClient = mSelectedClient.get();
+        if (selectedClient != null) {
+            Debugger dbg = selectedClient.getDebugger();
 
             if (dbg != null) {
                 Log.d("ddms", "Accepting connection on 'debug selected' port");
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an operation on several devices at once, with a bounded number of devices being operated
+ * on at the same time.
+ * <p/>Each device gets its own {@link ListenableFuture}, completed as soon as the operation is
+ * done on that device, so that results can be processed while the other devices are still
+ * running. Use {@link com.google.common.util.concurrent.Futures#successfulAsList} to wait for all
+ * of them.
+ * <p/>An operation that runs longer than its time out is interrupted, and its future fails with
+ * a {@link TimeoutException}. Cancelling a future also interrupts its operation. Interrupting a
+ * thread aborts the adb connections it is waiting on.
+ * <p/>The threads of the executor stop when they are idle, so it doesn't need to be shut down.
+ */
+public final class MultiDeviceExecutor {
+    /** Idle time after which the threads of the executor stop. */
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static final AtomicInteger sExecutorCount = new AtomicInteger();
+
+    /**
+     * An operation to run on a device.
+     * @param <T> the result of the operation.
+     */
+    public interface IDeviceOperation<T> {
+        /**
+         * Runs the operation on a device. This is called on a thread of the executor.
+         * @param device the device.
+         * @return the result of the operation, which can be null.
+         * @throws Exception if the operation failed. Its future fails with this exception.
+         */
+        @Nullable
+        T run(@NonNull IDevice device) throws Exception;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mTimeoutExecutor;
+
+    /**
+     * Creates an executor.
+     * @param maxConcurrency the maximum number of devices operated on at the same time.
+     */
+    public MultiDeviceExecutor(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive"); //$NON-NLS-1$
+        }
+        String name = "Device Executor " + sExecutorCount.incrementAndGet(); //$NON-NLS-1$
+        mExecutor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DaemonThreadFactory(name));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mTimeoutExecutor = new ScheduledThreadPoolExecutor(1,
+                new DaemonThreadFactory(name + " Timeout")); //$NON-NLS-1$
+        mTimeoutExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mTimeoutExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs an operation on devices.
+     * @param devices the devices to run the operation on.
+     * @param operation the operation.
+     * @param timeout the maximum time the operation can run on a single device, not counting the
+     *      time waiting for other devices. A time out of 0 means no time out.
+     * @param unit the unit of <var>timeout</var>.
+     * @return the future of the operation for each device, in the order of <var>devices</var>.
+     */
+    @NonNull
+    public <T> Map<IDevice, ListenableFuture<T>> submit(
+            @NonNull Collection<? extends IDevice> devices,
+            @NonNull IDeviceOperation<T> operation, long timeout, @NonNull TimeUnit unit) {
+        Map<IDevice, ListenableFuture<T>> futures =
+                new LinkedHashMap<IDevice, ListenableFuture<T>>();
+        for (IDevice device : devices) {
+            DeviceTask<T> task = new DeviceTask<T>(device, operation, unit.toMillis(timeout));
+            futures.put(device, task.mFuture);
+            mExecutor.execute(task);
+        }
+        return futures;
+    }
+
+    /**
+     * Returns an operation running a shell command, which result is the output of the command.
+     * @param command the shell command to execute.
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is
+     *      allowed to not output any response. A value of 0 means the command is allowed to not
+     *      output anything for as long as it runs.
+     * @param maxTimeUnits the unit of <var>maxTimeToOutputResponse</var>.
+     * @see IDevice#executeShellCommand(String, IShellOutputReceiver, long, TimeUnit)
+     */
+    @NonNull
+    public static IDeviceOperation<String> shellCommand(@NonNull final String command,
+            final long maxTimeToOutputResponse, @NonNull final TimeUnit maxTimeUnits) {
+        return new IDeviceOperation<String>() {
+            @Override
+            public String run(@NonNull IDevice device) throws Exception {
+                CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+                device.executeShellCommand(command, receiver, maxTimeToOutputResponse,
+                        maxTimeUnits);
+                return receiver.getOutput();
+            }
+        };
+    }
+
+    /**
+     * Returns an operation installing a package.
+     * @see IDevice#installPackage(String, boolean, String...)
+     */
+    @NonNull
+    public static IDeviceOperation<Void> installPackage(@NonNull final String packageFilePath,
+            final boolean reinstall, @NonNull final String... extraArgs) {
+        return new IDeviceOperation<Void>() {
+            @Override
+            public Void run(@NonNull IDevice device) throws Exception {
+                device.installPackage(packageFilePath, reinstall, extraArgs);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Returns an operation pushing files to a remote directory. The files of a device are pushed
+     * over a single sync connection.
+     * @param local the local files to push.
+     * @param remotePath the remote directory.
+     * @see SyncService#push(String[], FileListingService.FileEntry, SyncService.ISyncProgressMonitor)
+     */
+    @NonNull
+    public static IDeviceOperation<Void> pushFiles(@NonNull final String[] local,
+            @NonNull final String remotePath) {
+        return new IDeviceOperation<Void>() {
+            @Override
+            public Void run(@NonNull IDevice device) throws Exception {
+                SyncService sync = device.getSyncService();
+                if (sync == null) {
+                    throw new AdbCommandRejectedException("Unable to open sync connection!");
+                }
+                try {
+                    for (String file : local) {
+                        String name = new File(file).getName();
+                        sync.pushFile(file, remotePath + '/' + name,
+                                SyncService.getNullProgressMonitor());
+                    }
+                } finally {
+                    sync.close();
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Runs an operation on a device, completing its future with the result.
+     */
+    private final class DeviceTask<T> implements Runnable {
+        private final IDevice mDevice;
+        private final IDeviceOperation<T> mOperation;
+        private final long mTimeoutMillis;
+        private final SettableFuture<T> mFuture = SettableFuture.create();
+
+        /** The thread running the operation. */
+        @GuardedBy("this")
+        private Thread mThread;
+
+        DeviceTask(@NonNull IDevice device, @NonNull IDeviceOperation<T> operation,
+                long timeoutMillis) {
+            mDevice = device;
+            mOperation = operation;
+            mTimeoutMillis = timeoutMillis;
+            mFuture.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFuture.isCancelled()) {
+                        interrupt();
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mFuture.isDone()) {
+                    // cancelled before it started.
+                    return;
+                }
+                mThread = Thread.currentThread();
+            }
+
+            ScheduledFuture<?> timeout = null;
+            if (mTimeoutMillis > 0) {
+                timeout = mTimeoutExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mFuture.setException(new TimeoutException(String.format(
+                                "Operation on %1$s timed out after %2$d ms", //$NON-NLS-1$
+                                mDevice.getSerialNumber(), mTimeoutMillis)))) {
+                            interrupt();
+                        }
+                    }
+                }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+
+            try {
+                mFuture.set(mOperation.run(mDevice));
+            } catch (Throwable t) {
+                mFuture.setException(t);
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                synchronized (this) {
+                    mThread = null;
+                }
+                // Don't let an interruption meant for this operation hit the next one.
+                Thread.interrupted();
+            }
+        }
+
+        private synchronized void interrupt() {
+            if (mThread != null) {
+                mThread.interrupt();
+            }
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        DaemonThreadFactory(@NonNull String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, mName + " #" + mThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
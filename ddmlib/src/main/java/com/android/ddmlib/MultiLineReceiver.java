@@ -16,7 +16,7 @@
 
 package com.android.ddmlib;
 
-import com.google.common.base.Charsets;
+import com.android.annotations.NonNull;
 
 import java.util.ArrayList;
 
@@ -26,100 +26,29 @@ import java.util.ArrayList;
  * <p/>Additionally, it splits the string by lines.
  * <p/>Classes extending it must implement {@link #processNewLines(String[])} which receives
  * new parsed lines as they become available.
+ * <p/>Receivers of large amounts of output should extend {@link ByteLineReceiver} instead, which
+ * doesn't create a {@link String} per line.
  */
-public abstract class MultiLineReceiver implements IShellOutputReceiver {
-
-    private boolean mTrimLines = true;
-
-    /** unfinished message line, stored for next packet */
-    private String mUnfinishedLine = null;
+public abstract class MultiLineReceiver extends ByteLineReceiver {
 
     private final ArrayList<String> mArray = new ArrayList<String>();
 
-    /**
-     * Set the trim lines flag.
-     * @param trim whether the lines are trimmed, or not.
-     */
-    public void setTrimLine(boolean trim) {
-        mTrimLines = trim;
+    @Override
+    protected final void processLine(@NonNull CharSequence line) {
+        mArray.add(line.toString());
     }
 
-    /* (non-Javadoc)
-     * @see com.android.ddmlib.adb.IShellOutputReceiver#addOutput(
-     *      byte[], int, int)
-     */
     @Override
-    public final void addOutput(byte[] data, int offset, int length) {
-        if (!isCancelled()) {
-            String s = new String(data, offset, length, Charsets.UTF_8);
-
-            // ok we've got a string
-            // if we had an unfinished line we add it.
-            if (mUnfinishedLine != null) {
-                s = mUnfinishedLine + s;
-                mUnfinishedLine = null;
-            }
-
-            // now we split the lines
+    protected final void processEndOfBatch() {
+        if (!mArray.isEmpty()) {
+            // at this point we've split all the lines.
+            // make the array
+            String[] lines = mArray.toArray(new String[mArray.size()]);
             mArray.clear();
-            int start = 0;
-            do {
-                int index = s.indexOf('\n', start); //$NON-NLS-1$
-
-                // if \n was not found, this is an unfinished line
-                // and we store it to be processed for the next packet
-                if (index == -1) {
-                    mUnfinishedLine = s.substring(start);
-                    break;
-                }
-
-                // we found a \n, in older devices, this is preceded by a \r
-                int newlineLength = 1;
-                if (index > 0 && s.charAt(index - 1) == '\r') {
-                    index--;
-                    newlineLength = 2;
-                }
-
-                // extract the line
-                String line = s.substring(start, index);
-                if (mTrimLines) {
-                    line = line.trim();
-                }
-                mArray.add(line);
-
-                // move start to after the \r\n we found
-                start = index + newlineLength;
-            } while (true);
 
-            if (!mArray.isEmpty()) {
-                // at this point we've split all the lines.
-                // make the array
-                String[] lines = mArray.toArray(new String[mArray.size()]);
-
-                // send it for final processing
-                processNewLines(lines);
-            }
-        }
-    }
-
-    /* (non-Javadoc)
-     * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
-     */
-    @Override
-    public final void flush() {
-        if (mUnfinishedLine != null) {
-            processNewLines(new String[] { mUnfinishedLine });
+            // send it for final processing
+            processNewLines(lines);
         }
-
-        done();
-    }
-
-    /**
-     * Terminates the process. This is called after the last lines have been through
-     * {@link #processNewLines(String[])}.
-     */
-    public void done() {
-        // do nothing.
     }
 
     /**
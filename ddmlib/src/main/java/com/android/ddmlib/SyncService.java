@@ -29,9 +29,26 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Sync service class to push/pull to/from devices/emulators, through the debug bridge.
@@ -47,8 +64,8 @@ public class SyncService {
     private static final byte[] ID_DATA = { 'D', 'A', 'T', 'A' };
     private static final byte[] ID_DONE = { 'D', 'O', 'N', 'E' };
     private static final byte[] ID_SEND = { 'S', 'E', 'N', 'D' };
-//    private final static byte[] ID_LIST = { 'L', 'I', 'S', 'T' };
-//    private final static byte[] ID_DENT = { 'D', 'E', 'N', 'T' };
+    private static final byte[] ID_LIST = { 'L', 'I', 'S', 'T' };
+    private static final byte[] ID_DENT = { 'D', 'E', 'N', 'T' };
 
     private static final NullSyncProgressMonitor sNullSyncProgressMonitor =
             new NullSyncProgressMonitor();
@@ -60,10 +77,10 @@ public class SyncService {
     private static final int S_IFDIR = 0x4000; // type: directory
     private static final int S_IFCHR = 0x2000; // type: character device
     private static final int S_IFIFO = 0x1000; // type: fifo
+    private static final int S_ISUID = 0x0800; // set-uid bit
+    private static final int S_ISGID = 0x0400; // set-gid bit
+    private static final int S_ISVTX = 0x0200; // sticky bit
 /*
-    private final static int S_ISUID = 0x0800; // set-uid bit
-    private final static int S_ISGID = 0x0400; // set-gid bit
-    private final static int S_ISVTX = 0x0200; // sticky bit
     private final static int S_IRWXU = 0x01C0; // user permissions
     private final static int S_IRUSR = 0x0100; // user: read
     private final static int S_IWUSR = 0x0080; // user: write
@@ -81,6 +98,9 @@ public class SyncService {
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /** Size of the buffer receiving pulled files, which holds several DATA packets. */
+    private static final int RECEIVE_BUFFER_SIZE = 4 * (SYNC_DATA_MAX + 8);
+
     /**
      * Classes which implement this interface provide methods that deal
      * with displaying transfer progress.
@@ -112,6 +132,18 @@ public class SyncService {
         void advance(int work);
     }
 
+    /**
+     * A {@link ISyncProgressMonitor} that is also sent the transfer rate. When files are
+     * transferred over several connections, the rate is the total rate of all the connections.
+     */
+    public interface ISyncThroughputMonitor extends ISyncProgressMonitor {
+        /**
+         * Sent periodically during the transfer, and once at the end.
+         * @param bytesPerSecond the average transfer rate since the start of the transfer.
+         */
+        void throughput(long bytesPerSecond);
+    }
+
     public static class FileStat {
       private final int myMode;
       private final int mySize;
@@ -163,11 +195,27 @@ public class SyncService {
     private Device mDevice;
     private SocketChannel mChannel;
 
+    /**
+     * Selector to wait for {@link #mChannel} to be ready, rather than polling it. Opened when
+     * needed.
+     */
+    private Selector mSelector;
+    private SelectionKey mSelectionKey;
+
     /**
      * Buffer used to send data. Allocated when needed and reused afterward.
      */
     private byte[] mBuffer;
 
+    /**
+     * Direct buffers holding DATA packets of pushed files: one is sent while the next one is read
+     * from the file. Allocated when needed and reused afterward.
+     */
+    private ByteBuffer[] mPushBuffers;
+
+    /** Direct buffer receiving pulled files. Allocated when needed and reused afterward. */
+    private ByteBuffer mReceiveBuffer;
+
     /**
      * Creates a Sync service object.
      * @param address The address to connect to
@@ -236,6 +284,15 @@ public class SyncService {
      * Closes the connection.
      */
     public void close() {
+        if (mSelector != null) {
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // nothing to be done really...
+            }
+            mSelector = null;
+            mSelectionKey = null;
+        }
         if (mChannel != null) {
             try {
                 mChannel.close();
@@ -270,6 +327,29 @@ public class SyncService {
      */
     public void pull(FileEntry[] entries, String localPath, ISyncProgressMonitor monitor)
             throws SyncException, IOException, TimeoutException {
+        pull(entries, localPath, monitor, 1);
+    }
+
+    /**
+     * Pulls file(s) or folder(s), over up to <var>connectionCount</var> sync connections to the
+     * device, this one included. The files are spread over the connections, largest first.
+     * <p/>If the transfer fails on a connection, the other connections stop, and the first
+     * failure is thrown. Connections that can't be opened are not used.
+     * @param entries the remote item(s) to pull
+     * @param localPath The local destination. If the entries count is > 1 or
+     *      if the unique entry is a folder, this should be a folder.
+     * @param monitor The progress monitor. Cannot be null. It is only called by one connection at
+     *      a time. If it is a {@link ISyncThroughputMonitor}, it is sent the total transfer rate.
+     * @param connectionCount the maximum number of connections to use.
+     * @throws SyncException
+     * @throws IOException
+     * @throws TimeoutException
+     *
+     * @see FileListingService.FileEntry
+     * @see #getNullProgressMonitor()
+     */
+    public void pull(FileEntry[] entries, String localPath, ISyncProgressMonitor monitor,
+            int connectionCount) throws SyncException, IOException, TimeoutException {
 
         // first we check the destination is a directory and exists
         File f = new File(localPath);
@@ -281,7 +361,7 @@ public class SyncService {
         }
 
         // get a FileListingService object
-        FileListingService fls = new FileListingService(mDevice);
+        FileListingService fls = new FileListingService(mDevice, mAddress);
 
         // compute the number of file to move
         int total = getTotalRemoteFileSize(entries, fls);
@@ -289,7 +369,10 @@ public class SyncService {
         // start the monitor
         monitor.start(total);
 
-        doPull(entries, localPath, fls, monitor);
+        ConcurrentSyncProgressMonitor concurrentMonitor = new ConcurrentSyncProgressMonitor(monitor);
+        List<Transfer> transfers = new ArrayList<Transfer>();
+        collectPullTransfers(entries, localPath, fls, concurrentMonitor, transfers);
+        runTransfers(transfers, concurrentMonitor, connectionCount);
 
         monitor.stop();
     }
@@ -312,7 +395,9 @@ public class SyncService {
         int total = remote.getSizeValue();
         monitor.start(total);
 
-        doPullFile(remote.getFullPath(), localFilename, monitor);
+        ConcurrentSyncProgressMonitor concurrentMonitor = new ConcurrentSyncProgressMonitor(monitor);
+        doPullFile(remote.getFullPath(), localFilename, concurrentMonitor);
+        concurrentMonitor.reportThroughput();
 
         monitor.stop();
     }
@@ -344,7 +429,9 @@ public class SyncService {
         monitor.start(0);
         //TODO: use the {@link FileListingService} to get the file size.
 
-        doPullFile(remoteFilepath, localFilename, monitor);
+        ConcurrentSyncProgressMonitor concurrentMonitor = new ConcurrentSyncProgressMonitor(monitor);
+        doPullFile(remoteFilepath, localFilename, concurrentMonitor);
+        concurrentMonitor.reportThroughput();
 
         monitor.stop();
     }
@@ -360,6 +447,25 @@ public class SyncService {
      */
     public void push(String[] local, FileEntry remote, ISyncProgressMonitor monitor)
             throws SyncException, IOException, TimeoutException {
+        push(local, remote, monitor, 1);
+    }
+
+    /**
+     * Push several files, over up to <var>connectionCount</var> sync connections to the device,
+     * this one included. The files are spread over the connections, largest first.
+     * <p/>If the transfer fails on a connection, the other connections stop, and the first
+     * failure is thrown. Connections that can't be opened are not used.
+     * @param local An array of loca files to push
+     * @param remote the remote {@link FileEntry} representing a directory.
+     * @param monitor The progress monitor. Cannot be null. It is only called by one connection at
+     *      a time. If it is a {@link ISyncThroughputMonitor}, it is sent the total transfer rate.
+     * @param connectionCount the maximum number of connections to use.
+     * @throws SyncException if file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public void push(String[] local, FileEntry remote, ISyncProgressMonitor monitor,
+            int connectionCount) throws SyncException, IOException, TimeoutException {
         if (!remote.isDirectory()) {
             throw new SyncException(SyncError.REMOTE_IS_FILE);
         }
@@ -376,7 +482,10 @@ public class SyncService {
 
         monitor.start(total);
 
-        doPush(fileArray, remote.getFullPath(), monitor);
+        ConcurrentSyncProgressMonitor concurrentMonitor = new ConcurrentSyncProgressMonitor(monitor);
+        List<Transfer> transfers = new ArrayList<Transfer>();
+        collectPushTransfers(fileArray, remote.getFullPath(), concurrentMonitor, transfers);
+        runTransfers(transfers, concurrentMonitor, connectionCount);
 
         monitor.stop();
     }
@@ -404,7 +513,9 @@ public class SyncService {
 
         monitor.start((int)f.length());
 
-        doPushFile(local, remote, monitor);
+        ConcurrentSyncProgressMonitor concurrentMonitor = new ConcurrentSyncProgressMonitor(monitor);
+        doPushFile(local, remote, concurrentMonitor);
+        concurrentMonitor.reportThroughput();
 
         monitor.stop();
     }
@@ -456,21 +567,20 @@ public class SyncService {
     }
 
     /**
-     * Pulls multiple files/folders recursively.
+     * Lists the files/folders to pull recursively, creating the local folders.
      * @param entries The list of entry to pull
      * @param localPath the localpath to a directory
      * @param fileListingService a FileListingService object to browse through remote directories.
      * @param monitor the progress monitor. Must be started already.
+     * @param transfers the list the transfers are added to.
      *
-     * @throws SyncException if file could not be pushed
-     * @throws IOException in case of I/O error on the connection.
-     * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @throws SyncException if the transfer is cancelled.
      */
-    private void doPull(FileEntry[] entries, String localPath,
-            FileListingService fileListingService,
-            ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+    private static void collectPullTransfers(FileEntry[] entries, String localPath,
+            FileListingService fileListingService, ISyncProgressMonitor monitor,
+            List<Transfer> transfers) throws SyncException {
 
-        for (FileEntry e : entries) {
+        for (final FileEntry e : entries) {
             // check if we're cancelled
             if (monitor.isCanceled()) {
                 throw new SyncException(SyncError.CANCELED);
@@ -479,8 +589,7 @@ public class SyncService {
             // get type (we only pull directory and files for now)
             int type = e.getType();
             if (type == FileListingService.TYPE_DIRECTORY) {
-                monitor.startSubTask(e.getFullPath());
-                String dest = localPath + File.separator + e.getName();
+                final String dest = localPath + File.separator + e.getName();
 
                 // make the directory
                 File d = new File(dest);
@@ -489,12 +598,24 @@ public class SyncService {
                 // then recursively call the content. Since we did a ls command
                 // to get the number of files, we can use the cache
                 FileEntry[] children = fileListingService.getChildren(e, true, null);
-                doPull(children, dest, fileListingService, monitor);
-                monitor.advance(1);
+                collectPullTransfers(children, dest, fileListingService, monitor, transfers);
+                transfers.add(new Transfer(0) {
+                    @Override
+                    void run(SyncService sync, ISyncProgressMonitor monitor) {
+                        monitor.startSubTask(e.getFullPath());
+                        monitor.advance(1);
+                    }
+                });
             } else if (type == FileListingService.TYPE_FILE) {
-                monitor.startSubTask(e.getFullPath());
-                String dest = localPath + File.separator + e.getName();
-                doPullFile(e.getFullPath(), dest, monitor);
+                final String dest = localPath + File.separator + e.getName();
+                transfers.add(new Transfer(e.getSizeValue()) {
+                    @Override
+                    void run(SyncService sync, ISyncProgressMonitor monitor)
+                            throws SyncException, IOException, TimeoutException {
+                        monitor.startSubTask(e.getFullPath());
+                        sync.doPullFile(e.getFullPath(), dest, monitor);
+                    }
+                });
             }
         }
     }
@@ -511,10 +632,15 @@ public class SyncService {
     private void doPullFile(String remotePath, String localPath,
             ISyncProgressMonitor monitor) throws IOException, SyncException, TimeoutException {
         byte[] msg = null;
-        byte[] pullResult = new byte[8];
 
         final int timeOut = DdmPreferences.getTimeOut();
 
+        // The DATA packets are read in large chunks, and written to the file directly from the
+        // receive buffer.
+        ByteBuffer buffer = getReceiveBuffer();
+        buffer.clear();
+        buffer.limit(0);
+
         try {
             byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_ENCODING);
 
@@ -530,13 +656,13 @@ public class SyncService {
 
             // read the result, in a byte array containing 2 ints
             // (id, size)
-            AdbHelper.read(mChannel, pullResult, -1, timeOut);
+            fill(buffer, 8, timeOut);
 
             // check we have the proper data back
-            if (!checkResult(pullResult, ID_DATA) &&
-                    !checkResult(pullResult, ID_DONE)) {
+            if (!checkResult(buffer, ID_DATA) &&
+                    !checkResult(buffer, ID_DONE)) {
                 throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
-                        readErrorMessage(pullResult, timeOut));
+                        readErrorMessage(buffer, timeOut));
             }
         } catch (UnsupportedEncodingException e) {
             throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
@@ -550,9 +676,7 @@ public class SyncService {
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(f);
-
-            // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
+            FileChannel file = fos.getChannel();
 
             // loop to get data until we're done.
             while (true) {
@@ -561,30 +685,39 @@ public class SyncService {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
+                // get the header for the next packet.
+                fill(buffer, 8, timeOut);
+
                 // if we're done, we stop the loop
-                if (checkResult(pullResult, ID_DONE)) {
+                if (checkResult(buffer, ID_DONE)) {
+                    buffer.position(buffer.position() + 8);
                     break;
                 }
-                if (!checkResult(pullResult, ID_DATA)) {
+                if (!checkResult(buffer, ID_DATA)) {
                     // hmm there's an error
                     throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
-                            readErrorMessage(pullResult, timeOut));
+                            readErrorMessage(buffer, timeOut));
                 }
-                int length = ArrayHelper.swap32bitFromArray(pullResult, 4);
+                int length = buffer.getInt(buffer.position() + 4);
                 if (length > SYNC_DATA_MAX) {
                     // buffer overrun!
                     // error and exit
                     throw new SyncException(SyncError.BUFFER_OVERRUN);
                 }
-
-                // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
-
-                // get the header for the next packet.
-                AdbHelper.read(mChannel, pullResult, -1, timeOut);
-
-                // write the content in the file
-                fos.write(data, 0, length);
+                buffer.position(buffer.position() + 8);
+
+                // write the content in the file, as it is received
+                for (int remaining = length; remaining > 0; ) {
+                    fill(buffer, 1, timeOut);
+                    int count = Math.min(remaining, buffer.remaining());
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + count);
+                    while (buffer.hasRemaining()) {
+                        file.write(buffer);
+                    }
+                    buffer.limit(limit);
+                    remaining -= count;
+                }
 
                 monitor.advance(length);
             }
@@ -603,18 +736,17 @@ public class SyncService {
 
 
     /**
-     * Push multiple files
+     * Lists the files to push recursively.
      * @param fileArray
      * @param remotePath
      * @param monitor
+     * @param transfers the list the transfers are added to.
      *
-     * @throws SyncException if file could not be pushed
-     * @throws IOException in case of I/O error on the connection.
-     * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @throws SyncException if the transfer is cancelled.
      */
-    private void doPush(File[] fileArray, String remotePath, ISyncProgressMonitor monitor)
-            throws SyncException, IOException, TimeoutException {
-        for (File f : fileArray) {
+    private static void collectPushTransfers(File[] fileArray, String remotePath,
+            ISyncProgressMonitor monitor, List<Transfer> transfers) throws SyncException {
+        for (final File f : fileArray) {
             // check if we're canceled
             if (monitor.isCanceled()) {
                 throw new SyncException(SyncError.CANCELED);
@@ -622,18 +754,142 @@ public class SyncService {
             if (f.exists()) {
                 if (f.isDirectory()) {
                     // append the name of the directory to the remote path
-                    String dest = remotePath + "/" + f.getName(); // $NON-NLS-1S
-                    monitor.startSubTask(dest);
-                    doPush(f.listFiles(), dest, monitor);
-
-                    monitor.advance(1);
+                    final String dest = remotePath + "/" + f.getName(); // $NON-NLS-1S
+                    collectPushTransfers(f.listFiles(), dest, monitor, transfers);
+                    transfers.add(new Transfer(0) {
+                        @Override
+                        void run(SyncService sync, ISyncProgressMonitor monitor) {
+                            monitor.startSubTask(dest);
+                            monitor.advance(1);
+                        }
+                    });
                 } else if (f.isFile()) {
                     // append the name of the file to the remote path
-                    String remoteFile = remotePath + "/" + f.getName(); // $NON-NLS-1S
-                    monitor.startSubTask(remoteFile);
-                    doPushFile(f.getAbsolutePath(), remoteFile, monitor);
+                    final String remoteFile = remotePath + "/" + f.getName(); // $NON-NLS-1S
+                    transfers.add(new Transfer(f.length()) {
+                        @Override
+                        void run(SyncService sync, ISyncProgressMonitor monitor)
+                                throws SyncException, IOException, TimeoutException {
+                            monitor.startSubTask(remoteFile);
+                            sync.doPushFile(f.getAbsolutePath(), remoteFile, monitor);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs transfers over up to <var>connectionCount</var> connections, this one included.
+     * @param transfers the transfers to run.
+     * @param monitor the monitor, which must be started already.
+     * @param connectionCount the maximum number of connections to use.
+     *
+     * @throws SyncException if a file could not be transferred
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void runTransfers(List<Transfer> transfers,
+            final ConcurrentSyncProgressMonitor monitor, int connectionCount)
+            throws SyncException, IOException, TimeoutException {
+        int extraConnectionCount = Math.min(connectionCount, transfers.size()) - 1;
+        if (extraConnectionCount <= 0) {
+            for (Transfer transfer : transfers) {
+                if (monitor.isCanceled()) {
+                    throw new SyncException(SyncError.CANCELED);
+                }
+                transfer.run(this, monitor);
+            }
+            monitor.reportThroughput();
+            return;
+        }
+
+        // Start with the largest files, so that the connections finish at about the same time.
+        transfers = new ArrayList<Transfer>(transfers);
+        Collections.sort(transfers, new Comparator<Transfer>() {
+            @Override
+            public int compare(Transfer t1, Transfer t2) {
+                return t1.mSize < t2.mSize ? 1 : (t1.mSize == t2.mSize ? 0 : -1);
+            }
+        });
+        final Queue<Transfer> queue = new ConcurrentLinkedQueue<Transfer>(transfers);
+
+        ExecutorService executor = Executors.newFixedThreadPool(extraConnectionCount);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < extraConnectionCount; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        SyncService sync = new SyncService(mAddress, mDevice);
+                        try {
+                            if (!sync.openSync()) {
+                                return null;
+                            }
+                        } catch (Exception e) {
+                            // The other connections will do the transfers.
+                            Log.w("ddms", "Failed to open sync connection: " + e);
+                            return null;
+                        }
+                        try {
+                            sync.runTransfers(queue, monitor);
+                        } catch (Exception e) {
+                            monitor.fail(e);
+                        } finally {
+                            sync.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            try {
+                runTransfers(queue, monitor);
+            } catch (Exception e) {
+                monitor.fail(e);
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    monitor.fail(new TimeoutException(
+                            "Transfer interrupted with immediate timeout via interruption."));
+                    break;
+                } catch (ExecutionException e) {
+                    monitor.fail((Exception) e.getCause());
                 }
             }
+        } finally {
+            executor.shutdown();
+        }
+
+        Exception failure = monitor.getFailure();
+        if (failure instanceof SyncException) {
+            throw (SyncException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof TimeoutException) {
+            throw (TimeoutException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR, failure);
+        }
+        monitor.reportThroughput();
+    }
+
+    /**
+     * Runs transfers from a queue shared with other connections, until it is empty.
+     */
+    private void runTransfers(Queue<Transfer> queue, ISyncProgressMonitor monitor)
+            throws SyncException, IOException, TimeoutException {
+        for (Transfer transfer = queue.poll(); transfer != null; transfer = queue.poll()) {
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+            transfer.run(this, monitor);
         }
     }
 
@@ -664,6 +920,7 @@ public class SyncService {
 
             // create the stream to read the file
             fis = new FileInputStream(f);
+            FileChannel file = fis.getChannel();
 
             // create the header for the action
             msg = createSendFileReq(ID_SEND, remotePathContent, 0644);
@@ -672,32 +929,32 @@ public class SyncService {
             // file and network IO exceptions.
             AdbHelper.write(mChannel, msg, -1, timeOut);
 
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
+            // The device doesn't acknowledge DATA packets, so the next packet is read from the
+            // file while the current one is being sent.
+            ByteBuffer packet = getPushBuffer(0);
+            ByteBuffer nextPacket = getPushBuffer(1);
+            boolean hasPacket = readDataPacket(file, packet);
 
             // look while there is something to read
-            while (true) {
+            while (hasPacket) {
                 // check if we're canceled
                 if (monitor.isCanceled()) {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
-
-                if (readCount == -1) {
-                    // we reached the end of the file
-                    break;
-                }
-
-                // now send the data to the device
-                // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
+                int readCount = packet.remaining() - 8;
 
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
+                // send what the socket accepts now, then read the next packet while it is sent
+                mChannel.write(packet);
+                hasPacket = readDataPacket(file, nextPacket);
+                writeFully(packet, timeOut);
 
                 // and advance the monitor
                 monitor.advance(readCount);
+
+                ByteBuffer sentPacket = packet;
+                packet = nextPacket;
+                nextPacket = sentPacket;
             }
         } catch (UnsupportedEncodingException e) {
             throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
@@ -726,6 +983,121 @@ public class SyncService {
         }
     }
 
+    /**
+     * Reads the next chunk of a file into a DATA packet.
+     * @param file the file to read from.
+     * @param packet the buffer receiving the packet, with room for {@link #SYNC_DATA_MAX} bytes
+     *      of data.
+     * @return false if the end of the file was reached, and there is no packet to send.
+     * @throws IOException if the file could not be read.
+     */
+    private static boolean readDataPacket(FileChannel file, ByteBuffer packet)
+            throws IOException {
+        packet.clear();
+        packet.position(8);
+        while (packet.hasRemaining() && file.read(packet) >= 0) {
+            // read up to SYNC_DATA_MAX
+        }
+        if (packet.position() == 8) {
+            return false;
+        }
+
+        packet.flip();
+        packet.put(0, ID_DATA[0]).put(1, ID_DATA[1]).put(2, ID_DATA[2]).put(3, ID_DATA[3]);
+        packet.putInt(4, packet.limit() - 8);
+        return true;
+    }
+
+    /**
+     * Writes the remaining content of the buffer to {@link #mChannel}, waiting for the socket to
+     * accept more data if needed.
+     */
+    private void writeFully(ByteBuffer buffer, int timeOut) throws TimeoutException, IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.write(buffer) == 0) {
+                waitForChannel(SelectionKey.OP_WRITE, timeOut);
+            }
+        }
+    }
+
+    /**
+     * Reads from {@link #mChannel} until the buffer has at least <var>length</var> bytes
+     * remaining. The buffer is compacted first, so it must be able to hold that many bytes.
+     */
+    private void fill(ByteBuffer buffer, int length, int timeOut)
+            throws TimeoutException, IOException {
+        while (buffer.remaining() < length) {
+            buffer.compact();
+            int count = mChannel.read(buffer);
+            buffer.flip();
+            if (count < 0) {
+                Log.d("ddms", "read: channel EOF");
+                throw new IOException("EOF");
+            } else if (count == 0) {
+                waitForChannel(SelectionKey.OP_READ, timeOut);
+            }
+        }
+    }
+
+    /**
+     * Waits until {@link #mChannel} is ready for the given operations.
+     * @param ops the operations, as {@link SelectionKey} bits.
+     * @param timeOut the time out in milliseconds. A time out of zero means "wait forever".
+     * @throws TimeoutException in case of timeout on the connection.
+     */
+    private void waitForChannel(int ops, int timeOut) throws TimeoutException, IOException {
+        if (mSelector == null) {
+            mSelector = Selector.open();
+            mSelectionKey = mChannel.register(mSelector, ops);
+        } else {
+            mSelectionKey.interestOps(ops);
+        }
+
+        long deadline = System.currentTimeMillis() + timeOut;
+        while (mSelector.select(timeOut) == 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                // Throw a timeout exception in place of interrupted exception to avoid API changes.
+                throw new TimeoutException(
+                        "Transfer interrupted with immediate timeout via interruption.");
+            }
+            if (timeOut != 0 && System.currentTimeMillis() >= deadline) {
+                Log.d("ddms", "sync: timeout");
+                throw new TimeoutException();
+            }
+        }
+        mSelector.selectedKeys().clear();
+    }
+
+    /**
+     * Reads an error message from the receive buffer, or {@link #mChannel} if it isn't received
+     * yet.
+     * @param buffer the receive buffer, starting with the current adb result.
+     * @param timeOut
+     * @return the message if the result is FAIL, null otherwise.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @throws IOException
+     */
+    private String readErrorMessage(ByteBuffer buffer, final int timeOut) throws TimeoutException,
+            IOException {
+        if (checkResult(buffer, ID_FAIL)) {
+            int len = buffer.getInt(buffer.position() + 4);
+            buffer.position(buffer.position() + 8);
+
+            if (len > 0 && len <= buffer.capacity()) {
+                fill(buffer, len, timeOut);
+                byte[] messageContent = new byte[len];
+                buffer.get(messageContent);
+
+                String message = new String(messageContent);
+                Log.e("ddms", "transfer error: " + message);
+
+                return message;
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Reads an error message from the opened {@link #mChannel}.
      * @param result the current adb result. Must contain both FAIL and the length of the message.
@@ -783,6 +1155,80 @@ public class SyncService {
         return new FileStat(mode, size, lastModifiedSecs);
     }
 
+    /**
+     * Lists a remote directory.
+     * <p/>Unlike <code>ls</code>, this only needs the sync connection, and the entries are
+     * received in a compact binary form, which is much faster for large directories. The owner
+     * and group of the entries are not available.
+     * @param path the remote directory. If it is a link to a directory, it must end with
+     *      {@link FileListingService#FILE_SEPARATOR}.
+     * @return the entries of the directory, except "." and "..", by name, in the order they were
+     *      listed. A directory that doesn't exist or can't be read has no entries.
+     * @throws SyncException if the path is invalid, or the device sent an invalid entry.
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    @NonNull
+    public Map<String, FileStat> listDirectory(@NonNull String path)
+            throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        byte[] pathContent;
+        try {
+            pathContent = path.getBytes(AdbHelper.DEFAULT_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
+        }
+        if (pathContent.length > REMOTE_PATH_MAX_LENGTH) {
+            throw new SyncException(SyncError.REMOTE_PATH_LENGTH);
+        }
+
+        AdbHelper.write(mChannel, createFileReq(ID_LIST, pathContent), -1, timeOut);
+
+        // each entry is a DENT packet of 5 ints (id, mode, size, time, name length) followed by
+        // the name, and the listing ends with a DONE packet of the same size.
+        ByteBuffer buffer = getReceiveBuffer();
+        buffer.clear();
+        buffer.limit(0);
+
+        Map<String, FileStat> entries = new LinkedHashMap<String, FileStat>();
+        while (true) {
+            fill(buffer, 8, timeOut);
+            if (checkResult(buffer, ID_FAIL)) {
+                throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
+                        readErrorMessage(buffer, timeOut));
+            }
+            fill(buffer, 20, timeOut);
+            if (checkResult(buffer, ID_DONE)) {
+                buffer.position(buffer.position() + 20);
+                break;
+            }
+            if (!checkResult(buffer, ID_DENT)) {
+                throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR);
+            }
+
+            int position = buffer.position();
+            int mode = buffer.getInt(position + 4);
+            int size = buffer.getInt(position + 8);
+            int time = buffer.getInt(position + 12);
+            int nameLength = buffer.getInt(position + 16);
+            if (nameLength < 0 || nameLength > REMOTE_PATH_MAX_LENGTH) {
+                throw new SyncException(SyncError.BUFFER_OVERRUN);
+            }
+            fill(buffer, 20 + nameLength, timeOut);
+            buffer.position(position + 20);
+            byte[] nameContent = new byte[nameLength];
+            buffer.get(nameContent);
+
+            String name = new String(nameContent, AdbHelper.DEFAULT_ENCODING);
+            if (!name.equals(".") && !name.equals("..")) { //$NON-NLS-1$ //$NON-NLS-2$
+                entries.put(name, new FileStat(mode, size, time));
+            }
+        }
+
+        return entries;
+    }
+
     /**
      * Create a command with a code and an int values
      * @param command
@@ -869,7 +1315,21 @@ public class SyncService {
 
     }
 
-    private static int getFileType(int mode) {
+    /**
+     * Checks the remaining content of the buffer starts with the provided code
+     * @param buffer The buffer to check
+     * @param code The 4 byte code.
+     * @return true if the code matches.
+     */
+    private static boolean checkResult(ByteBuffer buffer, byte[] code) {
+        int position = buffer.position();
+        return buffer.get(position) == code[0] &&
+                buffer.get(position + 1) == code[1] &&
+                buffer.get(position + 2) == code[2] &&
+                buffer.get(position + 3) == code[3];
+    }
+
+    static int getFileType(int mode) {
         if ((mode & S_ISOCK) == S_ISOCK) {
             return FileListingService.TYPE_SOCKET;
         }
@@ -901,6 +1361,55 @@ public class SyncService {
         return FileListingService.TYPE_OTHER;
     }
 
+    /**
+     * Returns the permission string of a mode, in the format of <code>ls -l</code>, for instance
+     * "drwxr-x--x".
+     */
+    static String getPermissions(int mode) {
+        char[] permissions = new char[10];
+        switch (getFileType(mode)) {
+            case FileListingService.TYPE_FILE:
+                permissions[0] = '-';
+                break;
+            case FileListingService.TYPE_DIRECTORY:
+                permissions[0] = 'd';
+                break;
+            case FileListingService.TYPE_LINK:
+                permissions[0] = 'l';
+                break;
+            case FileListingService.TYPE_BLOCK:
+                permissions[0] = 'b';
+                break;
+            case FileListingService.TYPE_CHARACTER:
+                permissions[0] = 'c';
+                break;
+            case FileListingService.TYPE_SOCKET:
+                permissions[0] = 's';
+                break;
+            case FileListingService.TYPE_FIFO:
+                permissions[0] = 'p';
+                break;
+            default:
+                permissions[0] = '?';
+        }
+
+        // the read, write and execute bits of the owner, group and others, in that order.
+        for (int i = 0; i < 9; i++) {
+            permissions[i + 1] = (mode & (0400 >> i)) != 0 ? "rwx".charAt(i % 3) : '-';
+        }
+        permissions[3] = getSpecialPermission(permissions[3], (mode & S_ISUID) != 0, 's');
+        permissions[6] = getSpecialPermission(permissions[6], (mode & S_ISGID) != 0, 's');
+        permissions[9] = getSpecialPermission(permissions[9], (mode & S_ISVTX) != 0, 't');
+        return new String(permissions);
+    }
+
+    private static char getSpecialPermission(char execute, boolean set, char flag) {
+        if (!set) {
+            return execute;
+        }
+        return execute == 'x' ? flag : Character.toUpperCase(flag);
+    }
+
     /**
      * Retrieve the buffer, allocating if necessary
      * @return
@@ -913,4 +1422,122 @@ public class SyncService {
         }
         return mBuffer;
     }
+
+    /**
+     * Retrieve one of the two push buffers, allocating them if necessary
+     * @return
+     */
+    private ByteBuffer getPushBuffer(int index) {
+        if (mPushBuffers == null) {
+            // we read max SYNC_DATA_MAX, but we need 2 4 bytes at the beginning.
+            mPushBuffers = new ByteBuffer[] {
+                    ByteBuffer.allocateDirect(SYNC_DATA_MAX + 8).order(ByteOrder.LITTLE_ENDIAN),
+                    ByteBuffer.allocateDirect(SYNC_DATA_MAX + 8).order(ByteOrder.LITTLE_ENDIAN)
+            };
+        }
+        return mPushBuffers[index];
+    }
+
+    /**
+     * Retrieve the receive buffer, allocating if necessary
+     * @return
+     */
+    private ByteBuffer getReceiveBuffer() {
+        if (mReceiveBuffer == null) {
+            mReceiveBuffer =
+                    ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mReceiveBuffer;
+    }
+
+    /**
+     * A file or folder to transfer, on any of the connections of a transfer.
+     */
+    private abstract static class Transfer {
+        /** The size of the file, used to transfer the largest files first. */
+        final long mSize;
+
+        Transfer(long size) {
+            mSize = size;
+        }
+
+        abstract void run(SyncService sync, ISyncProgressMonitor monitor)
+                throws SyncException, IOException, TimeoutException;
+    }
+
+    /**
+     * Forwards the progress of the connections of a transfer to a monitor, one connection at a
+     * time. The transfer is cancelled for all the connections when one of them fails.
+     */
+    private static final class ConcurrentSyncProgressMonitor implements ISyncProgressMonitor {
+        /** Minimum delay between the throughput updates. */
+        private static final long THROUGHPUT_INTERVAL_NS = 500 * 1000 * 1000L;
+
+        private final ISyncProgressMonitor mMonitor;
+
+        private final long mStartTime = System.nanoTime();
+        private long mLastThroughputTime = mStartTime;
+        private long mWork;
+
+        private volatile Exception mFailure;
+
+        ConcurrentSyncProgressMonitor(ISyncProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        @Override
+        public void start(int totalWork) {
+            mMonitor.start(totalWork);
+        }
+
+        @Override
+        public void stop() {
+            mMonitor.stop();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mFailure != null || mMonitor.isCanceled();
+        }
+
+        @Override
+        public synchronized void startSubTask(String name) {
+            mMonitor.startSubTask(name);
+        }
+
+        @Override
+        public synchronized void advance(int work) {
+            mMonitor.advance(work);
+            mWork += work;
+            if (mMonitor instanceof ISyncThroughputMonitor) {
+                long now = System.nanoTime();
+                if (now - mLastThroughputTime >= THROUGHPUT_INTERVAL_NS) {
+                    mLastThroughputTime = now;
+                    ((ISyncThroughputMonitor) mMonitor).throughput(getThroughput(now));
+                }
+            }
+        }
+
+        /** Sends the final throughput of the transfer to the monitor. */
+        synchronized void reportThroughput() {
+            if (mMonitor instanceof ISyncThroughputMonitor) {
+                ((ISyncThroughputMonitor) mMonitor).throughput(getThroughput(System.nanoTime()));
+            }
+        }
+
+        private long getThroughput(long now) {
+            return mWork * 1000000000L / Math.max(1, now - mStartTime);
+        }
+
+        /** Records the failure of a connection, and cancels the others. */
+        synchronized void fail(Exception e) {
+            if (mFailure == null) {
+                mFailure = e;
+            }
+        }
+
+        Exception getFailure() {
+            return mFailure;
+        }
+    }
 }
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Parses the raw bytes of logcat output into a {@link LogCatMessageBatch}, without regular
+ * expressions and without decoding anything but tags and messages into strings.
+ * <p/>It accepts the lines of {@code adb logcat -v long}, with the same header format as
+ * {@link LogCatMessageParser}, and the entries of {@code adb logcat -B}. Tags are interned, so a
+ * parser should be used for a single device, as tags repeat much more within a device.
+ * <p/>This class maintains state from previous calls regarding the last seen header, and isn't
+ * thread safe.
+ */
+public final class LogCatBatchParser {
+    private static final LogLevel[] LOG_LEVELS = LogLevel.values();
+
+    /** Size of the header of the version 1 binary entries, which don't store their size. */
+    private static final int ENTRY_V1_HEADER_SIZE = 20;
+
+    @Nullable
+    private final IDevice mDevice;
+
+    private final StringTable mTags = new StringTable();
+
+    /** Whether a header was parsed, and the following fields are set. */
+    private boolean mHasHeader;
+
+    private int mHeaderId;
+    private LogLevel mLogLevel;
+    private int mPid;
+    private int mTid;
+    private String mAppName;
+    private String mTag;
+    private long mTimestamp;
+
+    /** The hour of the last binary entry in local time, to format the next ones faster. */
+    private long mHourStartMillis = Long.MAX_VALUE;
+    private long mHourTimestamp;
+    private Calendar mCalendar;
+
+    public LogCatBatchParser(@Nullable IDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Parses a line of {@code adb logcat -v long}, without its line terminator. Header lines
+     * change the header of the following messages, and other lines are added as messages to the
+     * batch. Empty lines, and lines before the first header, are ignored.
+     */
+    public void processLine(@NonNull byte[] data, int offset, int length,
+            @NonNull LogCatMessageBatch batch) {
+        if (length == 0 || parseHeader(data, offset, offset + length)) {
+            return;
+        }
+
+        // If we are fed a log line without a header, there's nothing we can do with it, as in
+        // LogCatMessageParser.
+        if (mHasHeader) {
+            addMessage(new String(data, offset, length, Charsets.UTF_8), batch);
+        }
+    }
+
+    /**
+     * Parses a complete binary log entry, as output by {@code adb logcat -B}, and adds a message
+     * to the batch for each non empty line of its message.
+     *
+     * @param length the length of the entry, as returned by {@link #getBinaryEntryLength}
+     */
+    public void processBinaryEntry(@NonNull byte[] data, int offset, int length,
+            @NonNull LogCatMessageBatch batch) {
+        int headerSize = getBinaryHeaderSize(data, offset);
+        int end = offset + length;
+        int pid = readInt(data, offset + 4);
+        int tid = readInt(data, offset + 8);
+        long seconds = readInt(data, offset + 12) & 0xffffffffL;
+        int nanos = readInt(data, offset + 16);
+
+        // The payload is the priority, then the tag and the message, both null terminated.
+        int p = offset + headerSize;
+        if (p >= end) {
+            return;
+        }
+        int priority = data[p++];
+        int tagStart = p;
+        while (p < end && data[p] != 0) {
+            p++;
+        }
+        int tagEnd = p++;
+        int messageEnd = end;
+        while (messageEnd > p && data[messageEnd - 1] == 0) {
+            messageEnd--;
+        }
+
+        mHasHeader = true;
+        mHeaderId++;
+        mLogLevel = getLogLevelByPriority(priority);
+        mPid = pid;
+        mTid = tid;
+        mAppName = getAppName(pid);
+        mTag = mTags.get(data, tagStart, tagEnd - tagStart);
+        mTimestamp = getTimestamp(seconds * 1000 + nanos / 1000000);
+
+        // Like logcat -v long, each line of the message is a message.
+        for (int lineStart = p; lineStart < messageEnd; ) {
+            int lineEnd = lineStart;
+            while (lineEnd < messageEnd && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd > lineStart) {
+                addMessage(new String(data, lineStart, lineEnd - lineStart, Charsets.UTF_8),
+                        batch);
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Returns the length of the binary log entry starting at {@code offset}, header included.
+     * The first 4 bytes of the entry must be available.
+     */
+    public static int getBinaryEntryLength(@NonNull byte[] data, int offset) {
+        int payloadLength = (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+        return getBinaryHeaderSize(data, offset) + payloadLength;
+    }
+
+    private static int getBinaryHeaderSize(byte[] data, int offset) {
+        // Version 1 entries have padding instead of the header size.
+        int headerSize = (data[offset + 2] & 0xff) | ((data[offset + 3] & 0xff) << 8);
+        return headerSize < ENTRY_V1_HEADER_SIZE ? ENTRY_V1_HEADER_SIZE : headerSize;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff)
+                | ((data[offset + 1] & 0xff) << 8)
+                | ((data[offset + 2] & 0xff) << 16)
+                | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    @NonNull
+    private static LogLevel getLogLevelByPriority(int priority) {
+        // Priorities below VERBOSE are unknown or default, and above ASSERT silent.
+        int first = LOG_LEVELS[0].getPriority();
+        int index = Math.max(0, Math.min(priority - first, LOG_LEVELS.length - 1));
+        return LOG_LEVELS[index];
+    }
+
+    private long getTimestamp(long millis) {
+        if (millis < mHourStartMillis || millis >= mHourStartMillis + 3600000) {
+            // logcat prints the time in the time zone of the device, assumed to be the same here.
+            if (mCalendar == null) {
+                mCalendar = Calendar.getInstance();
+            }
+            mCalendar.setTimeInMillis(millis);
+            mCalendar.set(Calendar.MINUTE, 0);
+            mCalendar.set(Calendar.SECOND, 0);
+            mCalendar.set(Calendar.MILLISECOND, 0);
+            mHourStartMillis = mCalendar.getTimeInMillis();
+            mHourTimestamp = LogCatMessageBatch.packTimestamp(mCalendar.get(Calendar.MONTH) + 1,
+                    mCalendar.get(Calendar.DAY_OF_MONTH), mCalendar.get(Calendar.HOUR_OF_DAY),
+                    0, 0, 0);
+        }
+        int millisInHour = (int) (millis - mHourStartMillis);
+        return mHourTimestamp + LogCatMessageBatch.packTimestamp(0, 0, 0, millisInHour / 60000,
+                millisInHour / 1000 % 60, millisInHour % 1000);
+    }
+
+    private void addMessage(@NonNull String message, @NonNull LogCatMessageBatch batch) {
+        batch.add(mHeaderId, mLogLevel, mPid, mTid, mAppName, mTag, mTimestamp, message);
+    }
+
+    /**
+     * Parses a header line of {@code adb logcat -v long}, with the same format as
+     * {@link LogCatMessageParser}, for example {@code [ 08-18 16:39:11.760  2977: 2988 D/Tag ]}.
+     *
+     * @return whether the line was a header
+     */
+    private boolean parseHeader(byte[] data, int start, int end) {
+        // The shortest header is "[ MM-DD HH:MM:SS.m :x V/t ]".
+        if (end - start < 27 || data[start] != '[' || data[end - 1] != ']'
+                || !isSpace(data[start + 1])) {
+            return false;
+        }
+
+        int p = start + 2;
+        int month = parseTwoDigits(data, p);
+        int day = parseTwoDigits(data, p + 3);
+        int hour = parseTwoDigits(data, p + 6);
+        int minute = parseTwoDigits(data, p + 9);
+        int second = parseTwoDigits(data, p + 12);
+        if (month < 1 || month > 12 || data[p + 2] != '-' || day < 1 || day > 31
+                || !isSpace(data[p + 5]) || hour > 23 || data[p + 8] != ':' || minute > 59
+                || data[p + 11] != ':' || second > 59 || data[p + 14] != '.') {
+            return false;
+        }
+        p += 15;
+
+        // ms is 3 digits max. e.g. convert "123456" into "123", as LogCatTimestamp does.
+        int milliStart = p;
+        long milli = 0;
+        while (p < end && isDigit(data[p])) {
+            if (milli < 1000) {
+                milli = milli * 10 + data[p] - '0';
+            }
+            p++;
+        }
+        if (p == milliStart) {
+            return false;
+        }
+        while (milli >= 1000) {
+            milli /= 10;
+        }
+
+        int spacesStart = p;
+        while (p < end && isSpace(data[p])) {
+            p++;
+        }
+        if (p == spacesStart) {
+            return false;
+        }
+
+        // The pid is -1 if it's missing or invalid.
+        int pidStart = p;
+        long pid = 0;
+        while (p < end && isDigit(data[p])) {
+            pid = Math.min(pid * 10 + data[p] - '0', Integer.MAX_VALUE + 1L);
+            p++;
+        }
+        if (p == pidStart || pid > Integer.MAX_VALUE) {
+            pid = -1;
+        }
+        if (p == end || data[p] != ':') {
+            return false;
+        }
+        p++;
+        while (p < end && isSpace(data[p])) {
+            p++;
+        }
+
+        int tidStart = p;
+        while (p < end && !isSpace(data[p])) {
+            p++;
+        }
+        int tidEnd = p;
+        if (tidEnd == tidStart || end - p < 6) {
+            return false;
+        }
+        LogLevel logLevel = getLogLevelByLetter(data[p + 1]);
+        if (logLevel == null || data[p + 2] != '/') {
+            return false;
+        }
+        p += 3;
+
+        // The tag is followed by spaces and the final ']', which was checked first.
+        int tagEnd = end - 1;
+        if (!isSpace(data[tagEnd - 1])) {
+            return false;
+        }
+        while (tagEnd > p && isSpace(data[tagEnd - 1])) {
+            tagEnd--;
+        }
+        if (tagEnd == p) {
+            return false;
+        }
+
+        mHasHeader = true;
+        mHeaderId++;
+        mLogLevel = logLevel;
+        mPid = (int) pid;
+        mTid = parseTid(data, tidStart, tidEnd);
+        mAppName = getAppName(mPid);
+        mTag = mTags.get(data, p, tagEnd - p);
+        mTimestamp = LogCatMessageBatch.packTimestamp(month, day, hour, minute, second,
+                (int) milli);
+        return true;
+    }
+
+    @NonNull
+    private String getAppName(int pid) {
+        String appName = null;
+        if (mDevice != null && pid != -1) {
+            appName = mDevice.getClientName(pid);
+        }
+        if (appName == null || appName.isEmpty()) {
+            appName = "?"; //$NON-NLS-1$
+        }
+        return appName;
+    }
+
+    @Nullable
+    private static LogLevel getLogLevelByLetter(byte letter) {
+        switch (letter) {
+            case 'V':
+                return LogLevel.VERBOSE;
+            case 'D':
+                return LogLevel.DEBUG;
+            case 'I':
+                return LogLevel.INFO;
+            case 'W':
+                return LogLevel.WARN;
+            case 'E':
+                return LogLevel.ERROR;
+            case 'A':
+            case 'F':
+                return LogLevel.ASSERT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parses a thread id, which may be in hex on some platforms. Returns -1 if it's invalid, as
+     * {@link LogCatMessageParser} does.
+     */
+    private static int parseTid(byte[] data, int start, int end) {
+        int radix = 10;
+        int p = start;
+        if (end - p > 2 && data[p] == '0' && (data[p + 1] == 'x' || data[p + 1] == 'X')) {
+            radix = 16;
+            p += 2;
+        } else if (end - p > 1 && data[p] == '0') {
+            radix = 0;
+        }
+
+        if (radix != 0) {
+            long tid = 0;
+            for (; p < end; p++) {
+                int digit = Character.digit(data[p], radix);
+                if (digit < 0) {
+                    break;
+                }
+                tid = tid * radix + digit;
+                if (tid > Integer.MAX_VALUE) {
+                    return -1;
+                }
+            }
+            if (p == end) {
+                return (int) tid;
+            }
+        }
+
+        // Let Integer.decode() handle the unusual cases, like octal or signed ids.
+        try {
+            return Integer.decode(new String(data, start, end - start, Charsets.ISO_8859_1));
+        } catch (NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    private static int parseTwoDigits(byte[] data, int offset) {
+        byte tens = data[offset];
+        byte units = data[offset + 1];
+        if (!isDigit(tens) || !isDigit(units)) {
+            return Integer.MAX_VALUE;
+        }
+        return (tens - '0') * 10 + units - '0';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /** Returns whether the byte is a whitespace character, as {@code \s} in a regex. */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0b || b == '\f' || b == '\r';
+    }
+
+    /**
+     * Maps UTF-8 bytes to strings decoded from them, so that each tag is only decoded once. The
+     * table is cleared rather than grown past {@link #MAX_SIZE} strings.
+     */
+    private static final class StringTable {
+        private static final int MAX_SIZE = 8192;
+
+        private byte[][] mKeys = new byte[64][];
+        private String[] mValues = new String[64];
+        private int mSize;
+
+        @NonNull
+        public String get(byte[] data, int offset, int length) {
+            int hash = 0;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + data[i];
+            }
+
+            int mask = mKeys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            for (byte[] key = mKeys[slot]; key != null; key = mKeys[slot]) {
+                if (equals(key, data, offset, length)) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            String value = new String(data, offset, length, Charsets.UTF_8);
+            byte[] key = Arrays.copyOfRange(data, offset, offset + length);
+            if (mSize < mKeys.length / 2) {
+                mKeys[slot] = key;
+                mValues[slot] = value;
+                mSize++;
+                return value;
+            }
+
+            if (mKeys.length >= MAX_SIZE * 2) {
+                Arrays.fill(mKeys, null);
+                Arrays.fill(mValues, null);
+                mSize = 0;
+            } else {
+                rehash(mKeys.length * 2);
+            }
+            return put(hash, key, value);
+        }
+
+        private String put(int hash, byte[] key, String value) {
+            int mask = mKeys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (mKeys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            mKeys[slot] = key;
+            mValues[slot] = value;
+            mSize++;
+            return value;
+        }
+
+        private void rehash(int capacity) {
+            byte[][] keys = mKeys;
+            String[] values = mValues;
+            mKeys = new byte[capacity][];
+            mValues = new String[capacity];
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    int hash = 0;
+                    for (byte b : keys[i]) {
+                        hash = 31 * hash + b;
+                    }
+                    put(hash, keys[i], values[i]);
+                }
+            }
+        }
+
+        private static boolean equals(byte[] key, byte[] data, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
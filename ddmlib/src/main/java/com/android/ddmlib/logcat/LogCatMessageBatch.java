@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.Log.LogLevel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of logcat messages stored as one array per field, rather than as one
+ * {@link LogCatMessage} and {@link LogCatHeader} per message. A batch is meant to be reused:
+ * {@link #clear()} keeps the arrays, so parsing into the same batch again doesn't allocate
+ * anything but the message strings.
+ * <p/>Each message also has the id of its header, which is shared by the lines of a multi-line
+ * message, so that {@link #toMessages()} creates a single {@link LogCatHeader} for them, even
+ * when they are split across batches. Header ids should thus be unique during the lifetime of
+ * a batch.
+ */
+public final class LogCatMessageBatch {
+    private static final LogLevel[] LOG_LEVELS = LogLevel.values();
+
+    // Bit fields of the packed timestamps.
+    private static final int MILLI_BITS = 10;
+    private static final int SECOND_BITS = 6;
+    private static final int MINUTE_BITS = 6;
+    private static final int HOUR_BITS = 5;
+    private static final int DAY_BITS = 5;
+
+    private int mSize;
+
+    private int[] mHeaderIds;
+    private byte[] mLogLevels;
+    private int[] mPids;
+    private int[] mTids;
+    private long[] mTimestamps;
+    private String[] mAppNames;
+    private String[] mTags;
+    private String[] mMessages;
+
+    /** The header of the last message, kept across {@link #clear()}, and its id. */
+    private LogCatHeader mLastHeader;
+    private int mLastHeaderId;
+
+    public LogCatMessageBatch() {
+        this(256);
+    }
+
+    public LogCatMessageBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mHeaderIds = new int[capacity];
+        mLogLevels = new byte[capacity];
+        mPids = new int[capacity];
+        mTids = new int[capacity];
+        mTimestamps = new long[capacity];
+        mAppNames = new String[capacity];
+        mTags = new String[capacity];
+        mMessages = new String[capacity];
+    }
+
+    /** Returns the number of messages in the batch. */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Removes all the messages, keeping the storage for the next ones. */
+    public void clear() {
+        // Let the strings be collected.
+        for (int i = 0; i < mSize; i++) {
+            mAppNames[i] = null;
+            mTags[i] = null;
+            mMessages[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Adds a message.
+     *
+     * @param headerId  an id shared by the consecutive messages with the same header
+     * @param timestamp the timestamp, as packed by {@link #packTimestamp}
+     */
+    public void add(int headerId, @NonNull LogLevel logLevel, int pid, int tid,
+            @NonNull String appName, @NonNull String tag, long timestamp,
+            @NonNull String message) {
+        if (mSize == mHeaderIds.length) {
+            grow();
+        }
+        int i = mSize++;
+        mHeaderIds[i] = headerId;
+        mLogLevels[i] = (byte) logLevel.ordinal();
+        mPids[i] = pid;
+        mTids[i] = tid;
+        mTimestamps[i] = timestamp;
+        mAppNames[i] = appName;
+        mTags[i] = tag;
+        mMessages[i] = message;
+    }
+
+    private void grow() {
+        int capacity = mHeaderIds.length * 2;
+        int[] headerIds = new int[capacity];
+        System.arraycopy(mHeaderIds, 0, headerIds, 0, mSize);
+        mHeaderIds = headerIds;
+        byte[] logLevels = new byte[capacity];
+        System.arraycopy(mLogLevels, 0, logLevels, 0, mSize);
+        mLogLevels = logLevels;
+        int[] pids = new int[capacity];
+        System.arraycopy(mPids, 0, pids, 0, mSize);
+        mPids = pids;
+        int[] tids = new int[capacity];
+        System.arraycopy(mTids, 0, tids, 0, mSize);
+        mTids = tids;
+        long[] timestamps = new long[capacity];
+        System.arraycopy(mTimestamps, 0, timestamps, 0, mSize);
+        mTimestamps = timestamps;
+        String[] appNames = new String[capacity];
+        System.arraycopy(mAppNames, 0, appNames, 0, mSize);
+        mAppNames = appNames;
+        String[] tags = new String[capacity];
+        System.arraycopy(mTags, 0, tags, 0, mSize);
+        mTags = tags;
+        String[] messages = new String[capacity];
+        System.arraycopy(mMessages, 0, messages, 0, mSize);
+        mMessages = messages;
+    }
+
+    public int getHeaderId(int index) {
+        checkIndex(index);
+        return mHeaderIds[index];
+    }
+
+    @NonNull
+    public LogLevel getLogLevel(int index) {
+        checkIndex(index);
+        return LOG_LEVELS[mLogLevels[index]];
+    }
+
+    public int getPid(int index) {
+        checkIndex(index);
+        return mPids[index];
+    }
+
+    public int getTid(int index) {
+        checkIndex(index);
+        return mTids[index];
+    }
+
+    @NonNull
+    public String getAppName(int index) {
+        checkIndex(index);
+        return mAppNames[index];
+    }
+
+    @NonNull
+    public String getTag(int index) {
+        checkIndex(index);
+        return mTags[index];
+    }
+
+    @NonNull
+    public String getMessage(int index) {
+        checkIndex(index);
+        return mMessages[index];
+    }
+
+    /** Returns the timestamp of a message, packed as by {@link #packTimestamp}. */
+    public long getPackedTimestamp(int index) {
+        checkIndex(index);
+        return mTimestamps[index];
+    }
+
+    @NonNull
+    public LogCatTimestamp getTimestamp(int index) {
+        return unpackTimestamp(getPackedTimestamp(index));
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException(
+                    String.format("Index: %1$d, Size: %2$d", index, mSize));
+        }
+    }
+
+    /**
+     * Creates the {@link LogCatMessage} objects of the batch. Consecutive messages with the same
+     * header id share their {@link LogCatHeader}, including the first message and the last one
+     * of the previous call.
+     */
+    @NonNull
+    public List<LogCatMessage> toMessages() {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            if (mLastHeader == null || mHeaderIds[i] != mLastHeaderId) {
+                mLastHeader = new LogCatHeader(LOG_LEVELS[mLogLevels[i]], mPids[i], mTids[i],
+                        mAppNames[i], mTags[i], unpackTimestamp(mTimestamps[i]));
+                mLastHeaderId = mHeaderIds[i];
+            }
+            messages.add(new LogCatMessage(mLastHeader, mMessages[i]));
+        }
+        return messages;
+    }
+
+    /**
+     * Packs the fields of a timestamp into a long. Packed timestamps of the same year compare
+     * like the timestamps do.
+     */
+    public static long packTimestamp(int month, int day, int hour, int minute, int second,
+            int milli) {
+        long packed = month;
+        packed = (packed << DAY_BITS) | day;
+        packed = (packed << HOUR_BITS) | hour;
+        packed = (packed << MINUTE_BITS) | minute;
+        packed = (packed << SECOND_BITS) | second;
+        return (packed << MILLI_BITS) | milli;
+    }
+
+    @NonNull
+    public static LogCatTimestamp unpackTimestamp(long packed) {
+        int milli = (int) (packed & ((1 << MILLI_BITS) - 1));
+        packed >>>= MILLI_BITS;
+        int second = (int) (packed & ((1 << SECOND_BITS) - 1));
+        packed >>>= SECOND_BITS;
+        int minute = (int) (packed & ((1 << MINUTE_BITS) - 1));
+        packed >>>= MINUTE_BITS;
+        int hour = (int) (packed & ((1 << HOUR_BITS) - 1));
+        packed >>>= HOUR_BITS;
+        int day = (int) (packed & ((1 << DAY_BITS) - 1));
+        packed >>>= DAY_BITS;
+        return new LogCatTimestamp((int) packed, day, hour, minute, second, milli);
+    }
+}
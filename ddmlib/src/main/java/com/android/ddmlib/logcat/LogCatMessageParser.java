@@ -56,7 +56,7 @@ public final class LogCatMessageParser {
      * @return a {@link LogCatHeader} which represents the passed in text
      */
     @Nullable
-    public LogCatHeader processLogHeader(@NonNull String line, @Nullable IDevice device) {
+    public LogCatHeader processLogHeader(@NonNull CharSequence line, @Nullable IDevice device) {
         Matcher matcher = sLogHeaderPattern.matcher(line);
         if (!matcher.matches()) {
             return null;
@@ -113,25 +113,45 @@ public final class LogCatMessageParser {
         List<LogCatMessage> messages = new ArrayList<LogCatMessage>(lines.length);
 
         for (String line : lines) {
-            if (line.isEmpty()) {
-                continue;
-            }
-
-            if (processLogHeader(line, device) == null) {
-                // If not a header line, this is a message line
-                if (mPrevHeader == null) {
-                    // If we are fed a log line without a header, there's nothing we can do with
-                    // it - the header metadata is very important! So, we have no choice but to drop
-                    // this line.
-                    //
-                    // This should rarely happen, if ever - for example, perhaps we're running over
-                    // old logs where some earlier lines have been truncated.
-                    continue;
-                }
-                messages.add(new LogCatMessage(mPrevHeader, line));
+            LogCatMessage message = processLogLine(line, device);
+            if (message != null) {
+                messages.add(message);
             }
         }
 
         return messages;
     }
+
+    /**
+     * Parse a single line into a {@link LogCatMessage}. The line is only read during the call, so
+     * it may be a buffer reused for the next line. This method maintains state from previous calls
+     * regarding the last seen header of logcat messages.
+     *
+     * @param line   raw text obtained from logcat -v long
+     * @param device device from which this log message has been received
+     * @return the message, or {@code null} for header lines, empty lines and lines without a
+     * previous header
+     */
+    @Nullable
+    public LogCatMessage processLogLine(@NonNull CharSequence line, @Nullable IDevice device) {
+        if (line.length() == 0) {
+            return null;
+        }
+
+        if (processLogHeader(line, device) != null) {
+            return null;
+        }
+
+        // If not a header line, this is a message line
+        if (mPrevHeader == null) {
+            // If we are fed a log line without a header, there's nothing we can do with
+            // it - the header metadata is very important! So, we have no choice but to drop
+            // this line.
+            //
+            // This should rarely happen, if ever - for example, perhaps we're running over
+            // old logs where some earlier lines have been truncated.
+            return null;
+        }
+        return new LogCatMessage(mPrevHeader, line.toString());
+    }
 }
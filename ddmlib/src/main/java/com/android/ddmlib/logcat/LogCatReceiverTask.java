@@ -19,10 +19,11 @@ package com.android.ddmlib.logcat;
 import com.android.annotations.NonNull;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.ByteLineReceiver;
 import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IExecEnabledDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log.LogLevel;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 
@@ -31,10 +32,15 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LogCatReceiverTask implements Runnable {
     private static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
+    private static final String LOGCAT_BINARY_COMMAND = "logcat -B"; //$NON-NLS-1$
+
+    /** The exec service, needed to receive binary output unchanged, requires API level 21. */
+    private static final int BINARY_MIN_API_LEVEL = 21;
     private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
 
     private static final LogCatMessage sDeviceDisconnectedMsg =
@@ -45,18 +51,34 @@ public class LogCatReceiverTask implements Runnable {
             new LogCatMessage(LogLevel.ERROR, "LogCat Connection error");
 
     private final IDevice mDevice;
+    private final boolean mBinary;
     private final LogCatOutputReceiver mReceiver;
-    private final LogCatMessageParser mParser;
+    private final LogCatBinaryOutputReceiver mBinaryReceiver;
+    private final LogCatBatchParser mParser;
     private final AtomicBoolean mCancelled;
 
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
     public LogCatReceiverTask(@NonNull IDevice device) {
+        this(device, false);
+    }
+
+    /**
+     * Creates a task receiving the logcat messages of a device.
+     *
+     * @param binary whether to receive the binary output of {@code logcat -B}, which is decoded
+     *               with much less CPU than the text output, and is smaller. Devices before API
+     *               level 21, and devices which aren't {@link IExecEnabledDevice}s, always send the
+     *               text output.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, boolean binary) {
         mDevice = device;
+        mBinary = binary;
 
         mReceiver = new LogCatOutputReceiver();
-        mParser = new LogCatMessageParser();
+        mBinaryReceiver = new LogCatBinaryOutputReceiver();
+        mParser = new LogCatBatchParser(device);
         mCancelled = new AtomicBoolean();
     }
 
@@ -72,7 +94,13 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         try {
-            mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            if (mBinary && mDevice instanceof IExecEnabledDevice
+                    && mDevice.getVersion().isGreaterOrEqualThan(BINARY_MIN_API_LEVEL)) {
+                ((IExecEnabledDevice) mDevice).executeBinaryCommand(LOGCAT_BINARY_COMMAND,
+                        mBinaryReceiver, 0, TimeUnit.MILLISECONDS);
+            } else {
+                mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            }
         } catch (TimeoutException e) {
             notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
         } catch (AdbCommandRejectedException ignored) {
@@ -90,7 +118,10 @@ public class LogCatReceiverTask implements Runnable {
         mCancelled.set(true);
     }
 
-    private class LogCatOutputReceiver extends MultiLineReceiver {
+    private class LogCatOutputReceiver extends ByteLineReceiver {
+        /** Messages parsed from the current packet of output. */
+        private final LogCatMessageBatch mBatch = new LogCatMessageBatch();
+
         public LogCatOutputReceiver() {
             setTrimLine(false);
         }
@@ -102,20 +133,96 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(String[] lines) {
+        protected void processLine(@NonNull byte[] data, int offset, int length) {
             if (!mCancelled.get()) {
-                processLogLines(lines);
+                mParser.processLine(data, offset, length, mBatch);
             }
         }
 
-        private void processLogLines(String[] lines) {
-            List<LogCatMessage> newMessages = mParser.processLogLines(lines, mDevice);
-            if (!newMessages.isEmpty()) {
-                notifyListeners(newMessages);
+        @Override
+        protected void processEndOfBatch() {
+            if (!mBatch.isEmpty()) {
+                notifyListeners(mBatch.toMessages());
+                mBatch.clear();
             }
         }
     }
 
+    /**
+     * Receives the binary log entries of {@code logcat -B}. Entries spanning several packets are
+     * copied into a buffer reused for all entries, and the others are parsed in place.
+     */
+    private class LogCatBinaryOutputReceiver implements IShellOutputReceiver {
+        /** Bytes needed to find the length of an entry. */
+        private static final int ENTRY_LENGTH_SIZE = 4;
+
+        private final LogCatMessageBatch mBatch = new LogCatMessageBatch();
+
+        /** The start of the entry which didn't fit in the previous packets. */
+        private byte[] mPendingEntry = new byte[4096];
+
+        private int mPendingLength;
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            if (mCancelled.get()) {
+                return;
+            }
+
+            int p = offset;
+            int end = offset + length;
+            while (mPendingLength > 0 && p < end) {
+                int entryLength = mPendingLength < ENTRY_LENGTH_SIZE ? ENTRY_LENGTH_SIZE
+                        : LogCatBatchParser.getBinaryEntryLength(mPendingEntry, 0);
+                int count = Math.min(entryLength - mPendingLength, end - p);
+                appendToPendingEntry(data, p, count);
+                p += count;
+                if (mPendingLength >= ENTRY_LENGTH_SIZE && mPendingLength
+                        == LogCatBatchParser.getBinaryEntryLength(mPendingEntry, 0)) {
+                    mParser.processBinaryEntry(mPendingEntry, 0, mPendingLength, mBatch);
+                    mPendingLength = 0;
+                }
+            }
+
+            while (end - p >= ENTRY_LENGTH_SIZE) {
+                int entryLength = LogCatBatchParser.getBinaryEntryLength(data, p);
+                if (end - p < entryLength) {
+                    break;
+                }
+                mParser.processBinaryEntry(data, p, entryLength, mBatch);
+                p += entryLength;
+            }
+            appendToPendingEntry(data, p, end - p);
+
+            if (!mBatch.isEmpty()) {
+                notifyListeners(mBatch.toMessages());
+                mBatch.clear();
+            }
+        }
+
+        private void appendToPendingEntry(byte[] data, int offset, int length) {
+            int newLength = mPendingLength + length;
+            if (newLength > mPendingEntry.length) {
+                byte[] entry = new byte[Math.max(newLength, mPendingEntry.length * 2)];
+                System.arraycopy(mPendingEntry, 0, entry, 0, mPendingLength);
+                mPendingEntry = entry;
+            }
+            System.arraycopy(data, offset, mPendingEntry, mPendingLength, length);
+            mPendingLength = newLength;
+        }
+
+        @Override
+        public void flush() {
+            // A truncated last entry is dropped.
+            mPendingLength = 0;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled.get();
+        }
+    }
+
     public synchronized void addLogCatListener(LogCatListener l) {
         mListeners.add(l);
     }
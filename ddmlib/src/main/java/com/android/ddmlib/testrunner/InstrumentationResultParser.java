@@ -16,9 +16,10 @@
 
 package com.android.ddmlib.testrunner;
 
+import com.android.annotations.NonNull;
+import com.android.ddmlib.ByteLineReceiver;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -65,7 +66,7 @@ import java.util.regex.Pattern;
  * </pre>
  * <p>Note that the "value" portion of the key-value pair may wrap over several text lines
  */
-public class InstrumentationResultParser extends MultiLineReceiver {
+public class InstrumentationResultParser extends ByteLineReceiver {
 
     /** Relevant test status keys. */
     private static class StatusKeys {
@@ -237,19 +238,27 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     }
 
     /**
-     * Processes the instrumentation test output from shell.
-     *
-     * @see MultiLineReceiver#processNewLines
+     * Processes lines of the instrumentation test output from shell.
      */
-    @Override
     public void processNewLines(String[] lines) {
         for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+            processLine(line);
         }
     }
 
+    /**
+     * Processes a line of the instrumentation test output from shell.
+     *
+     * @see ByteLineReceiver#processLine(CharSequence)
+     */
+    @Override
+    protected void processLine(@NonNull CharSequence chars) {
+        String line = chars.toString();
+        parse(line);
+        // in verbose mode, dump all adb output to log
+        Log.v(LOG_TAG, line);
+    }
+
     /**
      * Parse an individual output line. Expects a line that is one of:
      * <ul>
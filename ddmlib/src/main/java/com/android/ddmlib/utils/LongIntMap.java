@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map of long keys to int values, with open addressing, so that neither the keys nor the
+ * values are boxed.
+ */
+public final class LongIntMap {
+    private long[] mKeys;
+    /** The values plus one, zero meaning the slot is empty. */
+    private int[] mValues;
+    private int mSize;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity *= 2;
+        }
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value of a key, or <var>defaultValue</var> if the map doesn't contain the key.
+     */
+    public int get(long key, int defaultValue) {
+        int mask = mKeys.length - 1;
+        for (int i = hash(key) & mask; mValues[i] != 0; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return mValues[i] - 1;
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Sets the value of a key.
+     * @param value the value, which can't be negative.
+     */
+    public void put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        for (; mValues[i] != 0; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                mValues[i] = value + 1;
+                return;
+            }
+        }
+        mKeys[i] = key;
+        mValues[i] = value + 1;
+        if (++mSize * 2 > mKeys.length) {
+            rehash();
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, 0);
+        mSize = 0;
+    }
+
+    private void rehash() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        mKeys = new long[keys.length * 2];
+        mValues = new int[values.length * 2];
+        int mask = mKeys.length - 1;
+        for (int j = 0; j < keys.length; j++) {
+            if (values[j] != 0) {
+                int i = hash(keys[j]) & mask;
+                while (mValues[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = keys[j];
+                mValues[i] = values[j];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        // mix the bits, so that keys packing small fields spread over the table.
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
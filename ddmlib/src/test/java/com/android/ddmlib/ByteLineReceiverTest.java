@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ByteLineReceiverTest extends TestCase {
+
+    private LinesReceiver mReceiver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mReceiver = new LinesReceiver();
+    }
+
+    public void testLinesInOnePacket() {
+        send("first\nsecond\r\nthird\n");
+        assertEquals(Arrays.asList("first", "second", "third"), mReceiver.mLines);
+        assertEquals(1, mReceiver.mBatches.size());
+        assertEquals(3, mReceiver.mBatches.get(0).intValue());
+    }
+
+    public void testLinesAcrossPackets() {
+        send("fir", "st\nsec", "ond\r", "\nthi", "", "rd\n");
+        assertEquals(Arrays.asList("first", "second", "third"), mReceiver.mLines);
+        assertEquals(Arrays.asList(0, 1, 0, 1, 0, 1), mReceiver.mBatches);
+    }
+
+    public void testTrimLines() {
+        send("  a b \t\n\tc  \n");
+        assertEquals(Arrays.asList("a b", "c"), mReceiver.mLines);
+
+        mReceiver = new LinesReceiver();
+        mReceiver.setTrimLine(false);
+        send("  a b \t\n\tc  \n");
+        assertEquals(Arrays.asList("  a b \t", "\tc  "), mReceiver.mLines);
+    }
+
+    public void testMultibyteCharacters() {
+        String line = "caf\u00e9 \u65e5\u672c \ud83d\ude00";
+        byte[] bytes = (line + "\n" + line + "\n").getBytes(Charsets.UTF_8);
+
+        // Split the output at every byte, including within characters.
+        for (int i = 0; i < bytes.length; i++) {
+            mReceiver.addOutput(bytes, i, 1);
+        }
+        assertEquals(Arrays.asList(line, line), mReceiver.mLines);
+    }
+
+    public void testFlushLastLine() {
+        send("first\nlast");
+        assertEquals(Arrays.asList("first"), mReceiver.mLines);
+        mReceiver.flush();
+        assertEquals(Arrays.asList("first", "last"), mReceiver.mLines);
+        assertTrue(mReceiver.mDone);
+    }
+
+    public void testFlushWithoutOutput() {
+        mReceiver.flush();
+        assertTrue(mReceiver.mLines.isEmpty());
+        assertTrue(mReceiver.mDone);
+    }
+
+    public void testMultiLineReceiver() {
+        final List<String> lines = new ArrayList<String>();
+        MultiLineReceiver receiver = new MultiLineReceiver() {
+            @Override
+            public void processNewLines(String[] newLines) {
+                lines.addAll(Arrays.asList(newLines));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        byte[] bytes = "a\nb\r\nc".getBytes(Charsets.UTF_8);
+        receiver.addOutput(bytes, 0, bytes.length);
+        receiver.flush();
+        assertEquals(Arrays.asList("a", "b", "c"), lines);
+    }
+
+    private void send(String... packets) {
+        for (String packet : packets) {
+            byte[] bytes = packet.getBytes(Charsets.UTF_8);
+            mReceiver.addOutput(bytes, 0, bytes.length);
+        }
+    }
+
+    private static class LinesReceiver extends ByteLineReceiver {
+        private final List<String> mLines = new ArrayList<String>();
+        private final List<Integer> mBatches = new ArrayList<Integer>();
+        private int mBatchSize;
+        private boolean mDone;
+
+        @Override
+        protected void processLine(CharSequence line) {
+            mLines.add(line.toString());
+            mBatchSize++;
+        }
+
+        @Override
+        protected void processEndOfBatch() {
+            mBatches.add(mBatchSize);
+            mBatchSize = 0;
+        }
+
+        @Override
+        public void done() {
+            mDone = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
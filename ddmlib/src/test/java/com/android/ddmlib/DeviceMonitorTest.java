@@ -16,16 +16,120 @@
 package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
+import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DeviceMonitorTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private MonitorThread mMonitorThread;
+    private FakeClientConnector mConnector;
+    private DeviceMonitor mMonitor;
+    private Device mDevice;
+
+    /** The threads on which the listeners were notified of changes of the client list. */
+    private final BlockingQueue<Thread> mNotifications = new LinkedBlockingQueue<Thread>();
+
+    private final IDeviceChangeListener mListener = new IDeviceChangeListener() {
+        @Override
+        public void deviceConnected(@NonNull IDevice device) {
+        }
+
+        @Override
+        public void deviceDisconnected(@NonNull IDevice device) {
+        }
+
+        @Override
+        public void deviceChanged(@NonNull IDevice device, int changeMask) {
+            if (device == mDevice && changeMask == Device.CHANGE_CLIENT_LIST) {
+                mNotifications.add(Thread.currentThread());
+            }
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMonitorThread = MonitorThread.createInstance();
+        mMonitorThread.start();
+        mConnector = new FakeClientConnector();
+        mMonitor = new DeviceMonitor(null, mConnector);
+        mDevice = new Device(mMonitor, "serial", IDevice.DeviceState.ONLINE);
+        AndroidDebugBridge.addDeviceChangeListener(mListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        AndroidDebugBridge.removeDeviceChangeListener(mListener);
+        mMonitor.stop();
+        mMonitorThread.quit();
+        mConnector.close();
+        super.tearDown();
+    }
+
+    public void testOpenClients() throws Exception {
+        processJdwpData("12\n34");
+
+        assertNotifiedOffMonitorThread();
+        assertEquals(Sets.newHashSet(12, 34), getClientPids());
+        assertEquals(1, mConnector.getConnectionCount(12));
+        assertEquals(1, mConnector.getConnectionCount(34));
+    }
+
+    public void testClientsBeingOpenedAreNotOpenedAgain() throws Exception {
+        CountDownLatch connecting = new CountDownLatch(1);
+        mConnector.blockConnections(connecting);
+        processJdwpData("12");
+        processJdwpData("12");
+        connecting.countDown();
+
+        assertNotifiedOffMonitorThread();
+        assertEquals(Sets.newHashSet(12), getClientPids());
+
+        // Clients which are already open aren't opened again either.
+        processJdwpData("12");
+        processJdwpData("");
+        assertNotifiedOffMonitorThread();
+        assertEquals(1, mConnector.getConnectionCount(12));
+    }
+
+    public void testCloseClients() throws Exception {
+        processJdwpData("12\n34");
+        assertNotifiedOffMonitorThread();
+
+        processJdwpData("34");
+
+        assertNotifiedOffMonitorThread();
+        assertEquals(Sets.newHashSet(34), getClientPids());
+        // The connection of the client which is gone is closed.
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        SocketChannel peer = mConnector.getPeer(12);
+        while (peer.read(buffer) >= 0) {
+            buffer.clear();
+        }
+    }
     public void testDeviceListMonitor() {
         Map<String, IDevice.DeviceState> map = DeviceMonitor.DeviceListMonitorTask
                 .parseDeviceListResponse("R32C801BL5K\tdevice\n0079864fd1d150fd\tunauthorized\n");
@@ -64,4 +168,89 @@ public class DeviceMonitorTest extends TestCase {
         EasyMock.replay(device);
         return device;
     }
+
+    /** Processes a list of pids on the {@link MonitorThread}, as the jdwp tracking does. */
+    private void processJdwpData(@NonNull final String pids) throws InterruptedException {
+        final CountDownLatch processed = new CountDownLatch(1);
+        mMonitorThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMonitor.processIncomingJdwpData(mDevice, pids);
+                processed.countDown();
+            }
+        });
+        assertTrue(processed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private void assertNotifiedOffMonitorThread() throws InterruptedException {
+        Thread thread = mNotifications.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(thread);
+        assertNotSame(mMonitorThread, thread);
+    }
+
+    @NonNull
+    private Set<Integer> getClientPids() {
+        Set<Integer> pids = Sets.newHashSet();
+        for (Client client : mDevice.getClients()) {
+            pids.add(client.getClientData().getPid());
+        }
+        return pids;
+    }
+
+    /** Connects the clients to sockets on the loopback interface. */
+    private static final class FakeClientConnector implements DeviceMonitor.ClientConnector {
+        private final ServerSocketChannel mServer;
+        private final Map<Integer, AtomicInteger> mConnectionCounts = Maps.newConcurrentMap();
+        private final Map<Integer, SocketChannel> mPeers = Maps.newConcurrentMap();
+        private final List<SocketChannel> mChannels = Lists.newCopyOnWriteArrayList();
+        private volatile CountDownLatch mConnecting = new CountDownLatch(0);
+
+        FakeClientConnector() throws IOException {
+            mServer = ServerSocketChannel.open();
+            mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        }
+
+        void blockConnections(@NonNull CountDownLatch connecting) {
+            mConnecting = connecting;
+        }
+
+        int getConnectionCount(int pid) {
+            AtomicInteger count = mConnectionCounts.get(pid);
+            return count == null ? 0 : count.get();
+        }
+
+        @NonNull
+        SocketChannel getPeer(int pid) {
+            return mPeers.get(pid);
+        }
+
+        @NonNull
+        @Override
+        public synchronized SocketChannel connect(@NonNull Device device, int pid)
+                throws IOException {
+            try {
+                mConnecting.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (!mConnectionCounts.containsKey(pid)) {
+                mConnectionCounts.put(pid, new AtomicInteger());
+            }
+            mConnectionCounts.get(pid).incrementAndGet();
+
+            SocketChannel channel = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+            SocketChannel peer = mServer.accept();
+            mChannels.add(channel);
+            mChannels.add(peer);
+            mPeers.put(pid, peer);
+            return channel;
+        }
+
+        void close() throws IOException {
+            for (SocketChannel channel : mChannels) {
+                channel.close();
+            }
+            mServer.close();
+        }
+    }
 }
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server implementing the device selection and sync requests of adb, storing the pushed
+ * files in memory. Directories are the parents of the stored files.
+ */
+final class FakeSyncServer extends Thread {
+    /** A file that exists, but can't be pulled. */
+    static final String UNREADABLE_FILE = "/data/unreadable"; //$NON-NLS-1$
+
+    private final ServerSocket mServerSocket;
+    final Map<String, byte[]> mFiles = new ConcurrentHashMap<String, byte[]>();
+    /** The modification times of the directories, in seconds, 0 by default. */
+    final Map<String, Integer> mDirectoryTimes = new ConcurrentHashMap<String, Integer>();
+    final AtomicInteger mConnections = new AtomicInteger();
+    /** The directories listed with LIST requests. */
+    final List<String> mListedDirectories = new CopyOnWriteArrayList<String>();
+
+    FakeSyncServer() throws IOException {
+        mServerSocket = new ServerSocket(0);
+        setDaemon(true);
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress("127.0.0.1", mServerSocket.getLocalPort()); //$NON-NLS-1$
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = mServerSocket.accept();
+                mConnections.incrementAndGet();
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // the client went away.
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // ignore
+                            }
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // the server is closed.
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        Assert.assertEquals("host:transport:serial", readRequest(in)); //$NON-NLS-1$
+        out.write("OKAY".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+        Assert.assertEquals("sync:", readRequest(in)); //$NON-NLS-1$
+        out.write("OKAY".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+
+        byte[] id = new byte[4];
+        while (true) {
+            try {
+                in.readFully(id);
+            } catch (EOFException e) {
+                return;
+            }
+            String command = new String(id, Charsets.US_ASCII);
+            byte[] path = new byte[readInt(in)];
+            in.readFully(path);
+            if (command.equals("SEND")) { //$NON-NLS-1$
+                String name = new String(path, Charsets.UTF_8);
+                name = name.substring(0, name.lastIndexOf(','));
+                receiveFile(in, out, name.replaceAll("/+", "/")); //$NON-NLS-1$
+            } else if (command.equals("STAT")) { //$NON-NLS-1$
+                statFile(out, new String(path, Charsets.UTF_8));
+            } else if (command.equals("RECV")) { //$NON-NLS-1$
+                sendFile(out, new String(path, Charsets.UTF_8));
+            } else if (command.equals("LIST")) { //$NON-NLS-1$
+                listDirectory(out, new String(path, Charsets.UTF_8));
+            } else {
+                Assert.fail("Unexpected sync request " + command);
+            }
+        }
+    }
+
+    private void receiveFile(DataInputStream in, OutputStream out, String path)
+            throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] id = new byte[4];
+        while (true) {
+            in.readFully(id);
+            int length = readInt(in);
+            String command = new String(id, Charsets.US_ASCII);
+            if (command.equals("DONE")) { //$NON-NLS-1$
+                break;
+            }
+            Assert.assertEquals("DATA", command); //$NON-NLS-1$
+            Assert.assertTrue(length <= 64 * 1024);
+            byte[] data = new byte[length];
+            in.readFully(data);
+            content.write(data);
+        }
+        mFiles.put(path, content.toByteArray());
+        out.write("OKAY".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+        writeInt(out, 0);
+    }
+
+    private void statFile(OutputStream out, String path) throws IOException {
+        path = trimSeparator(path);
+        byte[] content = mFiles.get(path);
+        out.write("STAT".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+        if (content != null || path.equals(UNREADABLE_FILE)) {
+            writeInt(out, 0100644);
+            writeInt(out, content != null ? content.length : 0);
+            writeInt(out, 0);
+        } else if (!getChildren(path).isEmpty()) {
+            writeInt(out, 040755);
+            writeInt(out, 4096);
+            writeInt(out, getDirectoryTime(path));
+        } else {
+            writeInt(out, 0);
+            writeInt(out, 0);
+            writeInt(out, 0);
+        }
+    }
+
+    private void listDirectory(OutputStream out, String path) throws IOException {
+        path = trimSeparator(path);
+        mListedDirectories.add(path);
+        writeEntry(out, ".", 040755, 4096, getDirectoryTime(path)); //$NON-NLS-1$
+        writeEntry(out, "..", 040755, 4096, 0); //$NON-NLS-1$
+        for (Map.Entry<String, Boolean> child : getChildren(path).entrySet()) {
+            String childPath = getChildPath(path, child.getKey());
+            if (child.getValue()) {
+                writeEntry(out, child.getKey(), 040755, 4096, getDirectoryTime(childPath));
+            } else {
+                writeEntry(out, child.getKey(), 0100644, mFiles.get(childPath).length, 0);
+            }
+        }
+        out.write("DONE".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+        for (int i = 0; i < 4; i++) {
+            writeInt(out, 0);
+        }
+    }
+
+    private static void writeEntry(OutputStream out, String name, int mode, int size, int time)
+            throws IOException {
+        byte[] nameContent = name.getBytes(Charsets.UTF_8);
+        out.write("DENT".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+        writeInt(out, mode);
+        writeInt(out, size);
+        writeInt(out, time);
+        writeInt(out, nameContent.length);
+        out.write(nameContent);
+    }
+
+    /**
+     * Returns the names of the children of a directory, mapped to whether they are directories.
+     */
+    private Map<String, Boolean> getChildren(String path) {
+        String prefix = path.endsWith("/") ? path : path + "/"; //$NON-NLS-1$ //$NON-NLS-2$
+        Map<String, Boolean> children = new TreeMap<String, Boolean>();
+        for (String file : mFiles.keySet()) {
+            if (file.startsWith(prefix)) {
+                String name = file.substring(prefix.length());
+                int separator = name.indexOf('/');
+                if (separator >= 0) {
+                    children.put(name.substring(0, separator), true);
+                } else if (!children.containsKey(name)) {
+                    children.put(name, false);
+                }
+            }
+        }
+        return children;
+    }
+
+    private static String getChildPath(String path, String name) {
+        return path.equals("/") ? "/" + name : path + "/" + name; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private int getDirectoryTime(String path) {
+        Integer time = mDirectoryTimes.get(path);
+        return time != null ? time : 0;
+    }
+
+    private static String trimSeparator(String path) {
+        while (path.length() > 1 && path.endsWith("/")) { //$NON-NLS-1$
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private void sendFile(OutputStream out, String path) throws IOException {
+        byte[] content = mFiles.get(path);
+        if (content == null) {
+            byte[] message = "Permission denied".getBytes(Charsets.UTF_8); //$NON-NLS-1$
+            out.write("FAIL".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+            writeInt(out, message.length);
+            out.write(message);
+            return;
+        }
+        for (int offset = 0; offset < content.length; offset += 64 * 1024) {
+            int length = Math.min(64 * 1024, content.length - offset);
+            out.write("DATA".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+            writeInt(out, length);
+            out.write(content, offset, length);
+        }
+        out.write("DONE".getBytes(Charsets.US_ASCII)); //$NON-NLS-1$
+        writeInt(out, 0);
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        byte[] request = new byte[Integer.parseInt(new String(length, Charsets.US_ASCII), 16)];
+        in.readFully(request);
+        return new String(request, Charsets.US_ASCII);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= b << (8 * i);
+        }
+        return value;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.write((value >> (8 * i)) & 0xff);
+        }
+    }
+}
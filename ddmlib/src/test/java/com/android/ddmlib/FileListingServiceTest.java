@@ -15,6 +15,12 @@
  */
 package com.android.ddmlib;
 
+import com.android.ddmlib.FileListingService.FileEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Matcher;
 import junit.framework.TestCase;
 
@@ -78,4 +84,132 @@ public class FileListingServiceTest extends TestCase {
                 "drwxrwx--x 12 root sdcard_r 4096 2015-07-20 23:01 /sdcard/");
         assertTrue(m.matches());
     }
+
+    public void testSyncListing() throws Exception {
+        FakeSyncServer server = startServer();
+        try {
+            server.mFiles.put("/data/app/app.apk", new byte[100]);
+            server.mFiles.put("/data/local/tmp/file", new byte[10]);
+            server.mFiles.put("/sdcard/file", new byte[0]);
+            FileListingService service = createService(server);
+
+            FileEntry[] children = service.getChildrenSync(service.getRoot());
+            assertEquals(Arrays.asList("data", "sdcard"), getNames(children));
+            assertEquals(FileListingService.TYPE_DIRECTORY, children[0].getType());
+            assertEquals("drwxr-xr-x", children[0].getPermissions());
+
+            FileEntry data = children[0];
+            assertEquals(Arrays.asList("app", "local"),
+                    getNames(service.getChildren(data, true, null)));
+            FileEntry apk = service.getChildren(data.findChild("app"), true, null)[0];
+            assertEquals("app.apk", apk.getName());
+            assertEquals(FileListingService.TYPE_FILE, apk.getType());
+            assertEquals("-rw-r--r--", apk.getPermissions());
+            assertEquals(100, apk.getSizeValue());
+            assertTrue(apk.isApplicationPackage());
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testIncrementalRefresh() throws Exception {
+        FakeSyncServer server = startServer();
+        try {
+            server.mFiles.put("/data/app/app.apk", new byte[100]);
+            FileListingService service = createService(server);
+            FileEntry data = service.getChildrenSync(service.getRoot())[0];
+            service.getChildren(data, true, null);
+            FileEntry app = data.findChild("app");
+            server.mListedDirectories.clear();
+
+            // The cache expired, but the directory didn't change.
+            data.fetchTime = 0;
+            assertEquals(Collections.singletonList("app"),
+                    getNames(service.getChildren(data, true, null)));
+            assertTrue(server.mListedDirectories.isEmpty());
+
+            server.mFiles.put("/data/local/file", new byte[1]);
+            server.mDirectoryTimes.put("/data", 1);
+            data.fetchTime = 0;
+            assertEquals(Arrays.asList("app", "local"),
+                    getNames(service.getChildren(data, true, null)));
+            assertEquals(Collections.singletonList("/data"), server.mListedDirectories);
+            // Existing entries are kept.
+            assertSame(app, data.findChild("app"));
+
+            // Without the cache, the directory is always listed.
+            service.getChildren(data, false, null);
+            assertEquals(Arrays.asList("/data", "/data"), server.mListedDirectories);
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testRecentlyModifiedDirectory() throws Exception {
+        FakeSyncServer server = startServer();
+        try {
+            server.mFiles.put("/data/file", new byte[1]);
+            server.mDirectoryTimes.put("/data", (int) (System.currentTimeMillis() / 1000));
+            FileListingService service = createService(server);
+            FileEntry data = service.getChildrenSync(service.getRoot())[0];
+            service.getChildren(data, true, null);
+            server.mListedDirectories.clear();
+
+            // The directory may still change within the second it was modified in.
+            data.fetchTime = 0;
+            service.getChildren(data, true, null);
+            assertEquals(Collections.singletonList("/data"), server.mListedDirectories);
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testRefreshTree() throws Exception {
+        FakeSyncServer server = startServer();
+        try {
+            for (int i = 0; i < 10; i++) {
+                server.mFiles.put("/dir" + i + "/sub/file", new byte[i]);
+            }
+            FileListingService service = createService(server);
+            FileEntry root = service.getRoot();
+
+            service.refreshTree(root, 2, 4);
+            assertEquals(21, server.mListedDirectories.size());
+            assertTrue(server.mConnections.get() <= 4);
+            for (int i = 0; i < 10; i++) {
+                FileEntry file =
+                        root.findChild("dir" + i).findChild("sub").getCachedChildren()[0];
+                assertEquals(i, file.getSizeValue());
+            }
+
+            // Only the directory that changed is listed again.
+            server.mListedDirectories.clear();
+            server.mFiles.put("/dir5/sub/other", new byte[1]);
+            server.mDirectoryTimes.put("/dir5/sub", 1);
+            service.refreshTree(root, 2, 4);
+            assertEquals(Collections.singletonList("/dir5/sub"), server.mListedDirectories);
+            assertEquals(2, root.findChild("dir5").findChild("sub").getCachedChildren().length);
+        } finally {
+            server.close();
+        }
+    }
+
+    private static FakeSyncServer startServer() throws Exception {
+        FakeSyncServer server = new FakeSyncServer();
+        server.start();
+        return server;
+    }
+
+    private static FileListingService createService(FakeSyncServer server) {
+        Device device = new Device(null, "serial", IDevice.DeviceState.ONLINE); //$NON-NLS-1$
+        return new FileListingService(device, server.getAddress());
+    }
+
+    private static List<String> getNames(FileEntry[] entries) {
+        List<String> names = new ArrayList<String>();
+        for (FileEntry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
 }
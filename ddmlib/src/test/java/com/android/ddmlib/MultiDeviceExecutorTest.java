@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.MultiDeviceExecutor.IDeviceOperation;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MultiDeviceExecutorTest extends TestCase {
+    public void testBoundedConcurrency() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<IDevice> devices = createDevices(20);
+
+        Map<IDevice, ListenableFuture<String>> futures = new MultiDeviceExecutor(4).submit(
+                devices, new IDeviceOperation<String>() {
+                    @Override
+                    public String run(@NonNull IDevice device) throws Exception {
+                        int count = running.incrementAndGet();
+                        synchronized (maxRunning) {
+                            maxRunning.set(Math.max(maxRunning.get(), count));
+                        }
+                        Thread.sleep(20);
+                        running.decrementAndGet();
+                        return device.getSerialNumber();
+                    }
+                }, 0, TimeUnit.SECONDS);
+
+        assertEquals(devices, new ArrayList<IDevice>(futures.keySet()));
+        List<String> results = Futures.allAsList(futures.values()).get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < devices.size(); i++) {
+            assertEquals(devices.get(i).getSerialNumber(), results.get(i));
+        }
+        assertEquals(4, maxRunning.get());
+    }
+
+    public void testTimeoutAndFailure() throws Exception {
+        List<IDevice> devices = createDevices(3);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        Map<IDevice, ListenableFuture<String>> futures = new MultiDeviceExecutor(3).submit(
+                devices, new IDeviceOperation<String>() {
+                    @Override
+                    public String run(@NonNull IDevice device) throws Exception {
+                        if (device.getSerialNumber().equals("device0")) {
+                            try {
+                                Thread.sleep(10000);
+                            } catch (InterruptedException e) {
+                                interrupted.countDown();
+                            }
+                            return "late";
+                        } else if (device.getSerialNumber().equals("device1")) {
+                            throw new IOException("failed");
+                        }
+                        return "done";
+                    }
+                }, 100, TimeUnit.MILLISECONDS);
+
+        // Devices don't wait for each other.
+        assertEquals("done", futures.get(devices.get(2)).get(5, TimeUnit.SECONDS));
+        try {
+            futures.get(devices.get(1)).get(5, TimeUnit.SECONDS);
+            fail("Expected the operation to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            futures.get(devices.get(0)).get(5, TimeUnit.SECONDS);
+            fail("Expected the operation to time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testCancel() throws Exception {
+        List<IDevice> devices = createDevices(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicInteger runCount = new AtomicInteger();
+
+        Map<IDevice, ListenableFuture<Void>> futures = new MultiDeviceExecutor(1).submit(
+                devices, new IDeviceOperation<Void>() {
+                    @Override
+                    public Void run(@NonNull IDevice device) throws Exception {
+                        runCount.incrementAndGet();
+                        started.countDown();
+                        try {
+                            Thread.sleep(10000);
+                        } catch (InterruptedException e) {
+                            interrupted.countDown();
+                        }
+                        return null;
+                    }
+                }, 0, TimeUnit.SECONDS);
+
+        // The second device is cancelled while waiting for the first one.
+        futures.get(devices.get(1)).cancel(true);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        futures.get(devices.get(0)).cancel(true);
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, runCount.get());
+    }
+
+    public void testShellCommand() throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        device.executeShellCommand(EasyMock.eq("getprop"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.eq(5L),
+                EasyMock.eq(TimeUnit.SECONDS));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                byte[] output = "[ro.serialno]: [serial]\n".getBytes(Charsets.UTF_8);
+                receiver.addOutput(output, 0, output.length);
+                receiver.flush();
+                return null;
+            }
+        });
+        EasyMock.replay(device);
+
+        IDeviceOperation<String> operation =
+                MultiDeviceExecutor.shellCommand("getprop", 5, TimeUnit.SECONDS);
+        assertEquals("[ro.serialno]: [serial]\n", operation.run(device));
+        EasyMock.verify(device);
+    }
+
+    private static List<IDevice> createDevices(int count) {
+        List<IDevice> devices = new ArrayList<IDevice>();
+        for (int i = 0; i < count; i++) {
+            IDevice device = EasyMock.createMock(IDevice.class);
+            EasyMock.expect(device.getSerialNumber()).andStubReturn("device" + i);
+            EasyMock.replay(device);
+            devices.add(device);
+        }
+        return devices;
+    }
+}
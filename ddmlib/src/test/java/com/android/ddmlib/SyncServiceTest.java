@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.SyncException.SyncError;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link SyncService} against a fake adb server implementing the sync protocol.
+ */
+public class SyncServiceTest extends TestCase {
+    private FakeSyncServer mServer;
+    private Device mDevice;
+    private File mTempDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeSyncServer();
+        mServer.start();
+        mDevice = new Device(null, "serial", IDevice.DeviceState.ONLINE); //$NON-NLS-1$
+        mTempDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        deleteRecursively(mTempDir);
+        super.tearDown();
+    }
+
+    public void testPushOverSeveralConnections() throws Exception {
+        Random random = new Random(0);
+        String[] paths = new String[5];
+        byte[][] contents = new byte[paths.length][];
+        for (int i = 0; i < paths.length; i++) {
+            // Sizes around multiples of the DATA packet size.
+            contents[i] = new byte[i * 100000 + i - 1 + (i == 0 ? 1 : 0)];
+            random.nextBytes(contents[i]);
+            File file = new File(mTempDir, "file" + i);
+            Files.write(contents[i], file);
+            paths[i] = file.getPath();
+        }
+
+        SyncService sync = openSync();
+        try {
+            CountingMonitor monitor = new CountingMonitor();
+            sync.push(paths, new FileListingService(mDevice).getRoot(), monitor, 3);
+
+            for (int i = 0; i < paths.length; i++) {
+                assertTrue(Arrays.equals(contents[i], mServer.mFiles.get("/file" + i)));
+            }
+            assertEquals(paths.length, monitor.mSubTasks.get());
+            assertEquals(totalLength(contents), monitor.mWork.get());
+            assertTrue(monitor.mThroughputCount.get() > 0);
+            assertTrue(monitor.mStopped);
+        } finally {
+            sync.close();
+        }
+        // Extra connections are opened for the transfer, and closed afterward.
+        assertEquals(3, mServer.mConnections.get());
+    }
+
+    public void testPullFile() throws Exception {
+        byte[] content = new byte[300000];
+        new Random(1).nextBytes(content);
+        mServer.mFiles.put("/data/file", content);
+
+        SyncService sync = openSync();
+        try {
+            File local = new File(mTempDir, "pulled");
+            CountingMonitor monitor = new CountingMonitor();
+            sync.pullFile("/data/file", local.getPath(), monitor);
+            assertTrue(Arrays.equals(content, Files.toByteArray(local)));
+            assertEquals(content.length, monitor.mWork.get());
+            assertEquals(1, monitor.mThroughputCount.get());
+
+            // The connection is still usable after a transfer.
+            sync.pullFile("/data/file", local.getPath(), monitor);
+            assertTrue(Arrays.equals(content, Files.toByteArray(local)));
+        } finally {
+            sync.close();
+        }
+    }
+
+    public void testPullUnreadableFile() throws Exception {
+        SyncService sync = openSync();
+        try {
+            File local = new File(mTempDir, "unreadable");
+            try {
+                sync.pullFile(FakeSyncServer.UNREADABLE_FILE, local.getPath(),
+                        SyncService.getNullProgressMonitor());
+                fail("Pulled an unreadable file");
+            } catch (SyncException e) {
+                assertEquals(SyncError.TRANSFER_PROTOCOL_ERROR, e.getErrorCode());
+                assertEquals("Permission denied", e.getMessage());
+            }
+            // The local file is not created when the transfer fails.
+            assertFalse(local.exists());
+        } finally {
+            sync.close();
+        }
+    }
+
+    private SyncService openSync() throws Exception {
+        SyncService sync = new SyncService(mServer.getAddress(), mDevice);
+        assertTrue(sync.openSync());
+        return sync;
+    }
+
+    private static long totalLength(byte[][] contents) {
+        long length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+        return length;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class CountingMonitor implements SyncService.ISyncThroughputMonitor {
+        private final AtomicInteger mSubTasks = new AtomicInteger();
+        private final AtomicInteger mWork = new AtomicInteger();
+        private final AtomicInteger mThroughputCount = new AtomicInteger();
+        private volatile boolean mStopped;
+
+        @Override
+        public void start(int totalWork) {
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public void startSubTask(String name) {
+            mSubTasks.incrementAndGet();
+        }
+
+        @Override
+        public void advance(int work) {
+            mWork.addAndGet(work);
+        }
+
+        @Override
+        public void throughput(long bytesPerSecond) {
+            mThroughputCount.incrementAndGet();
+        }
+    }
+}
@@ -15,7 +15,10 @@
  */
 package com.android.ddmlib.allocations;
 
+import com.android.annotations.NonNull;
+import com.android.ddmlib.AllocationFrameTable;
 import com.android.ddmlib.AllocationInfo;
+import com.android.ddmlib.AllocationSiteTree;
 import com.android.ddmlib.AllocationsParser;
 import com.google.common.base.Charsets;
 import junit.framework.TestCase;
@@ -102,6 +105,75 @@ public class AllocationsParserTest extends TestCase {
     checkStackFrame("path.Blue", "watchCatVideos", "SomewhatBlue.java", 16, elems3[2]);
   }
 
+  public void testInternedFrames() throws IOException {
+    ByteBuffer data = putAllocationInfo(new String[]{"path.Foo", "path.Bar"}, new String[]{"foo", "bar"},
+            new String[]{"Foo.java"}, new int[][]{{8, 1, 0, 2}, {16, 1, 1, 2}, {24, 1, 1, 1}},
+            new short[][][]{{{0, 0, 0, 10}, {1, 1, 0, 20}}, {{0, 0, 0, 10}, {1, 1, 0, 20}}, {{0, 0, 0, 11}}});
+    AllocationInfo[] info = AllocationsParser.parse(data);
+    assertSame(info[0].getStackTrace()[0], info[1].getStackTrace()[0]);
+    assertSame(info[0].getStackTrace()[1], info[1].getStackTrace()[1]);
+    assertNotSame(info[0].getStackTrace()[0], info[2].getStackTrace()[0]);
+
+    // A frame table shared by several messages has one entry per distinct frame.
+    AllocationFrameTable frameTable = new AllocationFrameTable();
+    final int[] count = new int[1];
+    AllocationsParser.IAllocationVisitor visitor = new AllocationsParser.IAllocationVisitor() {
+      @Override
+      public void visitAllocation(int allocNumber, @NonNull String allocatedClass, int size, short threadId,
+                                  @NonNull int[] frameIds, int depth) {
+        count[0]++;
+      }
+    };
+    data.rewind();
+    AllocationsParser.parse(data, frameTable, visitor);
+    data.rewind();
+    AllocationsParser.parse(data, frameTable, visitor);
+    assertEquals(6, count[0]);
+    assertEquals(3, frameTable.size());
+    checkStackFrame("path.Foo", "foo", "Foo.java", 10, frameTable.getFrame(0));
+  }
+
+  public void testAllocationSites() throws IOException {
+    // main -> run -> alloc, main -> run -> alloc, main -> other.
+    ByteBuffer data = putAllocationInfo(new String[]{"path.Main", "path.Foo"}, new String[]{"main", "run", "alloc", "other"},
+            new String[]{"Main.java"}, new int[][]{{8, 1, 1, 3}, {16, 1, 1, 3}, {32, 2, 0, 2}},
+            new short[][][]{{{1, 2, 0, 3}, {1, 1, 0, 2}, {0, 0, 0, 1}},
+                            {{1, 2, 0, 3}, {1, 1, 0, 2}, {0, 0, 0, 1}},
+                            {{0, 3, 0, 4}, {0, 0, 0, 1}}});
+    AllocationSiteTree tree = new AllocationSiteTree();
+    AllocationsParser.parse(data, tree.getFrameTable(), tree);
+
+    assertEquals(5, tree.getNodeCount());
+    assertEquals(3, tree.getCount(AllocationSiteTree.ROOT));
+    assertEquals(56, tree.getSize(AllocationSiteTree.ROOT));
+    assertNull(tree.getFrame(AllocationSiteTree.ROOT));
+
+    int main = tree.getFirstChild(AllocationSiteTree.ROOT);
+    assertEquals(AllocationSiteTree.NO_NODE, tree.getNextSibling(main));
+    checkStackFrame("path.Main", "main", "Main.java", 1, tree.getFrame(main));
+    assertEquals(3, tree.getCount(main));
+    assertEquals(56, tree.getSize(main));
+
+    int run = -1, other = -1;
+    for (int child = tree.getFirstChild(main); child != AllocationSiteTree.NO_NODE; child = tree.getNextSibling(child)) {
+      if (tree.getFrame(child).getMethodName().equals("run")) {
+        run = child;
+      } else {
+        other = child;
+      }
+    }
+    assertEquals(2, tree.getCount(run));
+    assertEquals(24, tree.getSize(run));
+    assertEquals(1, tree.getCount(other));
+    assertEquals(32, tree.getSize(other));
+    assertEquals(main, tree.getParent(run));
+
+    int alloc = tree.getChild(run, tree.getFrameId(tree.getFirstChild(run)));
+    checkStackFrame("path.Foo", "alloc", "Main.java", 3, tree.getFrame(alloc));
+    assertEquals(2, tree.getCount(alloc));
+    assertEquals(AllocationSiteTree.NO_NODE, tree.getFirstChild(alloc));
+  }
+
   private static void checkEntry(int order, String className, int size, int thread, AllocationInfo alloc) {
     assertEquals(order, alloc.getAllocNumber());
     assertEquals(className, alloc.getAllocatedClass());
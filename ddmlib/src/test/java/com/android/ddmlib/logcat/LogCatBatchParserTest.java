@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Unit tests for {@link LogCatBatchParser}, checking it against {@link LogCatMessageParser}.
+ */
+public final class LogCatBatchParserTest extends TestCase {
+    private static final String[] LINES = new String[] {
+            "line before any header",                         //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:0x1ef D/dtag     ]",  //$NON-NLS-1$
+            "debug message",                                  //$NON-NLS-1$
+            "",                                               //$NON-NLS-1$
+            "second line",                                    //$NON-NLS-1$
+            "[ 08-11 19:11:07.132   495:  234 E/etag     ]",  //$NON-NLS-1$
+            "error message",                                  //$NON-NLS-1$
+            "[ 08-11 19:11:07.1324567   495:0x1ef F/wtf tag ]", //$NON-NLS-1$
+            "wtf message",                                    //$NON-NLS-1$
+            "[ 12-31 23:59:59.5 :012 A/a ]",                  //$NON-NLS-1$
+            "no pid, octal tid",                              //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540:x21c I/itag     ]",   //$NON-NLS-1$
+            "invalid tid",                                    //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540:0x21c  I/itag     ]", //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540:0x21c X/itag     ]",  //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540:0x21c I/itag]",       //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540:0x21c I/     ]",      //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540 0x21c I/itag     ]",  //$NON-NLS-1$
+            "[ 08-11 21:15:35.   540:0x21c I/itag     ]",     //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540:0x21c I/itag     ] ", //$NON-NLS-1$
+            "[ 08-11 21:15:35.754   540:0x21c V/caf\u00e9 ]",  //$NON-NLS-1$
+            "caf\u00e9 \u65e5\u672c",                        //$NON-NLS-1$
+    };
+
+    private IDevice mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mDevice.getClientName(495)).andStubReturn("com.example.name");
+        EasyMock.expect(mDevice.getClientName(EasyMock.anyInt())).andStubReturn("");
+        EasyMock.replay(mDevice);
+    }
+
+    public void testSameAsRegexParser() {
+        List<LogCatMessage> expected = new LogCatMessageParser().processLogLines(LINES, mDevice);
+
+        LogCatBatchParser parser = new LogCatBatchParser(mDevice);
+        LogCatMessageBatch batch = new LogCatMessageBatch(1);
+        for (String line : LINES) {
+            byte[] bytes = line.getBytes(Charsets.UTF_8);
+            parser.processLine(bytes, 0, bytes.length, batch);
+        }
+
+        List<LogCatMessage> messages = batch.toMessages();
+        assertEquals(expected.size(), messages.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getLogLevel(), messages.get(i).getLogLevel());
+            assertEquals(expected.get(i).getPid(), messages.get(i).getPid());
+            assertEquals(expected.get(i).getTid(), messages.get(i).getTid());
+            assertEquals(expected.get(i).getAppName(), messages.get(i).getAppName());
+            assertEquals(expected.get(i).getTag(), messages.get(i).getTag());
+            assertEquals(expected.get(i).getTimestamp(), messages.get(i).getTimestamp());
+            assertEquals(expected.get(i).getMessage(), messages.get(i).getMessage());
+        }
+
+        // Lines with the same header share it.
+        assertSame(messages.get(0).getHeader(), messages.get(1).getHeader());
+        assertNotSame(messages.get(1).getHeader(), messages.get(2).getHeader());
+    }
+
+    public void testInternedTags() {
+        LogCatBatchParser parser = new LogCatBatchParser(null);
+        LogCatMessageBatch batch = new LogCatMessageBatch();
+        for (int i = 0; i < 20000; i++) {
+            addLine(parser, batch, "[ 08-11 19:11:07.132   495: 234 D/tag" + (i % 1000) + " ]");
+            addLine(parser, batch, "message");
+        }
+        assertEquals(20000, batch.size());
+        assertEquals("tag234", batch.getTag(1234));
+        assertEquals("?", batch.getAppName(0));
+
+        // Each tag is only decoded once, while the table is below its maximum size.
+        assertSame(batch.getTag(1234), batch.getTag(11234));
+
+        batch.clear();
+        assertEquals(0, batch.size());
+        assertTrue(batch.isEmpty());
+    }
+
+    public void testBinaryEntries() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2016, Calendar.MARCH, 14, 15, 9, 26);
+        calendar.set(Calendar.MILLISECOND, 535);
+        long millis = calendar.getTimeInMillis();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeEntry(stream, 20, 495, 234, millis, 4, "itag", "first\nsecond\n");
+        writeEntry(stream, 24, 540, 0x21c, millis + 3600 * 1000 + 1, 7, "atag", "assert");
+        writeEntry(stream, 28, 540, 0x21c, millis, 1, "dtag", "unknown priority");
+        byte[] data = stream.toByteArray();
+
+        LogCatBatchParser parser = new LogCatBatchParser(mDevice);
+        LogCatMessageBatch batch = new LogCatMessageBatch();
+        for (int offset = 0; offset < data.length; ) {
+            int length = LogCatBatchParser.getBinaryEntryLength(data, offset);
+            parser.processBinaryEntry(data, offset, length, batch);
+            offset += length;
+        }
+
+        assertEquals(4, batch.size());
+        assertEquals("first", batch.getMessage(0));
+        assertEquals("second", batch.getMessage(1));
+        assertEquals(batch.getHeaderId(0), batch.getHeaderId(1));
+        assertEquals(LogLevel.INFO, batch.getLogLevel(0));
+        assertEquals(495, batch.getPid(0));
+        assertEquals(234, batch.getTid(0));
+        assertEquals("com.example.name", batch.getAppName(0));
+        assertEquals("itag", batch.getTag(0));
+        assertEquals("03-14 15:09:26.535", batch.getTimestamp(0).toString());
+
+        assertEquals(LogLevel.ASSERT, batch.getLogLevel(2));
+        assertEquals(0x21c, batch.getTid(2));
+        assertEquals("?", batch.getAppName(2));
+        assertEquals("atag", batch.getTag(2));
+        assertEquals("assert", batch.getMessage(2));
+        assertEquals("03-14 16:09:26.536", batch.getTimestamp(2).toString());
+
+        assertEquals(LogLevel.VERBOSE, batch.getLogLevel(3));
+        assertEquals("03-14 15:09:26.535", batch.getTimestamp(3).toString());
+    }
+
+    public void testPackedTimestamps() {
+        long earlier = LogCatMessageBatch.packTimestamp(1, 31, 23, 59, 59, 999);
+        long later = LogCatMessageBatch.packTimestamp(2, 1, 0, 0, 0, 0);
+        assertTrue(earlier < later);
+        assertEquals(new LogCatTimestamp(1, 31, 23, 59, 59, 999),
+                LogCatMessageBatch.unpackTimestamp(earlier));
+        assertEquals(new LogCatTimestamp(12, 1, 0, 0, 0, 0),
+                LogCatMessageBatch.unpackTimestamp(LogCatMessageBatch.packTimestamp(12, 1, 0, 0,
+                        0, 0)));
+    }
+
+    private static void addLine(LogCatBatchParser parser, LogCatMessageBatch batch,
+            String line) {
+        byte[] bytes = line.getBytes(Charsets.UTF_8);
+        parser.processLine(bytes, 0, bytes.length, batch);
+    }
+
+    static void writeEntry(ByteArrayOutputStream stream, int headerSize, int pid, int tid,
+            long millis, int priority, String tag, String message) {
+        byte[] tagBytes = tag.getBytes(Charsets.UTF_8);
+        byte[] messageBytes = message.getBytes(Charsets.UTF_8);
+        int length = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+        writeShort(stream, length);
+        writeShort(stream, headerSize == 20 ? 0 : headerSize);
+        writeInt(stream, pid);
+        writeInt(stream, tid);
+        writeInt(stream, (int) (millis / 1000));
+        writeInt(stream, (int) (millis % 1000) * 1000000);
+        for (int i = 20; i < headerSize; i++) {
+            stream.write(0);
+        }
+        stream.write(priority);
+        stream.write(tagBytes, 0, tagBytes.length);
+        stream.write(0);
+        stream.write(messageBytes, 0, messageBytes.length);
+        stream.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream stream, int value) {
+        stream.write(value & 0xff);
+        stream.write((value >> 8) & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream stream, int value) {
+        writeShort(stream, value & 0xffff);
+        writeShort(stream, value >>> 16);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IExecEnabledDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.sdklib.AndroidVersion;
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class LogCatReceiverTaskTest extends TestCase {
+    private static final String TEXT_OUTPUT =
+            "[ 08-11 19:11:07.132   495:  234 I/itag ]\n"
+            + "first\n"
+            + "second\n"
+            + "\n"
+            + "[ 08-11 19:11:07.133   540:0x21c A/atag ]\n"
+            + "assert\n"
+            + "\n";
+
+    private List<LogCatMessage> mMessages;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMessages = new ArrayList<LogCatMessage>();
+    }
+
+    public void testTextOutput() throws Exception {
+        IDevice device = createMockDevice(IExecEnabledDevice.class, 19);
+        expectTextOutput(device);
+
+        // Binary output is not used before API level 21.
+        runTask(device, true);
+        checkMessages();
+    }
+
+    public void testTextOutputWithoutExec() throws Exception {
+        IDevice device = createMockDevice(IDevice.class, 23);
+        expectTextOutput(device);
+
+        // Binary output is not used by devices which can't run commands through exec.
+        runTask(device, true);
+        checkMessages();
+    }
+
+    private static void expectTextOutput(IDevice device) throws Exception {
+        device.executeShellCommand(EasyMock.eq("logcat -v long"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(
+                new OutputAnswer(TEXT_OUTPUT.getBytes(Charsets.UTF_8), 5));
+        EasyMock.replay(device);
+    }
+
+    public void testBinaryOutput() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        LogCatBatchParserTest.writeEntry(stream, 24, 495, 234, 0, 4, "itag", "first\nsecond");
+        LogCatBatchParserTest.writeEntry(stream, 24, 540, 0x21c, 1, 7, "atag", "assert");
+        byte[] output = stream.toByteArray();
+
+        // Split the output in every possible way, from single bytes to a single packet.
+        for (int packetSize = 1; packetSize <= output.length; packetSize++) {
+            mMessages.clear();
+            IExecEnabledDevice device = createMockDevice(IExecEnabledDevice.class, 23);
+            device.executeBinaryCommand(EasyMock.eq("logcat -B"),
+                    EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.eq(0L),
+                    EasyMock.<TimeUnit>anyObject());
+            EasyMock.expectLastCall().andAnswer(new OutputAnswer(output, packetSize));
+            EasyMock.replay(device);
+
+            runTask(device, true);
+            checkMessages();
+        }
+    }
+
+    private void checkMessages() {
+        // The last message is the disconnection.
+        assertEquals(4, mMessages.size());
+        assertEquals("first", mMessages.get(0).getMessage());
+        assertEquals("second", mMessages.get(1).getMessage());
+        assertSame(mMessages.get(0).getHeader(), mMessages.get(1).getHeader());
+        assertEquals(LogLevel.INFO, mMessages.get(0).getLogLevel());
+        assertEquals(495, mMessages.get(0).getPid());
+        assertEquals(234, mMessages.get(0).getTid());
+        assertEquals("com.example.name", mMessages.get(0).getAppName());
+        assertEquals("itag", mMessages.get(0).getTag());
+
+        assertEquals("assert", mMessages.get(2).getMessage());
+        assertEquals(LogLevel.ASSERT, mMessages.get(2).getLogLevel());
+        assertEquals(0x21c, mMessages.get(2).getTid());
+        assertEquals("atag", mMessages.get(2).getTag());
+        assertEquals("Device disconnected: 1", mMessages.get(3).getMessage());
+    }
+
+    private void runTask(IDevice device, boolean binary) {
+        LogCatReceiverTask task = new LogCatReceiverTask(device, binary);
+        task.addLogCatListener(new LogCatListener() {
+            @Override
+            public void log(List<LogCatMessage> msgList) {
+                mMessages.addAll(msgList);
+            }
+        });
+        task.run();
+        EasyMock.verify(device);
+    }
+
+    private static <T extends IDevice> T createMockDevice(Class<T> type, int apiLevel) {
+        T device = EasyMock.createMock(type);
+        EasyMock.expect(device.isOnline()).andStubReturn(true);
+        EasyMock.expect(device.getVersion()).andStubReturn(new AndroidVersion(apiLevel, null));
+        EasyMock.expect(device.getClientName(495)).andStubReturn("com.example.name");
+        EasyMock.expect(device.getClientName(EasyMock.anyInt())).andStubReturn("");
+        return device;
+    }
+
+    /** Sends the output to the receiver of the command in packets of the given size. */
+    private static final class OutputAnswer implements IAnswer<Object> {
+        private final byte[] mOutput;
+        private final int mPacketSize;
+
+        public OutputAnswer(byte[] output, int packetSize) {
+            mOutput = output;
+            mPacketSize = packetSize;
+        }
+
+        @Override
+        public Object answer() throws Throwable {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            for (int offset = 0; offset < mOutput.length; offset += mPacketSize) {
+                receiver.addOutput(mOutput, offset,
+                        Math.min(mPacketSize, mOutput.length - offset));
+            }
+            receiver.flush();
+            return null;
+        }
+    }
+}
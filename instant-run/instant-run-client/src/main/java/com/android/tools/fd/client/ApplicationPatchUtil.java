@@ -16,13 +16,22 @@
 
 package com.android.tools.fd.client;
 
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_ENCODING_DEFLATE;
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_ENCODING_DELTA;
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_ENCODING_RAW;
+
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.tools.fd.runtime.ApplicationPatch;
+import com.android.tools.fd.runtime.BinaryDelta;
+import com.google.common.collect.ImmutableMap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 /**
  * Application patch methods only needed by the client.
@@ -34,22 +43,76 @@ public class ApplicationPatchUtil {
             @Nullable List<ApplicationPatch> changes,
             @NonNull UpdateMode updateMode)
             throws IOException {
+        write(output, changes, ImmutableMap.<String, byte[]>of(), updateMode);
+    }
+
+    /**
+     * Writes the changes, each of them deflated, or as a delta against the contents of the file
+     * the app has at its path when given, whichever is smaller.
+     *
+     * @param bases the contents of the files the app has, by patch path
+     */
+    public static void write(
+            @NonNull DataOutputStream output,
+            @Nullable List<ApplicationPatch> changes,
+            @NonNull Map<String, byte[]> bases,
+            @NonNull UpdateMode updateMode)
+            throws IOException {
         if (changes == null) {
             output.writeInt(0);
         } else {
             output.writeInt(changes.size());
             for (ApplicationPatch change : changes) {
-                write(output, change);
+                write(output, change, bases.get(change.path));
             }
         }
         output.writeInt(updateMode.getId());
     }
 
-    private static void write(@NonNull DataOutputStream output, @NonNull ApplicationPatch change)
-            throws IOException {
+    private static void write(@NonNull DataOutputStream output, @NonNull ApplicationPatch change,
+            @Nullable byte[] base) throws IOException {
         output.writeUTF(change.path);
         byte[] bytes = change.data;
-        output.writeInt(bytes.length);
-        output.write(bytes);
+        byte[] deflated = deflate(bytes);
+        if (base != null) {
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            BinaryDelta.write(new DataOutputStream(delta), base, bytes);
+            byte[] deflatedDelta = deflate(delta.toByteArray());
+            if (deflatedDelta.length < deflated.length) {
+                output.writeByte(PATCH_ENCODING_DELTA);
+                output.writeInt(delta.size());
+                output.writeInt(deflatedDelta.length);
+                output.write(deflatedDelta);
+                return;
+            }
+        }
+        if (deflated.length < bytes.length) {
+            output.writeByte(PATCH_ENCODING_DEFLATE);
+            output.writeInt(bytes.length);
+            output.writeInt(deflated.length);
+            output.write(deflated);
+        } else {
+            output.writeByte(PATCH_ENCODING_RAW);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    @NonNull
+    private static byte[] deflate(@NonNull byte[] bytes) {
+        // Favor speed, as most of resources.ap_ is already compressed.
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
     }
 }
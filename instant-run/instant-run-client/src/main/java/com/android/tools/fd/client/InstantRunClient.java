@@ -20,6 +20,7 @@ import static com.android.tools.fd.client.InstantRunArtifactType.DEX;
 import static com.android.tools.fd.client.InstantRunArtifactType.SPLIT;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_EOF;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PATCHES;
+import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PATH_CHECKSUM;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PING;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_RESTART_ACTIVITY;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_SHOW_TOAST;
@@ -45,7 +46,9 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
 import java.io.DataInputStream;
@@ -56,7 +59,11 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class InstantRunClient {
@@ -93,6 +100,29 @@ public class InstantRunClient {
     private final long mToken;
     private final int mLocalPort;
 
+    /**
+     * The connection to the app, kept open between operations so that each of them doesn't
+     * set up a port forward and a connection again, or null.
+     */
+    @Nullable
+    private Session mSession;
+
+    /**
+     * The most bytes of pushed files kept to compute deltas against; past it, the files pushed
+     * the longest ago are forgotten, and their next versions are pushed in full.
+     */
+    private static final long MAX_PUSHED_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * The contents of the files last pushed to the app which it keeps, by patch path, so that
+     * their next versions can be pushed as deltas. Ordered from the least recently pushed.
+     */
+    @NonNull
+    private final Map<String, byte[]> mPushedFiles = new LinkedHashMap<String, byte[]>();
+
+    /** The total size of the files in {@link #mPushedFiles} */
+    private long mPushedBytes;
+
     public InstantRunClient(
             @NonNull String packageName,
             @NonNull UserFeedback userFeedback,
@@ -198,31 +228,32 @@ public class InstantRunClient {
     }
 
     @NonNull
-    private <T> T talkToApp(@NonNull IDevice device,
+    private synchronized <T> T talkToApp(@NonNull IDevice device,
             @NonNull Communicator<T> communicator,
             @NonNull T errorValue) {
-
         try {
-            device.createForward(mLocalPort, mPackageName,
-                                 IDevice.DeviceUnixSocketNamespace.ABSTRACT);
-            try {
-                return talkToAppWithinPortForward(communicator, errorValue, mLocalPort);
-            } catch (UnknownHostException e) {
-                mLogger.warning("%s", Throwables.getStackTraceAsString(e));
-            } catch (SocketException e) {
-                if (e.getMessage().equals("Broken pipe")) {
-                    mUserFeedback.error("No connection to app; cannot sync changes");
+            // The app may have been restarted since the connection was opened, so check that a
+            // reused connection still works before sending anything over it. Operations are
+            // never retried once started, since the app may already have acted on them.
+            Session session = mSession;
+            if (session != null && (session.device != device || !session.ping())) {
+                closeSession();
+                session = null;
+            }
+            if (session == null) {
+                session = openSession(device);
+                if (session == null) {
                     return errorValue;
                 }
+            }
+            return session.communicate(communicator);
+        } catch (UnknownHostException e) {
+            mLogger.warning("%s", Throwables.getStackTraceAsString(e));
+        } catch (SocketException e) {
+            if (e.getMessage().equals("Broken pipe")) {
+                mUserFeedback.error("No connection to app; cannot sync changes");
+            } else {
                 mLogger.warning("%s", Throwables.getStackTraceAsString(e));
-            } catch (IOException e) {
-                mLogger.warning("%s", Throwables.getStackTraceAsString(e));
-            } catch (Throwable e) {
-                mLogger.warning("%s", Throwables.getStackTraceAsString(e));
-                return errorValue;
-            } finally {
-                device.removeForward(mLocalPort, mPackageName,
-                                     IDevice.DeviceUnixSocketNamespace.ABSTRACT);
             }
         } catch (TimeoutException e) {
             mLogger.warning("%s", Throwables.getStackTraceAsString(e));
@@ -232,41 +263,63 @@ public class InstantRunClient {
             mLogger.warning("%s", Throwables.getStackTraceAsString(e));
         }
 
+        closeSession();
         return errorValue;
     }
 
-    private static <T> T talkToAppWithinPortForward(@NonNull Communicator<T> communicator,
-      @NonNull T errorValue, int localPort) throws IOException {
-        Socket socket = new Socket(LOCAL_HOST, localPort);
+    /**
+     * Opens a connection to the app through a port forward, or returns null if the app uses
+     * another version of the protocol.
+     */
+    @Nullable
+    private Session openSession(@NonNull IDevice device)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        // The forward is only needed to connect: the connection outlives it, and removing it
+        // right away leaves the local port free for other clients of the same app.
+        device.createForward(mLocalPort, mPackageName,
+                             IDevice.DeviceUnixSocketNamespace.ABSTRACT);
+        Socket socket = null;
         try {
+            socket = new Socket(LOCAL_HOST, mLocalPort);
             socket.setSoTimeout(8 * 1000); // Allow up to 8 second before timing out
             DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-            try {
-                DataInputStream input = new DataInputStream(socket.getInputStream());
-                try {
-                    output.writeLong(PROTOCOL_IDENTIFIER);
-                    output.writeInt(PROTOCOL_VERSION);
-
-                    int version = input.readInt();
-                    if (version != PROTOCOL_VERSION) {
-                        return errorValue;
-                    }
-
-                    socket.setSoTimeout(communicator.getTimeout());
-                    T value = communicator.communicate(input, output);
-
-                    output.writeInt(MESSAGE_EOF);
-
-                    return value;
-                } finally {
-                    input.close();
-                }
-            } finally {
-                output.close();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.writeLong(PROTOCOL_IDENTIFIER);
+            output.writeInt(PROTOCOL_VERSION);
+
+            int version = input.readInt();
+            if (version == PROTOCOL_VERSION) {
+                mSession = new Session(device, socket, input, output);
+                return mSession;
             }
         } finally {
-            socket.close();
+            if (mSession == null && socket != null) {
+                socket.close();
+            }
+            device.removeForward(mLocalPort, mPackageName,
+                                 IDevice.DeviceUnixSocketNamespace.ABSTRACT);
         }
+        return null;
+    }
+
+    /**
+     * Closes the connection to the app, if any.
+     */
+    private void closeSession() {
+        Session session = mSession;
+        if (session == null) {
+            return;
+        }
+        mSession = null;
+        session.close();
+    }
+
+    /**
+     * Closes the connection kept open to the app between operations, if any. The next
+     * operation opens a new one.
+     */
+    public synchronized void disconnect() {
+        closeSession();
     }
 
     public void showToast(@NonNull IDevice device, @NonNull final String message) {
@@ -420,9 +473,10 @@ public class InstantRunClient {
                 @Override
                 public Boolean communicate(@NonNull DataInputStream input,
                         @NonNull DataOutputStream output) throws IOException {
+                    Map<String, byte[]> bases = getPushedFiles(input, output, changes);
                     output.writeInt(MESSAGE_PATCHES);
                     writeToken(output);
-                    ApplicationPatchUtil.write(output, changes, updateMode1);
+                    ApplicationPatchUtil.write(output, changes, bases, updateMode1);
 
                     // Let the app know whether it should show toasts
                     output.writeBoolean(isShowToastEnabled);
@@ -434,6 +488,12 @@ public class InstantRunClient {
                     // new process come up; to measure that we'll need to work a lot harder.)
                     input.readBoolean();
 
+                    for (ApplicationPatch change : changes) {
+                        if (change.path.equals(Paths.RESOURCE_FILE_NAME)
+                                || change.path.startsWith(Paths.DEX_SLICE_PREFIX)) {
+                            rememberPushedFile(change.path, change.data);
+                        }
+                    }
                     return false;
                 }
 
@@ -576,6 +636,55 @@ public class InstantRunClient {
         output.writeLong(mToken);
     }
 
+    /**
+     * Returns the files last pushed at the paths of the given changes that the app still has,
+     * as checked against the checksums it reports, so that the changes can be sent as deltas.
+     */
+    @NonNull
+    private Map<String, byte[]> getPushedFiles(@NonNull DataInputStream input,
+            @NonNull DataOutputStream output, @NonNull List<ApplicationPatch> changes)
+            throws IOException {
+        List<String> paths = Lists.newArrayList();
+        for (ApplicationPatch change : changes) {
+            if (mPushedFiles.containsKey(change.path)) {
+                // Send all the requests before reading the replies, to only wait once.
+                output.writeInt(MESSAGE_PATH_CHECKSUM);
+                output.writeUTF(change.path);
+                paths.add(change.path);
+            }
+        }
+        Map<String, byte[]> files = Maps.newHashMap();
+        for (String path : paths) {
+            byte[] checksum = new byte[input.readInt()];
+            input.readFully(checksum);
+            byte[] pushed = mPushedFiles.get(path);
+            if (Arrays.equals(checksum, Hashing.md5().hashBytes(pushed).asBytes())) {
+                files.put(path, pushed);
+            } else {
+                forgetPushedFile(path);
+            }
+        }
+        return files;
+    }
+
+    private void rememberPushedFile(@NonNull String path, @NonNull byte[] data) {
+        forgetPushedFile(path);
+        mPushedFiles.put(path, data);
+        mPushedBytes += data.length;
+        Iterator<byte[]> iterator = mPushedFiles.values().iterator();
+        while (mPushedBytes > MAX_PUSHED_BYTES && iterator.hasNext()) {
+            mPushedBytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    private void forgetPushedFile(@NonNull String path) {
+        byte[] data = mPushedFiles.remove(path);
+        if (data != null) {
+            mPushedBytes -= data.length;
+        }
+    }
+
     /**
      * Transfer the file as a slice/sharded dex file. This means
      * that its remote path should be the slice name, in the dex
@@ -662,6 +771,8 @@ public class InstantRunClient {
      * @throws InstantRunPushFailedException if there's a problem
      */
     public void stopApp(@NonNull IDevice device, boolean sendChangeBroadcast) throws InstantRunPushFailedException {
+        // The connection goes away with the app.
+        disconnect();
         try {
             runCommand(device, "am force-stop " + mPackageName);
         } catch (Throwable t) {
@@ -806,4 +917,62 @@ public class InstantRunClient {
 
         mLogger.info(sb.toString());
     }
+
+    /**
+     * A connection to the app, which has gone through the protocol handshake.
+     */
+    private static final class Session {
+        private static final int PING_TIMEOUT_MS = 2000;
+
+        @NonNull
+        final IDevice device;
+
+        @NonNull
+        private final Socket mSocket;
+
+        @NonNull
+        private final DataInputStream mInput;
+
+        @NonNull
+        private final DataOutputStream mOutput;
+
+        Session(@NonNull IDevice device, @NonNull Socket socket, @NonNull DataInputStream input,
+                @NonNull DataOutputStream output) {
+            this.device = device;
+            mSocket = socket;
+            mInput = input;
+            mOutput = output;
+        }
+
+        <T> T communicate(@NonNull Communicator<T> communicator) throws IOException {
+            mSocket.setSoTimeout(communicator.getTimeout());
+            return communicator.communicate(mInput, mOutput);
+        }
+
+        /**
+         * Returns whether the app still answers on this connection. Nothing but the ping has
+         * been sent when this returns false.
+         */
+        boolean ping() {
+            try {
+                mSocket.setSoTimeout(PING_TIMEOUT_MS);
+                mOutput.writeInt(MESSAGE_PING);
+                mInput.readBoolean();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                mOutput.writeInt(MESSAGE_EOF);
+            } catch (IOException ignore) {
+            }
+            try {
+                mSocket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
 }
@@ -29,7 +29,7 @@ public interface ProtocolConstants {
     /**
      * Version of the protocol
      */
-    int PROTOCOL_VERSION = 4;
+    int PROTOCOL_VERSION = 5;
 
     /**
      * Message: sending patches
@@ -91,4 +91,20 @@ public interface ProtocolConstants {
      * Store change in app directory, restart app
      */
     int UPDATE_MODE_COLD_SWAP = 3;
+
+    /**
+     * Patch encoding: the bytes of the file as is
+     */
+    int PATCH_ENCODING_RAW = 0;
+
+    /**
+     * Patch encoding: the bytes of the file, deflated
+     */
+    int PATCH_ENCODING_DEFLATE = 1;
+
+    /**
+     * Patch encoding: a deflated binary delta between the file the app already has at the
+     * patch path, as checked with {@link #MESSAGE_PATH_CHECKSUM}, and the new file
+     */
+    int PATCH_ENCODING_DELTA = 2;
 }
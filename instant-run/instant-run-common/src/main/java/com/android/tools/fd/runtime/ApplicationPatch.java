@@ -16,15 +16,21 @@
 package com.android.tools.fd.runtime;
 
 import static com.android.tools.fd.common.Log.logging;
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_ENCODING_DEFLATE;
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_ENCODING_DELTA;
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_ENCODING_RAW;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 // This class is used in both the Android runtime and in the IDE.
 // Technically we only need the write protocol on the IDE side and the
@@ -47,9 +53,28 @@ public class ApplicationPatch {
                 '}';
     }
 
+    /**
+     * Looks up the files the app has, which patches may be deltas against.
+     */
+    public interface BaseProvider {
+        /**
+         * Returns the contents of the file the app has at the given patch path, or null if
+         * there is none.
+         */
+        @Nullable
+        byte[] getBase(@NonNull String path);
+    }
+
     // Only needed on the Android side
     @Nullable
     public static List<ApplicationPatch> read(@NonNull DataInputStream input) throws IOException {
+        return read(input, null);
+    }
+
+    // Only needed on the Android side
+    @Nullable
+    public static List<ApplicationPatch> read(@NonNull DataInputStream input,
+            @Nullable BaseProvider bases) throws IOException {
         int changeCount = input.readInt();
 
         if (logging != null && logging.isLoggable(Level.INFO)) {
@@ -59,15 +84,82 @@ public class ApplicationPatch {
         List<ApplicationPatch> changes = new ArrayList<ApplicationPatch>(changeCount);
         for (int i = 0; i < changeCount; i++) {
             String path = input.readUTF();
+            int encoding = input.readByte();
             int size = input.readInt();
-            byte[] bytes = new byte[size];
-            input.readFully(bytes);
+            byte[] bytes;
+            switch (encoding) {
+                case PATCH_ENCODING_RAW:
+                    bytes = new byte[size];
+                    input.readFully(bytes);
+                    break;
+                case PATCH_ENCODING_DEFLATE:
+                    bytes = inflate(input, size);
+                    break;
+                case PATCH_ENCODING_DELTA:
+                    // Inflate the delta first, as the whole patch must be read even if it
+                    // can't be applied.
+                    byte[] delta = inflate(input, size);
+                    byte[] base = bases != null ? bases.getBase(path) : null;
+                    if (base == null) {
+                        throw new IOException("No file to apply the delta of " + path + " to");
+                    }
+                    bytes = BinaryDelta.apply(
+                            new DataInputStream(new ByteArrayInputStream(delta)), base);
+                    if (logging != null && logging.isLoggable(Level.INFO)) {
+                        logging.log(Level.INFO, "Received " + path + " as a delta of "
+                                + delta.length + " bytes");
+                    }
+                    break;
+                default:
+                    throw new IOException("Unexpected patch encoding " + encoding);
+            }
             changes.add(new ApplicationPatch(path, bytes));
         }
 
         return changes;
     }
 
+    /**
+     * Reads deflated data, preceded by its length, inflating it as it's read.
+     *
+     * @param size the length of the data once inflated
+     */
+    @NonNull
+    private static byte[] inflate(@NonNull DataInputStream input, int size) throws IOException {
+        int remaining = input.readInt();
+        byte[] bytes = new byte[size];
+        byte[] buffer = new byte[Math.max(1, Math.min(remaining, 8192))];
+        Inflater inflater = new Inflater();
+        try {
+            int offset = 0;
+            while (offset < size) {
+                if (inflater.needsInput()) {
+                    if (remaining == 0) {
+                        throw new IOException("Truncated patch");
+                    }
+                    int read = Math.min(remaining, buffer.length);
+                    input.readFully(buffer, 0, read);
+                    remaining -= read;
+                    inflater.setInput(buffer, 0, read);
+                } else if (inflater.finished() || inflater.needsDictionary()) {
+                    throw new IOException("Truncated patch");
+                }
+                offset += inflater.inflate(bytes, offset, size - offset);
+            }
+            // Skip what remains of the deflated data, such as its end marker.
+            while (remaining > 0) {
+                int read = Math.min(remaining, buffer.length);
+                input.readFully(buffer, 0, read);
+                remaining -= read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid patch", e);
+        } finally {
+            inflater.end();
+        }
+        return bytes;
+    }
+
     @NonNull
     public String getPath() {
         return path;
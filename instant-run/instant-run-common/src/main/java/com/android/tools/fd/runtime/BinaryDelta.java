@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.fd.runtime;
+
+import com.android.annotations.NonNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary deltas between two versions of a file, so that only the parts of the new version
+ * which can't be found in the old version, typically a few entries of resources.ap_ or a few
+ * classes of a dex shard, need to be sent to the app.
+ * <p/>
+ * The old version is indexed by the hash of each of its blocks of {@link #BLOCK_SIZE} bytes,
+ * and the new version is scanned with a rolling hash for these blocks; each block found is then
+ * extended for as long as the bytes keep matching. The delta starts with the length of the new
+ * version, followed by instructions, each made of a number of literal bytes and the bytes, then
+ * the offset and the length of the bytes to copy from the old version. The last instruction
+ * copies nothing.
+ */
+// This class is used in both the Android runtime and in the IDE: the IDE creates the
+// deltas, and the app applies them.
+public class BinaryDelta {
+
+    private static final int BLOCK_SIZE = 32;
+
+    private static final int HASH_MULTIPLIER = 0x01000193;
+
+    /** The multiplier of the first byte of a block in its hash */
+    private static final int HASH_MULTIPLIER_FIRST;
+
+    static {
+        int multiplier = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            multiplier *= HASH_MULTIPLIER;
+        }
+        HASH_MULTIPLIER_FIRST = multiplier;
+    }
+
+    // Only needed on the IDE side
+    public static void write(@NonNull DataOutputStream output, @NonNull byte[] base,
+            @NonNull byte[] target) throws IOException {
+        output.writeInt(target.length);
+        int literalStart = 0;
+        if (base.length >= BLOCK_SIZE && target.length >= BLOCK_SIZE) {
+            // Index the blocks of the base, keeping the first one for each hash.
+            int blocks = base.length / BLOCK_SIZE;
+            int[] index = new int[Integer.highestOneBit(blocks) * 4];
+            int[] hashes = new int[index.length];
+            int mask = index.length - 1;
+            for (int block = 0; block < blocks; block++) {
+                int hash = hash(base, block * BLOCK_SIZE);
+                int slot = hash & mask;
+                while (index[slot] != 0 && hashes[slot] != hash) {
+                    slot = (slot + 1) & mask;
+                }
+                if (index[slot] == 0) {
+                    index[slot] = block + 1;
+                    hashes[slot] = hash;
+                }
+            }
+
+            int offset = 0;
+            int hash = hash(target, 0);
+            while (offset + BLOCK_SIZE <= target.length) {
+                int match = find(index, hashes, mask, hash, base, target, offset);
+                if (match >= 0) {
+                    // Extend the match backwards over the pending literals, and forwards.
+                    int start = offset;
+                    while (start > literalStart && match > 0
+                            && target[start - 1] == base[match - 1]) {
+                        start--;
+                        match--;
+                    }
+                    int end = offset + BLOCK_SIZE;
+                    int baseEnd = match + end - start;
+                    while (end < target.length && baseEnd < base.length
+                            && target[end] == base[baseEnd]) {
+                        end++;
+                        baseEnd++;
+                    }
+                    writeInstruction(output, target, literalStart, start - literalStart, match,
+                            end - start);
+                    literalStart = offset = end;
+                    if (offset + BLOCK_SIZE <= target.length) {
+                        hash = hash(target, offset);
+                    }
+                } else {
+                    if (offset + BLOCK_SIZE < target.length) {
+                        hash = (hash - (target[offset] & 0xFF) * HASH_MULTIPLIER_FIRST)
+                                * HASH_MULTIPLIER + (target[offset + BLOCK_SIZE] & 0xFF);
+                    }
+                    offset++;
+                }
+            }
+        }
+        writeInstruction(output, target, literalStart, target.length - literalStart, 0, 0);
+    }
+
+    // Only needed on the Android side
+    @NonNull
+    public static byte[] apply(@NonNull DataInputStream input, @NonNull byte[] base)
+            throws IOException {
+        byte[] target = new byte[input.readInt()];
+        int offset = 0;
+        while (true) {
+            int literals = input.readInt();
+            if (literals < 0 || literals > target.length - offset) {
+                throw new IOException("Invalid delta");
+            }
+            input.readFully(target, offset, literals);
+            offset += literals;
+
+            int copyOffset = input.readInt();
+            int copyLength = input.readInt();
+            if (copyLength == 0) {
+                break;
+            }
+            if (copyOffset < 0 || copyLength < 0 || copyOffset > base.length - copyLength
+                    || copyLength > target.length - offset) {
+                throw new IOException("Invalid delta");
+            }
+            System.arraycopy(base, copyOffset, target, offset, copyLength);
+            offset += copyLength;
+        }
+        if (offset != target.length) {
+            throw new IOException("Invalid delta");
+        }
+        return target;
+    }
+
+    private static int hash(@NonNull byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = hash * HASH_MULTIPLIER + (bytes[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the offset of the block of the base with the given hash, if it matches the block of
+     * the target at the given offset, or -1.
+     */
+    private static int find(@NonNull int[] index, @NonNull int[] hashes, int mask, int hash,
+            @NonNull byte[] base, @NonNull byte[] target, int offset) {
+        for (int slot = hash & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash) {
+                int blockOffset = (index[slot] - 1) * BLOCK_SIZE;
+                return regionMatches(base, blockOffset, target, offset) ? blockOffset : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(@NonNull byte[] base, int baseOffset,
+            @NonNull byte[] target, int targetOffset) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (base[baseOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInstruction(@NonNull DataOutputStream output, @NonNull byte[] target,
+            int literalOffset, int literals, int copyOffset, int copyLength) throws IOException {
+        output.writeInt(literals);
+        output.write(target, literalOffset, literals);
+        output.writeInt(copyOffset);
+        output.writeInt(copyLength);
+    }
+}
@@ -58,6 +58,9 @@ public abstract class AbstractPatchesLoaderImpl implements PatchesLoader {
                 logging.log(Level.SEVERE, String.format("Exception while patching %s", "foo.bar"), e);
             }
             return false;
+        } finally {
+            // Members of the classes patched before may be cached.
+            AndroidInstantRuntime.clearMemberCache();
         }
         return true;
     }
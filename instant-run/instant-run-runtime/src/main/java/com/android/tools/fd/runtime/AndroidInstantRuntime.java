@@ -20,13 +20,17 @@ import static com.android.tools.fd.common.Log.logging;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.tools.fd.common.Log;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +42,18 @@ import java.util.logging.Logger;
 @SuppressWarnings("unused")
 public class AndroidInstantRuntime {
 
+    /**
+     * The fields and methods looked up by name, by class, already made accessible, so that
+     * patched code accessing them in a loop doesn't walk the class hierarchy, and throw and catch
+     * exceptions along the way, every time. Fields are keyed by name, and methods by
+     * {@link MethodKey}. Lookups which found nothing are cached as {@link #NOT_FOUND}. Cleared
+     * whenever a patch is applied, see {@link #clearMemberCache()}.
+     */
+    private static final ConcurrentMap<Class<?>, ConcurrentMap<Object, Object>> sMembers =
+            new ConcurrentHashMap<Class<?>, ConcurrentMap<Object, Object>>();
+
+    private static final Object NOT_FOUND = new Object();
+
     protected interface Logging {
         void log(@NonNull Level level, @NonNull String string);
 
@@ -118,12 +134,71 @@ public class AndroidInstantRuntime {
 
     @NonNull
     private static Field getField(Class target, String name) {
-        Field declareField = getFieldByName(target, name);
-        if (declareField == null) {
+        ConcurrentMap<Object, Object> members = getMembers(target);
+        Object field = members.get(name);
+        if (field == null) {
+            Field declareField = getFieldByName(target, name);
+            if (declareField != null) {
+                declareField.setAccessible(true);
+                field = declareField;
+            } else {
+                field = NOT_FOUND;
+            }
+            members.put(name, field);
+        }
+        if (field == NOT_FOUND) {
             throw new RuntimeException(new NoSuchElementException(name));
         }
-        declareField.setAccessible(true);
-        return declareField;
+        return (Field) field;
+    }
+
+    /**
+     * Returns the method with the given name and parameter types in the given class or its
+     * superclasses, made accessible, or null if there is none.
+     */
+    @Nullable
+    private static Method getMethod(Class<?> aClass, String name, Class[] paramTypes) {
+        ConcurrentMap<Object, Object> members = getMembers(aClass);
+        MethodKey key = new MethodKey(name, paramTypes);
+        Object method = members.get(key);
+        if (method == null) {
+            Method declaredMethod = getMethodByName(aClass, name, paramTypes);
+            if (declaredMethod != null) {
+                declaredMethod.setAccessible(true);
+                method = declaredMethod;
+            } else {
+                method = NOT_FOUND;
+            }
+            members.put(key, method);
+        }
+        return method != NOT_FOUND ? (Method) method : null;
+    }
+
+    /**
+     * Forgets the fields and methods looked up so far. The cache holds on to their classes, and
+     * so to the class loaders of the patches they come from: this lets the patches replaced by a
+     * new one be unloaded.
+     */
+    public static void clearMemberCache() {
+        sMembers.clear();
+    }
+
+    @VisibleForTesting
+    static boolean isMemberCacheEmpty() {
+        return sMembers.isEmpty();
+    }
+
+    @NonNull
+    private static ConcurrentMap<Object, Object> getMembers(@NonNull Class<?> aClass) {
+        ConcurrentMap<Object, Object> members = sMembers.get(aClass);
+        if (members == null) {
+            members = new ConcurrentHashMap<Object, Object>();
+            ConcurrentMap<Object, Object> existing = sMembers.putIfAbsent(aClass, members);
+            if (existing != null) {
+                members = existing;
+            }
+        }
+        return members;
     }
 
     public static Object invokeProtectedMethod(Object receiver,
@@ -135,11 +210,10 @@ public class AndroidInstantRuntime {
             logging.log(Level.FINE, String.format("protectedMethod:%s on %s", methodName, receiver));
         }
         try {
-            Method toDispatchTo = getMethodByName(receiver.getClass(), methodName, parameterTypes);
+            Method toDispatchTo = getMethod(receiver.getClass(), methodName, parameterTypes);
             if (toDispatchTo == null) {
                 throw new RuntimeException(new NoSuchMethodException(methodName));
             }
-            toDispatchTo.setAccessible(true);
             return toDispatchTo.invoke(receiver, params);
         } catch (InvocationTargetException e) {
             // The called method threw an exception, rethrow
@@ -161,12 +235,11 @@ public class AndroidInstantRuntime {
                     String.format("protectedStaticMethod:%s on %s", methodName, receiverClass.getName()));
         }
         try {
-            Method toDispatchTo = getMethodByName(receiverClass, methodName, parameterTypes);
+            Method toDispatchTo = getMethod(receiverClass, methodName, parameterTypes);
             if (toDispatchTo == null) {
                 throw new RuntimeException(new NoSuchMethodException(
                         methodName + " in class " + receiverClass.getName()));
             }
-            toDispatchTo.setAccessible(true);
             return toDispatchTo.invoke(null /* target */, params);
         } catch (InvocationTargetException e) {
             // The called method threw an exception, rethrow
@@ -242,6 +315,39 @@ public class AndroidInstantRuntime {
         return null;
     }
 
+    /**
+     * The key of a method in {@link #sMembers}.
+     */
+    private static final class MethodKey {
+        @NonNull
+        private final String mName;
+
+        @NonNull
+        private final Class[] mParamTypes;
+
+        MethodKey(@NonNull String name, @NonNull Class[] paramTypes) {
+            mName = name;
+            mParamTypes = paramTypes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MethodKey)) {
+                return false;
+            }
+            MethodKey other = (MethodKey) o;
+            return mName.equals(other.mName) && Arrays.equals(mParamTypes, other.mParamTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mName.hashCode() + Arrays.hashCode(mParamTypes);
+        }
+    }
+
     public static void trace(String s) {
         if (logging != null) {
             logging.log(Level.FINE, s);
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+
+public class AndroidInstantRuntimeTest {
+
+    @SuppressWarnings("unused")
+    private static class Base {
+        private int mValue = 1;
+
+        private static String sName = "base";
+
+        protected int add(int a, int b) {
+            return a + b + mValue;
+        }
+
+        protected static String name() {
+            return sName;
+        }
+    }
+
+    private static class Derived extends Base {
+    }
+
+    @Test
+    public void checkFields() {
+        Derived derived = new Derived();
+        for (int i = 0; i < 2; i++) {
+            AndroidInstantRuntime.setPrivateField(derived, i + 2, Derived.class, "mValue");
+            assertEquals(i + 2, AndroidInstantRuntime.getPrivateField(
+                    derived, Derived.class, "mValue"));
+        }
+        assertEquals("base", AndroidInstantRuntime.getStaticPrivateField(Base.class, "sName"));
+    }
+
+    @Test
+    public void checkMethods() throws Throwable {
+        Derived derived = new Derived();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(2 + i, AndroidInstantRuntime.invokeProtectedMethod(derived,
+                    new Object[] {1, i}, new Class[] {int.class, int.class}, "add"));
+        }
+        assertEquals("base", AndroidInstantRuntime.invokeProtectedStaticMethod(
+                new Object[0], new Class[0], "name", Derived.class));
+    }
+
+    @Test
+    public void checkClearMemberCache() {
+        Derived derived = new Derived();
+        AndroidInstantRuntime.setPrivateField(derived, 5, Derived.class, "mValue");
+        assertFalse(AndroidInstantRuntime.isMemberCacheEmpty());
+
+        // Members are looked up again once the cache is cleared.
+        AndroidInstantRuntime.clearMemberCache();
+        assertTrue(AndroidInstantRuntime.isMemberCacheEmpty());
+        assertEquals(5, AndroidInstantRuntime.getPrivateField(derived, Derived.class, "mValue"));
+        assertFalse(AndroidInstantRuntime.isMemberCacheEmpty());
+    }
+
+    @Test
+    public void checkMissingMembers() throws Throwable {
+        // Missing members are reported the same way when their lookup is cached.
+        for (int i = 0; i < 2; i++) {
+            try {
+                AndroidInstantRuntime.getPrivateField(new Derived(), Derived.class, "mMissing");
+                fail();
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof NoSuchElementException);
+            }
+            try {
+                AndroidInstantRuntime.invokeProtectedMethod(new Derived(), new Object[0],
+                        new Class[0], "missing");
+                fail();
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof NoSuchMethodException);
+            }
+        }
+    }
+}
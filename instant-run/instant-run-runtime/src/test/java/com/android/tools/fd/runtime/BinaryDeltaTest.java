@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tools.fd.client.ApplicationPatchUtil;
+import com.android.tools.fd.client.UpdateMode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BinaryDeltaTest {
+
+    @Test
+    public void checkSmallFiles() throws IOException {
+        checkDelta(new byte[0], new byte[0]);
+        checkDelta(new byte[0], new byte[] {1, 2, 3});
+        checkDelta(new byte[] {1, 2, 3}, new byte[0]);
+        checkDelta(new byte[] {1, 2, 3}, new byte[] {1, 2, 3, 4});
+    }
+
+    @Test
+    public void checkEditedFile() throws IOException {
+        byte[] base = new byte[100000];
+        new Random(0).nextBytes(base);
+
+        // Insert, remove and change a few bytes here and there.
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        target.write(base, 0, 1000);
+        target.write(new byte[] {1, 2, 3, 4, 5});
+        target.write(base, 1000, 20000);
+        target.write(base, 21100, 50000);
+        target.write(base, 90000, 10000);
+        target.write(base, 71100, 18900);
+        byte[] bytes = target.toByteArray();
+        bytes[50000] ^= 1;
+
+        // Only the edits end up in the delta.
+        assertTrue(checkDelta(base, bytes) < 500);
+    }
+
+    @Test
+    public void checkRepeatedBlocks() throws IOException {
+        byte[] base = new byte[10000];
+        byte[] target = new byte[12000];
+        Arrays.fill(target, 5000, 6000, (byte) 1);
+        // The zeros are copied from the base, the ones are not.
+        assertTrue(checkDelta(base, target) < 1100);
+    }
+
+    @Test
+    public void checkPatchDelta() throws IOException {
+        final byte[] base = new byte[10000];
+        new Random(0).nextBytes(base);
+        byte[] bytes = Arrays.copyOf(base, base.length + 10);
+        final ApplicationPatch patch = new ApplicationPatch(Paths.RESOURCE_FILE_NAME, bytes);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ApplicationPatchUtil.write(new DataOutputStream(output), ImmutableList.of(patch),
+                ImmutableMap.of(patch.path, base), UpdateMode.WARM_SWAP);
+        assertTrue(output.size() < 100);
+
+        List<ApplicationPatch> patches = ApplicationPatch.read(
+                new DataInputStream(new ByteArrayInputStream(output.toByteArray())),
+                new ApplicationPatch.BaseProvider() {
+                    @Override
+                    public byte[] getBase(String path) {
+                        assertEquals(patch.path, path);
+                        return base;
+                    }
+                });
+        assertEquals(1, patches.size());
+        assertArrayEquals(bytes, patches.get(0).getBytes());
+    }
+
+    /**
+     * Checks that applying the delta between the given files gives the target, and returns the
+     * size of the delta.
+     */
+    private static int checkDelta(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        BinaryDelta.write(new DataOutputStream(delta), base, target);
+        byte[] applied = BinaryDelta.apply(
+                new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), base);
+        assertArrayEquals(target, applied);
+        return delta.size();
+    }
+}
@@ -755,11 +755,37 @@ public class FileManager {
 
     @Nullable
     public static byte[] getCheckSum(@NonNull String path) {
-        // Currently only handle this for resource files
+        File file = getPatchedFile(path);
+        if (file != null) {
+            return getCheckSum(file);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the contents of the file last written for the given patch path, which the IDE
+     * can send the next version of as a delta, or null if there is none.
+     */
+    @Nullable
+    public static byte[] readPatchedFile(@NonNull String path) {
+        File file = getPatchedFile(path);
+        if (file != null) {
+            return readRawBytes(file);
+        }
+
+        return null;
+    }
+
+    @Nullable
+    private static File getPatchedFile(@NonNull String path) {
+        // Currently only handle this for resource files and dex shards
         if (path.equals(RESOURCE_FILE_NAME)) {
-            File file = getExternalResourceFile();
-            if (file != null) {
-                return getCheckSum(file);
+            return getExternalResourceFile();
+        } else if (path.startsWith(Paths.DEX_SLICE_PREFIX)) {
+            File file = new File(getDexFileFolder(getDataFolder(), false), path);
+            if (file.exists()) {
+                return file;
             }
         }
 
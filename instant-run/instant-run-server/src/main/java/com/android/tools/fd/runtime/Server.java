@@ -34,6 +34,7 @@ import static com.android.tools.fd.runtime.Paths.RELOAD_DEX_FILE_NAME;
 import static com.android.tools.fd.runtime.Paths.RESOURCE_FILE_NAME;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 
 import android.app.Activity;
 import android.app.Application;
@@ -48,9 +49,11 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dalvik.system.DexClassLoader;
 
@@ -81,7 +84,26 @@ public class Server {
 
     private final Application mApplication;
 
-    private static int sWrongTokenCount;
+    /**
+     * The number of connections served at the same time; past it, the connection idle the longest
+     * is closed to make room, and new ones are only refused when all of them are busy
+     */
+    private static final int MAX_CONNECTIONS = 4;
+
+    /** How long a connection may wait for the next message before the server closes it */
+    private static final int IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /** The number of connections with a wrong token after which the server stops */
+    private static final int MAX_WRONG_TOKENS = 50;
+
+    private static final AtomicInteger sWrongTokenCount = new AtomicInteger();
+
+    /** The connections being served, oldest first; also the lock for their idle state */
+    private final List<SocketServerReplyThread> mConnections =
+            new ArrayList<SocketServerReplyThread>();
+
+    /** Held while applying patches, and while reading the files they are deltas against */
+    private final Object mPatchLock = new Object();
 
     public static void create(@NonNull String packageName, @NonNull Application application) {
         //noinspection ResultOfObjectAllocationIgnored
@@ -147,21 +169,31 @@ public class Server {
                     }
                     LocalSocket socket = serverSocket.accept();
 
-                    if (Log.isLoggable(LOG_TAG, Log.INFO)) {
-                        Log.i(LOG_TAG, "Received connection from IDE: spawning connection thread");
-                    }
-
-                    SocketServerReplyThread socketServerReplyThread = new SocketServerReplyThread(
-                            socket);
-                    socketServerReplyThread.run();
-
-                    if (sWrongTokenCount > 50) {
+                    if (sWrongTokenCount.get() > MAX_WRONG_TOKENS) {
                         if (Log.isLoggable(LOG_TAG, Log.INFO)) {
                             Log.i(LOG_TAG, "Stopping server: too many wrong token connections");
                         }
+                        socket.close();
                         mServerSocket.close();
                         break;
                     }
+
+                    // The IDE keeps its connection open between operations, so serve each
+                    // connection on its own thread, so as not to hold off others, up to a few
+                    // at a time.
+                    SocketServerReplyThread socketServerReplyThread = new SocketServerReplyThread(
+                            socket);
+                    if (!addConnection(socketServerReplyThread)) {
+                        Log.w(LOG_TAG, "Too many busy connections from IDE: closing connection");
+                        socket.close();
+                        continue;
+                    }
+
+                    if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+                        Log.i(LOG_TAG, "Received connection from IDE: spawning connection thread");
+                    }
+
+                    socketServerReplyThread.start();
                 } catch (Throwable e) {
                     if (Log.isLoggable(LOG_TAG, Log.INFO)) {
                         Log.i(LOG_TAG, "Fatal error accepting connection on local socket", e);
@@ -171,14 +203,101 @@ public class Server {
         }
     }
 
+    /**
+     * Registers a new connection, closing the one idle the longest if there are already
+     * {@link #MAX_CONNECTIONS}, such as those left open by IDE sessions that went away.
+     *
+     * @return false if all the connections are busy, and the new one should be refused
+     */
+    private boolean addConnection(@NonNull SocketServerReplyThread connection) {
+        synchronized (mConnections) {
+            if (mConnections.size() >= MAX_CONNECTIONS) {
+                SocketServerReplyThread oldest = null;
+                for (SocketServerReplyThread candidate : mConnections) {
+                    if (candidate.mIdleSince != 0 && (oldest == null
+                            || candidate.mIdleSince < oldest.mIdleSince)) {
+                        oldest = candidate;
+                    }
+                }
+                if (oldest == null) {
+                    return false;
+                }
+                Log.w(LOG_TAG, "Too many connections from IDE: closing the oldest idle one");
+                mConnections.remove(oldest);
+                oldest.evict();
+            }
+            mConnections.add(connection);
+            return true;
+        }
+    }
+
+    private void removeConnection(@NonNull SocketServerReplyThread connection) {
+        synchronized (mConnections) {
+            mConnections.remove(connection);
+        }
+    }
+
     private class SocketServerReplyThread extends Thread {
 
         private final LocalSocket mSocket;
 
+        /**
+         * When the connection started waiting for the next message, or 0 while it is handling
+         * one; guarded by {@link #mConnections}
+         */
+        private long mIdleSince;
+
+        /** Whether the server closed this connection to make room; guarded by mConnections */
+        private boolean mEvicted;
+
         SocketServerReplyThread(LocalSocket socket) {
             mSocket = socket;
         }
 
+        /** Wakes up the thread blocked reading the next message, so it finishes */
+        private void evict() {
+            mEvicted = true;
+            try {
+                mSocket.shutdownInput();
+            } catch (IOException ignore) {
+            }
+        }
+
+        /**
+         * Waits for the id of the next message, for up to {@link #IDLE_TIMEOUT_MS}.
+         *
+         * @return the message id, or {@code MESSAGE_EOF} if the connection was idle for too long,
+         * was closed to make room for another one, or was closed by the IDE
+         */
+        private int readMessage(@NonNull DataInputStream input) throws IOException {
+            synchronized (mConnections) {
+                if (mEvicted) {
+                    return MESSAGE_EOF;
+                }
+                mIdleSince = System.currentTimeMillis();
+            }
+            int message;
+            try {
+                mSocket.setSoTimeout(IDLE_TIMEOUT_MS);
+                message = input.readInt();
+            } catch (IOException e) {
+                // A timeout, an eviction and the IDE going away all end up here; none of them
+                // interrupt a message, so just end the conversation.
+                if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+                    Log.i(LOG_TAG, "Closing idle connection from the IDE", e);
+                }
+                return MESSAGE_EOF;
+            }
+            synchronized (mConnections) {
+                if (mEvicted) {
+                    return MESSAGE_EOF;
+                }
+                mIdleSince = 0;
+            }
+            mSocket.setSoTimeout(0);
+            return message;
+        }
+
         @Override
         public void run() {
             try {
@@ -200,6 +319,8 @@ public class Server {
                 if (Log.isLoggable(LOG_TAG, Log.INFO)) {
                     Log.i(LOG_TAG, "Fatal error receiving messages", e);
                 }
+            } finally {
+                removeConnection(this);
             }
         }
 
@@ -223,7 +344,7 @@ public class Server {
             }
 
             while (true) {
-                int message = input.readInt();
+                int message = readMessage(input);
                 switch (message) {
                     case MESSAGE_EOF: {
                         if (Log.isLoggable(LOG_TAG, Log.INFO)) {
@@ -299,14 +420,29 @@ public class Server {
                             return;
                         }
 
-                        List<ApplicationPatch> changes = ApplicationPatch.read(input);
+                        // Patches from different connections are applied one at a time, as
+                        // they may be deltas against the files written by the others. They are
+                        // read without holding the lock, as they can take a while to arrive;
+                        // the IDE sends them one at a time anyway.
+                        List<ApplicationPatch> changes = ApplicationPatch.read(input,
+                                new ApplicationPatch.BaseProvider() {
+                                    @Nullable
+                                    @Override
+                                    public byte[] getBase(@NonNull String path) {
+                                        synchronized (mPatchLock) {
+                                            return FileManager.readPatchedFile(path);
+                                        }
+                                    }
+                                });
                         if (changes == null) {
                             continue;
                         }
 
                         boolean hasResources = hasResources(changes);
                         int updateMode = input.readInt();
-                        updateMode = handlePatches(changes, hasResources, updateMode);
+                        synchronized (mPatchLock) {
+                            updateMode = handlePatches(changes, hasResources, updateMode);
+                        }
 
                         boolean showToast = input.readBoolean();
 
@@ -343,10 +479,15 @@ public class Server {
 
         private boolean authenticate(@NonNull DataInputStream input) throws IOException {
             long token = input.readLong();
+            // Connections still open when the server stops can't authenticate either.
+            if (sWrongTokenCount.get() > MAX_WRONG_TOKENS) {
+                Log.w(LOG_TAG, "Rejecting identity token: too many wrong token connections");
+                return false;
+            }
             if (token != AppInfo.token) {
                 Log.w(LOG_TAG, "Mismatched identity token from client; received " + token
                         + " and expected " + AppInfo.token);
-                sWrongTokenCount++;
+                sWrongTokenCount.incrementAndGet();
                 return false;
             }
             return true;
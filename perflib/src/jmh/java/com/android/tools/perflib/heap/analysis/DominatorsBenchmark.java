@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.hprof.HprofClassDump;
+import com.android.tools.perflib.heap.hprof.HprofConstant;
+import com.android.tools.perflib.heap.hprof.HprofDumpRecord;
+import com.android.tools.perflib.heap.hprof.HprofHeapDumpSegment;
+import com.android.tools.perflib.heap.hprof.HprofInstanceDump;
+import com.android.tools.perflib.heap.hprof.HprofInstanceField;
+import com.android.tools.perflib.heap.hprof.HprofLoadClass;
+import com.android.tools.perflib.heap.hprof.HprofOutputStream;
+import com.android.tools.perflib.heap.hprof.HprofRootUnknown;
+import com.android.tools.perflib.heap.hprof.HprofStaticField;
+import com.android.tools.perflib.heap.hprof.HprofString;
+import com.android.tools.perflib.heap.hprof.HprofType;
+import com.google.common.base.Charsets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the dominator algorithms on synthetic heaps. Every node of the generated heap points to
+ * its two children in a binary tree, plus a random node, so that most nodes have several
+ * predecessors. The largest heaps need a lot of memory for the instance graph itself, in
+ * particular with {@link LinkEvalDominators}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx48g"})
+public class DominatorsBenchmark {
+    private static final int ID_SIZE = 4;
+
+    private static final long CLASS_ID = 1;
+
+    // Instances ids are offset so they never collide with the class id.
+    private static final long FIRST_INSTANCE_ID = 16;
+
+    private static final int INSTANCES_PER_SEGMENT = 1 << 16;
+
+    @Param({"1000000", "10000000", "50000000"})
+    public int nodeCount;
+
+    @Param({"LinkEval", "SemiNca", "SemiNcaParallel"})
+    public String algorithm;
+
+    private File mFile;
+
+    private MemoryMappedFileBuffer mBuffer;
+
+    private Snapshot mSnapshot;
+
+    private ExecutorService mExecutor;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("dominators", ".hprof");
+        writeHeap(mFile, nodeCount);
+        mBuffer = new MemoryMappedFileBuffer(mFile);
+        mSnapshot = Snapshot.createSnapshot(mBuffer);
+        mSnapshot.prepareDominatorComputation();
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+        mSnapshot.dispose();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public DominatorsBase computeDominators() {
+        DominatorsBase dominators;
+        if ("LinkEval".equals(algorithm)) {
+            dominators = new LinkEvalDominators(mSnapshot);
+        } else if ("SemiNca".equals(algorithm)) {
+            dominators = new SemiNcaDominators(mSnapshot);
+        } else {
+            dominators = new SemiNcaDominators(mSnapshot, mExecutor);
+        }
+        dominators.computeDominators();
+        dominators.computeRetainedSizes();
+        return dominators;
+    }
+
+    private static void writeHeap(@NonNull File file, int nodeCount) throws IOException {
+        HprofOutputStream hprof = new HprofOutputStream(ID_SIZE,
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+        try {
+            hprof.write("JAVA PROFILE 1.0.3".getBytes(Charsets.US_ASCII));
+            hprof.write(0);
+            hprof.writeU4(ID_SIZE);
+            hprof.writeU4(0);
+            hprof.writeU4(0);
+
+            new HprofString(0, 1, "Node").write(hprof);
+            new HprofString(0, 2, "left").write(hprof);
+            new HprofString(0, 3, "right").write(hprof);
+            new HprofString(0, 4, "random").write(hprof);
+            new HprofLoadClass(0, 1, CLASS_ID, 0, 1).write(hprof);
+
+            HprofInstanceField[] fields = new HprofInstanceField[] {
+                    new HprofInstanceField(2, HprofType.TYPE_OBJECT),
+                    new HprofInstanceField(3, HprofType.TYPE_OBJECT),
+                    new HprofInstanceField(4, HprofType.TYPE_OBJECT)};
+            new HprofHeapDumpSegment(0, new HprofDumpRecord[] {
+                    new HprofClassDump(CLASS_ID, 0, 0, 0, 0, 0, 0, 0, fields.length * ID_SIZE,
+                            new HprofConstant[0], new HprofStaticField[0], fields),
+                    new HprofRootUnknown(FIRST_INSTANCE_ID)}).write(hprof);
+
+            Random random = new Random(0);
+            for (int start = 0; start < nodeCount; start += INSTANCES_PER_SEGMENT) {
+                int end = Math.min(nodeCount, start + INSTANCES_PER_SEGMENT);
+                HprofDumpRecord[] records = new HprofDumpRecord[end - start];
+                for (int node = start; node < end; node++) {
+                    long[] references = new long[] {
+                            2L * node + 1, 2L * node + 2, random.nextInt(nodeCount)};
+                    byte[] values = new byte[references.length * ID_SIZE];
+                    for (int i = 0; i < references.length; i++) {
+                        long id = references[i] < nodeCount ? FIRST_INSTANCE_ID + references[i] : 0;
+                        for (int b = 0; b < ID_SIZE; b++) {
+                            values[i * ID_SIZE + b] = (byte) (id >>> (8 * (ID_SIZE - 1 - b)));
+                        }
+                    }
+                    records[node - start] = new HprofInstanceDump(FIRST_INSTANCE_ID + node, 0,
+                            CLASS_ID, values);
+                }
+                new HprofHeapDumpSegment(0, records).write(hprof);
+            }
+        } finally {
+            hprof.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.captures;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Absolute reads from any {@link DataBuffer}. Buffers implementing
+ * {@link RandomAccessDataBuffer} read in place. Other buffers move to the position and back, so
+ * unlike the former, they must not be read from several threads at once.
+ */
+public final class DataBuffers {
+
+    private DataBuffers() {
+    }
+
+    public static byte readByte(@NonNull DataBuffer buffer, long position) {
+        if (buffer instanceof RandomAccessDataBuffer) {
+            return ((RandomAccessDataBuffer) buffer).readByte(position);
+        }
+        long previousPosition = buffer.position();
+        buffer.setPosition(position);
+        byte value = buffer.readByte();
+        buffer.setPosition(previousPosition);
+        return value;
+    }
+
+    public static char readChar(@NonNull DataBuffer buffer, long position) {
+        if (buffer instanceof RandomAccessDataBuffer) {
+            return ((RandomAccessDataBuffer) buffer).readChar(position);
+        }
+        long previousPosition = buffer.position();
+        buffer.setPosition(position);
+        char value = buffer.readChar();
+        buffer.setPosition(previousPosition);
+        return value;
+    }
+
+    public static short readShort(@NonNull DataBuffer buffer, long position) {
+        if (buffer instanceof RandomAccessDataBuffer) {
+            return ((RandomAccessDataBuffer) buffer).readShort(position);
+        }
+        long previousPosition = buffer.position();
+        buffer.setPosition(position);
+        short value = buffer.readShort();
+        buffer.setPosition(previousPosition);
+        return value;
+    }
+
+    public static int readInt(@NonNull DataBuffer buffer, long position) {
+        if (buffer instanceof RandomAccessDataBuffer) {
+            return ((RandomAccessDataBuffer) buffer).readInt(position);
+        }
+        long previousPosition = buffer.position();
+        buffer.setPosition(position);
+        int value = buffer.readInt();
+        buffer.setPosition(previousPosition);
+        return value;
+    }
+
+    public static long readLong(@NonNull DataBuffer buffer, long position) {
+        if (buffer instanceof RandomAccessDataBuffer) {
+            return ((RandomAccessDataBuffer) buffer).readLong(position);
+        }
+        long previousPosition = buffer.position();
+        buffer.setPosition(position);
+        long value = buffer.readLong();
+        buffer.setPosition(previousPosition);
+        return value;
+    }
+}
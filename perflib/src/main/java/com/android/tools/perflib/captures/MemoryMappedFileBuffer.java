@@ -18,17 +18,18 @@ package com.android.tools.perflib.captures;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.VisibleForTesting;
-import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.RandomAccessDataBuffer;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 
 import sun.nio.ch.DirectBuffer;
 
-public class MemoryMappedFileBuffer implements DataBuffer {
+public class MemoryMappedFileBuffer implements RandomAccessDataBuffer {
 
     // Default chunk size is 1 << 30, or 1,073,741,824 bytes.
     private static final int DEFAULT_SIZE = 1 << 30;
@@ -50,9 +51,14 @@ public class MemoryMappedFileBuffer implements DataBuffer {
     @VisibleForTesting
     public MemoryMappedFileBuffer(@NonNull File f, int bufferSize,
             int padding) throws IOException {
+        this(f, 0, HPROF_BYTE_ORDER, bufferSize, padding);
+    }
+
+    private MemoryMappedFileBuffer(@NonNull File f, long start, @NonNull ByteOrder byteOrder,
+            int bufferSize, int padding) throws IOException {
         mBufferSize = bufferSize;
         mPadding = padding;
-        mLength = f.length();
+        mLength = f.length() - start;
         int shards = (int) (mLength / mBufferSize) + 1;
         mByteBuffers = new ByteBuffer[shards];
 
@@ -62,8 +68,8 @@ public class MemoryMappedFileBuffer implements DataBuffer {
             for (int i = 0; i < shards; i++) {
                 long size = Math.min(mLength - offset, mBufferSize + mPadding);
                 mByteBuffers[i] = inputStream.getChannel()
-                        .map(FileChannel.MapMode.READ_ONLY, offset, size);
-                mByteBuffers[i].order(HPROF_BYTE_ORDER);
+                        .map(FileChannel.MapMode.READ_ONLY, start + offset, size);
+                mByteBuffers[i].order(byteOrder);
                 offset += mBufferSize;
             }
             mCurrentPosition = 0;
@@ -84,6 +90,36 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         this(f, DEFAULT_SIZE, DEFAULT_PADDING);
     }
 
+    /**
+     * Creates a buffer by memory-mapping file {@param f} from {@param start} to its end, for
+     * files that aren't hprof files. Positions in the buffer are relative to {@param start}.
+     */
+    public MemoryMappedFileBuffer(@NonNull File f, long start, @NonNull ByteOrder byteOrder)
+            throws IOException {
+        this(f, start, byteOrder, DEFAULT_SIZE, DEFAULT_PADDING);
+    }
+
+    private MemoryMappedFileBuffer(@NonNull MemoryMappedFileBuffer original) {
+        mBufferSize = original.mBufferSize;
+        mPadding = original.mPadding;
+        mLength = original.mLength;
+        mByteBuffers = new ByteBuffer[original.mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            mByteBuffers[i] = original.mByteBuffers[i].duplicate()
+                    .order(original.mByteBuffers[i].order());
+        }
+        mCurrentPosition = 0;
+    }
+
+    /**
+     * Creates a buffer sharing the mapped content of this buffer, but with its own position, so
+     * that both can be read from different threads. Only the original buffer should be disposed.
+     */
+    @NonNull
+    public MemoryMappedFileBuffer duplicate() {
+        return new MemoryMappedFileBuffer(this);
+    }
+
     /**
      * Attempts to unmap the buffer. It is the caller's responsibility to ensure there are no other
      * accesses to this buffer, otherwise this can result in a crash and kill the JVM.
@@ -198,6 +234,31 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         return result;
     }
 
+    @Override
+    public byte readByte(long position) {
+        return mByteBuffers[getIndex(position)].get(getOffset(position));
+    }
+
+    @Override
+    public char readChar(long position) {
+        return mByteBuffers[getIndex(position)].getChar(getOffset(position));
+    }
+
+    @Override
+    public short readShort(long position) {
+        return mByteBuffers[getIndex(position)].getShort(getOffset(position));
+    }
+
+    @Override
+    public int readInt(long position) {
+        return mByteBuffers[getIndex(position)].getInt(getOffset(position));
+    }
+
+    @Override
+    public long readLong(long position) {
+        return mByteBuffers[getIndex(position)].getLong(getOffset(position));
+    }
+
     @Override
     public void setPosition(long position) {
         mCurrentPosition = position;
@@ -219,10 +280,18 @@ public class MemoryMappedFileBuffer implements DataBuffer {
     }
 
     private int getIndex() {
-        return (int) (mCurrentPosition / mBufferSize);
+        return getIndex(mCurrentPosition);
     }
 
     private int getOffset() {
-        return (int) (mCurrentPosition % mBufferSize);
+        return getOffset(mCurrentPosition);
+    }
+
+    private int getIndex(long position) {
+        return (int) (position / mBufferSize);
+    }
+
+    private int getOffset(long position) {
+        return (int) (position % mBufferSize);
     }
 }
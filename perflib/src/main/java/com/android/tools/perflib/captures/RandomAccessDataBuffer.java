@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.captures;
+
+/**
+ * A {@link DataBuffer} which also supports absolute reads. These neither depend on nor change the
+ * current position, so they can be used from several threads at once. Use {@link DataBuffers} to
+ * read at a position from any buffer.
+ */
+public interface RandomAccessDataBuffer extends DataBuffer {
+
+    byte readByte(long position);
+
+    char readChar(long position);
+
+    short readShort(long position);
+
+    int readInt(long position);
+
+    long readLong(long position);
+}
@@ -17,10 +17,6 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
-import com.android.tools.perflib.captures.DataBuffer;
-
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 
 public class ArrayInstance extends Instance {
 
@@ -38,6 +34,10 @@ public class ArrayInstance extends Instance {
         mValuesOffset = valuesOffset;
     }
 
+    long getValuesOffset() {
+        return mValuesOffset;
+    }
+
     @NonNull
     public Object[] getValues() {
         Object[] values = new Object[mLength];
@@ -59,15 +59,26 @@ public class ArrayInstance extends Instance {
         return bytes;
     }
 
+    /**
+     * Decodes {@code length} chars of this char array starting at {@code offset}, clamped to the
+     * bounds of the array.
+     */
     @NonNull
     public char[] asCharArray(int offset, int length) {
+        return asCharSequence(offset, length).toCharArray();
+    }
+
+    /**
+     * Returns a view of {@code length} chars of this char array starting at {@code offset}, which
+     * reads them in place from the heap dump. The range is clamped to the bounds of the array, as
+     * the fields of a string in a heap dump can't be trusted to fit its value.
+     */
+    @NonNull
+    public CharArrayView asCharSequence(int offset, int length) {
         assert mType == Type.CHAR;
-        // TODO: Make this copy less by supporting offset in asRawByteArray.
-        CharBuffer charBuffer = ByteBuffer.wrap(asRawByteArray(offset, length)).order(
-                DataBuffer.HPROF_BYTE_ORDER).asCharBuffer();
-        char[] result = new char[length];
-        charBuffer.get(result);
-        return result;
+        offset = Math.max(0, Math.min(offset, mLength));
+        length = Math.max(0, Math.min(length, mLength - offset));
+        return new CharArrayView(getBuffer(), mValuesOffset + 2L * offset, length);
     }
 
     @Override
@@ -91,7 +102,7 @@ public class ArrayInstance extends Instance {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitArrayInstance(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
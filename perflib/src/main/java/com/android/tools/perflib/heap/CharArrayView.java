@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.DataBuffers;
+
+/**
+ * A {@link CharSequence} over a char array of a heap dump, read in place from the
+ * {@link DataBuffer} instead of being copied out. Views only use absolute reads, so views over a
+ * {@link com.android.tools.perflib.captures.RandomAccessDataBuffer} can be used from several
+ * threads at once.
+ * <p>
+ * Two views are equal if they have the same characters, and their hash code is the same as that
+ * of the equivalent {@link String}. Views aren't equal to other kinds of char sequences, use
+ * {@link #contentEquals(CharSequence)} for those.
+ */
+public final class CharArrayView implements CharSequence {
+
+    @NonNull
+    private final DataBuffer mBuffer;
+
+    private final long mPosition;
+
+    private final int mLength;
+
+    // Cached like String.hashCode(), 0 until computed.
+    private int mHashCode;
+
+    /**
+     * @param position the position in {@code buffer} of the first character
+     * @param length   the number of characters
+     */
+    public CharArrayView(@NonNull DataBuffer buffer, long position, int length) {
+        mBuffer = buffer;
+        mPosition = position;
+        mLength = length;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + mLength);
+        }
+        return DataBuffers.readChar(mBuffer, mPosition + 2L * index);
+    }
+
+    @NonNull
+    @Override
+    public CharArrayView subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException(
+                    "start: " + start + ", end: " + end + ", length: " + mLength);
+        }
+        return new CharArrayView(mBuffer, mPosition + 2L * start, end - start);
+    }
+
+    /**
+     * Copies the characters into {@code destination}, starting at {@code offset}.
+     */
+    public void getChars(@NonNull char[] destination, int offset) {
+        for (int i = 0; i < mLength; i++) {
+            destination[offset + i] = DataBuffers.readChar(mBuffer, mPosition + 2L * i);
+        }
+    }
+
+    @NonNull
+    public char[] toCharArray() {
+        char[] chars = new char[mLength];
+        getChars(chars, 0);
+        return chars;
+    }
+
+    /**
+     * Returns whether {@code sequence} has the same characters as this view.
+     */
+    public boolean contentEquals(@NonNull CharSequence sequence) {
+        if (sequence.length() != mLength) {
+            return false;
+        }
+        for (int i = 0; i < mLength; i++) {
+            if (DataBuffers.readChar(mBuffer, mPosition + 2L * i) != sequence.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CharArrayView)) {
+            return false;
+        }
+        CharArrayView other = (CharArrayView) o;
+        if (mLength != other.mLength) {
+            return false;
+        }
+        if (mBuffer == other.mBuffer && mPosition == other.mPosition) {
+            return true;
+        }
+        if (mHashCode != 0 && other.mHashCode != 0 && mHashCode != other.mHashCode) {
+            return false;
+        }
+        return contentEquals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = mHashCode;
+        if (hashCode == 0) {
+            for (int i = 0; i < mLength; i++) {
+                hashCode = 31 * hashCode + DataBuffers.readChar(mBuffer, mPosition + 2L * i);
+            }
+            mHashCode = hashCode;
+        }
+        return hashCode;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return new String(toCharArray());
+    }
+}
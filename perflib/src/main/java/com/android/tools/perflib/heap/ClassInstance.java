@@ -19,6 +19,7 @@ package com.android.tools.perflib.heap;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.captures.DataBuffers;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -32,6 +33,10 @@ public class ClassInstance extends Instance {
         mValuesOffset = valuesOffset;
     }
 
+    long getValuesOffset() {
+        return mValuesOffset;
+    }
+
     @VisibleForTesting
     @NonNull
     List<FieldValue> getFields(String name) {
@@ -44,6 +49,11 @@ public class ClassInstance extends Instance {
         return result;
     }
 
+    /**
+     * Reads the values of all the fields of this instance, from its class up, boxing primitives
+     * and resolving references. To read the characters of a string in place, use
+     * {@link #getStringCharSequence()} instead.
+     */
     @NonNull
     public List<FieldValue> getValues() {
         ArrayList<FieldValue> result = new ArrayList<FieldValue>();
@@ -78,7 +88,7 @@ public class ClassInstance extends Instance {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassInstance(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
@@ -104,29 +114,55 @@ public class ClassInstance extends Instance {
 
     @Nullable
     public final char[] getStringChars(int maxDecodeStringLength) {
-        int count = -1;
-        int offset = 0;
-        ArrayInstance charBufferArray = null;
-        for (ClassInstance.FieldValue entry : getValues()) {
-            if (charBufferArray == null && "value".equals(entry.getField().getName())) {
-                if (entry.getValue() instanceof ArrayInstance
-                        && ((ArrayInstance) entry.getValue()).getArrayType() == Type.CHAR) {
-                    charBufferArray = (ArrayInstance) entry.getValue();
-                }
-            } else if ("count".equals(entry.getField().getName())) {
-                if (entry.getValue() instanceof Integer) {
-                    count = (Integer) entry.getValue();
-                }
-            } else if ("offset".equals(entry.getField().getName())) {
-                if (entry.getValue() instanceof Integer) {
-                    offset = (Integer) entry.getValue();
+        CharArrayView chars = getStringCharSequence(maxDecodeStringLength);
+        return chars == null ? null : chars.toCharArray();
+    }
+
+    /**
+     * Returns a view of the characters of this string, read in place from the heap dump instead
+     * of being copied. The fields are read without moving the buffer, so unlike
+     * {@link #getValues()} this can be called from several threads at once.
+     */
+    @Nullable
+    public final CharArrayView getStringCharSequence() {
+        return getStringCharSequence(Integer.MAX_VALUE);
+    }
+
+    @Nullable
+    public final CharArrayView getStringCharSequence(int maxDecodeStringLength) {
+        long valuePosition = getFieldPosition("value", Type.OBJECT);
+        if (valuePosition < 0) {
+            return null;
+        }
+        Instance value = mHeap.mSnapshot.findInstance(readId(valuePosition));
+        if (!(value instanceof ArrayInstance)
+                || ((ArrayInstance) value).getArrayType() != Type.CHAR) {
+            return null;
+        }
+
+        long countPosition = getFieldPosition("count", Type.INT);
+        long offsetPosition = getFieldPosition("offset", Type.INT);
+        int count = countPosition >= 0 ? DataBuffers.readInt(getBuffer(), countPosition) : -1;
+        int offset = offsetPosition >= 0 ? DataBuffers.readInt(getBuffer(), offsetPosition) : 0;
+        return ((ArrayInstance) value).asCharSequence(offset >= 0 ? offset : 0,
+                Math.max(Math.min(count, maxDecodeStringLength), 0));
+    }
+
+    /**
+     * Returns the position in the buffer of the first field named {@code name} of the given type,
+     * in the same order as {@link #getValues()}, or -1 if there is none.
+     */
+    private long getFieldPosition(@NonNull String name, @NonNull Type type) {
+        long position = mValuesOffset;
+        for (ClassObj clazz = getClassObj(); clazz != null; clazz = clazz.getSuperClassObj()) {
+            for (Field field : clazz.getFields()) {
+                if (field.getType() == type && name.equals(field.getName())) {
+                    return position;
                 }
+                position += mHeap.mSnapshot.getTypeSize(field.getType());
             }
         }
-
-        return charBufferArray == null ? null : charBufferArray
-                .asCharArray(offset >= 0 ? offset : 0,
-                        Math.max(Math.min(count, maxDecodeStringLength), 0));
+        return -1;
     }
 
     public static class FieldValue {
@@ -133,6 +133,12 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     }
 
     public int getShallowSize(int heapId) {
+        ObjectGraph graph = getObjectGraph();
+        if (graph != null) {
+            Heap heap = mHeap.mSnapshot.getHeap(heapId);
+            return heap == null ? 0
+                    : graph.getClassShallowSize(this, mHeap.mSnapshot.getHeapIndex(heap));
+        }
         HeapData heapData = mHeapData.get(heapId);
         return heapData == null ? 0 : mHeapData.get(heapId).mShallowSize;
     }
@@ -202,7 +208,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassObj(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
@@ -251,6 +257,12 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     public List<Instance> getInstancesList() {
         int count = getInstanceCount();
         ArrayList<Instance> resultList = new ArrayList<Instance>(count);
+        if (getObjectGraph() != null) {
+            for (Heap heap : mHeap.mSnapshot.getHeaps()) {
+                resultList.addAll(getHeapInstances(heap.getId()));
+            }
+            return resultList;
+        }
         for (int heapId : mHeapData.keys()) {
             resultList.addAll(getHeapInstances(heapId));
         }
@@ -259,16 +271,36 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     @NonNull
     public List<Instance> getHeapInstances(int heapId) {
+        ObjectGraph graph = getObjectGraph();
+        if (graph != null) {
+            Heap heap = mHeap.mSnapshot.getHeap(heapId);
+            return heap == null ? new ArrayList<Instance>(0)
+                    : graph.getClassInstances(this, mHeap.mSnapshot.getHeapIndex(heap));
+        }
         HeapData result = mHeapData.get(heapId);
         return result == null ? new ArrayList<Instance>(0) : result.mInstances;
     }
 
     public int getHeapInstancesCount(int heapId) {
+      ObjectGraph graph = getObjectGraph();
+      if (graph != null) {
+          Heap heap = mHeap.mSnapshot.getHeap(heapId);
+          return heap == null ? 0
+                  : graph.getClassInstancesCount(this, mHeap.mSnapshot.getHeapIndex(heap));
+      }
       HeapData result = mHeapData.get(heapId);
       return result == null ? 0 : result.mInstances.size();
     }
 
     public int getInstanceCount() {
+        if (getObjectGraph() != null) {
+            int count = 0;
+            for (Heap heap : mHeap.mSnapshot.getHeaps()) {
+                count += getHeapInstancesCount(heap.getId());
+            }
+            return count;
+        }
+
         int count = 0;
         for (Object heapStat : mHeapData.getValues()) {
             count += ((HeapData)heapStat).mInstances.size();
@@ -277,6 +309,14 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     }
 
     public int getShallowSize() {
+        if (getObjectGraph() != null) {
+            int size = 0;
+            for (Heap heap : mHeap.mSnapshot.getHeaps()) {
+                size += getShallowSize(heap.getId());
+            }
+            return size;
+        }
+
         int size = 0;
         for (Object heapStat : mHeapData.getValues()) {
             size += ((HeapData)heapStat).mShallowSize;
@@ -284,6 +324,11 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         return size;
     }
 
+    @Nullable
+    private ObjectGraph getObjectGraph() {
+        return mHeap != null && mHeap.mSnapshot != null ? mHeap.mSnapshot.getObjectGraph() : null;
+    }
+
     @NonNull
     public static String getReferenceClassName() {
         return "java.lang.ref.Reference";
@@ -85,6 +85,15 @@ public class Heap {
     }
 
     public final Instance getInstance(long id) {
+        ObjectGraph graph = getObjectGraph();
+        if (graph != null) {
+            int node = graph.findNode(id);
+            if (node == ObjectGraph.NO_NODE || graph.isClassObj(node)
+                    || graph.getHeap(node) != this) {
+                return null;
+            }
+            return graph.getInstance(node);
+        }
         return mInstances.get(id);
     }
 
@@ -155,10 +164,23 @@ public class Heap {
     }
 
     public void forEachInstance(@NonNull TObjectProcedure<Instance> procedure) {
+        ObjectGraph graph = getObjectGraph();
+        if (graph != null) {
+            graph.forEachInstance(mSnapshot.getHeapIndex(this), procedure);
+            return;
+        }
         mInstances.forEachValue(procedure);
     }
 
     public int getInstancesCount() {
+        ObjectGraph graph = getObjectGraph();
+        if (graph != null) {
+            return graph.getInstancesCount(mSnapshot.getHeapIndex(this));
+        }
         return mInstances.size();
     }
+
+    private ObjectGraph getObjectGraph() {
+        return mSnapshot != null ? mSnapshot.getObjectGraph() : null;
+    }
 }
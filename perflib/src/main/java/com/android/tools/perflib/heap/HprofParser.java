@@ -17,13 +17,23 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.google.common.base.Throwables;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
 
 import java.io.EOFException;
 import java.io.IOException;
-
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import gnu.trove.TLongArrayList;
 import gnu.trove.TLongObjectHashMap;
 
 class HprofParser {
@@ -119,13 +129,24 @@ class HprofParser {
 
     private static final int ROOT_PRIMITIVE_ARRAY_NODATA = 0xc3;
 
+    //  Heap dump records are decoded in parallel in batches of at least this many bytes.
+    private static final long MIN_BATCH_SIZE = 4 << 20;
+
+    //  Marks the end of a heap dump record in lists of sub-record positions.
+    static final long END_OF_RECORD = -1;
+
     @NonNull
     private final DataBuffer mInput;
 
     int mIdSize;
 
+    //  Null when streaming the records to mStream instead.
     Snapshot mSnapshot;
 
+    //  Set when this parser hands the records to a streaming parse instead of building a snapshot.
+    @Nullable
+    private final HprofStreamParser mStream;
+
     /*
      * These are only needed while parsing so are not kept as part of the
      * heap data.
@@ -136,13 +157,86 @@ class HprofParser {
     @NonNull
     TLongObjectHashMap<String> mClassNames = new TLongObjectHashMap<String>();
 
+    //  Executor to decode heap dump records on, or null to parse sequentially.
+    @Nullable
+    private final ExecutorService mExecutor;
+
+    //  Offsets and lengths of the heap dump records, found by the first pass of a parallel parse.
+    @NonNull
+    private final TLongArrayList mHeapDumpOffsets = new TLongArrayList();
+
+    @NonNull
+    private final TLongArrayList mHeapDumpLengths = new TLongArrayList();
+
+    //  Set when this parser decodes a batch of heap dump records on behalf of another parser.
+    @Nullable
+    private HeapDumpBatch mBatch;
+
+    //  Set when reopening a compact snapshot from its SnapshotIndex: the positions of the heap dump
+    //  sub-records to load instead of the heap dump records.
+    @Nullable
+    private TLongArrayList mIndexedRecords;
+
     static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer) {
-        new HprofParser(snapshot, buffer).parse();
+        new HprofParser(snapshot, buffer, null).parse();
+    }
+
+    /**
+     * Parses the strings, classes and stack traces of the buffer, and only the heap dump
+     * sub-records at the given positions, as recorded in {@link Snapshot#mHeapDumpRecords} by a
+     * previous parse of the same buffer. The instances are not loaded.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull TLongArrayList heapDumpRecords) {
+        HprofParser parser = new HprofParser(snapshot, buffer, null);
+        parser.mIndexedRecords = heapDumpRecords;
+        parser.parse();
     }
 
-    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer) {
+    /**
+     * Parses the buffer in two passes: the first one loads the strings, classes and stack traces,
+     * and indexes the heap dump records, which the second pass then decodes in parallel on the
+     * given executor. Since this needs independent cursors over the buffer, buffers other than
+     * {@link MemoryMappedFileBuffer} are parsed sequentially.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ExecutorService executor) {
+        new HprofParser(snapshot, buffer,
+                buffer instanceof MemoryMappedFileBuffer ? executor : null).parse();
+    }
+
+    /**
+     * Parses the buffer from its current position, handing the records to {@code stream} instead
+     * of building a snapshot. Threads and stack traces are skipped.
+     */
+    static void parseBuffer(@NonNull HprofStreamParser stream, @NonNull DataBuffer buffer) {
+        new HprofParser(null, stream, buffer, null).parse();
+    }
+
+    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @Nullable ExecutorService executor) {
+        this(snapshot, null, buffer, executor);
+    }
+
+    private HprofParser(@Nullable Snapshot snapshot, @Nullable HprofStreamParser stream,
+            @NonNull DataBuffer buffer, @Nullable ExecutorService executor) {
         mInput = buffer;
         mSnapshot = snapshot;
+        mStream = stream;
+        mExecutor = executor;
+    }
+
+    /**
+     * Creates a parser decoding heap dump records into {@code batch}, sharing the strings and
+     * class names already loaded by {@code parent}.
+     */
+    private HprofParser(@NonNull HprofParser parent, @NonNull DataBuffer buffer,
+            @NonNull HeapDumpBatch batch) {
+        this(parent.mSnapshot, buffer, null);
+        mIdSize = parent.mIdSize;
+        mStrings = parent.mStrings;
+        mClassNames = parent.mClassNames;
+        mBatch = batch;
     }
 
     private void parse() {
@@ -151,7 +245,11 @@ class HprofParser {
                 readNullTerminatedString();  // Version, ignored for now.
 
                 mIdSize = mInput.readInt();
-                mSnapshot.setIdSize(mIdSize);
+                if (mStream != null) {
+                    mStream.setIdSize(mIdSize);
+                } else {
+                    mSnapshot.setIdSize(mIdSize);
+                }
 
                 mInput.readLong();  // Timestamp, ignored for now.
 
@@ -171,21 +269,33 @@ class HprofParser {
                             break;
 
                         case STACK_FRAME:
-                            loadStackFrame();
+                            if (mStream != null) {
+                                skipFully(length);
+                            } else {
+                                loadStackFrame();
+                            }
                             break;
 
                         case STACK_TRACE:
-                            loadStackTrace();
+                            if (mStream != null) {
+                                skipFully(length);
+                            } else {
+                                loadStackTrace();
+                            }
                             break;
 
                         case HEAP_DUMP:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
-
                         case HEAP_DUMP_SEGMENT:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
+                            if (mIndexedRecords != null) {
+                                skipFully(length);
+                            } else if (mExecutor != null) {
+                                mHeapDumpOffsets.add(mInput.position());
+                                mHeapDumpLengths.add(length);
+                                skipFully(length);
+                            } else {
+                                loadHeapDump(length);
+                                setToDefaultHeap();
+                            }
                             break;
 
                         default:
@@ -195,12 +305,28 @@ class HprofParser {
                 }
             } catch (EOFException eof) {
                 //  this is fine
+            } catch (IndexOutOfBoundsException eof) {
+                //  so is the end of a truncated memory mapped file
+            } catch (BufferUnderflowException eof) {
+                //  this too
+            }
+            if (mExecutor != null) {
+                loadHeapDumpsInParallel(mExecutor);
+            }
+            if (mIndexedRecords != null) {
+                loadHeapDumpSubRecords(mIndexedRecords);
+            }
+            if (mStream == null) {
+                mSnapshot.resolveClasses();
+                mSnapshot.identifySoftReferences();
+                // TODO: enable this after the dominators computation is also optimized.
+                // mSnapshot.computeRetainedSizes();
             }
-            mSnapshot.resolveClasses();
-            mSnapshot.identifySoftReferences();
-            // TODO: enable this after the dominators computation is also optimized.
-            // mSnapshot.computeRetainedSizes();
         } catch (Exception e) {
+            if (mStream != null) {
+                //  Exceptions thrown by the visitor are for the caller of the streaming parse.
+                throw Throwables.propagate(e);
+            }
             e.printStackTrace();
         }
 
@@ -300,116 +426,384 @@ class HprofParser {
     }
 
     private void loadHeapDump(long length) throws IOException {
-        while (length > 0) {
+        TLongArrayList records = mSnapshot != null ? mSnapshot.mHeapDumpRecords : null;
+        while (length > 0 && mInput.hasRemaining()) {
+            long position = mInput.position();
             int tag = readUnsignedByte();
             length--;
+            length -= loadHeapDumpSubRecord(tag);
+            if (records != null && !isObjectDump(tag)) {
+                records.add(position);
+            }
+        }
+        if (records != null) {
+            records.add(END_OF_RECORD);
+        }
+    }
+
+    private static boolean isObjectDump(int tag) {
+        switch (tag) {
+            case ROOT_INSTANCE_DUMP:
+            case ROOT_OBJECT_ARRAY_DUMP:
+            case ROOT_PRIMITIVE_ARRAY_DUMP:
+            case ROOT_PRIMITIVE_ARRAY_NODATA:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Loads the heap dump sub-records at the given positions in order, switching back to the
+     * default heap at each {@link #END_OF_RECORD}.
+     */
+    private void loadHeapDumpSubRecords(@NonNull TLongArrayList positions) throws IOException {
+        for (int i = 0; i < positions.size(); i++) {
+            long position = positions.get(i);
+            if (position == END_OF_RECORD) {
+                mSnapshot.setToDefaultHeap();
+            } else {
+                mInput.setPosition(position);
+                loadHeapDumpSubRecord(readUnsignedByte());
+            }
+        }
+        mSnapshot.setToDefaultHeap();
+    }
 
+    /**
+     * Loads one sub-record of a heap dump record, and returns the number of bytes read after its
+     * tag.
+     */
+    private int loadHeapDumpSubRecord(int tag) throws IOException {
+        if (mStream != null) {
             switch (tag) {
-                case ROOT_UNKNOWN:
-                    length -= loadBasicObj(RootType.UNKNOWN);
+                case ROOT_CLASS_DUMP:
+                case ROOT_INSTANCE_DUMP:
+                case ROOT_OBJECT_ARRAY_DUMP:
+                case ROOT_PRIMITIVE_ARRAY_DUMP:
+                case ROOT_PRIMITIVE_ARRAY_NODATA:
+                case ROOT_HEAP_DUMP_INFO:
                     break;
 
-                case ROOT_JNI_GLOBAL:
-                    length -= loadBasicObj(RootType.NATIVE_STATIC);
-                    readId();   //  ignored
-                    length -= mIdSize;
-                    break;
+                default:
+                    return visitRoot(tag);
+            }
+        }
 
-                case ROOT_JNI_LOCAL:
-                    length -= loadJniLocal();
-                    break;
+        switch (tag) {
+            case ROOT_UNKNOWN:
+                return loadBasicObj(RootType.UNKNOWN);
 
-                case ROOT_JAVA_FRAME:
-                    length -= loadJavaFrame();
-                    break;
+            case ROOT_JNI_GLOBAL:
+                int length = loadBasicObj(RootType.NATIVE_STATIC);
+                readId();   //  ignored
+                return length + mIdSize;
 
-                case ROOT_NATIVE_STACK:
-                    length -= loadNativeStack();
-                    break;
+            case ROOT_JNI_LOCAL:
+                return loadJniLocal();
 
-                case ROOT_STICKY_CLASS:
-                    length -= loadBasicObj(RootType.SYSTEM_CLASS);
-                    break;
+            case ROOT_JAVA_FRAME:
+                return loadJavaFrame();
 
-                case ROOT_THREAD_BLOCK:
-                    length -= loadThreadBlock();
-                    break;
+            case ROOT_NATIVE_STACK:
+                return loadNativeStack();
 
-                case ROOT_MONITOR_USED:
-                    length -= loadBasicObj(RootType.BUSY_MONITOR);
-                    break;
+            case ROOT_STICKY_CLASS:
+                return loadBasicObj(RootType.SYSTEM_CLASS);
 
-                case ROOT_THREAD_OBJECT:
-                    length -= loadThreadObject();
-                    break;
+            case ROOT_THREAD_BLOCK:
+                return loadThreadBlock();
 
-                case ROOT_CLASS_DUMP:
-                    length -= loadClassDump();
-                    break;
+            case ROOT_MONITOR_USED:
+                return loadBasicObj(RootType.BUSY_MONITOR);
 
-                case ROOT_INSTANCE_DUMP:
-                    length -= loadInstanceDump();
-                    break;
+            case ROOT_THREAD_OBJECT:
+                return loadThreadObject();
 
-                case ROOT_OBJECT_ARRAY_DUMP:
-                    length -= loadObjectArrayDump();
-                    break;
+            case ROOT_CLASS_DUMP:
+                return loadClassDump();
 
-                case ROOT_PRIMITIVE_ARRAY_DUMP:
-                    length -= loadPrimitiveArrayDump();
-                    break;
+            case ROOT_INSTANCE_DUMP:
+                return loadInstanceDump();
 
-                case ROOT_PRIMITIVE_ARRAY_NODATA:
-                    System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
-                    length -= loadPrimitiveArrayDump();
+            case ROOT_OBJECT_ARRAY_DUMP:
+                return loadObjectArrayDump();
 
-                    throw new IllegalArgumentException(
-                            "Don't know how to load a nodata array");
+            case ROOT_PRIMITIVE_ARRAY_DUMP:
+                return loadPrimitiveArrayDump();
 
-                case ROOT_HEAP_DUMP_INFO:
-                    int heapId = mInput.readInt();
-                    long heapNameId = readId();
-                    String heapName = mStrings.get(heapNameId);
+            case ROOT_PRIMITIVE_ARRAY_NODATA:
+                System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
+                loadPrimitiveArrayDump();
+
+                throw new IllegalArgumentException(
+                        "Don't know how to load a nodata array");
 
+            case ROOT_HEAP_DUMP_INFO:
+                int heapId = mInput.readInt();
+                long heapNameId = readId();
+                String heapName = mStrings.get(heapNameId);
+
+                if (mStream != null) {
+                    mStream.setHeapTo(heapId, heapName);
+                } else {
                     mSnapshot.setHeapTo(heapId, heapName);
-                    length -= 4 + mIdSize;
-                    break;
+                }
+                return 4 + mIdSize;
 
-                case ROOT_INTERNED_STRING:
-                    length -= loadBasicObj(RootType.INTERNED_STRING);
-                    break;
+            case ROOT_INTERNED_STRING:
+                return loadBasicObj(RootType.INTERNED_STRING);
 
-                case ROOT_FINALIZING:
-                    length -= loadBasicObj(RootType.FINALIZING);
-                    break;
+            case ROOT_FINALIZING:
+                return loadBasicObj(RootType.FINALIZING);
 
-                case ROOT_DEBUGGER:
-                    length -= loadBasicObj(RootType.DEBUGGER);
-                    break;
+            case ROOT_DEBUGGER:
+                return loadBasicObj(RootType.DEBUGGER);
 
-                case ROOT_REFERENCE_CLEANUP:
-                    length -= loadBasicObj(RootType.REFERENCE_CLEANUP);
-                    break;
+            case ROOT_REFERENCE_CLEANUP:
+                return loadBasicObj(RootType.REFERENCE_CLEANUP);
 
-                case ROOT_VM_INTERNAL:
-                    length -= loadBasicObj(RootType.VM_INTERNAL);
-                    break;
+            case ROOT_VM_INTERNAL:
+                return loadBasicObj(RootType.VM_INTERNAL);
+
+            case ROOT_JNI_MONITOR:
+                return loadJniMonitor();
+
+            case ROOT_UNREACHABLE:
+                return loadBasicObj(RootType.UNREACHABLE);
+
+            default:
+                throw new IllegalArgumentException(
+                        "loadHeapDump loop with unknown tag " + tag
+                                + " with " + mInput.remaining()
+                                + " bytes possibly remaining");
+        }
+    }
+
+    /**
+     * Decodes the heap dump records indexed by the first pass in parallel, in batches of
+     * consecutive records, and merges the results into the snapshot in the original order.
+     */
+    private void loadHeapDumpsInParallel(@NonNull ExecutorService executor) throws Exception {
+        long totalLength = 0;
+        for (int i = 0; i < mHeapDumpLengths.size(); i++) {
+            totalLength += mHeapDumpLengths.get(i);
+        }
+        long batchSize = Math.max(MIN_BATCH_SIZE,
+                totalLength / (4 * Runtime.getRuntime().availableProcessors()));
+
+        List<Future<HeapDumpBatch>> batches = new ArrayList<Future<HeapDumpBatch>>();
+        int start = 0;
+        while (start < mHeapDumpOffsets.size()) {
+            int end = start;
+            long length = 0;
+            while (end < mHeapDumpOffsets.size() && length < batchSize) {
+                length += mHeapDumpLengths.get(end++);
+            }
+            final int batchStart = start;
+            final int batchEnd = end;
+            batches.add(executor.submit(new Callable<HeapDumpBatch>() {
+                @Override
+                public HeapDumpBatch call() throws Exception {
+                    return loadHeapDumpBatch(batchStart, batchEnd);
+                }
+            }));
+            start = end;
+        }
 
-                case ROOT_JNI_MONITOR:
-                    length -= loadJniMonitor();
+        try {
+            for (Future<HeapDumpBatch> batch : batches) {
+                mergeHeapDumpBatch(batch.get());
+            }
+        } finally {
+            for (Future<HeapDumpBatch> batch : batches) {
+                batch.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Decodes a batch of heap dump records. Like the sequential parse, this stops at the end of a
+     * truncated file, keeping the sub-records loaded before it.
+     */
+    @NonNull
+    private HeapDumpBatch loadHeapDumpBatch(int start, int end) throws IOException {
+        HeapDumpBatch batch = new HeapDumpBatch();
+        HprofParser parser = new HprofParser(this,
+                ((MemoryMappedFileBuffer) mInput).duplicate(), batch);
+        try {
+            for (int i = start; i < end; i++) {
+                parser.mInput.setPosition(mHeapDumpOffsets.get(i));
+                parser.loadHeapDumpObjects(mHeapDumpLengths.get(i));
+            }
+        } catch (EOFException eof) {
+            //  the file is truncated
+        } catch (IndexOutOfBoundsException eof) {
+            //  likewise
+        } catch (BufferUnderflowException eof) {
+            //  likewise
+        }
+        return batch;
+    }
+
+    /**
+     * Loads the class and instance dumps of a heap dump record into mBatch. Roots, threads and
+     * heap switches may depend on earlier records, so they are only recorded to be replayed
+     * sequentially by {@link #mergeHeapDumpBatch(HeapDumpBatch)}.
+     */
+    private void loadHeapDumpObjects(long length) throws IOException {
+        assert mBatch != null;
+        mBatch.setHeap(Snapshot.DEFAULT_HEAP_ID, null);
+        boolean hasHeapInfo = false;
+        while (length > 0 && mInput.hasRemaining()) {
+            long position = mInput.position();
+            int tag = readUnsignedByte();
+            length--;
+
+            switch (tag) {
+                case ROOT_CLASS_DUMP:
+                case ROOT_INSTANCE_DUMP:
+                case ROOT_OBJECT_ARRAY_DUMP:
+                case ROOT_PRIMITIVE_ARRAY_DUMP:
+                case ROOT_PRIMITIVE_ARRAY_NODATA:
+                    length -= loadHeapDumpSubRecord(tag);
                     break;
 
-                case ROOT_UNREACHABLE:
-                    length -= loadBasicObj(RootType.UNREACHABLE);
+                case ROOT_HEAP_DUMP_INFO:
+                    int heapId = mInput.readInt();
+                    mBatch.setHeap(heapId, mStrings.get(readId()));
+                    mBatch.mDeferredRecords.add(position);
+                    hasHeapInfo = true;
+                    length -= 4 + mIdSize;
                     break;
 
                 default:
-                    throw new IllegalArgumentException(
-                            "loadHeapDump loop with unknown tag " + tag
-                                    + " with " + mInput.remaining()
-                                    + " bytes possibly remaining");
+                    int size = getRootSize(tag);
+                    if (size > mInput.remaining()) {
+                        //  The sequential parse wouldn't load a truncated root either.
+                        throw new EOFException();
+                    }
+                    mBatch.mDeferredRecords.add(position);
+                    skipFully(size);
+                    length -= size;
             }
         }
+        if (hasHeapInfo) {
+            mBatch.mDeferredRecords.add(END_OF_RECORD);
+        }
+    }
+
+    private void mergeHeapDumpBatch(@NonNull HeapDumpBatch batch) throws IOException {
+        loadHeapDumpSubRecords(batch.mDeferredRecords);
+
+        for (HeapDumpBatch.HeapObjects objects : batch.mHeapObjects) {
+            if (objects.mHeapName != null) {
+                mSnapshot.setHeapTo(objects.mHeapId, objects.mHeapName);
+            } else {
+                mSnapshot.setToDefaultHeap();
+            }
+            for (ClassObj theClass : objects.mClasses) {
+                mSnapshot.addClass(theClass.getId(), theClass);
+            }
+            for (Instance instance : objects.mInstances) {
+                mSnapshot.addInstance(instance.getId(), instance);
+            }
+        }
+        mSnapshot.setToDefaultHeap();
+    }
+
+    /**
+     * Returns the size of the root or thread sub-record with the given tag, excluding the tag.
+     */
+    private int getRootSize(int tag) {
+        switch (tag) {
+            case ROOT_UNKNOWN:
+            case ROOT_STICKY_CLASS:
+            case ROOT_MONITOR_USED:
+            case ROOT_INTERNED_STRING:
+            case ROOT_FINALIZING:
+            case ROOT_DEBUGGER:
+            case ROOT_REFERENCE_CLEANUP:
+            case ROOT_VM_INTERNAL:
+            case ROOT_UNREACHABLE:
+                return mIdSize;
+
+            case ROOT_JNI_GLOBAL:
+                return mIdSize + mIdSize;
+
+            case ROOT_NATIVE_STACK:
+            case ROOT_THREAD_BLOCK:
+                return mIdSize + 4;
+
+            case ROOT_JNI_LOCAL:
+            case ROOT_JAVA_FRAME:
+            case ROOT_THREAD_OBJECT:
+            case ROOT_JNI_MONITOR:
+                return mIdSize + 4 + 4;
+
+            default:
+                throw new IllegalArgumentException(
+                        "loadHeapDump loop with unknown tag " + tag
+                                + " with " + mInput.remaining()
+                                + " bytes possibly remaining");
+        }
+    }
+
+    /**
+     * Returns the type of the root sub-record with the given tag, or null for thread objects.
+     */
+    @Nullable
+    private static RootType getRootType(int tag) {
+        switch (tag) {
+            case ROOT_UNKNOWN:
+                return RootType.UNKNOWN;
+            case ROOT_JNI_GLOBAL:
+                return RootType.NATIVE_STATIC;
+            case ROOT_JNI_LOCAL:
+                return RootType.NATIVE_LOCAL;
+            case ROOT_JAVA_FRAME:
+                return RootType.JAVA_LOCAL;
+            case ROOT_NATIVE_STACK:
+                return RootType.NATIVE_STACK;
+            case ROOT_STICKY_CLASS:
+                return RootType.SYSTEM_CLASS;
+            case ROOT_THREAD_BLOCK:
+                return RootType.THREAD_BLOCK;
+            case ROOT_MONITOR_USED:
+                return RootType.BUSY_MONITOR;
+            case ROOT_INTERNED_STRING:
+                return RootType.INTERNED_STRING;
+            case ROOT_FINALIZING:
+                return RootType.FINALIZING;
+            case ROOT_DEBUGGER:
+                return RootType.DEBUGGER;
+            case ROOT_REFERENCE_CLEANUP:
+                return RootType.REFERENCE_CLEANUP;
+            case ROOT_VM_INTERNAL:
+                return RootType.VM_INTERNAL;
+            case ROOT_JNI_MONITOR:
+                return RootType.NATIVE_MONITOR;
+            case ROOT_UNREACHABLE:
+                return RootType.UNREACHABLE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Hands a root or thread sub-record to the streaming parse. The threads and stack traces the
+     * root refers to are skipped, since they are only kept in snapshots.
+     */
+    private int visitRoot(int tag) throws IOException {
+        assert mStream != null;
+        int size = getRootSize(tag);
+        long id = readId();
+        skipFully(size - mIdSize);
+        RootType type = getRootType(tag);
+        if (type != null) {
+            mStream.visitRoot(type, id);
+        }
+        return size;
     }
 
     private int loadJniLocal() throws IOException {
@@ -485,7 +879,6 @@ class HprofParser {
     private int loadClassDump() throws IOException {
         final long id = readId();
         int stackSerialNumber = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackSerialNumber);
         final long superClassId = readId();
         final long classLoaderId = readId();
         readId(); // Ignored: Signeres ID.
@@ -505,9 +898,7 @@ class HprofParser {
             bytesRead += 2 + skipValue();
         }
 
-        final ClassObj theClass = new ClassObj(id, stack, mClassNames.get(id), mInput.position());
-        theClass.setSuperClassId(superClassId);
-        theClass.setClassLoaderId(classLoaderId);
+        long staticFieldsOffset = mInput.position();
 
         //  Skip over static fields
         numEntries = readUnsignedShort();
@@ -520,13 +911,11 @@ class HprofParser {
             Type type = Type.getType(mInput.readByte());
 
             staticFields[i] = new Field(type, name);
-            skipFully(mSnapshot.getTypeSize(type));
+            skipFully(getTypeSize(type));
 
-            bytesRead += mIdSize + 1 + mSnapshot.getTypeSize(type);
+            bytesRead += mIdSize + 1 + getTypeSize(type);
         }
 
-        theClass.setStaticFields(staticFields);
-
         //  Instance fields
         numEntries = readUnsignedShort();
         bytesRead += 2;
@@ -542,10 +931,25 @@ class HprofParser {
             bytesRead += mIdSize + 1;
         }
 
+        if (mStream != null) {
+            mStream.visitClass(id, mClassNames.get(id), superClassId, classLoaderId, instanceSize,
+                    fields);
+            return bytesRead;
+        }
+
+        StackTrace stack = mSnapshot.getStackTrace(stackSerialNumber);
+        final ClassObj theClass = new ClassObj(id, stack, mClassNames.get(id), staticFieldsOffset);
+        theClass.setSuperClassId(superClassId);
+        theClass.setClassLoaderId(classLoaderId);
+        theClass.setStaticFields(staticFields);
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
-        mSnapshot.addClass(id, theClass);
+        if (mBatch != null) {
+            mBatch.getHeapObjects().mClasses.add(theClass);
+        } else {
+            mSnapshot.addClass(id, theClass);
+        }
 
         return bytesRead;
     }
@@ -553,47 +957,61 @@ class HprofParser {
     private int loadInstanceDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         long classId = readId();
         int remaining = mInput.readInt();
 
         long position = mInput.position();
-        ClassInstance instance = new ClassInstance(id, stack, position);
-        instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        if (mStream != null) {
+            mStream.visitInstance(id, classId, remaining, position);
+        } else {
+            StackTrace stack = mSnapshot.getStackTrace(stackId);
+            ClassInstance instance = new ClassInstance(id, stack, position);
+            instance.setClassId(classId);
+            addInstance(id, instance);
+        }
 
-        skipFully(remaining);
+        //  The visitor may have moved the cursor to read the values.
+        mInput.setPosition(position + remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
     }
 
     private int loadObjectArrayDump() throws IOException {
         final long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         long classId = readId();
-        ArrayInstance array =
-                new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
-        array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
+        long position = mInput.position();
+        if (mStream != null) {
+            mStream.visitArray(id, classId, Type.OBJECT, numElements, position);
+        } else {
+            StackTrace stack = mSnapshot.getStackTrace(stackId);
+            ArrayInstance array = new ArrayInstance(id, stack, Type.OBJECT, numElements, position);
+            array.setClassId(classId);
+            addInstance(id, array);
+        }
 
         int remaining = numElements * mIdSize;
-        skipFully(remaining);
+        mInput.setPosition(position + remaining);
         return mIdSize + 4 + 4 + mIdSize + remaining;
     }
 
     private int loadPrimitiveArrayDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         Type type = Type.getType(readUnsignedByte());
-        int size = mSnapshot.getTypeSize(type);
-        ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
+        int size = getTypeSize(type);
+        long position = mInput.position();
+        if (mStream != null) {
+            mStream.visitArray(id, 0, type, numElements, position);
+        } else {
+            StackTrace stack = mSnapshot.getStackTrace(stackId);
+            ArrayInstance array = new ArrayInstance(id, stack, type, numElements, position);
+            addInstance(id, array);
+        }
 
         int remaining = numElements * size;
-        skipFully(remaining);
+        mInput.setPosition(position + remaining);
         return mIdSize + 4 + 4 + 1 + remaining;
     }
 
@@ -610,9 +1028,32 @@ class HprofParser {
         return mIdSize + 4 + 4;
     }
 
+    private void addInstance(long id, @NonNull Instance instance) {
+        if (mBatch != null) {
+            mBatch.getHeapObjects().mInstances.add(instance);
+        } else {
+            mSnapshot.addInstance(id, instance);
+        }
+    }
+
+    private void setToDefaultHeap() {
+        if (mStream != null) {
+            mStream.setToDefaultHeap();
+        } else {
+            mSnapshot.setToDefaultHeap();
+        }
+    }
+
+    private int getTypeSize(@NonNull Type type) {
+        if (mStream != null) {
+            return type == Type.OBJECT ? mIdSize : type.getSize();
+        }
+        return mSnapshot.getTypeSize(type);
+    }
+
     private int skipValue() throws IOException {
         Type type = Type.getType(readUnsignedByte());
-        int size = mSnapshot.getTypeSize(type);
+        int size = getTypeSize(type);
 
         skipFully(size);
 
@@ -622,4 +1063,54 @@ class HprofParser {
     private void skipFully(long numBytes) throws IOException {
         mInput.setPosition(mInput.position() + numBytes);
     }
+
+    /**
+     * The class objects and instances decoded from a batch of heap dump records, grouped by heap,
+     * along with the positions of the sub-records which can only be loaded sequentially.
+     */
+    private static final class HeapDumpBatch {
+
+        static final class HeapObjects {
+
+            final int mHeapId;
+
+            //  Null for the default heap.
+            @Nullable
+            final String mHeapName;
+
+            final List<ClassObj> mClasses = new ArrayList<ClassObj>();
+
+            final List<Instance> mInstances = new ArrayList<Instance>();
+
+            HeapObjects(int heapId, @Nullable String heapName) {
+                mHeapId = heapId;
+                mHeapName = heapName;
+            }
+        }
+
+        final TLongArrayList mDeferredRecords = new TLongArrayList();
+
+        final List<HeapObjects> mHeapObjects = new ArrayList<HeapObjects>();
+
+        private int mHeapId;
+
+        @Nullable
+        private String mHeapName;
+
+        void setHeap(int heapId, @Nullable String heapName) {
+            mHeapId = heapId;
+            mHeapName = heapName;
+        }
+
+        @NonNull
+        HeapObjects getHeapObjects() {
+            HeapObjects last = mHeapObjects.isEmpty() ? null
+                    : mHeapObjects.get(mHeapObjects.size() - 1);
+            if (last == null || last.mHeapId != mHeapId) {
+                last = new HeapObjects(mHeapId, mHeapName);
+                mHeapObjects.add(last);
+            }
+            return last;
+        }
+    }
 }
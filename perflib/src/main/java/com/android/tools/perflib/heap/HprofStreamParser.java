@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+
+import gnu.trove.TLongObjectHashMap;
+
+/**
+ * Parses the records of an hprof file and hands them to a {@link HprofVisitor}, without building
+ * a {@link Snapshot}. The records are decoded by {@link HprofParser}, and only the class layouts
+ * and the string table of the dump, which holds the names of its classes, fields and methods, are
+ * kept in memory: it grows with the code of the app rather than with its heap, so heap dumps much
+ * larger than the available memory can be scanned. The buffer can be parsed several times, for
+ * analyses that need more than one pass, and class layouts are kept between passes.
+ * <p>
+ * Only analyses which can be computed from the records themselves are supported, such as
+ * {@link com.android.tools.perflib.heap.memoryanalyzer.StreamingClassHistogram} and
+ * {@link com.android.tools.perflib.heap.memoryanalyzer.StreamingDuplicatedStrings}. Threads and
+ * stack traces are skipped, references are not resolved to instances, and reachability,
+ * dominators and retained sizes are unknown, so analyses which need them, like the leaked
+ * activity detection of
+ * {@link com.android.tools.perflib.heap.memoryanalyzer.LeakedActivityAnalyzerTask}, are not
+ * supported and still need a {@link Snapshot}.
+ */
+public final class HprofStreamParser {
+
+    @NonNull
+    private final DataBuffer mInput;
+
+    private int mIdSize;
+
+    @NonNull
+    private final TLongObjectHashMap<ClassRecord> mClasses = new TLongObjectHashMap<ClassRecord>();
+
+    //  The visitor of the parse in progress.
+    @Nullable
+    private HprofVisitor mVisitor;
+
+    private int mHeapId;
+
+    @NonNull
+    private final InstanceRecord mInstanceRecord = new InstanceRecord();
+
+    @NonNull
+    private final ArrayRecord mArrayRecord = new ArrayRecord();
+
+    public HprofStreamParser(@NonNull DataBuffer buffer) {
+        mInput = buffer;
+    }
+
+    /**
+     * Parses the whole buffer from the start, calling the visitor for every record. Like for
+     * snapshots, parsing stops at the end of a truncated file.
+     */
+    public void parse(@NonNull HprofVisitor visitor) {
+        mVisitor = visitor;
+        mHeapId = Snapshot.DEFAULT_HEAP_ID;
+        try {
+            mInput.setPosition(0);
+            HprofParser.parseBuffer(this, mInput);
+        } finally {
+            mVisitor = null;
+        }
+    }
+
+    /**
+     * Returns the size of the heap dump, in bytes. Not to be called during a parse.
+     */
+    public long getSize() {
+        mInput.setPosition(0);
+        return mInput.remaining();
+    }
+
+    public int getIdSize() {
+        return mIdSize;
+    }
+
+    @Nullable
+    public String getClassName(long classId) {
+        ClassRecord classRecord = mClasses.get(classId);
+        return classRecord != null ? classRecord.mName : null;
+    }
+
+    /**
+     * Returns the class dumped with the given id, if it has been parsed already.
+     */
+    @Nullable
+    public ClassRecord getClass(long classId) {
+        return mClasses.get(classId);
+    }
+
+    /**
+     * Returns the offset of the named field in the values of instances of the given class, or -1
+     * if the field or one of the classes in the hierarchy is not known. Fields of subclasses hide
+     * fields of superclasses with the same name.
+     */
+    public int getFieldOffset(long classId, @NonNull String fieldName) {
+        int offset = 0;
+        while (classId != 0) {
+            ClassRecord classRecord = mClasses.get(classId);
+            if (classRecord == null) {
+                return -1;
+            }
+            for (Field field : classRecord.mFields) {
+                if (fieldName.equals(field.getName())) {
+                    return offset;
+                }
+                offset += getTypeSize(field.getType());
+            }
+            classId = classRecord.mSuperClassId;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a view of {@code length} chars starting at the given position of the buffer, such
+     * as the elements of a char array found by an earlier parse, see
+     * {@link ArrayRecord#getValuesPosition()}.
+     */
+    @NonNull
+    public CharArrayView getChars(long position, int length) {
+        return new CharArrayView(mInput, position, length);
+    }
+
+    void setIdSize(int idSize) {
+        mIdSize = idSize;
+    }
+
+    void setToDefaultHeap() {
+        mHeapId = Snapshot.DEFAULT_HEAP_ID;
+    }
+
+    void setHeapTo(int heapId, @NonNull String heapName) {
+        assert mVisitor != null;
+        mHeapId = heapId;
+        mVisitor.visitHeap(heapId, heapName);
+    }
+
+    void visitRoot(@NonNull RootType type, long id) {
+        assert mVisitor != null;
+        mVisitor.visitRoot(type, id);
+    }
+
+    void visitClass(long id, @Nullable String name, long superClassId, long classLoaderId,
+            int instanceSize, @NonNull Field[] fields) {
+        assert mVisitor != null;
+        ClassRecord classRecord = new ClassRecord(id, name, superClassId, classLoaderId,
+                instanceSize, mHeapId, fields);
+        mClasses.put(id, classRecord);
+        mVisitor.visitClass(classRecord);
+    }
+
+    void visitInstance(long id, long classId, int valuesLength, long valuesPosition) {
+        assert mVisitor != null;
+        InstanceRecord record = mInstanceRecord;
+        record.mId = id;
+        record.mClassId = classId;
+        record.mHeapId = mHeapId;
+        record.mValuesLength = valuesLength;
+        record.mValuesPosition = valuesPosition;
+        mVisitor.visitInstance(record);
+    }
+
+    /**
+     * @param classId the class of an object array, or 0 for primitive arrays
+     */
+    void visitArray(long id, long classId, @NonNull Type type, int length, long valuesPosition) {
+        assert mVisitor != null;
+        ArrayRecord record = mArrayRecord;
+        record.mId = id;
+        record.mClassId = classId;
+        record.mHeapId = mHeapId;
+        record.mType = type;
+        record.mLength = length;
+        record.mValuesPosition = valuesPosition;
+        mVisitor.visitArray(record);
+    }
+
+    private int getTypeSize(@NonNull Type type) {
+        return type == Type.OBJECT ? mIdSize : type.getSize();
+    }
+
+    private long readId(long position) {
+        mInput.setPosition(position);
+        // As long as we don't interpret IDs, reading signed values here is fine.
+        switch (mIdSize) {
+            case 1:
+                return mInput.readByte();
+            case 2:
+                return mInput.readShort();
+            case 4:
+                return mInput.readInt();
+            case 8:
+                return mInput.readLong();
+        }
+
+        throw new IllegalArgumentException("ID Length must be 1, 2, 4, or 8");
+    }
+
+    public static final class ClassRecord {
+
+        private final long mId;
+
+        @Nullable
+        private final String mName;
+
+        private final long mSuperClassId;
+
+        private final long mClassLoaderId;
+
+        private final int mInstanceSize;
+
+        private final int mHeapId;
+
+        @NonNull
+        private final Field[] mFields;
+
+        private ClassRecord(long id, @Nullable String name, long superClassId, long classLoaderId,
+                int instanceSize, int heapId, @NonNull Field[] fields) {
+            mId = id;
+            mName = name;
+            mSuperClassId = superClassId;
+            mClassLoaderId = classLoaderId;
+            mInstanceSize = instanceSize;
+            mHeapId = heapId;
+            mFields = fields;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        @Nullable
+        public String getName() {
+            return mName;
+        }
+
+        public long getSuperClassId() {
+            return mSuperClassId;
+        }
+
+        public long getClassLoaderId() {
+            return mClassLoaderId;
+        }
+
+        public int getInstanceSize() {
+            return mInstanceSize;
+        }
+
+        public int getHeapId() {
+            return mHeapId;
+        }
+
+        /**
+         * Returns the number of instance fields declared by this class, excluding superclasses.
+         */
+        public int getFieldCount() {
+            return mFields.length;
+        }
+
+        @Nullable
+        public String getFieldName(int index) {
+            return mFields[index].getName();
+        }
+
+        @NonNull
+        public Type getFieldType(int index) {
+            return mFields[index].getType();
+        }
+    }
+
+    public final class InstanceRecord {
+
+        private long mId;
+
+        private long mClassId;
+
+        private int mHeapId;
+
+        private int mValuesLength;
+
+        private long mValuesPosition;
+
+        private InstanceRecord() {
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public long getClassId() {
+            return mClassId;
+        }
+
+        public int getHeapId() {
+            return mHeapId;
+        }
+
+        /**
+         * Returns the size in bytes of the field values of this instance.
+         */
+        public int getValuesLength() {
+            return mValuesLength;
+        }
+
+        /**
+         * Returns the offset of the named field in the values of this instance, or -1 if it is
+         * unknown.
+         */
+        public int getFieldOffset(@NonNull String fieldName) {
+            return HprofStreamParser.this.getFieldOffset(mClassId, fieldName);
+        }
+
+        public long readId(int offset) {
+            return HprofStreamParser.this.readId(mValuesPosition + offset);
+        }
+
+        public int readInt(int offset) {
+            mInput.setPosition(mValuesPosition + offset);
+            return mInput.readInt();
+        }
+    }
+
+    public final class ArrayRecord {
+
+        private long mId;
+
+        private long mClassId;
+
+        private int mHeapId;
+
+        @NonNull
+        private Type mType;
+
+        private int mLength;
+
+        private long mValuesPosition;
+
+        private ArrayRecord() {
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Returns the class of an object array, or 0 for primitive arrays.
+         */
+        public long getClassId() {
+            return mClassId;
+        }
+
+        public int getHeapId() {
+            return mHeapId;
+        }
+
+        @NonNull
+        public Type getType() {
+            return mType;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Returns the size in bytes of the elements of this array.
+         */
+        public int getSize() {
+            return mLength * getTypeSize(mType);
+        }
+
+        public long readId(int index) {
+            assert mType == Type.OBJECT;
+            return HprofStreamParser.this.readId(mValuesPosition + (long) index * mIdSize);
+        }
+
+        /**
+         * Returns the position of the elements in the buffer, to read them after the callback
+         * returns, see {@link HprofStreamParser#getChars(long, int)}.
+         */
+        public long getValuesPosition() {
+            return mValuesPosition;
+        }
+
+        /**
+         * Decodes {@code count} elements of a char array starting at {@code start}, clamped to
+         * the bounds of the array.
+         */
+        @NonNull
+        public char[] asCharArray(int start, int count) {
+            return asCharSequence(start, count).toCharArray();
+        }
+
+        /**
+         * Returns a view of {@code count} elements of a char array starting at {@code start},
+         * clamped to the bounds of the array. Unlike the record itself, the view remains valid
+         * after the callback returns.
+         */
+        @NonNull
+        public CharArrayView asCharSequence(int start, int count) {
+            assert mType == Type.CHAR;
+            start = Math.max(0, Math.min(start, mLength));
+            count = Math.max(0, Math.min(count, mLength - start));
+            return new CharArrayView(mInput, mValuesPosition + 2L * start, count);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Receives the records of an hprof file as {@link HprofStreamParser} parses them, without a
+ * {@link Snapshot} being built. The records passed to the callbacks are reused by the parser, and
+ * are only valid for the duration of the callback. All callbacks do nothing by default.
+ */
+public abstract class HprofVisitor {
+
+    /**
+     * Called when a heap dump record switches to a different heap. Every heap dump record starts
+     * in the default heap.
+     */
+    public void visitHeap(int heapId, @NonNull String heapName) {
+    }
+
+    public void visitRoot(@NonNull RootType type, long id) {
+    }
+
+    public void visitClass(@NonNull HprofStreamParser.ClassRecord record) {
+    }
+
+    public void visitInstance(@NonNull HprofStreamParser.InstanceRecord record) {
+    }
+
+    /**
+     * Called for both object arrays and primitive arrays.
+     */
+    public void visitArray(@NonNull HprofStreamParser.ArrayRecord record) {
+    }
+}
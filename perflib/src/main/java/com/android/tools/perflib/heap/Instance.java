@@ -19,6 +19,7 @@ package com.android.tools.perflib.heap;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.DataBuffers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.UnsignedBytes;
 
@@ -72,6 +73,11 @@ public abstract class Instance {
     //  Don't create an actual list until we need to.
     protected ArrayList<Instance> mSoftReverseReferences = null;
 
+    //  For the views of a compact snapshot, whether the references and the dominator data above
+    //  have been copied from its ObjectGraph. They are only loaded when first used, since they
+    //  are made of the views of other nodes.
+    volatile boolean mGraphDataLoaded;
+
     Instance(long id, @NonNull StackTrace stackTrace) {
         mId = id;
         mStack = stackTrace;
@@ -135,6 +141,7 @@ public abstract class Instance {
     }
 
     public int getTopologicalOrder() {
+        loadGraphData();
         return mTopologicalOrder;
     }
 
@@ -144,6 +151,7 @@ public abstract class Instance {
 
     @Nullable
     public Instance getImmediateDominator() {
+        loadGraphData();
         return mImmediateDominator;
     }
 
@@ -152,10 +160,12 @@ public abstract class Instance {
     }
 
     public int getDistanceToGcRoot() {
+        loadGraphData();
         return mDistanceToGcRoot;
     }
 
     public Instance getNextInstanceToGcRoot() {
+        loadGraphData();
         return mNextInstanceToGcRoot;
     }
 
@@ -173,7 +183,7 @@ public abstract class Instance {
      * The results are only valid after ShortestDistanceVisitor has been run.
      */
     public boolean isReachable() {
-        return mDistanceToGcRoot != Integer.MAX_VALUE;
+        return getDistanceToGcRoot() != Integer.MAX_VALUE;
     }
 
     public void resetRetainedSize() {
@@ -190,11 +200,17 @@ public abstract class Instance {
         mRetainedSizes[heapIndex] += size;
     }
 
+    void setRetainedSizes(@NonNull long[] retainedSizes) {
+        mRetainedSizes = retainedSizes;
+    }
+
     public long getRetainedSize(int heapIndex) {
+        loadGraphData();
         return mRetainedSizes[heapIndex];
     }
 
     public long getTotalRetainedSize() {
+        loadGraphData();
         if (mRetainedSizes == null) {
             return 0;
         }
@@ -228,24 +244,40 @@ public abstract class Instance {
 
     @NonNull
     public ArrayList<Instance> getHardForwardReferences() {
+        loadGraphData();
         return mHardForwardReferences;
     }
 
     @NonNull
     public Instance getSoftForwardReference() {
+        loadGraphData();
         return mSoftForwardReference;
     }
 
     @NonNull
     public ArrayList<Instance> getHardReverseReferences() {
+        loadGraphData();
         return mHardReverseReferences;
     }
 
     @Nullable
     public ArrayList<Instance> getSoftReverseReferences() {
+        loadGraphData();
         return mSoftReverseReferences;
     }
 
+    private void loadGraphData() {
+        if (mGraphDataLoaded || mHeap == null || mHeap.mSnapshot == null) {
+            return;
+        }
+        ObjectGraph graph = mHeap.mSnapshot.getObjectGraph();
+        if (graph != null) {
+            graph.loadGraphData(this);
+        } else {
+            mGraphDataLoaded = true;
+        }
+    }
+
     /**
      * Removes all duplicate references AND references to itself.
      */
@@ -317,6 +349,23 @@ public abstract class Instance {
         return 0;
     }
 
+    /**
+     * Reads an id at {@code position} without moving the buffer.
+     */
+    protected long readId(long position) {
+        switch (mHeap.mSnapshot.getTypeSize(Type.OBJECT)) {
+            case 1:
+                return DataBuffers.readByte(getBuffer(), position);
+            case 2:
+                return DataBuffers.readShort(getBuffer(), position);
+            case 4:
+                return DataBuffers.readInt(getBuffer(), position);
+            case 8:
+                return DataBuffers.readLong(getBuffer(), position);
+        }
+        return 0;
+    }
+
     protected int readUnsignedByte() {
         return UnsignedBytes.toInt(getBuffer().readByte());
     }
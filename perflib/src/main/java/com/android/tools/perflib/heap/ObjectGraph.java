@@ -0,0 +1,1264 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.analysis.ComputationProgress;
+import com.android.tools.perflib.heap.analysis.SemiNcaDominators;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TObjectProcedure;
+
+/**
+ * A compact representation of the object graph of a {@link Snapshot}, used as an alternative to
+ * keeping one {@link Instance} object (and its reference lists) per object in the heap dump.
+ *
+ * Every class object and instance of the dump is a node identified by a dense index in
+ * [0, {@link #getNodeCount()}). Nodes are sorted by id so they can be found by binary search, and
+ * the per-node data (id, heap, class, size and location in the dump) is stored in off-heap columns.
+ * Hard references are stored in compressed sparse row form: the forward references of node n are
+ * the entries of mForwardEdges in [mForwardOffsets[n], mForwardOffsets[n + 1]), and the reverse
+ * references are stored the same way. Soft references, i.e. the referents of reference objects,
+ * are few and are kept as sorted pairs of nodes.
+ *
+ * Dominators are computed over the columns as well: the topological ordering, the distances to
+ * the GC roots, the immediate dominators and the retained sizes are all stored per node.
+ *
+ * {@link Instance} objects are created on demand by {@link #getInstance(int)} as lightweight views
+ * over the columns, and load their references and dominator data from the columns when first
+ * asked for them. Views are weakly cached, so that a node is represented by the same object for as
+ * long as that object is in use, and views can be compared by identity. Class objects are few and
+ * are still kept in their {@link Heap}.
+ */
+public final class ObjectGraph {
+
+    public static final int NO_NODE = -1;
+
+    //  The immediate dominator of the nodes only dominated by the Snapshot.SENTINEL_ROOT.
+    private static final int SENTINEL_ROOT_NODE = -2;
+
+    private static final int KIND_CLASS_OBJ = 0;
+
+    private static final int KIND_CLASS_INSTANCE = 1;
+
+    private static final int KIND_OBJECT_ARRAY = 2;
+
+    private static final int KIND_PRIMITIVE_ARRAY = 3;
+
+    //  Layout of the packed flags column: heap index << 8 | kind << 4 | array type id.
+    private static final int KIND_SHIFT = 4;
+
+    private static final int HEAP_SHIFT = 8;
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    private final int mNodeCount;
+
+    @NonNull
+    private final LongBuffer mIds;
+
+    @NonNull
+    private final IntBuffer mFlags;
+
+    //  The node of the class of each node, or NO_NODE for class objects and unknown classes.
+    @NonNull
+    private final IntBuffer mClassNodes;
+
+    @NonNull
+    private final IntBuffer mLengths;
+
+    @NonNull
+    private final LongBuffer mValuesOffsets;
+
+    @NonNull
+    private final IntBuffer mStackSerials;
+
+    @NonNull
+    private final IntBuffer mSizes;
+
+    //  All non-class nodes, sorted by class node and then by heap index.
+    @NonNull
+    private final IntBuffer mInstancesByClass;
+
+    @NonNull
+    private final int[] mHeapInstanceCounts;
+
+    private IntBuffer mForwardOffsets;
+
+    private IntBuffer mForwardEdges;
+
+    private IntBuffer mReverseOffsets;
+
+    private IntBuffer mReverseEdges;
+
+    //  Source and target nodes of the soft references, sorted by source.
+    private int[] mSoftSources;
+
+    private int[] mSoftTargets;
+
+    //  The same soft references, sorted by target.
+    private int[] mSoftReverseSources;
+
+    private int[] mSoftReverseTargets;
+
+    //  The results of the dominator computation. mTopSort holds the nodes reachable from the GC
+    //  roots in topological order, and the other columns are indexed by node.
+    private IntBuffer mTopSort;
+
+    //  The position of each node in mTopSort plus one, or 0 for unreachable nodes.
+    private IntBuffer mTopologicalOrders;
+
+    private IntBuffer mDistances;
+
+    private IntBuffer mNextNodesToGcRoot;
+
+    private IntBuffer mImmediateDominators;
+
+    //  The retained sizes of each node in each heap, excluding the size of the node itself.
+    private LongBuffer[] mRetainedSizes;
+
+    @Nullable
+    private volatile SemiNcaDominators.Computation mComputation;
+
+    @NonNull
+    private final TIntObjectHashMap<ViewReference> mViews = new TIntObjectHashMap<ViewReference>();
+
+    @NonNull
+    private final ReferenceQueue<Instance> mCollectedViews = new ReferenceQueue<Instance>();
+
+    private ObjectGraph(@NonNull Snapshot snapshot, @NonNull Builder builder) {
+        mSnapshot = snapshot;
+        mNodeCount = builder.mIds.size();
+
+        long[] ids = builder.mIds.toNativeArray();
+        int[] order = new int[mNodeCount];
+        for (int i = 0; i < mNodeCount; i++) {
+            order[i] = i;
+        }
+        sortByKey(ids, order, 0, mNodeCount - 1);
+
+        mIds = newLongColumn(mNodeCount);
+        mIds.put(ids);
+        //noinspection UnusedAssignment
+        ids = null;
+
+        mFlags = newIntColumn(mNodeCount);
+        mClassNodes = newIntColumn(mNodeCount);
+        mLengths = newIntColumn(mNodeCount);
+        mValuesOffsets = newLongColumn(mNodeCount);
+        mStackSerials = newIntColumn(mNodeCount);
+        mSizes = newIntColumn(mNodeCount);
+        mHeapInstanceCounts = new int[snapshot.mHeaps.size()];
+
+        for (int node = 0; node < mNodeCount; node++) {
+            int source = order[node];
+            int flags = builder.mFlags.get(source);
+            int kind = getKind(flags);
+            Type type = Type.getType(flags & 0xf);
+            int length = builder.mLengths.get(source);
+
+            int classNode = NO_NODE;
+            int size = 0;
+            switch (kind) {
+                case KIND_CLASS_INSTANCE:
+                    classNode = findNode(builder.mClassIds.get(source));
+                    ClassObj classObj = snapshot.findClass(builder.mClassIds.get(source));
+                    size = classObj != null ? classObj.getInstanceSize() : 0;
+                    break;
+                case KIND_OBJECT_ARRAY:
+                    classNode = findNode(builder.mClassIds.get(source));
+                    size = length * snapshot.getTypeSize(type);
+                    break;
+                case KIND_PRIMITIVE_ARRAY:
+                    // Primitive arrays don't set their classId, we need to do the lookup manually.
+                    ClassObj arrayClass = snapshot.findClass(
+                            Type.getClassNameOfPrimitiveArray(type));
+                    classNode = arrayClass != null ? findNode(arrayClass.getId()) : NO_NODE;
+                    size = length * snapshot.getTypeSize(type);
+                    break;
+            }
+            if (kind != KIND_CLASS_OBJ) {
+                mHeapInstanceCounts[getHeapIndex(flags)]++;
+            }
+
+            mFlags.put(node, flags);
+            mClassNodes.put(node, classNode);
+            mLengths.put(node, length);
+            mValuesOffsets.put(node, builder.mValuesOffsets.get(source));
+            mStackSerials.put(node, builder.mStackSerials.get(source));
+            mSizes.put(node, size);
+        }
+
+        mInstancesByClass = sortInstancesByClass();
+    }
+
+    /**
+     * Maps the columns of a graph written by {@link #write(DataOutputStream)} back from a
+     * {@link SnapshotIndex}. The snapshot must have the same heaps as the one the graph was built
+     * from, and the graph comes with its references and dominators.
+     */
+    ObjectGraph(@NonNull Snapshot snapshot, @NonNull SnapshotIndex.Reader in) throws IOException {
+        mSnapshot = snapshot;
+        mNodeCount = in.readInt();
+        int heapCount = in.readInt();
+        int edgeCount = in.readInt();
+        int softCount = in.readInt();
+        int reachableCount = in.readInt();
+        if (heapCount != snapshot.mHeaps.size() || reachableCount > mNodeCount) {
+            throw new IOException("The object graph doesn't match the snapshot");
+        }
+
+        mHeapInstanceCounts = in.readInts(heapCount);
+        int instanceCount = 0;
+        for (int count : mHeapInstanceCounts) {
+            instanceCount += count;
+        }
+        mSoftSources = in.readInts(softCount);
+        mSoftTargets = in.readInts(softCount);
+        mSoftReverseSources = in.readInts(softCount);
+        mSoftReverseTargets = in.readInts(softCount);
+
+        mIds = in.mapLongs(mNodeCount);
+        mFlags = in.mapInts(mNodeCount);
+        mClassNodes = in.mapInts(mNodeCount);
+        mLengths = in.mapInts(mNodeCount);
+        mValuesOffsets = in.mapLongs(mNodeCount);
+        mStackSerials = in.mapInts(mNodeCount);
+        mSizes = in.mapInts(mNodeCount);
+        mInstancesByClass = in.mapInts(instanceCount);
+        mForwardOffsets = in.mapInts(mNodeCount + 1);
+        mForwardEdges = in.mapInts(edgeCount);
+        mReverseOffsets = in.mapInts(mNodeCount + 1);
+        mReverseEdges = in.mapInts(edgeCount);
+        mTopSort = in.mapInts(reachableCount);
+        mTopologicalOrders = in.mapInts(mNodeCount);
+        mDistances = in.mapInts(mNodeCount);
+        mNextNodesToGcRoot = in.mapInts(mNodeCount);
+        mImmediateDominators = in.mapInts(mNodeCount);
+        LongBuffer[] retainedSizes = new LongBuffer[heapCount];
+        for (int heapIndex = 0; heapIndex < heapCount; heapIndex++) {
+            retainedSizes[heapIndex] = in.mapLongs(mNodeCount);
+        }
+        mRetainedSizes = retainedSizes;
+    }
+
+    /**
+     * Writes all the columns of the graph, which must have its dominators computed, so that they
+     * can be mapped back by {@link #ObjectGraph(Snapshot, SnapshotIndex.Reader)}.
+     */
+    void write(@NonNull DataOutputStream out) throws IOException {
+        if (!hasDominators()) {
+            throw new IllegalStateException("Dominators have not been computed");
+        }
+
+        out.writeInt(mNodeCount);
+        out.writeInt(mHeapInstanceCounts.length);
+        out.writeInt(mForwardEdges.capacity());
+        out.writeInt(mSoftSources.length);
+        out.writeInt(mTopSort.capacity());
+
+        writeInts(out, mHeapInstanceCounts);
+        writeInts(out, mSoftSources);
+        writeInts(out, mSoftTargets);
+        writeInts(out, mSoftReverseSources);
+        writeInts(out, mSoftReverseTargets);
+
+        writeColumn(out, mIds);
+        writeColumn(out, mFlags);
+        writeColumn(out, mClassNodes);
+        writeColumn(out, mLengths);
+        writeColumn(out, mValuesOffsets);
+        writeColumn(out, mStackSerials);
+        writeColumn(out, mSizes);
+        writeColumn(out, mInstancesByClass);
+        writeColumn(out, mForwardOffsets);
+        writeColumn(out, mForwardEdges);
+        writeColumn(out, mReverseOffsets);
+        writeColumn(out, mReverseEdges);
+        writeColumn(out, mTopSort);
+        writeColumn(out, mTopologicalOrders);
+        writeColumn(out, mDistances);
+        writeColumn(out, mNextNodesToGcRoot);
+        writeColumn(out, mImmediateDominators);
+        for (LongBuffer retainedSizes : mRetainedSizes) {
+            writeColumn(out, retainedSizes);
+        }
+    }
+
+    /**
+     * Resolves all the hard references between nodes. The soft reference classes of the snapshot
+     * must have been identified beforehand, since the referent of a soft reference is not a hard
+     * reference.
+     */
+    void resolveReferences() {
+        if (mForwardEdges != null) {
+            return;
+        }
+
+        DataBuffer buffer = mSnapshot.getBuffer();
+        int idSize = mSnapshot.getTypeSize(Type.OBJECT);
+        TIntObjectHashMap<int[]> referenceLayouts = new TIntObjectHashMap<int[]>();
+
+        TIntArrayList edges = new TIntArrayList(mNodeCount);
+        TIntArrayList softEdges = new TIntArrayList();
+        mForwardOffsets = newIntColumn(mNodeCount + 1);
+        for (int node = 0; node < mNodeCount; node++) {
+            mForwardOffsets.put(node, edges.size());
+            switch (getKind(mFlags.get(node))) {
+                case KIND_CLASS_OBJ:
+                    ClassObj classObj = mSnapshot.findClass(mIds.get(node));
+                    if (classObj != null) {
+                        for (Map.Entry<Field, Object> entry :
+                                classObj.getStaticFieldValues().entrySet()) {
+                            if (entry.getValue() instanceof Instance) {
+                                addEdge(edges, ((Instance) entry.getValue()).getId());
+                            }
+                        }
+                    }
+                    break;
+                case KIND_CLASS_INSTANCE:
+                    int classNode = mClassNodes.get(node);
+                    if (classNode == NO_NODE) {
+                        break;
+                    }
+                    int[] layout = referenceLayouts.get(classNode);
+                    if (layout == null) {
+                        layout = computeReferenceLayout(mSnapshot.findClass(mIds.get(classNode)));
+                        referenceLayouts.put(classNode, layout);
+                    }
+                    long valuesOffset = mValuesOffsets.get(node);
+                    for (int fieldOffset : layout) {
+                        if (fieldOffset >= 0) {
+                            buffer.setPosition(valuesOffset + fieldOffset);
+                            addEdge(edges, readId(buffer, idSize));
+                        } else {
+                            buffer.setPosition(valuesOffset - fieldOffset - 1);
+                            int referent = findNode(readId(buffer, idSize));
+                            if (referent != NO_NODE) {
+                                softEdges.add(node);
+                                softEdges.add(referent);
+                            }
+                        }
+                    }
+                    break;
+                case KIND_OBJECT_ARRAY:
+                    buffer.setPosition(mValuesOffsets.get(node));
+                    for (int i = 0, length = mLengths.get(node); i < length; i++) {
+                        addEdge(edges, readId(buffer, idSize));
+                    }
+                    break;
+            }
+        }
+        mForwardOffsets.put(mNodeCount, edges.size());
+        mForwardEdges = newIntColumn(edges.size());
+        mForwardEdges.put(edges.toNativeArray());
+        //noinspection UnusedAssignment
+        edges = null;
+
+        // Transpose the forward edges to get the reverse edges.
+        int[] reverseCounts = new int[mNodeCount + 1];
+        for (int i = 0; i < mForwardEdges.capacity(); i++) {
+            reverseCounts[mForwardEdges.get(i) + 1]++;
+        }
+        for (int node = 0; node < mNodeCount; node++) {
+            reverseCounts[node + 1] += reverseCounts[node];
+        }
+        mReverseOffsets = newIntColumn(mNodeCount + 1);
+        mReverseOffsets.put(reverseCounts);
+        mReverseEdges = newIntColumn(mForwardEdges.capacity());
+        for (int node = 0; node < mNodeCount; node++) {
+            for (int i = mForwardOffsets.get(node), end = mForwardOffsets.get(node + 1); i < end;
+                    i++) {
+                int target = mForwardEdges.get(i);
+                mReverseEdges.put(reverseCounts[target]++, node);
+            }
+        }
+
+        // Soft references are listed by source, sort a copy by target.
+        int softCount = softEdges.size() / 2;
+        mSoftSources = new int[softCount];
+        mSoftTargets = new int[softCount];
+        long[] softReverseEdges = new long[softCount];
+        for (int i = 0; i < softCount; i++) {
+            mSoftSources[i] = softEdges.get(2 * i);
+            mSoftTargets[i] = softEdges.get(2 * i + 1);
+            softReverseEdges[i] = ((long) mSoftTargets[i] << 32) | mSoftSources[i];
+        }
+        Arrays.sort(softReverseEdges);
+        mSoftReverseSources = new int[softCount];
+        mSoftReverseTargets = new int[softCount];
+        for (int i = 0; i < softCount; i++) {
+            mSoftReverseSources[i] = (int) softReverseEdges[i];
+            mSoftReverseTargets[i] = (int) (softReverseEdges[i] >>> 32);
+        }
+
+        invalidateViews();
+    }
+
+    /**
+     * Computes the distance of every node to the closest GC root, following hard references, and
+     * the next node on the way to that root. This is the equivalent of running the
+     * {@link com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor}.
+     */
+    void computeShortestDistances(@NonNull Collection<RootObj> roots) {
+        mDistances = newIntColumn(mNodeCount);
+        mNextNodesToGcRoot = newIntColumn(mNodeCount);
+        for (int node = 0; node < mNodeCount; node++) {
+            mDistances.put(node, Integer.MAX_VALUE);
+            mNextNodesToGcRoot.put(node, NO_NODE);
+        }
+
+        // All the references have the same length, so a breadth-first search visits the nodes by
+        // increasing distance, and each node is queued once.
+        int[] queue = new int[mNodeCount];
+        int head = 0;
+        int tail = 0;
+        for (RootObj root : roots) {
+            int node = findNode(root.getId());
+            if (node != NO_NODE && mDistances.get(node) != 0) {
+                mDistances.put(node, 0);
+                queue[tail++] = node;
+            }
+        }
+        // The forward edges are the hard references only, the referents of soft references are
+        // kept apart, so an object that is both the referent of a soft reference and referenced
+        // by one of its other fields is still reached through the latter.
+        while (head < tail) {
+            int node = queue[head++];
+            int distance = mDistances.get(node) + 1;
+            for (int i = mForwardOffsets.get(node), end = mForwardOffsets.get(node + 1); i < end;
+                    i++) {
+                int target = mForwardEdges.get(i);
+                if (distance < mDistances.get(target)) {
+                    mDistances.put(target, distance);
+                    mNextNodesToGcRoot.put(target, node);
+                    queue[tail++] = target;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts the nodes reachable from the GC roots through hard references in topological order,
+     * i.e. by decreasing finishing time of a depth-first search. This is the equivalent of
+     * {@link com.android.tools.perflib.heap.analysis.TopologicalSort}.
+     */
+    void computeTopologicalOrdering(@NonNull Collection<RootObj> roots) {
+        boolean[] seen = new boolean[mNodeCount];
+        boolean[] finished = new boolean[mNodeCount];
+        int[] postorder = new int[mNodeCount];
+        int count = 0;
+
+        // Nodes are pushed once per reference, and finish when found on top of the stack again.
+        int[] stack = new int[Math.max(16, roots.size())];
+        int size = 0;
+        for (RootObj root : roots) {
+            int node = findNode(root.getId());
+            if (node != NO_NODE) {
+                stack[size++] = node;
+            }
+        }
+        while (size > 0) {
+            int node = stack[size - 1];
+            if (!seen[node]) {
+                seen[node] = true;
+                int start = mForwardOffsets.get(node);
+                int end = mForwardOffsets.get(node + 1);
+                if (size + end - start > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size + end - start));
+                }
+                for (int i = start; i < end; i++) {
+                    int target = mForwardEdges.get(i);
+                    if (!seen[target]) {
+                        stack[size++] = target;
+                    }
+                }
+            } else {
+                size--;
+                if (!finished[node]) {
+                    finished[node] = true;
+                    postorder[count++] = node;
+                }
+            }
+        }
+
+        mTopSort = newIntColumn(count);
+        mTopologicalOrders = newIntColumn(mNodeCount);
+        for (int i = 0; i < count; i++) {
+            int node = postorder[count - 1 - i];
+            mTopSort.put(i, node);
+            mTopologicalOrders.put(node, i + 1);
+        }
+    }
+
+    /**
+     * Computes the immediate dominator of every reachable node with Semi-NCA, on the graph made
+     * of the sentinel root, which points to the GC roots, and of the reachable nodes, numbered by
+     * their topological order.
+     */
+    void computeDominators(@NonNull Collection<RootObj> roots) {
+        int count = mTopSort.capacity();
+        boolean[] isRoot = new boolean[count + 1];
+        int rootCount = 0;
+        for (RootObj root : roots) {
+            int node = findNode(root.getId());
+            if (node != NO_NODE && !isRoot[mTopologicalOrders.get(node)]) {
+                isRoot[mTopologicalOrders.get(node)] = true;
+                rootCount++;
+            }
+        }
+
+        int[] successorOffsets = new int[count + 2];
+        successorOffsets[1] = rootCount;
+        for (int order = 1; order <= count; order++) {
+            successorOffsets[order + 1] = successorOffsets[order]
+                    + getForwardReferenceCount(mTopSort.get(order - 1));
+        }
+        int[] successors = new int[successorOffsets[count + 1]];
+        int edge = 0;
+        for (int order = 1; order <= count; order++) {
+            if (isRoot[order]) {
+                successors[edge++] = order;
+            }
+        }
+        for (int order = 1; order <= count; order++) {
+            int node = mTopSort.get(order - 1);
+            for (int i = mForwardOffsets.get(node), end = mForwardOffsets.get(node + 1); i < end;
+                    i++) {
+                successors[edge++] = mTopologicalOrders.get(mForwardEdges.get(i));
+            }
+        }
+
+        SemiNcaDominators.Computation computation = new SemiNcaDominators.Computation(count + 1,
+                successorOffsets, successors);
+        mComputation = computation;
+        int[] immediateDominators = computation.computeImmediateDominators();
+        mComputation = null;
+
+        mImmediateDominators = newIntColumn(mNodeCount);
+        for (int node = 0; node < mNodeCount; node++) {
+            mImmediateDominators.put(node, NO_NODE);
+        }
+        for (int order = 1; order <= count; order++) {
+            int dominator = immediateDominators[order];
+            if (dominator != NO_NODE) {
+                mImmediateDominators.put(mTopSort.get(order - 1),
+                        dominator == 0 ? SENTINEL_ROOT_NODE : mTopSort.get(dominator - 1));
+            }
+        }
+    }
+
+    /**
+     * Computes the retained sizes of every node in every heap. Dominators always precede the
+     * nodes they dominate in topological order, so walking the nodes backwards adds every retained
+     * size to its immediate dominator once it is final.
+     */
+    void computeRetainedSizes() {
+        int heapCount = mHeapInstanceCounts.length;
+        LongBuffer[] retainedSizes = new LongBuffer[heapCount];
+        for (int heapIndex = 0; heapIndex < heapCount; heapIndex++) {
+            retainedSizes[heapIndex] = newLongColumn(mNodeCount);
+        }
+        for (int order = mTopSort.capacity(); order > 0; order--) {
+            int node = mTopSort.get(order - 1);
+            int dominator = mImmediateDominators.get(node);
+            if (dominator < 0) {
+                continue;
+            }
+            int nodeHeapIndex = getHeapIndex(mFlags.get(node));
+            for (int heapIndex = 0; heapIndex < heapCount; heapIndex++) {
+                long size = retainedSizes[heapIndex].get(node);
+                if (heapIndex == nodeHeapIndex) {
+                    size += getRetainedSizeOfNode(node);
+                }
+                if (size != 0) {
+                    retainedSizes[heapIndex].put(dominator,
+                            retainedSizes[heapIndex].get(dominator) + size);
+                }
+            }
+        }
+        mRetainedSizes = retainedSizes;
+
+        invalidateViews();
+    }
+
+    /**
+     * Returns whether {@link #computeRetainedSizes()} has been run, i.e. whether the dominator
+     * accessors below can be used.
+     */
+    public boolean hasDominators() {
+        return mRetainedSizes != null;
+    }
+
+    @NonNull
+    ComputationProgress getComputationProgress() {
+        ComputationProgress progress = new ComputationProgress("Starting dominator computation",
+                0.0);
+        SemiNcaDominators.Computation computation = mComputation;
+        if (computation != null) {
+            computation.updateProgress(progress);
+        }
+        return progress;
+    }
+
+    /**
+     * Returns the reachable nodes in topological order, as views.
+     */
+    @NonNull
+    List<Instance> getTopologicalOrdering() {
+        return new TopologicalOrdering();
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Returns the node of the class object or instance with the given id, or {@link #NO_NODE} if
+     * there is no such object in the snapshot.
+     */
+    public int findNode(long id) {
+        int low = 0;
+        int high = mNodeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = mIds.get(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NO_NODE;
+    }
+
+    public long getId(int node) {
+        return mIds.get(node);
+    }
+
+    @NonNull
+    public Heap getHeap(int node) {
+        return mSnapshot.mHeaps.get(getHeapIndex(mFlags.get(node)));
+    }
+
+    /**
+     * Returns the shallow size of the node. Class objects report 0 here, their size is kept on the
+     * {@link ClassObj} itself.
+     */
+    public int getSize(int node) {
+        return mSizes.get(node);
+    }
+
+    public int getClassNode(int node) {
+        return mClassNodes.get(node);
+    }
+
+    public boolean isClassObj(int node) {
+        return getKind(mFlags.get(node)) == KIND_CLASS_OBJ;
+    }
+
+    /**
+     * Returns whether {@link #resolveReferences()} has been run, i.e. whether the reference
+     * accessors below can be used.
+     */
+    public boolean hasReferences() {
+        return mForwardEdges != null;
+    }
+
+    public int getForwardReferenceCount(int node) {
+        return mForwardOffsets.get(node + 1) - mForwardOffsets.get(node);
+    }
+
+    public int getForwardReference(int node, int index) {
+        return mForwardEdges.get(mForwardOffsets.get(node) + index);
+    }
+
+    public int getReverseReferenceCount(int node) {
+        return mReverseOffsets.get(node + 1) - mReverseOffsets.get(node);
+    }
+
+    public int getReverseReference(int node, int index) {
+        return mReverseEdges.get(mReverseOffsets.get(node) + index);
+    }
+
+    /**
+     * Returns the referent of the node if it is a soft reference, or {@link #NO_NODE}.
+     */
+    public int getSoftForwardReference(int node) {
+        int index = lowerBound(mSoftSources, node);
+        return index < mSoftSources.length && mSoftSources[index] == node ? mSoftTargets[index]
+                : NO_NODE;
+    }
+
+    public int getSoftReverseReferenceCount(int node) {
+        return lowerBound(mSoftReverseTargets, node + 1) - lowerBound(mSoftReverseTargets, node);
+    }
+
+    public int getSoftReverseReference(int node, int index) {
+        return mSoftReverseSources[lowerBound(mSoftReverseTargets, node) + index];
+    }
+
+    /**
+     * Returns the position of the node in the topological ordering plus one, or 0 if it is not
+     * reachable from the GC roots.
+     */
+    public int getTopologicalOrder(int node) {
+        return mTopologicalOrders.get(node);
+    }
+
+    public int getDistanceToGcRoot(int node) {
+        return mDistances.get(node);
+    }
+
+    public int getNextNodeToGcRoot(int node) {
+        return mNextNodesToGcRoot.get(node);
+    }
+
+    /**
+     * Returns the immediate dominator of the node, or {@link #NO_NODE} if it is not reachable or
+     * only dominated by the {@link Snapshot#SENTINEL_ROOT}.
+     */
+    public int getImmediateDominator(int node) {
+        int dominator = mImmediateDominators.get(node);
+        return dominator == SENTINEL_ROOT_NODE ? NO_NODE : dominator;
+    }
+
+    public long getRetainedSize(int node, int heapIndex) {
+        long size = mRetainedSizes[heapIndex].get(node);
+        return heapIndex == getHeapIndex(mFlags.get(node)) ? size + getRetainedSizeOfNode(node)
+                : size;
+    }
+
+    /**
+     * Returns the view of the given node, creating it if it is not in use anymore. Returns the
+     * {@link ClassObj} itself for class objects.
+     */
+    @Nullable
+    public synchronized Instance getInstance(int node) {
+        int flags = mFlags.get(node);
+        if (getKind(flags) == KIND_CLASS_OBJ) {
+            return mSnapshot.mHeaps.get(getHeapIndex(flags)).getClass(mIds.get(node));
+        }
+
+        ViewReference reference = mViews.get(node);
+        Instance instance = reference != null ? reference.get() : null;
+        if (instance == null) {
+            for (Reference<? extends Instance> collected = mCollectedViews.poll();
+                    collected != null; collected = mCollectedViews.poll()) {
+                int collectedNode = ((ViewReference) collected).mNode;
+                if (mViews.get(collectedNode) == collected) {
+                    mViews.remove(collectedNode);
+                }
+            }
+            instance = createView(node, flags);
+            mViews.put(node, new ViewReference(node, instance, mCollectedViews));
+        }
+        return instance;
+    }
+
+    @NonNull
+    private Instance createView(int node, int flags) {
+        long id = mIds.get(node);
+        Heap heap = mSnapshot.mHeaps.get(getHeapIndex(flags));
+        StackTrace stack = mSnapshot.getStackTrace(mStackSerials.get(node));
+        long valuesOffset = mValuesOffsets.get(node);
+        int classNode = mClassNodes.get(node);
+        Instance instance;
+        switch (getKind(flags)) {
+            case KIND_CLASS_INSTANCE:
+                instance = new ClassInstance(id, stack, valuesOffset);
+                if (classNode != NO_NODE) {
+                    instance.setClassId(mIds.get(classNode));
+                }
+                break;
+            case KIND_OBJECT_ARRAY:
+                instance = new ArrayInstance(id, stack, Type.OBJECT, mLengths.get(node),
+                        valuesOffset);
+                if (classNode != NO_NODE) {
+                    instance.setClassId(mIds.get(classNode));
+                }
+                break;
+            default:
+                instance = new ArrayInstance(id, stack, Type.getType(flags & 0xf),
+                        mLengths.get(node), valuesOffset);
+                break;
+        }
+        instance.setHeap(heap);
+        instance.setSize(mSizes.get(node));
+        return instance;
+    }
+
+    /**
+     * Copies the references and the dominator data of the node of the given view into it. Does
+     * nothing but mark the data as loaded for instances which are not views of this graph, such
+     * as {@link RootObj}s, which share the id of the instance they refer to.
+     */
+    synchronized void loadGraphData(@NonNull Instance instance) {
+        if (instance.mGraphDataLoaded) {
+            return;
+        }
+
+        int node = findNode(instance.getId());
+        if (node != NO_NODE && getInstance(node) == instance) {
+            if (hasReferences()) {
+                instance.mHardForwardReferences.clear();
+                for (int i = 0, count = getForwardReferenceCount(node); i < count; i++) {
+                    instance.mHardForwardReferences.add(getInstance(getForwardReference(node, i)));
+                }
+                instance.mHardForwardReferences.trimToSize();
+                int referent = getSoftForwardReference(node);
+                instance.mSoftForwardReference = referent != NO_NODE ? getInstance(referent) : null;
+
+                // Reverse references are deduped, as they are after the topological sort of a
+                // regular snapshot.
+                TIntHashSet seen = new TIntHashSet();
+                seen.add(node);
+                instance.mHardReverseReferences.clear();
+                for (int i = 0, count = getReverseReferenceCount(node); i < count; i++) {
+                    int source = getReverseReference(node, i);
+                    if (seen.add(source)) {
+                        instance.mHardReverseReferences.add(getInstance(source));
+                    }
+                }
+                instance.mHardReverseReferences.trimToSize();
+                instance.mSoftReverseReferences = null;
+                for (int i = 0, count = getSoftReverseReferenceCount(node); i < count; i++) {
+                    if (instance.mSoftReverseReferences == null) {
+                        instance.mSoftReverseReferences = new ArrayList<Instance>(count);
+                    }
+                    instance.mSoftReverseReferences.add(
+                            getInstance(getSoftReverseReference(node, i)));
+                }
+            }
+
+            if (hasDominators()) {
+                instance.mTopologicalOrder = getTopologicalOrder(node);
+                instance.mDistanceToGcRoot = getDistanceToGcRoot(node);
+                int next = getNextNodeToGcRoot(node);
+                instance.mNextInstanceToGcRoot = next != NO_NODE ? getInstance(next) : null;
+                int dominator = mImmediateDominators.get(node);
+                if (dominator != NO_NODE) {
+                    instance.setImmediateDominator(dominator == SENTINEL_ROOT_NODE
+                            ? Snapshot.SENTINEL_ROOT : getInstance(dominator));
+                }
+                long[] retainedSizes = new long[mRetainedSizes.length];
+                for (int heapIndex = 0; heapIndex < retainedSizes.length; heapIndex++) {
+                    retainedSizes[heapIndex] = getRetainedSize(node, heapIndex);
+                }
+                instance.setRetainedSizes(retainedSizes);
+            }
+        }
+        instance.mGraphDataLoaded = true;
+    }
+
+    /**
+     * Makes the views in use and the class objects reload their data from the columns, after
+     * references or dominators have been computed.
+     */
+    private synchronized void invalidateViews() {
+        for (Object reference : mViews.getValues()) {
+            Instance instance = ((ViewReference) reference).get();
+            if (instance != null) {
+                instance.mGraphDataLoaded = false;
+            }
+        }
+        for (Heap heap : mSnapshot.mHeaps) {
+            for (ClassObj classObj : heap.getClasses()) {
+                classObj.mGraphDataLoaded = false;
+            }
+        }
+    }
+
+    int getInstancesCount(int heapIndex) {
+        return mHeapInstanceCounts[heapIndex];
+    }
+
+    void forEachInstance(int heapIndex, @NonNull TObjectProcedure<Instance> procedure) {
+        for (int node = 0; node < mNodeCount; node++) {
+            int flags = mFlags.get(node);
+            if (getKind(flags) != KIND_CLASS_OBJ && getHeapIndex(flags) == heapIndex) {
+                if (!procedure.execute(getInstance(node))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @NonNull
+    List<Instance> getClassInstances(@NonNull ClassObj classObj, int heapIndex) {
+        int classNode = findNode(classObj.getId());
+        int start = lowerBound(classNode, heapIndex);
+        int end = lowerBound(classNode, heapIndex + 1);
+        List<Instance> result = new ArrayList<Instance>(end - start);
+        for (int i = start; i < end; i++) {
+            result.add(getInstance(mInstancesByClass.get(i)));
+        }
+        return result;
+    }
+
+    int getClassInstancesCount(@NonNull ClassObj classObj, int heapIndex) {
+        int classNode = findNode(classObj.getId());
+        return lowerBound(classNode, heapIndex + 1) - lowerBound(classNode, heapIndex);
+    }
+
+    int getClassShallowSize(@NonNull ClassObj classObj, int heapIndex) {
+        int classNode = findNode(classObj.getId());
+        int size = 0;
+        for (int i = lowerBound(classNode, heapIndex), end = lowerBound(classNode, heapIndex + 1);
+                i < end; i++) {
+            size += mSizes.get(mInstancesByClass.get(i));
+        }
+        return size;
+    }
+
+    /**
+     * Returns the position of the first entry of mInstancesByClass that is not less than the given
+     * class node and heap index.
+     */
+    private int lowerBound(int classNode, int heapIndex) {
+        long key = sortKey(classNode, heapIndex);
+        int low = 0;
+        int high = mInstancesByClass.capacity();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int node = mInstancesByClass.get(mid);
+            if (sortKey(mClassNodes.get(node), getHeapIndex(mFlags.get(node))) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the position of the first entry of the sorted array that is not less than the key.
+     */
+    private static int lowerBound(@NonNull int[] array, int key) {
+        int low = 0;
+        int high = array.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long sortKey(int classNode, int heapIndex) {
+        return ((long) classNode << 32) | heapIndex;
+    }
+
+    @NonNull
+    private IntBuffer sortInstancesByClass() {
+        // Two passes of a stable counting sort: by heap index first, then by class node.
+        int instanceCount = 0;
+        int[] heapCounts = new int[mHeapInstanceCounts.length + 1];
+        for (int heapIndex = 0; heapIndex < mHeapInstanceCounts.length; heapIndex++) {
+            heapCounts[heapIndex + 1] = heapCounts[heapIndex] + mHeapInstanceCounts[heapIndex];
+            instanceCount += mHeapInstanceCounts[heapIndex];
+        }
+        int[] byHeap = new int[instanceCount];
+        for (int node = 0; node < mNodeCount; node++) {
+            int flags = mFlags.get(node);
+            if (getKind(flags) != KIND_CLASS_OBJ) {
+                byHeap[heapCounts[getHeapIndex(flags)]++] = node;
+            }
+        }
+
+        // Class nodes are shifted by one so that NO_NODE sorts first.
+        int[] classCounts = new int[mNodeCount + 2];
+        for (int node : byHeap) {
+            classCounts[mClassNodes.get(node) + 2]++;
+        }
+        for (int i = 1; i < classCounts.length; i++) {
+            classCounts[i] += classCounts[i - 1];
+        }
+        IntBuffer result = newIntColumn(instanceCount);
+        for (int node : byHeap) {
+            result.put(classCounts[mClassNodes.get(node) + 1]++, node);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offsets of the reference fields of the instances of the given class. The offset
+     * of the referent of soft references is stored as {@code -(offset + 1)}.
+     */
+    @NonNull
+    private int[] computeReferenceLayout(@Nullable ClassObj classObj) {
+        TIntArrayList offsets = new TIntArrayList();
+        boolean isSoftReference = classObj != null && classObj.getIsSoftReference();
+        int offset = 0;
+        for (ClassObj clazz = classObj; clazz != null; clazz = clazz.getSuperClassObj()) {
+            for (Field field : clazz.getFields()) {
+                if (field.getType() == Type.OBJECT) {
+                    boolean isReferent = isSoftReference && "referent".equals(field.getName());
+                    offsets.add(isReferent ? -offset - 1 : offset);
+                }
+                offset += mSnapshot.getTypeSize(field.getType());
+            }
+        }
+        return offsets.toNativeArray();
+    }
+
+    private void addEdge(@NonNull TIntArrayList edges, long id) {
+        int target = findNode(id);
+        if (target != NO_NODE) {
+            edges.add(target);
+        }
+    }
+
+    /**
+     * Returns the size of the node itself in its retained size, which is the size of the class
+     * object for classes, as for {@link Instance#resetRetainedSize()}.
+     */
+    private long getRetainedSizeOfNode(int node) {
+        if (isClassObj(node)) {
+            ClassObj classObj = mSnapshot.findClass(mIds.get(node));
+            return classObj != null ? classObj.getSize() : 0;
+        }
+        return mSizes.get(node);
+    }
+
+    private static long readId(@NonNull DataBuffer buffer, int idSize) {
+        // As long as we don't interpret IDs, reading signed values here is fine.
+        switch (idSize) {
+            case 1:
+                return buffer.readByte();
+            case 2:
+                return buffer.readShort();
+            case 4:
+                return buffer.readInt();
+            case 8:
+                return buffer.readLong();
+        }
+        return 0;
+    }
+
+    private static int getKind(int flags) {
+        return (flags >> KIND_SHIFT) & 0xf;
+    }
+
+    private static int getHeapIndex(int flags) {
+        return flags >>> HEAP_SHIFT;
+    }
+
+    private static void writeInts(@NonNull DataOutputStream out, @NonNull int[] values)
+            throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeColumn(@NonNull DataOutputStream out, @NonNull IntBuffer column)
+            throws IOException {
+        for (int i = 0, size = column.capacity(); i < size; i++) {
+            out.writeInt(column.get(i));
+        }
+    }
+
+    private static void writeColumn(@NonNull DataOutputStream out, @NonNull LongBuffer column)
+            throws IOException {
+        for (int i = 0, size = column.capacity(); i < size; i++) {
+            out.writeLong(column.get(i));
+        }
+    }
+
+    @NonNull
+    private static IntBuffer newIntColumn(int size) {
+        return newColumn(size, 4).asIntBuffer();
+    }
+
+    @NonNull
+    private static LongBuffer newLongColumn(int size) {
+        return newColumn(size, 8).asLongBuffer();
+    }
+
+    @NonNull
+    private static ByteBuffer newColumn(int size, int elementSize) {
+        long byteCount = (long) size * elementSize;
+        if (byteCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                    "Heap dump too large for a compact snapshot: %d entries of %d bytes", size,
+                    elementSize));
+        }
+        return ByteBuffer.allocateDirect((int) byteCount).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Sorts keys[low..high] in place, applying the same permutation to values.
+     */
+    private static void sortByKey(@NonNull long[] keys, @NonNull int[] values, int low, int high) {
+        // Recurse on the smaller partition only, to bound the stack depth.
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < keys[low]) {
+                swap(keys, values, mid, low);
+            }
+            if (keys[high] < keys[low]) {
+                swap(keys, values, high, low);
+            }
+            if (keys[high] < keys[mid]) {
+                swap(keys, values, high, mid);
+            }
+            long pivot = keys[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            if (j - low < high - i) {
+                sortByKey(keys, values, low, j);
+                low = i;
+            } else {
+                sortByKey(keys, values, i, high);
+                high = j;
+            }
+        }
+
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && keys[j] < keys[j - 1]; j--) {
+                swap(keys, values, j, j - 1);
+            }
+        }
+    }
+
+    private static void swap(@NonNull long[] keys, @NonNull int[] values, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    private final class TopologicalOrdering extends AbstractList<Instance>
+            implements RandomAccess {
+
+        @Override
+        public Instance get(int index) {
+            return getInstance(mTopSort.get(index));
+        }
+
+        @Override
+        public int size() {
+            return mTopSort.capacity();
+        }
+    }
+
+    private static final class ViewReference extends WeakReference<Instance> {
+
+        private final int mNode;
+
+        ViewReference(int node, @NonNull Instance instance,
+                @NonNull ReferenceQueue<Instance> queue) {
+            super(instance, queue);
+            mNode = node;
+        }
+    }
+
+    /**
+     * Accumulates the class objects and instances found while parsing, in primitive lists.
+     */
+    static final class Builder {
+
+        private final TLongArrayList mIds = new TLongArrayList();
+
+        private final TIntArrayList mFlags = new TIntArrayList();
+
+        private final TLongArrayList mClassIds = new TLongArrayList();
+
+        private final TIntArrayList mLengths = new TIntArrayList();
+
+        private final TLongArrayList mValuesOffsets = new TLongArrayList();
+
+        private final TIntArrayList mStackSerials = new TIntArrayList();
+
+        void addClass(int heapIndex, @NonNull ClassObj classObj) {
+            add(classObj.getId(), heapIndex, KIND_CLASS_OBJ, 0, 0, 0, 0, classObj.getStack());
+        }
+
+        void addInstance(int heapIndex, @NonNull Instance instance) {
+            if (instance instanceof ClassInstance) {
+                ClassInstance classInstance = (ClassInstance) instance;
+                add(instance.getId(), heapIndex, KIND_CLASS_INSTANCE, 0, instance.mClassId, 0,
+                        classInstance.getValuesOffset(), instance.getStack());
+            } else if (instance instanceof ArrayInstance) {
+                ArrayInstance array = (ArrayInstance) instance;
+                Type type = array.getArrayType();
+                add(instance.getId(), heapIndex,
+                        type == Type.OBJECT ? KIND_OBJECT_ARRAY : KIND_PRIMITIVE_ARRAY,
+                        type.getTypeId(), instance.mClassId, array.getLength(),
+                        array.getValuesOffset(), instance.getStack());
+            } else {
+                throw new IllegalArgumentException("Unexpected instance type " + instance);
+            }
+        }
+
+        private void add(long id, int heapIndex, int kind, int typeId, long classId, int length,
+                long valuesOffset, @Nullable StackTrace stack) {
+            mIds.add(id);
+            mFlags.add((heapIndex << HEAP_SHIFT) | (kind << KIND_SHIFT) | typeId);
+            mClassIds.add(classId);
+            mLengths.add(length);
+            mValuesOffsets.add(valuesOffset);
+            mStackSerials.add(stack != null ? stack.mSerialNumber : -1);
+        }
+
+        @NonNull
+        ObjectGraph build(@NonNull Snapshot snapshot) {
+            return new ObjectGraph(snapshot, this);
+        }
+    }
+}
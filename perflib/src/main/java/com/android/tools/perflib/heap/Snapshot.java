@@ -21,19 +21,26 @@ import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.android.tools.perflib.heap.analysis.ComputationProgress;
 import com.android.tools.perflib.heap.analysis.DominatorsBase;
-import com.android.tools.perflib.heap.analysis.LinkEvalDominators;
+import com.android.tools.perflib.heap.analysis.SemiNcaDominators;
 import com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor;
 import com.android.tools.perflib.heap.analysis.TopologicalSort;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongArrayList;
 import gnu.trove.TLongObjectHashMap;
 import gnu.trove.TObjectProcedure;
 
@@ -83,10 +90,12 @@ public class Snapshot extends Capture {
 
     private static final String JAVA_LANG_CLASS = "java.lang.Class";
 
+    private static final Logger LOG = Logger.getLogger(Snapshot.class.getName());
+
     //  Special root object used in dominator computation for objects reachable via multiple roots.
     public static final Instance SENTINEL_ROOT = new RootObj(RootType.UNKNOWN);
 
-    private static final int DEFAULT_HEAP_ID = 0;
+    static final int DEFAULT_HEAP_ID = 0;
 
     @NonNull
     private final DataBuffer mBuffer;
@@ -119,6 +128,19 @@ public class Snapshot extends Capture {
 
     private long mIdSizeMask = 0x00000000ffffffffL;
 
+    //  Only set while parsing a compact snapshot.
+    @Nullable
+    private ObjectGraph.Builder mObjectGraphBuilder;
+
+    @Nullable
+    private ObjectGraph mObjectGraph;
+
+    //  The positions of the heap dump sub-records other than instance and array dumps, with
+    //  HprofParser.END_OF_RECORD at the end of each heap dump record. Only kept for compact
+    //  snapshots, which store them in their SnapshotIndex.
+    @Nullable
+    TLongArrayList mHeapDumpRecords;
+
     @NonNull
     public static Snapshot createSnapshot(@NonNull DataBuffer buffer) {
         try {
@@ -131,6 +153,72 @@ public class Snapshot extends Capture {
         }
     }
 
+    /**
+     * Creates a snapshot, decoding the heap dump records of memory-mapped buffers in parallel on
+     * the given executor. Other buffers are parsed sequentially.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(@NonNull DataBuffer buffer,
+            @NonNull ExecutorService executor) {
+        try {
+            Snapshot snapshot = new Snapshot(buffer);
+            HprofParser.parseBuffer(snapshot, buffer, executor);
+            return snapshot;
+        } catch (RuntimeException e) {
+            buffer.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a snapshot backed by an {@link ObjectGraph} instead of one {@link Instance} object
+     * per heap object, which takes a fraction of the memory for large heap dumps. The {@link Heap}
+     * and {@link ClassObj} query APIs work as usual, but return instances which are views created
+     * on demand. References are available through {@link #getObjectGraph()} after
+     * {@link #resolveReferences()}, and dominators are computed over the object graph as well.
+     */
+    @NonNull
+    public static Snapshot createCompactSnapshot(@NonNull DataBuffer buffer) {
+        try {
+            Snapshot snapshot = new Snapshot(buffer);
+            snapshot.mObjectGraphBuilder = new ObjectGraph.Builder();
+            snapshot.mHeapDumpRecords = new TLongArrayList();
+            HprofParser.parseBuffer(snapshot, buffer);
+            return snapshot;
+        } catch (RuntimeException e) {
+            buffer.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a compact snapshot of the given hprof file with its dominators computed. When the
+     * {@link SnapshotIndex} of the file is up to date, the object graph and the dominators are
+     * mapped from it, and only the strings, classes, stack traces and roots of the heap dump are
+     * parsed. Otherwise the heap dump is parsed in full, and the index is written for next time.
+     */
+    @NonNull
+    public static Snapshot openCompactSnapshot(@NonNull File hprofFile) throws IOException {
+        // The index is only a cache, so failing to read or write it is not an error.
+        try {
+            Snapshot snapshot = SnapshotIndex.read(hprofFile);
+            if (snapshot != null) {
+                return snapshot;
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to read the index of " + hprofFile, e);
+        }
+
+        Snapshot snapshot = createCompactSnapshot(new MemoryMappedFileBuffer(hprofFile));
+        snapshot.computeDominators();
+        try {
+            SnapshotIndex.write(snapshot, hprofFile);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to write the index of " + hprofFile, e);
+        }
+        return snapshot;
+    }
+
     @VisibleForTesting
     public Snapshot(@NonNull DataBuffer buffer) {
         mBuffer = buffer;
@@ -146,6 +234,14 @@ public class Snapshot extends Capture {
         return mBuffer;
     }
 
+    /**
+     * Returns the object graph backing this snapshot, or null if this is not a compact snapshot.
+     */
+    @Nullable
+    public ObjectGraph getObjectGraph() {
+        return mObjectGraph;
+    }
+
     @NonNull
     public Heap setToDefaultHeap() {
         return setHeapTo(DEFAULT_HEAP_ID, "default");
@@ -268,6 +364,10 @@ public class Snapshot extends Capture {
     }
 
     public final void addInstance(long id, @NonNull Instance instance) {
+        if (mObjectGraphBuilder != null) {
+            mObjectGraphBuilder.addInstance(getHeapIndex(mCurrentHeap), instance);
+            return;
+        }
         mCurrentHeap.addInstance(id, instance);
         instance.setHeap(mCurrentHeap);
     }
@@ -275,10 +375,18 @@ public class Snapshot extends Capture {
     public final void addClass(long id, @NonNull ClassObj theClass) {
         mCurrentHeap.addClass(id, theClass);
         theClass.setHeap(mCurrentHeap);
+        if (mObjectGraphBuilder != null) {
+            mObjectGraphBuilder.addClass(getHeapIndex(mCurrentHeap), theClass);
+        }
     }
 
     @Nullable
     public final Instance findInstance(long id) {
+        if (mObjectGraph != null) {
+            int node = mObjectGraph.findNode(id);
+            return node == ObjectGraph.NO_NODE ? null : mObjectGraph.getInstance(node);
+        }
+
         //noinspection ForLoopReplaceableByForEach
         for (int i = 0; i < mHeaps.size(); i++) {
             Instance instance = mHeaps.get(i).getInstance(id);
@@ -345,6 +453,11 @@ public class Snapshot extends Capture {
     }
 
     public void resolveClasses() {
+        if (mObjectGraphBuilder != null) {
+            mObjectGraph = mObjectGraphBuilder.build(this);
+            mObjectGraphBuilder = null;
+        }
+
         ClassObj clazz = findClass(JAVA_LANG_CLASS);
         int javaLangClassSize = clazz != null ? clazz.getInstanceSize() : 0;
 
@@ -364,6 +477,11 @@ public class Snapshot extends Capture {
                 classObj.setSize(classSize);
             }
 
+            if (mObjectGraph != null) {
+                // Class objects query the object graph for their instances.
+                continue;
+            }
+
             final int heapId = heap.getId();
             heap.forEachInstance(new TObjectProcedure<Instance>() {
                 @Override
@@ -388,6 +506,11 @@ public class Snapshot extends Capture {
     }
 
     public void resolveReferences() {
+        if (mObjectGraph != null) {
+            mObjectGraph.resolveReferences();
+            return;
+        }
+
         for (Heap heap : getHeaps()) {
             for (ClassObj clazz : heap.getClasses()) {
                 clazz.resolveReferences();
@@ -403,6 +526,10 @@ public class Snapshot extends Capture {
     }
 
     public void compactMemory() {
+        if (mObjectGraph != null) {
+            return;
+        }
+
         for (Heap heap : getHeaps()) {
             heap.forEachInstance(new TObjectProcedure<Instance>() {
                 @Override
@@ -426,12 +553,30 @@ public class Snapshot extends Capture {
 
     public void computeDominators() {
         prepareDominatorComputation();
-        doComputeDominators(new LinkEvalDominators(this));
+        if (mObjectGraph != null) {
+            computeObjectGraphDominators();
+            return;
+        }
+        doComputeDominators(new SemiNcaDominators(this));
+    }
+
+    /**
+     * Computes dominators and retained sizes, using the given executor to write the results back
+     * to the instances and to accumulate the retained sizes of each heap in parallel. Compact
+     * snapshots store the results in their object graph, and don't use the executor.
+     */
+    public void computeDominators(@NonNull ExecutorService executor) {
+        prepareDominatorComputation();
+        if (mObjectGraph != null) {
+            computeObjectGraphDominators();
+            return;
+        }
+        doComputeDominators(new SemiNcaDominators(this, executor));
     }
 
     @VisibleForTesting
     public void prepareDominatorComputation() {
-        if (mDominators != null) {
+        if (mDominators != null || mTopSort != null && mObjectGraph != null) {
             return;
         }
 
@@ -439,6 +584,16 @@ public class Snapshot extends Capture {
         resolveReferences();
         compactMemory();
 
+        if (mObjectGraph != null) {
+            mDominatorComputationStage = DominatorComputationStage.COMPUTING_SHORTEST_DISTANCE;
+            mObjectGraph.computeShortestDistances(getGCRoots());
+
+            mDominatorComputationStage = DominatorComputationStage.COMPUTING_TOPOLOGICAL_SORT;
+            mObjectGraph.computeTopologicalOrdering(getGCRoots());
+            mTopSort = mObjectGraph.getTopologicalOrdering();
+            return;
+        }
+
         mDominatorComputationStage = DominatorComputationStage.COMPUTING_SHORTEST_DISTANCE;
         ShortestDistanceVisitor shortestDistanceVisitor = new ShortestDistanceVisitor();
         shortestDistanceVisitor.doVisit(getGCRoots());
@@ -450,11 +605,40 @@ public class Snapshot extends Capture {
         }
     }
 
+    /**
+     * Sets the object graph mapped from a {@link SnapshotIndex}, which comes with its references
+     * and dominators, in place of parsing the instances and computing the dominators.
+     */
+    void restoreObjectGraph(@NonNull ObjectGraph graph, @NonNull TLongArrayList heapDumpRecords) {
+        mObjectGraph = graph;
+        mHeapDumpRecords = heapDumpRecords;
+        mTopSort = graph.getTopologicalOrdering();
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_RETAINED_SIZES;
+    }
+
+    private void computeObjectGraphDominators() {
+        assert mObjectGraph != null;
+        if (mObjectGraph.hasDominators()) {
+            return;
+        }
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_DOMINATORS;
+        mObjectGraph.computeDominators(getGCRoots());
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_RETAINED_SIZES;
+        mObjectGraph.computeRetainedSizes();
+    }
+
     @VisibleForTesting
     public void doComputeDominators(@NonNull DominatorsBase computable) {
         if (mDominators != null) {
             return;
         }
+        if (mObjectGraph != null) {
+            // The results would be set on views, which don't keep them.
+            throw new IllegalStateException(
+                    "Dominators of compact snapshots are computed by computeDominators()");
+        }
 
         mDominators = computable;
         mDominatorComputationStage = DominatorComputationStage.COMPUTING_DOMINATORS;
@@ -467,7 +651,8 @@ public class Snapshot extends Capture {
     @NonNull
     public ComputationProgress getComputationProgress() {
         if (mDominatorComputationStage == DominatorComputationStage.COMPUTING_DOMINATORS) {
-            return mDominators.getComputationProgress();
+            return mObjectGraph != null ? mObjectGraph.getComputationProgress()
+                    : mDominators.getComputationProgress();
         } else {
             return mDominatorComputationStage.getInitialProgress();
         }
@@ -479,6 +664,10 @@ public class Snapshot extends Capture {
 
     @NonNull
     public List<Instance> getReachableInstances() {
+        if (mObjectGraph != null) {
+            // Every node of the topological ordering is dominated by the sentinel root at least.
+            return new ArrayList<Instance>(mTopSort);
+        }
         List<Instance> result = new ArrayList<Instance>(mTopSort.size());
         for (Instance node : mTopSort) {
             if (node.getImmediateDominator() != null) {
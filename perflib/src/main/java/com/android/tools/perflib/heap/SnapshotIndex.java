@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import gnu.trove.TLongArrayList;
+
+/**
+ * Sidecar file storing the {@link ObjectGraph} of a compact snapshot with its references and
+ * dominators, so that the same heap dump can be reopened by
+ * {@link Snapshot#openCompactSnapshot(File)} without parsing its instances or recomputing its
+ * dominators. The index is stored next to the heap dump, with the {@link #EXTENSION} suffix
+ * appended to its name.
+ * <p/>
+ * All the values are stored big-endian, in the same byte order as hprof files:
+ * <pre>
+ *   u4 magic, u4 version
+ *   u8 hprof length, u8 hprof fingerprint
+ *   u4 metadata size
+ *   u8 checksum of the header and of the metadata
+ *   metadata:
+ *     u4 heap count, then for each heap: u4 heap id, UTF heap name
+ *     u4 record count, u8[record count] positions of the heap dump sub-records to load
+ *   object graph, see ObjectGraph#write(DataOutputStream)
+ * </pre>
+ * The metadata lets the snapshot replay the heap switches, classes, threads and roots of the heap
+ * dump, in the same order and into heaps with the same indices as the original parse. The object
+ * graph columns are then memory-mapped from the index as they are, so opening a snapshot reads
+ * little more than the metadata, whatever the size of the heap dump.
+ * <p/>
+ * The fingerprint is a checksum of the size and of regularly spaced samples of the hprof file,
+ * which is cheap to compute even for large heap dumps. Only the header and the metadata are
+ * checksummed, since checksumming the object graph would mean reading all of it. The index is
+ * written to a temporary file which is then renamed, so it is never seen partially written, and
+ * the object graph columns are checked against the size of the file when they are mapped. Stale
+ * and corrupt indices are ignored.
+ */
+public final class SnapshotIndex {
+    public static final String EXTENSION = ".idx";
+
+    @VisibleForTesting
+    static final int MAGIC = 0x50494458; // "PIDX"
+
+    @VisibleForTesting
+    static final int VERSION = 2;
+
+    @VisibleForTesting
+    static final int HEADER_SIZE = 36;
+
+    // The fingerprint is computed from this many blocks of the hprof file, including both ends.
+    private static final int FINGERPRINT_BLOCKS = 64;
+
+    private static final int FINGERPRINT_BLOCK_SIZE = 4096;
+
+    private SnapshotIndex() {
+    }
+
+    @NonNull
+    public static File getIndexFile(@NonNull File hprofFile) {
+        return new File(hprofFile.getPath() + EXTENSION);
+    }
+
+    /**
+     * Writes the index of a compact snapshot whose dominators have been computed. The index is
+     * written to a temporary file first, so that readers never see a partially written index.
+     */
+    public static void write(@NonNull Snapshot snapshot, @NonNull File hprofFile)
+            throws IOException {
+        ObjectGraph graph = snapshot.getObjectGraph();
+        TLongArrayList records = snapshot.mHeapDumpRecords;
+        if (graph == null || records == null) {
+            throw new IllegalStateException("Only compact snapshots can be indexed");
+        }
+        if (!graph.hasDominators()) {
+            throw new IllegalStateException("Dominators have not been computed");
+        }
+
+        ByteArrayOutputStream metadataBytes = new ByteArrayOutputStream();
+        DataOutputStream metadata = new DataOutputStream(metadataBytes);
+        metadata.writeInt(snapshot.mHeaps.size());
+        for (Heap heap : snapshot.mHeaps) {
+            metadata.writeInt(heap.getId());
+            metadata.writeUTF(heap.getName());
+        }
+        metadata.writeInt(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            metadata.writeLong(records.get(i));
+        }
+        metadata.close();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(hprofFile.length());
+        header.putLong(computeFingerprint(hprofFile));
+        header.putInt(metadataBytes.size());
+        header.putLong(computeChecksum(header, metadataBytes.toByteArray()));
+
+        File indexFile = getIndexFile(hprofFile);
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+        try {
+            out.write(header.array());
+            metadataBytes.writeTo(out);
+            graph.write(out);
+        } finally {
+            out.close();
+        }
+
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Unable to replace " + indexFile);
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + indexFile);
+        }
+    }
+
+    /**
+     * Opens a compact snapshot of the given hprof file from its index, if the index exists and
+     * matches the file. The returned snapshot has its references and dominators computed.
+     *
+     * @return the snapshot, or null if the index is missing or stale and the file needs to be
+     * parsed in full.
+     * @throws IOException if the index can't be read, or is corrupt.
+     */
+    @Nullable
+    public static Snapshot read(@NonNull File hprofFile) throws IOException {
+        File indexFile = getIndexFile(hprofFile);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            Reader in = new Reader(file.getChannel());
+            ByteBuffer header = in.read(HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getLong() != hprofFile.length()
+                    || header.getLong() != computeFingerprint(hprofFile)) {
+                return null;
+            }
+            byte[] metadataBytes = in.read(header.getInt()).array();
+            if (header.getLong() != computeChecksum(header, metadataBytes)) {
+                throw new IOException("Corrupt index " + indexFile);
+            }
+
+            DataInputStream metadata = new DataInputStream(
+                    new ByteArrayInputStream(metadataBytes));
+            int heapCount = metadata.readInt();
+            int[] heapIds = new int[heapCount];
+            String[] heapNames = new String[heapCount];
+            for (int i = 0; i < heapCount; i++) {
+                heapIds[i] = metadata.readInt();
+                heapNames[i] = metadata.readUTF();
+            }
+            int recordCount = metadata.readInt();
+            TLongArrayList records = new TLongArrayList(recordCount);
+            for (int i = 0; i < recordCount; i++) {
+                records.add(metadata.readLong());
+            }
+
+            MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(hprofFile);
+            Snapshot snapshot = new Snapshot(buffer);
+            boolean opened = false;
+            try {
+                // Create the heaps up front, so that they get the indices the graph refers to.
+                for (int i = 0; i < heapCount; i++) {
+                    snapshot.setHeapTo(heapIds[i], heapNames[i]);
+                }
+                snapshot.setToDefaultHeap();
+                HprofParser.parseBuffer(snapshot, buffer, records);
+
+                ObjectGraph graph = new ObjectGraph(snapshot, in);
+                if (in.getPosition() != in.getSize()) {
+                    throw new IOException("Corrupt index " + indexFile);
+                }
+                snapshot.restoreObjectGraph(graph, records);
+                opened = true;
+                return snapshot;
+            } finally {
+                if (!opened) {
+                    snapshot.dispose();
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads an index sequentially, copying small sections to the heap and mapping the object
+     * graph columns. Sizes are checked against the size of the index before anything is read.
+     */
+    static final class Reader {
+        @NonNull
+        private final FileChannel mChannel;
+
+        private final long mSize;
+
+        private long mPosition;
+
+        private Reader(@NonNull FileChannel channel) throws IOException {
+            mChannel = channel;
+            mSize = channel.size();
+        }
+
+        long getPosition() {
+            return mPosition;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+        int readInt() throws IOException {
+            return read(4).getInt();
+        }
+
+        @NonNull
+        int[] readInts(int count) throws IOException {
+            int[] values = new int[count];
+            read(checkSize(count, 4)).asIntBuffer().get(values);
+            return values;
+        }
+
+        @NonNull
+        IntBuffer mapInts(int count) throws IOException {
+            return map(checkSize(count, 4)).asIntBuffer();
+        }
+
+        @NonNull
+        LongBuffer mapLongs(int count) throws IOException {
+            return map(checkSize(count, 8)).asLongBuffer();
+        }
+
+        @NonNull
+        private ByteBuffer read(int size) throws IOException {
+            checkSize(size, 1);
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer, mPosition + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            mPosition += size;
+            buffer.flip();
+            return buffer;
+        }
+
+        @NonNull
+        private ByteBuffer map(int size) throws IOException {
+            ByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, mPosition, size);
+            mPosition += size;
+            return buffer;
+        }
+
+        /**
+         * Returns the size in bytes of {@code count} elements, checking that they fit in the
+         * rest of the index.
+         */
+        private int checkSize(int count, int elementSize) throws IOException {
+            long size = (long) count * elementSize;
+            if (count < 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid size in index: " + count);
+            }
+            if (mPosition + size > mSize) {
+                throw new EOFException();
+            }
+            return (int) size;
+        }
+    }
+
+    @VisibleForTesting
+    static long computeFingerprint(@NonNull File hprofFile) throws IOException {
+        CRC32 crc = new CRC32();
+        long length = hprofFile.length();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (length >>> shift));
+        }
+
+        byte[] block = new byte[FINGERPRINT_BLOCK_SIZE];
+        RandomAccessFile file = new RandomAccessFile(hprofFile, "r");
+        try {
+            long lastBlock = Math.max(0, length - FINGERPRINT_BLOCK_SIZE);
+            for (int i = 0; i < FINGERPRINT_BLOCKS; i++) {
+                file.seek(lastBlock * i / (FINGERPRINT_BLOCKS - 1));
+                int read = file.read(block);
+                if (read > 0) {
+                    crc.update(block, 0, read);
+                }
+            }
+        } finally {
+            file.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the checksum of the fields of the header preceding the checksum itself, and of the
+     * metadata.
+     */
+    private static long computeChecksum(@NonNull ByteBuffer header, @NonNull byte[] metadata) {
+        Adler32 checksum = new Adler32();
+        checksum.update(header.array(), 0, HEADER_SIZE - 8);
+        checksum.update(metadata, 0, metadata.length);
+        return checksum.getValue();
+    }
+}
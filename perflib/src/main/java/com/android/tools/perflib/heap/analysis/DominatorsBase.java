@@ -71,14 +71,18 @@ public abstract class DominatorsBase {
      */
     public void computeRetainedSizes() {
         // We only update the retained sizes of objects in the dominator tree (i.e. reachable).
-        for (Instance node : mSnapshot.getReachableInstances()) {
-            int heapIndex = mSnapshot.getHeapIndex(node.getHeap());
-            // Add the size of the current node to the retained size of every dominator up to the
-            // root, in the same heap.
-            for (Instance dom = node.getImmediateDominator(); dom != Snapshot.SENTINEL_ROOT;
-                    dom = dom.getImmediateDominator()) {
-                assert dom != null;
-                dom.addRetainedSize(heapIndex, node.getSize());
+        // Dominators always precede the nodes they dominate in topological order, so walking the
+        // nodes backwards adds every retained size to its immediate dominator once it is final.
+        int heapCount = mSnapshot.getHeaps().size();
+        List<Instance> reachableInstances = mSnapshot.getReachableInstances();
+        for (int i = reachableInstances.size() - 1; i >= 0; i--) {
+            Instance node = reachableInstances.get(i);
+            Instance dom = node.getImmediateDominator();
+            assert dom != null;
+            if (dom != Snapshot.SENTINEL_ROOT) {
+                for (int heapIndex = 0; heapIndex < heapCount; heapIndex++) {
+                    dom.addRetainedSize(heapIndex, node.getRetainedSize(heapIndex));
+                }
             }
         }
     }
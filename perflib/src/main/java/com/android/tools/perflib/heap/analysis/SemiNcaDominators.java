@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.base.Throwables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes dominators with the Semi-NCA algorithm, working on int-indexed arrays rather than on
+ * per-instance node objects. Semi-dominators are computed as in Lengauer-Tarjan, and immediate
+ * dominators are then derived as nearest common ancestors in the DFS tree. The algorithm is
+ * described in: http://www.cs.princeton.edu/research/techreps/TR-737-05
+ * <p/>
+ * Nodes are identified by their topological order, with the {@link Snapshot#SENTINEL_ROOT} being
+ * node 0. Since dominators always precede the nodes they dominate in that order, retained sizes
+ * are accumulated bottom-up in a single pass over the immediate dominator array.
+ */
+public final class SemiNcaDominators extends DominatorsBase {
+    private static final int NO_NODE = -1;
+
+    // Minimum number of nodes handed to a single task when writing results back in parallel.
+    private static final int MIN_PARTITION_SIZE = 1 << 16;
+
+    @Nullable
+    private final ExecutorService mExecutor;
+
+    // Number of nodes, including the sentinel root.
+    private final int mNodeCount;
+
+    @NonNull
+    private final Computation mComputation;
+
+    // Immediate dominator of every node, or NO_NODE for the sentinel and unreachable nodes.
+    private int[] mImmediateDominators;
+
+    public SemiNcaDominators(@NonNull Snapshot snapshot) {
+        this(snapshot, null);
+    }
+
+    /**
+     * Creates the dominator computation for the given snapshot. When an executor is given, the
+     * results are written back to the instances and retained sizes are accumulated in parallel.
+     */
+    public SemiNcaDominators(@NonNull Snapshot snapshot, @Nullable ExecutorService executor) {
+        super(snapshot);
+        mExecutor = executor;
+        mNodeCount = mTopSort.size() + 1;
+
+        // The sentinel root points to every instance referenced by a GC root.
+        boolean[] isRoot = new boolean[mNodeCount];
+        int rootCount = 0;
+        for (RootObj root : snapshot.getGCRoots()) {
+            Instance referredInstance = root.getReferredInstance();
+            if (referredInstance != null) {
+                int node = getNode(referredInstance);
+                if (!isRoot[node]) {
+                    isRoot[node] = true;
+                    rootCount++;
+                }
+            }
+        }
+
+        int[] successorOffsets = new int[mNodeCount + 1];
+        successorOffsets[1] = rootCount;
+        for (int node = 1; node < mNodeCount; node++) {
+            successorOffsets[node + 1] = successorOffsets[node]
+                    + getInstance(node).getHardForwardReferences().size();
+        }
+
+        int[] successors = new int[successorOffsets[mNodeCount]];
+        int edge = 0;
+        for (int node = 1; node < mNodeCount; node++) {
+            if (isRoot[node]) {
+                successors[edge++] = node;
+            }
+        }
+        for (int node = 1; node < mNodeCount; node++) {
+            for (Instance reference : getInstance(node).getHardForwardReferences()) {
+                successors[edge++] = getNode(reference);
+            }
+        }
+        mComputation = new Computation(mNodeCount, successorOffsets, successors);
+    }
+
+    @NonNull
+    @Override
+    public ComputationProgress getComputationProgress() {
+        mComputation.updateProgress(mCurrentProgress);
+        return mCurrentProgress;
+    }
+
+    @Override
+    public void computeDominators() {
+        mImmediateDominators = mComputation.computeImmediateDominators();
+
+        forEachPartition(mNodeCount, new PartitionTask() {
+            @Override
+            public void execute(int start, int end) {
+                for (int node = Math.max(start, 1); node < end; node++) {
+                    int dominator = mImmediateDominators[node];
+                    if (dominator != NO_NODE) {
+                        getInstance(node).setImmediateDominator(getInstance(dominator));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes retained sizes from the immediate dominator array, one heap at a time. Every heap
+     * is accumulated into its own column, so the heaps are independent of each other.
+     */
+    @Override
+    public void computeRetainedSizes() {
+        final int[] sizes = new int[mNodeCount];
+        final int[] heapIndices = new int[mNodeCount];
+        int heapCount = mSnapshot.getHeaps().size();
+        final boolean[] hasInstances = new boolean[heapCount];
+        for (int node = 1; node < mNodeCount; node++) {
+            Instance instance = getInstance(node);
+            sizes[node] = instance.getSize();
+            heapIndices[node] = mSnapshot.getHeapIndex(instance.getHeap());
+            hasInstances[heapIndices[node]] = true;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int heapIndex = 0; heapIndex < heapCount; heapIndex++) {
+            if (!hasInstances[heapIndex]) {
+                continue;
+            }
+            final int currentHeapIndex = heapIndex;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    accumulateRetainedSizes(currentHeapIndex, sizes, heapIndices);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    private void accumulateRetainedSizes(int heapIndex, @NonNull int[] sizes,
+            @NonNull int[] heapIndices) {
+        // Retained sizes exclude the node's own size, which was set when the sizes were reset.
+        long[] retainedSizes = new long[mNodeCount];
+        for (int node = mNodeCount - 1; node > 0; node--) {
+            int dominator = mImmediateDominators[node];
+            if (dominator <= 0) {
+                continue;
+            }
+            long size = retainedSizes[node];
+            if (heapIndices[node] == heapIndex) {
+                size += sizes[node];
+            }
+            retainedSizes[dominator] += size;
+        }
+
+        for (int node = 1; node < mNodeCount; node++) {
+            if (retainedSizes[node] != 0) {
+                getInstance(node).addRetainedSize(heapIndex, retainedSizes[node]);
+            }
+        }
+    }
+
+    private int getNode(@NonNull Instance instance) {
+        int node = instance.getTopologicalOrder();
+        assert node > 0 && node < mNodeCount && getInstance(node) == instance;
+        return node;
+    }
+
+    @NonNull
+    private Instance getInstance(int node) {
+        return node == 0 ? Snapshot.SENTINEL_ROOT : mTopSort.get(node - 1);
+    }
+
+    private interface PartitionTask {
+        void execute(int start, int end);
+    }
+
+    private void forEachPartition(int count, @NonNull final PartitionTask task) {
+        if (mExecutor == null || count <= MIN_PARTITION_SIZE) {
+            task.execute(0, count);
+            return;
+        }
+
+        int partitions = Math.min(Runtime.getRuntime().availableProcessors(),
+                (count + MIN_PARTITION_SIZE - 1) / MIN_PARTITION_SIZE);
+        int partitionSize = (count + partitions - 1) / partitions;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(partitions);
+        for (int start = 0; start < count; start += partitionSize) {
+            final int partitionStart = start;
+            final int partitionEnd = Math.min(count, start + partitionSize);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    task.execute(partitionStart, partitionEnd);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    private void invokeAll(@NonNull List<Callable<Void>> tasks) {
+        if (mExecutor == null) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    throw Throwables.propagate(e);
+                }
+            }
+            return;
+        }
+
+        try {
+            for (Future<Void> future : mExecutor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * The Semi-NCA computation itself, on a graph given in compressed sparse row form whose node
+     * 0 is the root. Compact snapshots run it directly on the graph built from the columns of
+     * their {@link com.android.tools.perflib.heap.ObjectGraph}, without any instance involved.
+     */
+    public static final class Computation {
+        private final int mNodeCount;
+
+        @NonNull
+        private final int[] mSuccessorOffsets;
+
+        @NonNull
+        private final int[] mSuccessors;
+
+        @NonNull
+        private final int[] mPredecessorOffsets;
+
+        @NonNull
+        private final int[] mPredecessors;
+
+        private volatile int mSemiDominatorProgress = 0;
+
+        private volatile int mDominatorProgress = 0;
+
+        /**
+         * Creates the computation for the graph whose successors of node n are the entries of
+         * {@code successors} in [successorOffsets[n], successorOffsets[n + 1]).
+         */
+        public Computation(int nodeCount, @NonNull int[] successorOffsets,
+                @NonNull int[] successors) {
+            mNodeCount = nodeCount;
+            mSuccessorOffsets = successorOffsets;
+            mSuccessors = successors;
+
+            // Transpose the successors to get the predecessors.
+            mPredecessorOffsets = new int[mNodeCount + 1];
+            for (int successor : mSuccessors) {
+                mPredecessorOffsets[successor + 1]++;
+            }
+            for (int node = 0; node < mNodeCount; node++) {
+                mPredecessorOffsets[node + 1] += mPredecessorOffsets[node];
+            }
+            mPredecessors = new int[mSuccessors.length];
+            int[] cursors = new int[mNodeCount];
+            System.arraycopy(mPredecessorOffsets, 0, cursors, 0, mNodeCount);
+            for (int node = 0; node < mNodeCount; node++) {
+                for (int i = mSuccessorOffsets[node]; i < mSuccessorOffsets[node + 1]; i++) {
+                    mPredecessors[cursors[mSuccessors[i]]++] = node;
+                }
+            }
+        }
+
+        public void updateProgress(@NonNull ComputationProgress progress) {
+            if (mSemiDominatorProgress < mNodeCount) {
+                progress.setMessage(String.format("Calculating semi-dominators %d/%d",
+                        mSemiDominatorProgress, mNodeCount));
+                progress.setProgress(0.5 * (double) mSemiDominatorProgress / (double) mNodeCount);
+            } else {
+                progress.setMessage(String.format("Calculating immediate dominators %d/%d",
+                        mDominatorProgress, mNodeCount));
+                progress.setProgress(
+                        0.5 + 0.5 * (double) mDominatorProgress / (double) mNodeCount);
+            }
+        }
+
+        /**
+         * Returns the immediate dominator of every node, or {@code -1} for the root and the nodes
+         * which can't be reached from it.
+         */
+        @NonNull
+        public int[] computeImmediateDominators() {
+            // All the arrays below are indexed by DFS preorder number, except for preorder itself.
+            int[] preorder = new int[mNodeCount];
+            int[] vertex = new int[mNodeCount];
+            int[] dominators = new int[mNodeCount];
+            int count = depthFirstSearch(preorder, vertex, dominators);
+
+            int[] semi = new int[count];
+            int[] label = new int[count];
+            int[] ancestor = new int[count];
+            for (int i = 0; i < count; i++) {
+                semi[i] = i;
+                label[i] = i;
+                ancestor[i] = NO_NODE;
+            }
+
+            // Compute semi-dominators in reverse preorder. Until linked, eval() returns the node
+            // itself, whose semi-dominator is its own preorder number.
+            int[] path = new int[count];
+            for (int w = count - 1; w > 0; w--, mSemiDominatorProgress = count - w) {
+                int node = vertex[w];
+                for (int i = mPredecessorOffsets[node]; i < mPredecessorOffsets[node + 1]; i++) {
+                    int v = preorder[mPredecessors[i]];
+                    if (v == NO_NODE) {
+                        continue;
+                    }
+                    int u = eval(v, ancestor, label, semi, path);
+                    if (semi[u] < semi[w]) {
+                        semi[w] = semi[u];
+                    }
+                }
+                // The DFS parent is still stored in dominators[w] at this point.
+                ancestor[w] = dominators[w];
+            }
+            mSemiDominatorProgress = mNodeCount;
+
+            // The immediate dominator is the nearest common ancestor of the DFS parent and the
+            // semi-dominator, which is the deepest ancestor of the parent not below the
+            // semi-dominator.
+            for (int w = 1; w < count; w++, mDominatorProgress = w) {
+                int dominator = dominators[w];
+                while (dominator > semi[w]) {
+                    dominator = dominators[dominator];
+                }
+                dominators[w] = dominator;
+            }
+
+            int[] immediateDominators = new int[mNodeCount];
+            for (int node = 0; node < mNodeCount; node++) {
+                immediateDominators[node] = NO_NODE;
+            }
+            for (int w = 1; w < count; w++) {
+                immediateDominators[vertex[w]] = vertex[dominators[w]];
+            }
+            mDominatorProgress = mNodeCount;
+            return immediateDominators;
+        }
+
+        /**
+         * Numbers the nodes reachable from the root in DFS preorder, and returns how many were
+         * reached. The DFS parent of every node is stored in {@code parents}, by preorder number.
+         */
+        private int depthFirstSearch(@NonNull int[] preorder, @NonNull int[] vertex,
+                @NonNull int[] parents) {
+            for (int node = 0; node < mNodeCount; node++) {
+                preorder[node] = NO_NODE;
+            }
+
+            int[] stack = new int[mNodeCount];
+            int[] edges = new int[mNodeCount];
+            int size = 0;
+            int count = 0;
+
+            preorder[0] = count;
+            vertex[count] = 0;
+            parents[count++] = NO_NODE;
+            stack[size] = 0;
+            edges[size++] = mSuccessorOffsets[0];
+
+            while (size > 0) {
+                int node = stack[size - 1];
+                int edge = edges[size - 1];
+                if (edge == mSuccessorOffsets[node + 1]) {
+                    size--;
+                    continue;
+                }
+                edges[size - 1]++;
+
+                int successor = mSuccessors[edge];
+                if (preorder[successor] == NO_NODE) {
+                    preorder[successor] = count;
+                    vertex[count] = successor;
+                    parents[count++] = preorder[node];
+                    stack[size] = successor;
+                    edges[size++] = mSuccessorOffsets[successor];
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns the node with the minimum semi-dominator on the path from v to the root of its
+         * tree in the link forest, excluding the root, compressing the path along the way.
+         */
+        private static int eval(int v, @NonNull int[] ancestor, @NonNull int[] label,
+                @NonNull int[] semi, @NonNull int[] path) {
+            if (ancestor[v] == NO_NODE) {
+                return v;
+            }
+
+            int size = 0;
+            for (int x = v; ancestor[ancestor[x]] != NO_NODE; x = ancestor[x]) {
+                path[size++] = x;
+            }
+            // Compress from the top of the path down, so each ancestor is already compressed.
+            while (size > 0) {
+                int x = path[--size];
+                int a = ancestor[x];
+                if (semi[label[a]] < semi[label[x]]) {
+                    label[x] = label[a];
+                }
+                ancestor[x] = ancestor[a];
+            }
+            return label[v];
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.diff;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofStreamParser;
+import com.android.tools.perflib.heap.HprofVisitor;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.StackFrame;
+import com.android.tools.perflib.heap.StackTrace;
+import com.android.tools.perflib.heap.Type;
+import com.android.tools.perflib.heap.memoryanalyzer.StreamingClassHistogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TObjectProcedure;
+
+/**
+ * Compares a heap dump against an earlier dump of the same process, to find out what grew between
+ * them.
+ * <p>
+ * Only one object graph needs to be resident at a time: the earlier dump is first reduced to a
+ * {@link Summary}, either from a {@link Snapshot} that can be disposed right after, or by
+ * streaming its hprof file with an {@link HprofStreamParser}. The summary is then compared with
+ * the later snapshot.
+ * <p>
+ * Classes are matched by name. Instances are matched either by id, which is only meaningful if
+ * objects didn't move between the dumps, or by class and allocation stack, in which case only the
+ * instances in excess of the baseline count for their stack are considered new.
+ */
+public final class SnapshotDiff {
+
+    public enum InstanceMatching {
+        ID,
+        ALLOCATION_STACK
+    }
+
+    // Indices of the counters kept for every class name.
+    private static final int COUNT = 0;
+
+    private static final int SHALLOW_SIZE = 1;
+
+    private static final int RETAINED_SIZE = 2;
+
+    @NonNull
+    private final List<ClassDelta> mClassDeltas;
+
+    @NonNull
+    private final List<Instance> mNewSubtrees;
+
+    private final boolean mHasRetainedSizes;
+
+    private SnapshotDiff(@NonNull List<ClassDelta> classDeltas,
+            @NonNull List<Instance> newSubtrees, boolean hasRetainedSizes) {
+        mClassDeltas = classDeltas;
+        mNewSubtrees = newSubtrees;
+        mHasRetainedSizes = hasRetainedSizes;
+    }
+
+    /**
+     * Compares {@code current} against an earlier {@code baseline}. The dominators of
+     * {@code current} must have been computed.
+     */
+    @NonNull
+    public static SnapshotDiff compute(@NonNull Summary baseline, @NonNull final Snapshot current) {
+        final Map<String, long[]> currentClasses = new HashMap<String, long[]>();
+        final TLongHashSet newInstances = new TLongHashSet();
+        final Matcher matcher = baseline.newMatcher();
+        for (Heap heap : current.getHeaps()) {
+            heap.forEachInstance(new TObjectProcedure<Instance>() {
+                @Override
+                public boolean execute(Instance instance) {
+                    addInstance(currentClasses, instance);
+                    if (!matcher.match(instance)) {
+                        newInstances.add(instance.getId());
+                    }
+                    return true;
+                }
+            });
+        }
+
+        // A new subtree is rooted at every new instance whose dominator existed before.
+        List<Instance> newSubtrees = new ArrayList<Instance>();
+        for (Instance instance : current.getReachableInstances()) {
+            Instance dominator = instance.getImmediateDominator();
+            if (newInstances.contains(instance.getId())
+                    && (dominator == Snapshot.SENTINEL_ROOT
+                            || !newInstances.contains(dominator.getId()))) {
+                newSubtrees.add(instance);
+            }
+        }
+        Collections.sort(newSubtrees, new Comparator<Instance>() {
+            @Override
+            public int compare(Instance i1, Instance i2) {
+                long s1 = i1.getTotalRetainedSize();
+                long s2 = i2.getTotalRetainedSize();
+                return s1 == s2 ? 0 : s1 > s2 ? -1 : 1;
+            }
+        });
+
+        Set<String> classNames = new HashSet<String>(baseline.mClasses.keySet());
+        classNames.addAll(currentClasses.keySet());
+        List<ClassDelta> classDeltas = new ArrayList<ClassDelta>();
+        long[] none = new long[3];
+        for (String className : classNames) {
+            long[] before = baseline.mClasses.get(className);
+            long[] after = currentClasses.get(className);
+            ClassDelta delta = new ClassDelta(className, before != null ? before : none,
+                    after != null ? after : none, baseline.mHasRetainedSizes);
+            if (delta.mCountDelta != 0 || delta.mShallowSizeDelta != 0
+                    || delta.mRetainedSizeDelta != 0) {
+                classDeltas.add(delta);
+            }
+        }
+        Collections.sort(classDeltas, new Comparator<ClassDelta>() {
+            @Override
+            public int compare(ClassDelta d1, ClassDelta d2) {
+                if (d1.mShallowSizeDelta != d2.mShallowSizeDelta) {
+                    return d1.mShallowSizeDelta > d2.mShallowSizeDelta ? -1 : 1;
+                }
+                return d1.mClassName.compareTo(d2.mClassName);
+            }
+        });
+
+        return new SnapshotDiff(classDeltas, newSubtrees, baseline.mHasRetainedSizes);
+    }
+
+    /**
+     * Returns the classes whose count or sizes changed, sorted by decreasing shallow size growth.
+     */
+    @NonNull
+    public List<ClassDelta> getClassDeltas() {
+        return mClassDeltas;
+    }
+
+    /**
+     * Returns the roots of the dominator subtrees made only of new instances, sorted by decreasing
+     * retained size.
+     */
+    @NonNull
+    public List<Instance> getNewSubtrees() {
+        return mNewSubtrees;
+    }
+
+    /**
+     * Returns whether retained sizes are known on both sides. Streamed summaries have no retained
+     * sizes, in which case the retained size deltas are all 0 and shouldn't be shown.
+     */
+    public boolean hasRetainedSizes() {
+        return mHasRetainedSizes;
+    }
+
+    private static void addInstance(@NonNull Map<String, long[]> classes,
+            @NonNull Instance instance) {
+        String className = getClassName(instance);
+        long[] counts = classes.get(className);
+        if (counts == null) {
+            counts = new long[3];
+            classes.put(className, counts);
+        }
+        counts[COUNT]++;
+        counts[SHALLOW_SIZE] += instance.getSize();
+        counts[RETAINED_SIZE] += instance.getTotalRetainedSize();
+    }
+
+    @NonNull
+    private static String getClassName(@NonNull Instance instance) {
+        if (instance.getClassObj() != null) {
+            return instance.getClassObj().getClassName();
+        }
+        // Primitive arrays don't have their class set.
+        if (instance instanceof ArrayInstance) {
+            return Type.getClassNameOfPrimitiveArray(((ArrayInstance) instance).getArrayType());
+        }
+        return "0x" + Long.toHexString(instance.getId());
+    }
+
+    private static long getStackKey(@NonNull Instance instance) {
+        long key = getClassName(instance).hashCode();
+        StackTrace stack = instance.getStack();
+        if (stack != null) {
+            for (StackFrame frame : stack.getFrames()) {
+                key = key * 31 + frame.toString().hashCode();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * The per-class totals and instance keys of a heap dump, which is all that is needed of the
+     * earlier dump to compare it with a later one.
+     */
+    public static final class Summary {
+
+        @NonNull
+        private final InstanceMatching mMatching;
+
+        @NonNull
+        private final Map<String, long[]> mClasses = new HashMap<String, long[]>();
+
+        // Maps instance ids to the hash of their class name, or allocation stack keys to their
+        // number of instances, depending on mMatching.
+        @NonNull
+        private final TLongIntHashMap mInstances = new TLongIntHashMap();
+
+        private final boolean mHasRetainedSizes;
+
+        private Summary(@NonNull InstanceMatching matching, boolean hasRetainedSizes) {
+            mMatching = matching;
+            mHasRetainedSizes = hasRetainedSizes;
+        }
+
+        /**
+         * Summarizes a snapshot, which may be disposed afterwards.
+         *
+         * @param includeRetainedSizes whether to sum the retained sizes of the instances, in
+         *                             which case the dominators of the snapshot must have been
+         *                             computed
+         */
+        @NonNull
+        public static Summary of(@NonNull Snapshot snapshot, @NonNull InstanceMatching matching,
+                boolean includeRetainedSizes) {
+            if (includeRetainedSizes && snapshot.getTopologicalOrdering() == null) {
+                throw new IllegalStateException("The dominators haven't been computed");
+            }
+            final Summary summary = new Summary(matching, includeRetainedSizes);
+            for (Heap heap : snapshot.getHeaps()) {
+                heap.forEachInstance(new TObjectProcedure<Instance>() {
+                    @Override
+                    public boolean execute(Instance instance) {
+                        addInstance(summary.mClasses, instance);
+                        summary.addKey(instance);
+                        return true;
+                    }
+                });
+            }
+            return summary;
+        }
+
+        /**
+         * Summarizes an hprof file without building its object graph. Stack traces aren't
+         * decoded by the streaming parser, so instances can only be matched by id, and retained
+         * sizes aren't available.
+         */
+        @NonNull
+        public static Summary of(@NonNull final HprofStreamParser parser) {
+            final Summary summary = new Summary(InstanceMatching.ID, false);
+            for (StreamingClassHistogram.Entry entry : StreamingClassHistogram.compute(parser)) {
+                long[] counts = summary.mClasses.get(entry.getClassName());
+                if (counts == null) {
+                    counts = new long[3];
+                    summary.mClasses.put(entry.getClassName(), counts);
+                }
+                counts[COUNT] += entry.getInstanceCount();
+                counts[SHALLOW_SIZE] += entry.getShallowSize();
+            }
+
+            // Class names are all known after the first pass, so they are resolved right away.
+            parser.parse(new HprofVisitor() {
+                @Override
+                public void visitInstance(@NonNull HprofStreamParser.InstanceRecord record) {
+                    add(record.getId(), parser.getClassName(record.getClassId()));
+                }
+
+                @Override
+                public void visitArray(@NonNull HprofStreamParser.ArrayRecord record) {
+                    add(record.getId(), record.getType() == Type.OBJECT
+                            ? parser.getClassName(record.getClassId())
+                            : Type.getClassNameOfPrimitiveArray(record.getType()));
+                }
+
+                private void add(long id, @Nullable String className) {
+                    if (className != null) {
+                        summary.mInstances.put(id, className.hashCode());
+                    }
+                }
+            });
+            return summary;
+        }
+
+        @NonNull
+        public InstanceMatching getMatching() {
+            return mMatching;
+        }
+
+        public boolean hasRetainedSizes() {
+            return mHasRetainedSizes;
+        }
+
+        private void addKey(@NonNull Instance instance) {
+            if (mMatching == InstanceMatching.ID) {
+                mInstances.put(instance.getId(), getClassName(instance).hashCode());
+            } else {
+                long key = getStackKey(instance);
+                if (!mInstances.increment(key)) {
+                    mInstances.put(key, 1);
+                }
+            }
+        }
+
+        @NonNull
+        private Matcher newMatcher() {
+            // Stack counts are consumed by the matching instances, so they are copied to keep the
+            // summary reusable.
+            return new Matcher(mMatching, mMatching == InstanceMatching.ID
+                    ? mInstances : (TLongIntHashMap) mInstances.clone());
+        }
+    }
+
+    private static final class Matcher {
+
+        @NonNull
+        private final InstanceMatching mMatching;
+
+        @NonNull
+        private final TLongIntHashMap mInstances;
+
+        Matcher(@NonNull InstanceMatching matching, @NonNull TLongIntHashMap instances) {
+            mMatching = matching;
+            mInstances = instances;
+        }
+
+        /**
+         * Returns whether the instance was already in the baseline.
+         */
+        boolean match(@NonNull Instance instance) {
+            if (mMatching == InstanceMatching.ID) {
+                return mInstances.containsKey(instance.getId())
+                        && mInstances.get(instance.getId())
+                                == getClassName(instance).hashCode();
+            }
+            long key = getStackKey(instance);
+            if (mInstances.get(key) > 0) {
+                mInstances.adjustValue(key, -1);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public static final class ClassDelta {
+
+        @NonNull
+        private final String mClassName;
+
+        private final long mCountDelta;
+
+        private final long mShallowSizeDelta;
+
+        private final long mRetainedSizeDelta;
+
+        private ClassDelta(@NonNull String className, @NonNull long[] before,
+                @NonNull long[] after, boolean hasRetainedSizes) {
+            mClassName = className;
+            mCountDelta = after[COUNT] - before[COUNT];
+            mShallowSizeDelta = after[SHALLOW_SIZE] - before[SHALLOW_SIZE];
+            mRetainedSizeDelta = hasRetainedSizes
+                    ? after[RETAINED_SIZE] - before[RETAINED_SIZE] : 0;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public long getCountDelta() {
+            return mCountDelta;
+        }
+
+        public long getShallowSizeDelta() {
+            return mShallowSizeDelta;
+        }
+
+        /**
+         * Returns the change in the sum of the retained sizes of the instances of the class, or 0
+         * if retained sizes aren't known on both sides, see
+         * {@link SnapshotDiff#hasRetainedSizes()}.
+         * Instances dominating each other are counted more than once.
+         */
+        public long getRetainedSizeDelta() {
+            return mRetainedSizeDelta;
+        }
+    }
+}
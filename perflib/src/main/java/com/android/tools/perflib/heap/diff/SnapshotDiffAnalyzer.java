@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.diff;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.analyzer.AnalysisReport;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.analyzer.Capture;
+import com.android.tools.perflib.analyzer.CaptureAnalyzer;
+import com.android.tools.perflib.analyzer.CaptureGroup;
+import com.android.tools.perflib.analyzer.Offender;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.HprofStreamParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.memoryanalyzer.MemoryAnalysisResultEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Diffs a group of two heap dump captures of the same process, the earlier one first. The earlier
+ * capture may provide an {@link HprofStreamParser} instead of a {@link Snapshot}, in which case its
+ * object graph is never built.
+ */
+public class SnapshotDiffAnalyzer extends CaptureAnalyzer {
+
+    @NonNull
+    private final SnapshotDiff.InstanceMatching mMatching;
+
+    public SnapshotDiffAnalyzer() {
+        this(SnapshotDiff.InstanceMatching.ID);
+    }
+
+    public SnapshotDiffAnalyzer(@NonNull SnapshotDiff.InstanceMatching matching) {
+        mMatching = matching;
+    }
+
+    @Override
+    public boolean accept(@NonNull CaptureGroup captureGroup) {
+        List<Capture> captures = captureGroup.getCaptures();
+        if (captures.size() != 2 || !Snapshot.TYPE_NAME.equals(captures.get(1).getTypeName())) {
+            return false;
+        }
+        Capture baseline = captures.get(0);
+        return Snapshot.TYPE_NAME.equals(baseline.getTypeName())
+                || baseline.getRepresentation(HprofStreamParser.class) != null;
+    }
+
+    @NonNull
+    @Override
+    public AnalysisReport analyze(@NonNull CaptureGroup captureGroup) {
+        AnalysisReport report = new AnalysisReport();
+        SnapshotDiff diff = diff(captureGroup);
+        if (diff == null) {
+            report.setCancelled();
+            return report;
+        }
+
+        List<AnalysisResultEntry> results = new ArrayList<AnalysisResultEntry>();
+        for (SnapshotDiff.ClassDelta delta : diff.getClassDeltas()) {
+            results.add(new ClassDeltaEntry(delta, diff.hasRetainedSizes()));
+        }
+        for (Instance subtree : diff.getNewSubtrees()) {
+            results.add(new NewSubtreeEntry(subtree));
+        }
+        report.addAnalysisResultEntries(results);
+        report.setCompleted();
+        return report;
+    }
+
+    @Nullable
+    public SnapshotDiff diff(@NonNull CaptureGroup captureGroup) {
+        if (!accept(captureGroup)) {
+            return null;
+        }
+        Capture baselineCapture = captureGroup.getCaptures().get(0);
+        Snapshot current = captureGroup.getCaptures().get(1).getRepresentation(Snapshot.class);
+        if (current == null) {
+            return null;
+        }
+
+        // Prefer streaming the earlier dump, so that only one object graph is ever resident.
+        SnapshotDiff.Summary baseline;
+        HprofStreamParser parser = baselineCapture.getRepresentation(HprofStreamParser.class);
+        if (parser != null && mMatching == SnapshotDiff.InstanceMatching.ID) {
+            baseline = SnapshotDiff.Summary.of(parser);
+        } else {
+            Snapshot snapshot = baselineCapture.getRepresentation(Snapshot.class);
+            if (snapshot == null) {
+                return null;
+            }
+            if (snapshot.getTopologicalOrdering() == null) {
+                snapshot.computeDominators();
+            }
+            baseline = SnapshotDiff.Summary.of(snapshot, mMatching, true);
+        }
+
+        if (current.getTopologicalOrdering() == null) {
+            current.computeDominators();
+        }
+        return SnapshotDiff.compute(baseline, current);
+    }
+
+    public static class ClassDeltaEntry implements AnalysisResultEntry<String> {
+
+        @NonNull
+        private final SnapshotDiff.ClassDelta mDelta;
+
+        @NonNull
+        private final Offender<String> mOffender;
+
+        //  Retained sizes are only shown if they are known for both captures.
+        private final boolean mShowRetainedSize;
+
+        private ClassDeltaEntry(@NonNull SnapshotDiff.ClassDelta delta, boolean showRetainedSize) {
+            mDelta = delta;
+            mShowRetainedSize = showRetainedSize;
+            mOffender = new Offender<String>(delta.getClassName(),
+                    Collections.singletonList(delta.getClassName()));
+        }
+
+        @NonNull
+        public SnapshotDiff.ClassDelta getDelta() {
+            return mDelta;
+        }
+
+        @NonNull
+        @Override
+        public String getWarningMessage() {
+            String message = String.format("%s: %+d instances, %+d bytes shallow",
+                    mDelta.getClassName(), mDelta.getCountDelta(), mDelta.getShallowSizeDelta());
+            if (mShowRetainedSize) {
+                message += String.format(", %+d bytes retained", mDelta.getRetainedSizeDelta());
+            }
+            return message;
+        }
+
+        @NonNull
+        @Override
+        public String getCategory() {
+            return "Class Deltas";
+        }
+
+        @NonNull
+        @Override
+        public Offender<String> getOffender() {
+            return mOffender;
+        }
+    }
+
+    public static class NewSubtreeEntry extends MemoryAnalysisResultEntry {
+
+        private NewSubtreeEntry(@NonNull Instance root) {
+            super(getDescription(root), Collections.singletonList(root));
+        }
+
+        @NonNull
+        private static String getDescription(@NonNull Instance root) {
+            ClassObj classObj = root.getClassObj();
+            return classObj != null ? classObj.getClassName() : root.toString();
+        }
+
+        @NonNull
+        @Override
+        public String getWarningMessage() {
+            Instance root = mOffender.getOffenders().get(0);
+            return String.format("%s retains %d bytes", mOffender.getOffendingDescription(),
+                    root.getTotalRetainedSize());
+        }
+
+        @NonNull
+        @Override
+        public String getCategory() {
+            return "New Dominator Subtrees";
+        }
+    }
+}
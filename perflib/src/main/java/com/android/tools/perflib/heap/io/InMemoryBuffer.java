@@ -17,11 +17,11 @@
 package com.android.tools.perflib.heap.io;
 
 import com.android.annotations.NonNull;
-import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.RandomAccessDataBuffer;
 
 import java.nio.ByteBuffer;
 
-public class InMemoryBuffer implements DataBuffer {
+public class InMemoryBuffer implements RandomAccessDataBuffer {
 
     private final ByteBuffer mBuffer;
 
@@ -93,6 +93,31 @@ public class InMemoryBuffer implements DataBuffer {
         return mBuffer.getDouble();
     }
 
+    @Override
+    public byte readByte(long position) {
+        return mBuffer.get((int) position);
+    }
+
+    @Override
+    public char readChar(long position) {
+        return mBuffer.getChar((int) position);
+    }
+
+    @Override
+    public short readShort(long position) {
+        return mBuffer.getShort((int) position);
+    }
+
+    @Override
+    public int readInt(long position) {
+        return mBuffer.getInt((int) position);
+    }
+
+    @Override
+    public long readLong(long position) {
+        return mBuffer.getLong((int) position);
+    }
+
     @Override
     public void setPosition(long position) {
         mBuffer.position((int) position);
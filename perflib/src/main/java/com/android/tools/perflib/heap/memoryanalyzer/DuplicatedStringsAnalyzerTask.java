@@ -18,16 +18,12 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.ClassInstance;
-import com.android.tools.perflib.heap.ClassObj;
-import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Instance;
 import com.android.tools.perflib.heap.Snapshot;
-import com.google.common.collect.HashMultimap;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
 
@@ -35,34 +31,11 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
     List<AnalysisResultEntry> analyze(@NonNull Configuration configuration,
             @NonNull Snapshot snapshot) {
         List<AnalysisResultEntry> results = new ArrayList<AnalysisResultEntry>();
-
-        HashMultimap<String, ClassInstance> stringIndex = HashMultimap.create();
-        ClassObj stringClass = snapshot.findClass("java.lang.String");
-        if (stringClass == null) {
-            return Collections.emptyList();
-        }
-
-        for (Heap heap : configuration.mHeaps) {
-            List<Instance> instances = stringClass.getHeapInstances(heap.getId());
-
-            for (Instance instance : instances) {
-                assert instance instanceof ClassInstance;
-                ClassInstance stringInstance = (ClassInstance) instance;
-                if (stringInstance.getDistanceToGcRoot() != Integer.MAX_VALUE) {
-                    char[] characters = stringInstance.getStringChars();
-                    if (characters != null) {
-                        String string = new String(characters);
-                        stringIndex.put(string, stringInstance);
-                    }
-                }
-            }
-        }
-
-        for (String key : stringIndex.keySet()) {
-            Set<ClassInstance> classInstanceSet = stringIndex.get(key);
-            if (classInstanceSet.size() > 1) {
-                results.add(
-                        new DuplicatedStringsEntry(key, new ArrayList<Instance>(classInstanceSet)));
+        for (Map.Entry<CharSequence, List<ClassInstance>> entry
+                : configuration.getIndex(snapshot).getStringsByValue().entrySet()) {
+            if (entry.getValue().size() > 1) {
+                results.add(new DuplicatedStringsEntry(entry.getKey().toString(),
+                        new ArrayList<Instance>(entry.getValue())));
             }
         }
 
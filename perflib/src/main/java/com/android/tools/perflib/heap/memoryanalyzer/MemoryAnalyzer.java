@@ -25,16 +25,15 @@ import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.analyzer.CaptureGroup;
 import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.base.Function;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
 
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 
@@ -94,8 +93,8 @@ public class MemoryAnalyzer extends Analyzer {
         mOutstandingReport = new AnalysisReport();
         mOutstandingReport.addResultListeners(listeners);
 
-        List<ListenableFutureTask<List<AnalysisResultEntry>>> futuresList
-                = new ArrayList<ListenableFutureTask<List<AnalysisResultEntry>>>();
+        List<ListenableFuture<List<AnalysisResultEntry>>> futuresList
+                = new ArrayList<ListenableFuture<List<AnalysisResultEntry>>>();
 
         for (final Capture capture : captureGroup.getCaptures()) {
             if (accept(capture)) {
@@ -104,28 +103,33 @@ public class MemoryAnalyzer extends Analyzer {
                     continue;
                 }
 
-                List<Heap> heapsToUse = new ArrayList<Heap>(snapshot.getHeaps().size());
+                final List<Heap> heapsToUse = new ArrayList<Heap>(snapshot.getHeaps().size());
                 for (Heap heap : snapshot.getHeaps()) {
                     if ("app".equals(heap.getName())) {
                         heapsToUse.add(heap);
                         break;
                     }
                 }
-                final MemoryAnalyzerTask.Configuration configuration
-                        = new MemoryAnalyzerTask.Configuration(heapsToUse);
 
-                for (final MemoryAnalyzerTask task : mTasks) {
-                    final ListenableFutureTask<List<AnalysisResultEntry>> futureTask =
-                            ListenableFutureTask.create(new Callable<List<AnalysisResultEntry>>() {
-                                @Override
-                                public List<AnalysisResultEntry> call() throws Exception {
-                                    if (mCancelAnalysis) {
-                                        return null;
-                                    }
+                // The index is built once per snapshot, and the tasks only start once it's ready.
+                ListenableFuture<MemoryAnalyzerIndex> index =
+                        MemoryAnalyzerIndex.build(snapshot, heapsToUse, taskExecutor);
 
-                                    return task.analyze(configuration, snapshot);
-                                }
-                            });
+                for (final MemoryAnalyzerTask task : mTasks) {
+                    final ListenableFuture<List<AnalysisResultEntry>> futureTask =
+                            Futures.transform(index,
+                                    new Function<MemoryAnalyzerIndex, List<AnalysisResultEntry>>() {
+                                        @Override
+                                        public List<AnalysisResultEntry> apply(
+                                                MemoryAnalyzerIndex index) {
+                                            if (mCancelAnalysis) {
+                                                return null;
+                                            }
+
+                                            return task.analyze(new MemoryAnalyzerTask
+                                                    .Configuration(heapsToUse, index), snapshot);
+                                        }
+                                    }, taskExecutor);
                     Futures.addCallback(futureTask,
                             new FutureCallback<List<AnalysisResultEntry>>() {
                                 @Override
@@ -142,7 +146,6 @@ public class MemoryAnalyzer extends Analyzer {
 
                                 }
                             }, synchronizingExecutor);
-                    taskExecutor.submit(futureTask);
                     futuresList.add(futureTask);
                 }
             }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lookups shared by all the {@link MemoryAnalyzerTask}s run on a snapshot, so that the heaps are
+ * walked once for all tasks rather than once per task. The index only covers the heaps of the
+ * {@link MemoryAnalyzerTask.Configuration} it was built for.
+ */
+public final class MemoryAnalyzerIndex {
+
+    private static final Logger LOG = Logger.getLogger(MemoryAnalyzerIndex.class.getName());
+
+    static final String ACTIVITY_CLASS_NAME = "android.app.Activity";
+
+    static final String STRING_CLASS_NAME = "java.lang.String";
+
+    // Strings are the most expensive to index, since all their characters have to be hashed.
+    private static final int MIN_STRINGS_PER_PARTITION = 10000;
+
+    @NonNull
+    private final Map<ClassObj, List<Instance>> mInstancesByClass;
+
+    @NonNull
+    private final Map<CharSequence, List<ClassInstance>> mStringsByValue;
+
+    @NonNull
+    private final Set<ClassObj> mActivityClasses;
+
+    private MemoryAnalyzerIndex(@NonNull Map<ClassObj, List<Instance>> instancesByClass,
+            @NonNull Map<CharSequence, List<ClassInstance>> stringsByValue,
+            @NonNull Set<ClassObj> activityClasses) {
+        mInstancesByClass = instancesByClass;
+        mStringsByValue = stringsByValue;
+        mActivityClasses = activityClasses;
+    }
+
+    /**
+     * Builds the index on the calling thread.
+     */
+    @NonNull
+    public static MemoryAnalyzerIndex build(@NonNull Snapshot snapshot,
+            @NonNull Collection<Heap> heaps) {
+        return Futures.getUnchecked(build(snapshot, heaps, MoreExecutors.directExecutor()));
+    }
+
+    /**
+     * Builds the index asynchronously on {@code executor}. The strings are hashed in partitions
+     * run in parallel, and no thread of the executor ever waits for another. Strings that can't
+     * be read are logged and left out of the index, rather than failing it.
+     */
+    @NonNull
+    public static ListenableFuture<MemoryAnalyzerIndex> build(@NonNull final Snapshot snapshot,
+            @NonNull final Collection<Heap> heaps, @NonNull final Executor executor) {
+        ListenableFutureTask<MemoryAnalyzerIndex> classes = ListenableFutureTask.create(
+                new Callable<MemoryAnalyzerIndex>() {
+                    @Override
+                    public MemoryAnalyzerIndex call() throws Exception {
+                        return indexClasses(snapshot, heaps);
+                    }
+                });
+        executor.execute(classes);
+        return Futures.transform(classes,
+                new AsyncFunction<MemoryAnalyzerIndex, MemoryAnalyzerIndex>() {
+                    @Override
+                    public ListenableFuture<MemoryAnalyzerIndex> apply(
+                            MemoryAnalyzerIndex index) {
+                        return index.indexStrings(snapshot, executor);
+                    }
+                }, executor);
+    }
+
+    @NonNull
+    private static MemoryAnalyzerIndex indexClasses(@NonNull Snapshot snapshot,
+            @NonNull Collection<Heap> heaps) {
+        Map<ClassObj, List<Instance>> instancesByClass = new HashMap<ClassObj, List<Instance>>();
+        // Classes aren't necessarily in the same heap as their instances.
+        for (Heap heap : heaps) {
+            for (Heap classHeap : snapshot.getHeaps()) {
+                for (ClassObj classObj : classHeap.getClasses()) {
+                    addInstances(instancesByClass, classObj, heap);
+                }
+            }
+        }
+
+        Set<ClassObj> activityClasses = new HashSet<ClassObj>(
+                snapshot.findAllDescendantClasses(ACTIVITY_CLASS_NAME));
+        return new MemoryAnalyzerIndex(instancesByClass,
+                new HashMap<CharSequence, List<ClassInstance>>(), activityClasses);
+    }
+
+    @NonNull
+    private ListenableFuture<MemoryAnalyzerIndex> indexStrings(@NonNull Snapshot snapshot,
+            @NonNull Executor executor) {
+        List<Instance> strings = new ArrayList<Instance>();
+        for (ClassObj stringClass : snapshot.findClasses(STRING_CLASS_NAME)) {
+            strings.addAll(getInstances(stringClass));
+        }
+
+        int partitionCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                strings.size() / MIN_STRINGS_PER_PARTITION));
+        List<ListenableFuture<Map<CharSequence, List<ClassInstance>>>> partitions =
+                new ArrayList<ListenableFuture<Map<CharSequence, List<ClassInstance>>>>(
+                        partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            final List<Instance> partition = strings.subList(
+                    (int) ((long) strings.size() * i / partitionCount),
+                    (int) ((long) strings.size() * (i + 1) / partitionCount));
+            ListenableFutureTask<Map<CharSequence, List<ClassInstance>>> task = ListenableFutureTask
+                    .create(new Callable<Map<CharSequence, List<ClassInstance>>>() {
+                        @Override
+                        public Map<CharSequence, List<ClassInstance>> call() throws Exception {
+                            try {
+                                return indexStrings(partition);
+                            } catch (RuntimeException e) {
+                                LOG.log(Level.WARNING, "Unable to index strings", e);
+                                throw e;
+                            }
+                        }
+                    });
+            executor.execute(task);
+            partitions.add(task);
+        }
+
+        // A partition failing despite the checks in indexStrings only loses its own strings.
+        return Futures.transform(Futures.successfulAsList(partitions),
+                new Function<List<Map<CharSequence, List<ClassInstance>>>, MemoryAnalyzerIndex>() {
+                    @Override
+                    public MemoryAnalyzerIndex apply(
+                            List<Map<CharSequence, List<ClassInstance>>> partitionStrings) {
+                        Map<CharSequence, List<ClassInstance>> stringsByValue =
+                                new HashMap<CharSequence, List<ClassInstance>>();
+                        for (Map<CharSequence, List<ClassInstance>> partition : partitionStrings) {
+                            if (partition == null) {
+                                continue;
+                            }
+                            if (stringsByValue.isEmpty()) {
+                                stringsByValue = partition;
+                                continue;
+                            }
+                            for (Map.Entry<CharSequence, List<ClassInstance>> entry
+                                    : partition.entrySet()) {
+                                List<ClassInstance> instances = stringsByValue.get(entry.getKey());
+                                if (instances == null) {
+                                    stringsByValue.put(entry.getKey(), entry.getValue());
+                                } else {
+                                    instances.addAll(entry.getValue());
+                                }
+                            }
+                        }
+                        return new MemoryAnalyzerIndex(mInstancesByClass, stringsByValue,
+                                mActivityClasses);
+                    }
+                }, executor);
+    }
+
+    private static void addInstances(@NonNull Map<ClassObj, List<Instance>> instancesByClass,
+            @NonNull ClassObj classObj, @NonNull Heap heap) {
+        if (classObj.getHeapInstancesCount(heap.getId()) == 0) {
+            return;
+        }
+        List<Instance> heapInstances = classObj.getHeapInstances(heap.getId());
+        List<Instance> instances = instancesByClass.get(classObj);
+        if (instances == null) {
+            instancesByClass.put(classObj, new ArrayList<Instance>(heapInstances));
+        } else {
+            instances.addAll(heapInstances);
+        }
+    }
+
+    @NonNull
+    private static Map<CharSequence, List<ClassInstance>> indexStrings(
+            @NonNull List<Instance> strings) {
+        Map<CharSequence, List<ClassInstance>> stringsByValue =
+                new HashMap<CharSequence, List<ClassInstance>>();
+        for (Instance instance : strings) {
+            if (!(instance instanceof ClassInstance) || !instance.isReachable()) {
+                continue;
+            }
+            ClassInstance stringInstance = (ClassInstance) instance;
+            // Strings are hashed and compared in place, only duplicates need to be decoded.
+            try {
+                CharSequence value = stringInstance.getStringCharSequence();
+                if (value == null) {
+                    continue;
+                }
+                List<ClassInstance> instances = stringsByValue.get(value);
+                if (instances == null) {
+                    instances = new ArrayList<ClassInstance>(1);
+                    stringsByValue.put(value, instances);
+                }
+                instances.add(stringInstance);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Skipping unreadable string " + stringInstance, e);
+            }
+        }
+        return stringsByValue;
+    }
+
+    /**
+     * Returns the instances of {@code classObj} in the indexed heaps.
+     */
+    @NonNull
+    public List<Instance> getInstances(@NonNull ClassObj classObj) {
+        List<Instance> instances = mInstancesByClass.get(classObj);
+        return instances != null ? Collections.unmodifiableList(instances)
+                : Collections.<Instance>emptyList();
+    }
+
+    /**
+     * Returns the reachable strings in the indexed heaps, by value. The keys are views of the
+     * heap dump, and are only valid as long as the snapshot isn't disposed.
+     */
+    @NonNull
+    public Map<CharSequence, List<ClassInstance>> getStringsByValue() {
+        return Collections.unmodifiableMap(mStringsByValue);
+    }
+
+    /**
+     * Returns android.app.Activity and all its subclasses.
+     */
+    @NonNull
+    public Set<ClassObj> getActivityClasses() {
+        return Collections.unmodifiableSet(mActivityClasses);
+    }
+}
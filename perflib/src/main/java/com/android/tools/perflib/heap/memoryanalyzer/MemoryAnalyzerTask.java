@@ -16,6 +16,7 @@
 package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.analyzer.AnalyzerTask;
 import com.android.tools.perflib.heap.Heap;
@@ -30,9 +31,28 @@ public abstract class MemoryAnalyzerTask implements AnalyzerTask {
 
         public Collection<Heap> mHeaps;
 
+        @Nullable
+        private MemoryAnalyzerIndex mIndex;
+
         public Configuration(@NonNull Collection<Heap> heaps) {
             mHeaps = heaps;
         }
+
+        public Configuration(@NonNull Collection<Heap> heaps, @NonNull MemoryAnalyzerIndex index) {
+            mHeaps = heaps;
+            mIndex = index;
+        }
+
+        /**
+         * Returns the index shared by the tasks, building it first if it wasn't provided.
+         */
+        @NonNull
+        public synchronized MemoryAnalyzerIndex getIndex(@NonNull Snapshot snapshot) {
+            if (mIndex == null) {
+                mIndex = MemoryAnalyzerIndex.build(snapshot, mHeaps);
+            }
+            return mIndex;
+        }
     }
 
     abstract List<AnalysisResultEntry> analyze(@NonNull Configuration configuration,
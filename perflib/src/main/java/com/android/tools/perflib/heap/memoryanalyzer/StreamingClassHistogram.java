@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.HprofStreamParser;
+import com.android.tools.perflib.heap.HprofVisitor;
+import com.android.tools.perflib.heap.Type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectIterator;
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TLongObjectIterator;
+
+/**
+ * Computes the number of instances and the shallow size of every class, per heap, in a single
+ * streaming pass over an hprof file. Sizes are computed the same way as for a
+ * {@link com.android.tools.perflib.heap.Snapshot}: instances have the size declared by their
+ * class, and arrays the size of their elements.
+ */
+public final class StreamingClassHistogram {
+
+    // Indices of the counters kept for every class.
+    private static final int COUNT = 0;
+
+    private static final int INSTANCE_COUNT = 1;
+
+    private static final int SIZE = 2;
+
+    private StreamingClassHistogram() {
+    }
+
+    /**
+     * Returns the histogram entries, sorted by decreasing shallow size.
+     */
+    @NonNull
+    public static List<Entry> compute(@NonNull HprofStreamParser parser) {
+        HistogramVisitor visitor = new HistogramVisitor();
+        parser.parse(visitor);
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for (TIntObjectIterator<HeapCounts> heaps = visitor.mHeaps.iterator(); heaps.hasNext(); ) {
+            heaps.advance();
+            int heapId = heaps.key();
+            String heapName = visitor.mHeapNames.get(heapId);
+            HeapCounts counts = heaps.value();
+
+            for (TLongObjectIterator<long[]> classes = counts.mClasses.iterator();
+                    classes.hasNext(); ) {
+                classes.advance();
+                long classId = classes.key();
+                long[] classCounts = classes.value();
+                HprofStreamParser.ClassRecord classRecord = parser.getClass(classId);
+                // Instances take the size declared by their class, arrays the size of their values.
+                long shallowSize = classCounts[SIZE];
+                if (classRecord != null) {
+                    shallowSize += classCounts[INSTANCE_COUNT] * classRecord.getInstanceSize();
+                }
+                String className = parser.getClassName(classId);
+                entries.add(new Entry(className != null ? className : "0x" + Long.toHexString(
+                        classId), heapId, heapName, classCounts[COUNT], shallowSize));
+            }
+
+            for (Type type : Type.values()) {
+                long[] arrayCounts = counts.mPrimitiveArrays[type.getTypeId()];
+                if (arrayCounts != null) {
+                    entries.add(new Entry(Type.getClassNameOfPrimitiveArray(type), heapId,
+                            heapName, arrayCounts[COUNT], arrayCounts[SIZE]));
+                }
+            }
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return e1.mShallowSize == e2.mShallowSize ? 0
+                        : e1.mShallowSize > e2.mShallowSize ? -1 : 1;
+            }
+        });
+        return entries;
+    }
+
+    private static final class HeapCounts {
+
+        final TLongObjectHashMap<long[]> mClasses = new TLongObjectHashMap<long[]>();
+
+        final long[][] mPrimitiveArrays = new long[Type.LONG.getTypeId() + 1][];
+
+        @NonNull
+        long[] getClassCounts(long classId) {
+            long[] counts = mClasses.get(classId);
+            if (counts == null) {
+                counts = new long[3];
+                mClasses.put(classId, counts);
+            }
+            return counts;
+        }
+    }
+
+    private static final class HistogramVisitor extends HprofVisitor {
+
+        final TIntObjectHashMap<HeapCounts> mHeaps = new TIntObjectHashMap<HeapCounts>();
+
+        final TIntObjectHashMap<String> mHeapNames = new TIntObjectHashMap<String>();
+
+        @Override
+        public void visitHeap(int heapId, @NonNull String heapName) {
+            mHeapNames.put(heapId, heapName);
+        }
+
+        @Override
+        public void visitInstance(@NonNull HprofStreamParser.InstanceRecord record) {
+            long[] counts = getHeapCounts(record.getHeapId()).getClassCounts(record.getClassId());
+            counts[COUNT]++;
+            counts[INSTANCE_COUNT]++;
+        }
+
+        @Override
+        public void visitArray(@NonNull HprofStreamParser.ArrayRecord record) {
+            HeapCounts heapCounts = getHeapCounts(record.getHeapId());
+            long[] counts;
+            if (record.getType() == Type.OBJECT) {
+                counts = heapCounts.getClassCounts(record.getClassId());
+            } else {
+                int typeId = record.getType().getTypeId();
+                counts = heapCounts.mPrimitiveArrays[typeId];
+                if (counts == null) {
+                    counts = new long[3];
+                    heapCounts.mPrimitiveArrays[typeId] = counts;
+                }
+            }
+            counts[COUNT]++;
+            counts[SIZE] += record.getSize();
+        }
+
+        @NonNull
+        private HeapCounts getHeapCounts(int heapId) {
+            HeapCounts counts = mHeaps.get(heapId);
+            if (counts == null) {
+                counts = new HeapCounts();
+                mHeaps.put(heapId, counts);
+            }
+            return counts;
+        }
+    }
+
+    public static final class Entry {
+
+        @NonNull
+        private final String mClassName;
+
+        private final int mHeapId;
+
+        @Nullable
+        private final String mHeapName;
+
+        private final long mInstanceCount;
+
+        private final long mShallowSize;
+
+        private Entry(@NonNull String className, int heapId, @Nullable String heapName,
+                long instanceCount, long shallowSize) {
+            mClassName = className;
+            mHeapId = heapId;
+            mHeapName = heapName;
+            mInstanceCount = instanceCount;
+            mShallowSize = shallowSize;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public int getHeapId() {
+            return mHeapId;
+        }
+
+        /**
+         * Returns the name of the heap, or null for the default heap.
+         */
+        @Nullable
+        public String getHeapName() {
+            return mHeapName;
+        }
+
+        public long getInstanceCount() {
+            return mInstanceCount;
+        }
+
+        public long getShallowSize() {
+            return mShallowSize;
+        }
+    }
+}
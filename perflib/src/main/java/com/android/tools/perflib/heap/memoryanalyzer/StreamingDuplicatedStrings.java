@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.heap.HprofStreamParser;
+import com.android.tools.perflib.heap.HprofVisitor;
+import com.android.tools.perflib.heap.Type;
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongLongHashMap;
+
+/**
+ * Streaming counterpart of {@link DuplicatedStringsAnalyzerTask}, which finds strings with the
+ * same contents by scanning an hprof file twice instead of building a
+ * {@link com.android.tools.perflib.heap.Snapshot}:
+ * <ol>
+ * <li>The classes are loaded, to find the layout of java.lang.String, and the position of every
+ * char array is written to a temporary file, partitioned by array id.</li>
+ * <li>The value, offset and count of every string are written to temporary files, partitioned
+ * by the id of their value like the char arrays.</li>
+ * <li>Each partition of char arrays is loaded in turn, to hash the strings of the same partition
+ * in place. The hashes are written to temporary files again, partitioned by hash.</li>
+ * <li>Each partition of hashes is loaded in turn. Only the first string with each hash is
+ * remembered, and strings are only decoded when their hash has been seen before, to be grouped
+ * by their actual contents.</li>
+ * </ol>
+ * There is one partition per {@link #DUMP_BYTES_PER_PARTITION} of heap dump, so memory use is a
+ * few dozen bytes per char array or string in that much of the dump, plus the decoded duplicates
+ * and what {@link HprofStreamParser} keeps, however large the dump. The temporary files take
+ * 20 bytes per char array and at most 52 bytes per string of the dump. Since reachability isn't
+ * known without the full object graph, unreachable strings are included as well. Finding leaked
+ * activities needs references to be resolved, which is not supported while streaming, see
+ * {@link LeakedActivityAnalyzerTask}.
+ */
+public final class StreamingDuplicatedStrings {
+
+    private static final String STRING_CLASS_NAME = "java.lang.String";
+
+    /** The amount of heap dump whose char arrays and strings are loaded in memory at once. */
+    private static final long DUMP_BYTES_PER_PARTITION = 64L * 1024 * 1024;
+
+    /** The most partitions, and so the most temporary files written at once. */
+    private static final int MAX_PARTITIONS = 256;
+
+    @NonNull
+    private final HprofStreamParser mParser;
+
+    private final int mPartitionCount;
+
+    @NonNull
+    private final TLongHashSet mStringClasses = new TLongHashSet();
+
+    // The position and length of the elements of the char arrays of a partition, by array id.
+    @NonNull
+    private final TLongLongHashMap mArrayPositions = new TLongLongHashMap();
+
+    @NonNull
+    private final TLongIntHashMap mArrayLengths = new TLongIntHashMap();
+
+    // The first string found with every hash of a partition, as an index into the lists below.
+    @NonNull
+    private final TLongIntHashMap mFirstStrings = new TLongIntHashMap();
+
+    @NonNull
+    private final TLongArrayList mFirstIds = new TLongArrayList();
+
+    @NonNull
+    private final TLongArrayList mFirstPositions = new TLongArrayList();
+
+    @NonNull
+    private final TIntArrayList mFirstLengths = new TIntArrayList();
+
+    // The first strings which have already been added to mDuplicates.
+    @NonNull
+    private final BitSet mFirstStringsAdded = new BitSet();
+
+    @NonNull
+    private final Map<String, TLongArrayList> mDuplicates = new HashMap<String, TLongArrayList>();
+
+    // The most char arrays or strings loaded in memory at once.
+    private int mMaxPartitionSize;
+
+    @VisibleForTesting
+    StreamingDuplicatedStrings(@NonNull HprofStreamParser parser, int partitionCount) {
+        mParser = parser;
+        mPartitionCount = partitionCount;
+    }
+
+    /**
+     * Returns the strings found more than once, sorted by decreasing number of instances.
+     */
+    @NonNull
+    public static List<DuplicatedString> findDuplicates(@NonNull HprofStreamParser parser)
+            throws IOException {
+        int partitionCount = (int) Math.min(MAX_PARTITIONS,
+                parser.getSize() / DUMP_BYTES_PER_PARTITION + 1);
+        return new StreamingDuplicatedStrings(parser, partitionCount).findDuplicates();
+    }
+
+    @VisibleForTesting
+    @NonNull
+    List<DuplicatedString> findDuplicates() throws IOException {
+        File directory = Files.createTempDir();
+        try {
+            findDuplicates(directory);
+        } catch (RuntimeException e) {
+            // Visitors can't throw IOExceptions, so writing the partitions wraps them.
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw e;
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            directory.delete();
+        }
+
+        List<DuplicatedString> results = new ArrayList<DuplicatedString>();
+        for (Map.Entry<String, TLongArrayList> entry : mDuplicates.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                results.add(new DuplicatedString(entry.getKey(), entry.getValue().toNativeArray()));
+            }
+        }
+        Collections.sort(results, new Comparator<DuplicatedString>() {
+            @Override
+            public int compare(DuplicatedString s1, DuplicatedString s2) {
+                int result = s2.mInstanceIds.length - s1.mInstanceIds.length;
+                return result != 0 ? result : s1.mValue.compareTo(s2.mValue);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Returns the most char arrays or strings that were loaded in memory at once.
+     */
+    @VisibleForTesting
+    int getMaxPartitionSize() {
+        return mMaxPartitionSize;
+    }
+
+    private void findDuplicates(@NonNull File directory) throws IOException {
+        final Partitions arrays = new Partitions(directory, "arrays", mPartitionCount);
+        mParser.parse(new HprofVisitor() {
+            @Override
+            public void visitClass(@NonNull HprofStreamParser.ClassRecord record) {
+                if (STRING_CLASS_NAME.equals(record.getName())) {
+                    mStringClasses.add(record.getId());
+                }
+            }
+
+            @Override
+            public void visitArray(@NonNull HprofStreamParser.ArrayRecord record) {
+                if (record.getType() == Type.CHAR) {
+                    try {
+                        DataOutputStream output = arrays.add(record.getId());
+                        output.writeLong(record.getId());
+                        output.writeLong(record.getValuesPosition());
+                        output.writeInt(record.getLength());
+                    } catch (IOException e) {
+                        throw Throwables.propagate(e);
+                    }
+                }
+            }
+        });
+        arrays.finishWriting();
+
+        final Partitions strings = new Partitions(directory, "strings", mPartitionCount);
+        mParser.parse(new HprofVisitor() {
+            @Override
+            public void visitInstance(@NonNull HprofStreamParser.InstanceRecord record) {
+                if (mStringClasses.contains(record.getClassId())) {
+                    try {
+                        writeString(record, strings);
+                    } catch (IOException e) {
+                        throw Throwables.propagate(e);
+                    }
+                }
+            }
+        });
+        strings.finishWriting();
+
+        Partitions hashes = new Partitions(directory, "hashes", mPartitionCount);
+        for (int i = 0; i < mPartitionCount; i++) {
+            hashStrings(arrays, strings, i, hashes);
+        }
+        hashes.finishWriting();
+
+        for (int i = 0; i < mPartitionCount; i++) {
+            findDuplicates(hashes, i);
+        }
+    }
+
+    private static void writeString(@NonNull HprofStreamParser.InstanceRecord record,
+            @NonNull Partitions strings) throws IOException {
+        int valueOffset = record.getFieldOffset("value");
+        if (valueOffset < 0) {
+            return;
+        }
+        long arrayId = record.readId(valueOffset);
+        int offsetOffset = record.getFieldOffset("offset");
+        int countOffset = record.getFieldOffset("count");
+        DataOutputStream output = strings.add(arrayId);
+        output.writeLong(record.getId());
+        output.writeLong(arrayId);
+        output.writeInt(offsetOffset >= 0 ? record.readInt(offsetOffset) : 0);
+        // Strings without a count span the whole array.
+        output.writeInt(countOffset >= 0 ? record.readInt(countOffset) : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Hashes the strings of a partition, whose char arrays are in the same partition of
+     * {@code arrays}, and writes them to {@code hashes} by hash.
+     */
+    private void hashStrings(@NonNull Partitions arrays, @NonNull Partitions strings,
+            int partition, @NonNull Partitions hashes) throws IOException {
+        int arrayCount = arrays.getSize(partition);
+        int stringCount = strings.getSize(partition);
+        if (arrayCount == 0 || stringCount == 0) {
+            arrays.delete(partition);
+            strings.delete(partition);
+            return;
+        }
+        mArrayPositions.clear();
+        mArrayLengths.clear();
+        mMaxPartitionSize = Math.max(mMaxPartitionSize, arrayCount);
+        DataInputStream input = arrays.open(partition);
+        try {
+            for (int i = 0; i < arrayCount; i++) {
+                long id = input.readLong();
+                mArrayPositions.put(id, input.readLong());
+                mArrayLengths.put(id, input.readInt());
+            }
+        } finally {
+            input.close();
+        }
+        arrays.delete(partition);
+
+        input = strings.open(partition);
+        try {
+            for (int i = 0; i < stringCount; i++) {
+                long id = input.readLong();
+                long arrayId = input.readLong();
+                int offset = input.readInt();
+                int count = input.readInt();
+                if (!mArrayPositions.containsKey(arrayId)) {
+                    continue;
+                }
+                // Like ClassInstance.getStringChars().
+                int arrayLength = mArrayLengths.get(arrayId);
+                offset = Math.max(0, Math.min(offset, arrayLength));
+                count = Math.max(0, Math.min(count, arrayLength - offset));
+                long position = mArrayPositions.get(arrayId) + 2L * offset;
+
+                long hash = hash(mParser.getChars(position, count));
+                DataOutputStream output = hashes.add(hash);
+                output.writeLong(hash);
+                output.writeLong(id);
+                output.writeLong(position);
+                output.writeInt(count);
+            }
+        } finally {
+            input.close();
+        }
+        strings.delete(partition);
+    }
+
+    /**
+     * Groups the strings of a partition of {@code hashes} by contents, into mDuplicates.
+     */
+    private void findDuplicates(@NonNull Partitions hashes, int partition) throws IOException {
+        mFirstStrings.clear();
+        mFirstIds.clear();
+        mFirstPositions.clear();
+        mFirstLengths.clear();
+        mFirstStringsAdded.clear();
+        int stringCount = hashes.getSize(partition);
+        if (stringCount == 0) {
+            return;
+        }
+        mMaxPartitionSize = Math.max(mMaxPartitionSize, stringCount);
+        DataInputStream input = hashes.open(partition);
+        try {
+            for (int i = 0; i < stringCount; i++) {
+                addString(input.readLong(), input.readLong(), input.readLong(), input.readInt());
+            }
+        } finally {
+            input.close();
+        }
+        hashes.delete(partition);
+    }
+
+    private void addString(long hash, long id, long position, int count) {
+        if (!mFirstStrings.containsKey(hash)) {
+            // Strings with a unique hash can't have duplicates, so they aren't decoded.
+            mFirstStrings.put(hash, mFirstIds.size());
+            mFirstIds.add(id);
+            mFirstPositions.add(position);
+            mFirstLengths.add(count);
+            return;
+        }
+
+        int first = mFirstStrings.get(hash);
+        if (!mFirstStringsAdded.get(first)) {
+            mFirstStringsAdded.set(first);
+            String firstValue = mParser.getChars(mFirstPositions.get(first),
+                    mFirstLengths.get(first)).toString();
+            getDuplicates(firstValue).add(mFirstIds.get(first));
+        }
+        getDuplicates(mParser.getChars(position, count).toString()).add(id);
+    }
+
+    @NonNull
+    private TLongArrayList getDuplicates(@NonNull String value) {
+        TLongArrayList ids = mDuplicates.get(value);
+        if (ids == null) {
+            ids = new TLongArrayList();
+            mDuplicates.put(value, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters, read in place.
+     */
+    private static long hash(@NonNull CharSequence chars) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < chars.length(); i++) {
+            hash ^= chars.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ chars.length();
+    }
+
+    /**
+     * Fixed size records written to temporary files, partitioned by a key, so that they can be
+     * loaded one partition at a time. Each partition is written in full before being read.
+     */
+    private static final class Partitions {
+
+        @NonNull
+        private final File[] mFiles;
+
+        @NonNull
+        private final DataOutputStream[] mOutputs;
+
+        @NonNull
+        private final int[] mSizes;
+
+        Partitions(@NonNull File directory, @NonNull String name, int count) {
+            mFiles = new File[count];
+            for (int i = 0; i < count; i++) {
+                mFiles[i] = new File(directory, name + i);
+            }
+            mOutputs = new DataOutputStream[count];
+            mSizes = new int[count];
+        }
+
+        /**
+         * Returns the stream to write the next record with the given key to.
+         */
+        @NonNull
+        DataOutputStream add(long key) throws IOException {
+            // Ids are addresses, so mix the bits before picking a partition.
+            int partition = (int) (((key * 0x9e3779b97f4a7c15L) >>> 33) % mFiles.length);
+            DataOutputStream output = mOutputs[partition];
+            if (output == null) {
+                output = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFiles[partition])));
+                mOutputs[partition] = output;
+            }
+            mSizes[partition]++;
+            return output;
+        }
+
+        void finishWriting() throws IOException {
+            for (int i = 0; i < mOutputs.length; i++) {
+                if (mOutputs[i] != null) {
+                    mOutputs[i].close();
+                    mOutputs[i] = null;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of records in the partition.
+         */
+        int getSize(int partition) {
+            return mSizes[partition];
+        }
+
+        @NonNull
+        DataInputStream open(int partition) throws IOException {
+            return new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFiles[partition])));
+        }
+
+        void delete(int partition) {
+            //noinspection ResultOfMethodCallIgnored
+            mFiles[partition].delete();
+        }
+    }
+
+    public static final class DuplicatedString {
+
+        @NonNull
+        private final String mValue;
+
+        @NonNull
+        private final long[] mInstanceIds;
+
+        private DuplicatedString(@NonNull String value, @NonNull long[] instanceIds) {
+            mValue = value;
+            mInstanceIds = instanceIds;
+        }
+
+        @NonNull
+        public String getValue() {
+            return mValue;
+        }
+
+        @NonNull
+        public long[] getInstanceIds() {
+            return mInstanceIds;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.Maps;
+
+import gnu.trove.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time range queries over the calls of a thread. Calls at the same depth never overlap, so they
+ * are sorted by both entry and exit time, and the calls overlapping a range are found with a
+ * binary search per depth. Deeper calls are only searched while the range overlaps their callers,
+ * so a query costs O(d log n + k) for the d levels and k calls in the range.
+ */
+public final class CallIndex {
+    @NonNull
+    private final CallTable mCalls;
+
+    /** Indices into {@link #mCalls} of the calls at each depth, in invocation order. */
+    @NonNull
+    private final int[][] mCallsByDepth;
+
+    public CallIndex(@NonNull CallTable calls) {
+        mCalls = calls;
+
+        int[] depthCounts = new int[0];
+        for (int i = 0; i < calls.getCallCount(); i++) {
+            int depth = calls.getDepth(i);
+            if (depth >= depthCounts.length) {
+                int[] counts = new int[Math.max(depth + 1, depthCounts.length * 2)];
+                System.arraycopy(depthCounts, 0, counts, 0, depthCounts.length);
+                depthCounts = counts;
+            }
+            depthCounts[depth]++;
+        }
+
+        int maxDepth = 0;
+        while (maxDepth < depthCounts.length && depthCounts[maxDepth] > 0) {
+            maxDepth++;
+        }
+        mCallsByDepth = new int[maxDepth][];
+        for (int depth = 0; depth < maxDepth; depth++) {
+            mCallsByDepth[depth] = new int[depthCounts[depth]];
+            depthCounts[depth] = 0;
+        }
+        for (int i = 0; i < calls.getCallCount(); i++) {
+            int depth = calls.getDepth(i);
+            mCallsByDepth[depth][depthCounts[depth]++] = i;
+        }
+    }
+
+    @NonNull
+    public CallTable getCalls() {
+        return mCalls;
+    }
+
+    /**
+     * Returns the indices into {@link #getCalls()} of the calls running at any time between
+     * {@code start} and {@code end} of the given clock, in invocation order. Calls which only
+     * touch the range, exiting at {@code start} or entering at {@code end}, are not in it. The
+     * callers of all the calls returned are returned too.
+     */
+    @NonNull
+    public int[] findCalls(ClockType clockType, long start, long end, TimeUnit unit) {
+        TimeUnit units = VmTraceData.getDefaultTimeUnits();
+        return findCalls(clockType, units.convert(start, unit), units.convert(end, unit));
+    }
+
+    @NonNull
+    int[] findCalls(ClockType clockType, long start, long end) {
+        TIntArrayList found = new TIntArrayList();
+        for (int[] calls : mCallsByDepth) {
+            int foundCount = found.size();
+            for (int i = findFirstExitAfter(calls, clockType, start); i < calls.length; i++) {
+                if (mCalls.getEntryTime(calls[i], clockType) >= end) {
+                    break;
+                }
+                found.add(calls[i]);
+            }
+            if (found.size() == foundCount) {
+                // Deeper calls are nested in these calls, so can't be in the range either.
+                break;
+            }
+        }
+        int[] indices = found.toNativeArray();
+        Arrays.sort(indices);
+        return indices;
+    }
+
+    /**
+     * Returns the index into {@link #getCalls()} of the first callee of {@code call} which exits
+     * after {@code time} of the given clock, or the end of the subtree of {@code call} if there
+     * is none. The following callees are found through {@link CallTable#getSubtreeEnd}.
+     */
+    int findFirstCalleeExitingAfter(int call, ClockType clockType, long time) {
+        int subtreeEnd = mCalls.getSubtreeEnd(call);
+        int depth = mCalls.getDepth(call) + 1;
+        if (call + 1 == subtreeEnd || depth >= mCallsByDepth.length) {
+            return subtreeEnd;
+        }
+        int[] calls = mCallsByDepth[depth];
+        // The calls at the next depth are sorted by index, and the callees follow the call.
+        int first = Arrays.binarySearch(calls, call + 1);
+        int i = Math.max(first, findFirstExitAfter(calls, clockType, time));
+        return i < calls.length && calls[i] < subtreeEnd ? calls[i] : subtreeEnd;
+    }
+
+    private int findFirstExitAfter(int[] calls, ClockType clockType, long time) {
+        int low = 0;
+        int high = calls.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mCalls.getExitTime(calls[mid], clockType) <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the exclusive time of each method between {@code start} and {@code end} of the given
+     * clock, keyed by method id. Calls only partially in the range count for the part that is.
+     */
+    @NonNull
+    public Map<Long, Long> getExclusiveTimes(ClockType clockType, long start, long end,
+            TimeUnit unit) {
+        TimeUnit units = VmTraceData.getDefaultTimeUnits();
+        start = units.convert(start, unit);
+        end = units.convert(end, unit);
+
+        Map<Long, Long> exclusiveTimes = Maps.newHashMap();
+        TIntArrayList callStack = new TIntArrayList();
+        for (int call : findCalls(clockType, start, end)) {
+            while (!callStack.isEmpty()
+                    && mCalls.getSubtreeEnd(callStack.get(callStack.size() - 1)) <= call) {
+                callStack.remove(callStack.size() - 1);
+            }
+
+            // The time of a call is excluded from the time of its caller.
+            long time = Math.min(mCalls.getExitTime(call, clockType), end)
+                    - Math.max(mCalls.getEntryTime(call, clockType), start);
+            addTime(exclusiveTimes, mCalls.getMethodId(call), time);
+            if (!callStack.isEmpty()) {
+                addTime(exclusiveTimes,
+                        mCalls.getMethodId(callStack.get(callStack.size() - 1)), -time);
+            }
+            callStack.add(call);
+        }
+
+        for (Map.Entry<Long, Long> entry : exclusiveTimes.entrySet()) {
+            entry.setValue(unit.convert(entry.getValue(), units));
+        }
+        return exclusiveTimes;
+    }
+
+    private static void addTime(Map<Long, Long> times, long methodId, long time) {
+        Long total = times.get(methodId);
+        times.put(methodId, total == null ? time : total + time);
+    }
+
+    /**
+     * Returns the ids of the {@code count} methods with the most exclusive time between
+     * {@code start} and {@code end} of the given clock, by decreasing exclusive time.
+     */
+    @NonNull
+    public List<Long> getTopMethodsByExclusiveTime(ClockType clockType, long start, long end,
+            TimeUnit unit, int count) {
+        final Map<Long, Long> exclusiveTimes = getExclusiveTimes(clockType, start, end, unit);
+        List<Long> methods = new ArrayList<Long>(exclusiveTimes.keySet());
+        Collections.sort(methods, new Comparator<Long>() {
+            @Override
+            public int compare(Long m1, Long m2) {
+                return exclusiveTimes.get(m2).compareTo(exclusiveTimes.get(m1));
+            }
+        });
+        return methods.subList(0, Math.min(count, methods.size()));
+    }
+}
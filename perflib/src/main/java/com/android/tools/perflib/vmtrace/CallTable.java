@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.google.common.primitives.UnsignedInts;
+
+import gnu.trove.TIntArrayList;
+
+import java.util.Iterator;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The calls of a thread stored in primitive arrays rather than as a tree of {@link Call}s, for
+ * traces too large to hold one object per call.
+ * <p>
+ * Calls are indexed in the order in which they were invoked: call 0 is the top level call of the
+ * thread, and the callees of a call {@code i} are the calls from {@code i + 1} to
+ * {@link #getSubtreeEnd(int)} at depth {@code getDepth(i) + 1}.
+ */
+public final class CallTable {
+    private final long mTopLevelCallId;
+
+    /**
+     * Note: As in {@link Call}, method ids and times are unsigned integers in the trace data, and
+     * are converted to longs by the getters.
+     */
+    private final int[] mMethodIds;
+    private final int[] mEntryThreadTimes;
+    private final int[] mEntryGlobalTimes;
+    private final int[] mExitThreadTimes;
+    private final int[] mExitGlobalTimes;
+
+    private final int[] mDepths;
+
+    /** Index after the last call nested in each call. */
+    private final int[] mSubtreeEnds;
+
+    private CallTable(long topLevelCallId, int size) {
+        mTopLevelCallId = topLevelCallId;
+        mMethodIds = new int[size];
+        mEntryThreadTimes = new int[size];
+        mEntryGlobalTimes = new int[size];
+        mExitThreadTimes = new int[size];
+        mExitGlobalTimes = new int[size];
+        mDepths = new int[size];
+        mSubtreeEnds = new int[size];
+    }
+
+    /** Copies the hierarchy rooted at the given call, for traces parsed without compact calls. */
+    @NonNull
+    public static CallTable of(@NonNull Call topLevelCall) {
+        int size = 0;
+        for (Iterator<Call> it = topLevelCall.getCallHierarchyIterator(); it.hasNext(); it.next()) {
+            size++;
+        }
+
+        CallTable table = new CallTable(topLevelCall.getMethodId(), size);
+        TIntArrayList path = new TIntArrayList();
+        TimeUnit units = VmTraceData.getDefaultTimeUnits();
+        int index = 0;
+        for (Iterator<Call> it = topLevelCall.getCallHierarchyIterator(); it.hasNext(); ) {
+            Call call = it.next();
+            int depth = call.getDepth() - topLevelCall.getDepth();
+            while (path.size() > depth) {
+                table.mSubtreeEnds[path.remove(path.size() - 1)] = index;
+            }
+            table.mMethodIds[index] = (int) call.getMethodId();
+            table.mEntryThreadTimes[index] = (int) call.getEntryTime(ClockType.THREAD, units);
+            table.mEntryGlobalTimes[index] = (int) call.getEntryTime(ClockType.GLOBAL, units);
+            table.mExitThreadTimes[index] = (int) call.getExitTime(ClockType.THREAD, units);
+            table.mExitGlobalTimes[index] = (int) call.getExitTime(ClockType.GLOBAL, units);
+            table.mDepths[index] = depth;
+            path.add(index);
+            index++;
+        }
+        while (!path.isEmpty()) {
+            table.mSubtreeEnds[path.remove(path.size() - 1)] = index;
+        }
+        return table;
+    }
+
+    public int getCallCount() {
+        return mMethodIds.length;
+    }
+
+    public long getMethodId(int index) {
+        return index == 0 ? mTopLevelCallId : UnsignedInts.toLong(mMethodIds[index]);
+    }
+
+    public int getDepth(int index) {
+        return mDepths[index];
+    }
+
+    /** Returns the index after the last call nested in the given call. */
+    public int getSubtreeEnd(int index) {
+        return mSubtreeEnds[index];
+    }
+
+    public long getEntryTime(int index, ClockType clockType, TimeUnit units) {
+        return units.convert(getEntryTime(index, clockType), VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExitTime(int index, ClockType clockType, TimeUnit units) {
+        return units.convert(getExitTime(index, clockType), VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getInclusiveTime(int index, ClockType clockType, TimeUnit units) {
+        return units.convert(getInclusiveTime(index, clockType),
+                VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExclusiveTime(int index, ClockType clockType, TimeUnit units) {
+        long exclusiveTime = getInclusiveTime(index, clockType);
+        for (int callee = index + 1; callee < mSubtreeEnds[index];
+                callee = mSubtreeEnds[callee]) {
+            exclusiveTime -= getInclusiveTime(callee, clockType);
+        }
+        return units.convert(exclusiveTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    /** Returns the entry time in {@link VmTraceData#getDefaultTimeUnits()}. */
+    long getEntryTime(int index, ClockType clockType) {
+        return clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mEntryThreadTimes[index]) :
+                UnsignedInts.toLong(mEntryGlobalTimes[index]);
+    }
+
+    /** Returns the exit time in {@link VmTraceData#getDefaultTimeUnits()}. */
+    long getExitTime(int index, ClockType clockType) {
+        return clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mExitThreadTimes[index]) :
+                UnsignedInts.toLong(mExitGlobalTimes[index]);
+    }
+
+    /** Returns the inclusive time in {@link VmTraceData#getDefaultTimeUnits()}. */
+    long getInclusiveTime(int index, ClockType clockType) {
+        return clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mExitThreadTimes[index] - mEntryThreadTimes[index]) :
+                UnsignedInts.toLong(mExitGlobalTimes[index] - mEntryGlobalTimes[index]);
+    }
+
+    /** Builds the {@link Call} hierarchy rooted at the given call. */
+    @NonNull
+    public Call getCall(int index) {
+        Stack<Long> backStack = new Stack<Long>();
+        for (int i = 0, depth = 0; depth < mDepths[index]; i++) {
+            if (mDepths[i] == depth && index < mSubtreeEnds[i]) {
+                backStack.push(getMethodId(i));
+                depth++;
+            }
+        }
+        return getCallBuilder(index).build(backStack);
+    }
+
+    @NonNull
+    private Call.Builder getCallBuilder(int index) {
+        Call.Builder builder = new Call.Builder(getMethodId(index));
+        builder.setMethodEntryTime(mEntryThreadTimes[index], mEntryGlobalTimes[index]);
+        builder.setMethodExitTime(mExitThreadTimes[index], mExitGlobalTimes[index]);
+        for (int callee = index + 1; callee < mSubtreeEnds[index];
+                callee = mSubtreeEnds[callee]) {
+            builder.addCallee(getCallBuilder(callee));
+        }
+        return builder;
+    }
+
+    /**
+     * Reconstructs the calls of a thread from its trace events, the same way
+     * {@link CallStackReconstructor} does. Calls are linked to their first and last callee and to
+     * their next sibling, so that calls entered before tracing started can adopt the calls at the
+     * top level without copying them.
+     */
+    public static class Builder {
+        private static final int NONE = -1;
+
+        private final long mTopLevelCallId;
+
+        private final TIntArrayList mMethodIds = new TIntArrayList();
+        private final TIntArrayList mEntryThreadTimes = new TIntArrayList();
+        private final TIntArrayList mEntryGlobalTimes = new TIntArrayList();
+        private final TIntArrayList mExitThreadTimes = new TIntArrayList();
+        private final TIntArrayList mExitGlobalTimes = new TIntArrayList();
+
+        private final TIntArrayList mFirstCallees = new TIntArrayList();
+        private final TIntArrayList mLastCallees = new TIntArrayList();
+        private final TIntArrayList mNextSiblings = new TIntArrayList();
+
+        /** First and last call currently assumed to be at stack depth 0. */
+        private int mFirstTopLevelCall = NONE;
+        private int mLastTopLevelCall = NONE;
+
+        /** Current call stack based on the sequence of received trace events. */
+        private final TIntArrayList mCallStack = new TIntArrayList();
+
+        public Builder(long topLevelCallId) {
+            mTopLevelCallId = topLevelCallId;
+        }
+
+        public void addTraceAction(long methodId, TraceAction action, int threadTime,
+                int globalTime) {
+            if (action == TraceAction.METHOD_ENTER) {
+                enterMethod(methodId, threadTime, globalTime);
+            } else {
+                exitMethod(methodId, threadTime, globalTime);
+            }
+        }
+
+        private int addCall(long methodId) {
+            int call = mMethodIds.size();
+            mMethodIds.add((int) methodId);
+            mEntryThreadTimes.add(0);
+            mEntryGlobalTimes.add(0);
+            mExitThreadTimes.add(0);
+            mExitGlobalTimes.add(0);
+            mFirstCallees.add(NONE);
+            mLastCallees.add(NONE);
+            mNextSiblings.add(NONE);
+            return call;
+        }
+
+        private void enterMethod(long methodId, int threadTime, int globalTime) {
+            int call = addCall(methodId);
+            mEntryThreadTimes.set(call, threadTime);
+            mEntryGlobalTimes.set(call, globalTime);
+
+            if (mCallStack.isEmpty()) {
+                if (mLastTopLevelCall == NONE) {
+                    mFirstTopLevelCall = call;
+                } else {
+                    mNextSiblings.set(mLastTopLevelCall, call);
+                }
+                mLastTopLevelCall = call;
+            } else {
+                int caller = mCallStack.get(mCallStack.size() - 1);
+                int last = mLastCallees.get(caller);
+                if (last == NONE) {
+                    mFirstCallees.set(caller, call);
+                } else {
+                    mNextSiblings.set(last, call);
+                }
+                mLastCallees.set(caller, call);
+            }
+
+            mCallStack.add(call);
+        }
+
+        private void exitMethod(long methodId, int threadTime, int globalTime) {
+            if (!mCallStack.isEmpty()) {
+                int call = mCallStack.remove(mCallStack.size() - 1);
+                long callMethodId = UnsignedInts.toLong(mMethodIds.get(call));
+                if (callMethodId != methodId) {
+                    String msg = String.format("Error during call stack reconstruction. "
+                            + "Attempt to exit from method 0x%1$x while in method 0x%2$x",
+                            callMethodId, methodId);
+                    throw new RuntimeException(msg);
+                }
+
+                mExitThreadTimes.set(call, threadTime);
+                mExitGlobalTimes.set(call, globalTime);
+            } else {
+                // We are exiting out of a method that was entered into before tracing was
+                // started, so it is assumed to have called all the previous top level calls.
+                int call = addCall(methodId);
+                mFirstCallees.set(call, mFirstTopLevelCall);
+                mLastCallees.set(call, mLastTopLevelCall);
+                mFirstTopLevelCall = call;
+                mLastTopLevelCall = call;
+
+                mExitThreadTimes.set(call, threadTime);
+                mExitGlobalTimes.set(call, globalTime);
+
+                // Guess the entry times as CallStackReconstructor does.
+                int entryThreadTime = threadTime - 1;
+                int entryGlobalTime = globalTime - 1;
+
+                int callee = mFirstCallees.get(call);
+                if (callee != NONE) {
+                    entryThreadTime = Math.max(mEntryThreadTimes.get(callee) - 1, 0);
+                    entryGlobalTime = Math.max(mEntryGlobalTimes.get(callee) - 1, 0);
+                }
+                mEntryThreadTimes.set(call, entryThreadTime);
+                mEntryGlobalTimes.set(call, entryGlobalTime);
+            }
+        }
+
+        /** Exits from a method one unit of time after its last callee, or after its entry. */
+        private void exitMethod(long methodId, int entryThreadTime, int entryGlobalTime,
+                int lastCallee) {
+            if (lastCallee == NONE) {
+                exitMethod(methodId, entryThreadTime + 1, entryGlobalTime + 1);
+            } else {
+                exitMethod(methodId, mExitThreadTimes.get(lastCallee) + 1,
+                        mExitGlobalTimes.get(lastCallee) + 1);
+            }
+        }
+
+        @NonNull
+        public CallTable build() {
+            // Close the calls without an exit trace action.
+            while (!mCallStack.isEmpty()) {
+                int call = mCallStack.get(mCallStack.size() - 1);
+                exitMethod(UnsignedInts.toLong(mMethodIds.get(call)),
+                        mEntryThreadTimes.get(call), mEntryGlobalTimes.get(call),
+                        mLastCallees.get(call));
+            }
+
+            // Move everything under a single top level call.
+            exitMethod(mTopLevelCallId, 0, 0, mLastTopLevelCall);
+            assert mFirstTopLevelCall == mLastTopLevelCall;
+
+            return toPreOrder(mFirstTopLevelCall);
+        }
+
+        /** Copies the calls in the order in which they were invoked, without recursing. */
+        @NonNull
+        private CallTable toPreOrder(int topLevelCall) {
+            CallTable table = new CallTable(mTopLevelCallId, mMethodIds.size());
+            TIntArrayList path = new TIntArrayList();
+            TIntArrayList pathIndices = new TIntArrayList();
+
+            int call = topLevelCall;
+            int index = 0;
+            while (call != NONE) {
+                table.mMethodIds[index] = mMethodIds.get(call);
+                table.mEntryThreadTimes[index] = mEntryThreadTimes.get(call);
+                table.mEntryGlobalTimes[index] = mEntryGlobalTimes.get(call);
+                table.mExitThreadTimes[index] = mExitThreadTimes.get(call);
+                table.mExitGlobalTimes[index] = mExitGlobalTimes.get(call);
+                table.mDepths[index] = path.size();
+                path.add(call);
+                pathIndices.add(index);
+                index++;
+
+                call = mFirstCallees.get(call);
+                while (call == NONE && !path.isEmpty()) {
+                    int last = path.remove(path.size() - 1);
+                    table.mSubtreeEnds[pathIndices.remove(pathIndices.size() - 1)] = index;
+                    if (!path.isEmpty()) {
+                        call = mNextSiblings.get(last);
+                    }
+                }
+            }
+            return table;
+        }
+    }
+}
@@ -30,6 +30,9 @@ public class MethodInfo {
 
     private MethodProfileData mProfileData;
 
+    /** Computes the profile data of all methods when it is first queried, if set. */
+    private Runnable mProfileDataInitializer;
+
     private String mFullName;
     private String mShortName;
 
@@ -68,10 +71,17 @@ public class MethodInfo {
 
     @NonNull
     public MethodProfileData getProfileData() {
+        if (mProfileData == null && mProfileDataInitializer != null) {
+            mProfileDataInitializer.run();
+        }
         return mProfileData;
     }
 
     public void setProfileData(@NonNull MethodProfileData profileData) {
         mProfileData = profileData;
     }
+
+    void setProfileDataInitializer(@NonNull Runnable initializer) {
+        mProfileDataInitializer = initializer;
+    }
 }
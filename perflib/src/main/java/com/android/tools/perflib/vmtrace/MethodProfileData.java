@@ -159,37 +159,52 @@ public class MethodProfileData {
         private boolean mRecursive;
 
         public void addCallTime(Call call, Call parent, ThreadInfo thread) {
+            Long callerId = parent != null ? parent.getMethodId() : null;
             for (ClockType type: ClockType.values()) {
-                addExclusiveTime(call, parent, thread, type);
+                addExclusiveTime(thread, callerId, type,
+                        call.getExclusiveTime(type, DATA_TIME_UNITS), DATA_TIME_UNITS);
 
                 if (!call.isRecursive()) {
-                    addInclusiveTime(call, parent, thread, type);
+                    addInclusiveTime(thread, callerId, type,
+                            call.getInclusiveTime(type, DATA_TIME_UNITS), DATA_TIME_UNITS);
+                    for (Call callee: call.getCallees()) {
+                        addCalleeInclusiveTime(thread, callee.getMethodId(), type,
+                                callee.getInclusiveTime(type, DATA_TIME_UNITS), DATA_TIME_UNITS);
+                    }
                 }
             }
         }
 
-        private void addExclusiveTime(Call call, Call parent, ThreadInfo thread, ClockType type) {
-            long time = call.getExclusiveTime(type, DATA_TIME_UNITS);
-
+        /** Adds the exclusive time of a call of this method from the given caller, if any. */
+        public void addExclusiveTime(ThreadInfo thread, @Nullable Long callerId, ClockType type,
+                long time, TimeUnit unit) {
+            time = DATA_TIME_UNITS.convert(time, unit);
             addExclusiveTime(getPerThreadStats(thread), time, type);
-            if (parent != null) {
-                addExclusiveTime(getPerCallerStats(thread, parent), time, type);
+            if (callerId != null) {
+                addExclusiveTime(getPerCallerStats(thread, callerId), time, type);
             }
         }
 
-        private void addInclusiveTime(Call call, Call parent, ThreadInfo thread, ClockType type) {
-            long time = call.getInclusiveTime(type, DATA_TIME_UNITS);
-
+        /**
+         * Adds the inclusive time of a call of this method from the given caller, if any. The
+         * inclusive times of recursive calls are already included in that of their first call.
+         */
+        public void addInclusiveTime(ThreadInfo thread, @Nullable Long callerId, ClockType type,
+                long time, TimeUnit unit) {
+            time = DATA_TIME_UNITS.convert(time, unit);
             addInclusiveTime(getPerThreadStats(thread), time, type);
-            if (parent != null) {
-                addInclusiveTime(getPerCallerStats(thread, parent), time, type);
-            }
-            for (Call callee: call.getCallees()) {
-                addInclusiveTime(getPerCalleeStats(thread, callee),
-                        callee.getInclusiveTime(type, DATA_TIME_UNITS), type);
+            if (callerId != null) {
+                addInclusiveTime(getPerCallerStats(thread, callerId), time, type);
             }
         }
 
+        /** Adds the inclusive time of a callee of a non recursive call of this method. */
+        public void addCalleeInclusiveTime(ThreadInfo thread, long calleeId, ClockType type,
+                long time, TimeUnit unit) {
+            addInclusiveTime(getPerCalleeStats(thread, calleeId),
+                    DATA_TIME_UNITS.convert(time, unit), type);
+        }
+
         private void addInclusiveTime(MethodStats stats, long time, ClockType type) {
             if (type == ClockType.THREAD) {
                 stats.mInclusiveThreadTime += time;
@@ -215,14 +230,12 @@ public class MethodProfileData {
             return stats;
         }
 
-        private MethodStats getPerCallerStats(ThreadInfo thread, Call parent) {
-            return getMethodStatsFromTable(thread.getId(), parent.getMethodId(),
-                    mPerThreadStatsByCaller);
+        private MethodStats getPerCallerStats(ThreadInfo thread, long callerId) {
+            return getMethodStatsFromTable(thread.getId(), callerId, mPerThreadStatsByCaller);
         }
 
-        private MethodStats getPerCalleeStats(ThreadInfo thread, Call callee) {
-            return getMethodStatsFromTable(thread.getId(), callee.getMethodId(),
-                    mPerThreadStatsByCallee);
+        private MethodStats getPerCalleeStats(ThreadInfo thread, long calleeId) {
+            return getMethodStatsFromTable(thread.getId(), calleeId, mPerThreadStatsByCallee);
         }
 
         private MethodStats getMethodStatsFromTable(Integer threadId, Long methodId,
@@ -236,15 +249,25 @@ public class MethodProfileData {
         }
 
         public void incrementInvocationCount(Call c, Call parent, ThreadInfo thread) {
-            getPerThreadStats(thread).mInvocationCount++;
-            if (parent != null) {
-                getPerCallerStats(thread, parent).mInvocationCount++;
-            }
+            incrementInvocationCount(thread, parent != null ? parent.getMethodId() : null);
             for (Call callee: c.getCallees()) {
-                getPerCalleeStats(thread, callee).mInvocationCount++;
+                incrementCalleeInvocationCount(thread, callee.getMethodId());
             }
         }
 
+        /** Counts a call of this method from the given caller, if any. */
+        public void incrementInvocationCount(ThreadInfo thread, @Nullable Long callerId) {
+            getPerThreadStats(thread).mInvocationCount++;
+            if (callerId != null) {
+                getPerCallerStats(thread, callerId).mInvocationCount++;
+            }
+        }
+
+        /** Counts a call of the given callee from this method. */
+        public void incrementCalleeInvocationCount(ThreadInfo thread, long calleeId) {
+            getPerCalleeStats(thread, calleeId).mInvocationCount++;
+        }
+
         public MethodProfileData build() {
             return new MethodProfileData(this);
         }
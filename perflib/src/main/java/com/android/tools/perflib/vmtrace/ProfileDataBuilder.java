@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.Maps;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongIntHashMap;
+
+import java.util.Map;
+import java.util.Set;
+
+/** Aggregates the calls of one or more threads into a {@link MethodProfileData} per method. */
+class ProfileDataBuilder {
+    /** Maps method ids to their corresponding method data builders */
+    private final Map<Long, MethodProfileData.Builder> mBuilderMap = Maps.newHashMap();
+
+    public void computeCallStats(Call c, Call parent, ThreadInfo thread) {
+        long methodId = c.getMethodId();
+        MethodProfileData.Builder builder = getProfileDataBuilder(methodId);
+        builder.addCallTime(c, parent, thread);
+        builder.incrementInvocationCount(c, parent, thread);
+        if (c.isRecursive()) {
+            builder.setRecursive();
+        }
+
+        for (Call callee: c.getCallees()) {
+            computeCallStats(callee, c, thread);
+        }
+    }
+
+    /** Computes the same statistics as for {@link Call}s, without building them. */
+    public void computeCallStats(CallTable calls, ThreadInfo thread) {
+        computeCallStats(calls, null, null, thread, ClockType.GLOBAL, Long.MIN_VALUE,
+                Long.MAX_VALUE);
+    }
+
+    /**
+     * Computes the statistics of the calls running between {@code start} and {@code end} of
+     * {@code rangeClock}, in {@link VmTraceData#getDefaultTimeUnits()}, counting only the part of
+     * each call in the range. The times of the other clock are prorated.
+     */
+    public void computeCallStats(CallIndex index, ThreadInfo thread, ClockType rangeClock,
+            long start, long end) {
+        computeCallStats(index.getCalls(), index, index.findCalls(rangeClock, start, end), thread,
+                rangeClock, start, end);
+    }
+
+    /**
+     * @param index the index of {@code calls}, to find the callees in the range, or null if all
+     *              the calls are in the range
+     * @param indices the calls to count in invocation order, which must include the callers of
+     *                every call, as returned by {@link CallIndex#findCalls}. All calls are counted
+     *                if null.
+     */
+    private void computeCallStats(CallTable calls, @Nullable CallIndex index,
+            @Nullable int[] indices, ThreadInfo thread, ClockType rangeClock, long start,
+            long end) {
+        // Indices of the calls enclosing the current call, and the number of times each
+        // method is on that stack, to find recursive calls.
+        TIntArrayList callStack = new TIntArrayList();
+        TLongIntHashMap methodsOnStack = new TLongIntHashMap();
+        TIntArrayList callees = new TIntArrayList();
+
+        int count = indices != null ? indices.length : calls.getCallCount();
+        for (int k = 0; k < count; k++) {
+            int i = indices != null ? indices[k] : k;
+            while (!callStack.isEmpty()
+                    && calls.getSubtreeEnd(callStack.get(callStack.size() - 1)) <= i) {
+                long exitedId = calls.getMethodId(callStack.remove(callStack.size() - 1));
+                methodsOnStack.put(exitedId, methodsOnStack.get(exitedId) - 1);
+            }
+
+            long methodId = calls.getMethodId(i);
+            Long callerId = callStack.isEmpty() ? null
+                    : calls.getMethodId(callStack.get(callStack.size() - 1));
+            boolean recursive = methodsOnStack.get(methodId) > 0;
+
+            // The callees in the range are contiguous, and sorted by both entry and exit time.
+            callees.clear();
+            int subtreeEnd = calls.getSubtreeEnd(i);
+            int first = index != null
+                    ? index.findFirstCalleeExitingAfter(i, rangeClock, start) : i + 1;
+            for (int callee = first; callee < subtreeEnd
+                    && calls.getEntryTime(callee, rangeClock) < end;
+                    callee = calls.getSubtreeEnd(callee)) {
+                callees.add(callee);
+            }
+
+            MethodProfileData.Builder builder = getProfileDataBuilder(methodId);
+            builder.incrementInvocationCount(thread, callerId);
+            for (ClockType type : ClockType.values()) {
+                long inclusiveTime = getInclusiveTime(calls, i, type, rangeClock, start, end);
+                long exclusiveTime = inclusiveTime;
+                for (int c = 0; c < callees.size(); c++) {
+                    int callee = callees.get(c);
+                    long calleeTime = getInclusiveTime(calls, callee, type, rangeClock, start, end);
+                    exclusiveTime -= calleeTime;
+                    if (!recursive) {
+                        builder.addCalleeInclusiveTime(thread, calls.getMethodId(callee), type,
+                                calleeTime, VmTraceData.getDefaultTimeUnits());
+                    }
+                }
+
+                builder.addExclusiveTime(thread, callerId, type, exclusiveTime,
+                        VmTraceData.getDefaultTimeUnits());
+                if (!recursive) {
+                    builder.addInclusiveTime(thread, callerId, type, inclusiveTime,
+                            VmTraceData.getDefaultTimeUnits());
+                }
+            }
+            for (int c = 0; c < callees.size(); c++) {
+                builder.incrementCalleeInvocationCount(thread, calls.getMethodId(callees.get(c)));
+            }
+            if (recursive) {
+                builder.setRecursive();
+            }
+
+            callStack.add(i);
+            methodsOnStack.put(methodId, methodsOnStack.get(methodId) + 1);
+        }
+    }
+
+    /** Returns the inclusive time of a call within the given range. */
+    private static long getInclusiveTime(CallTable calls, int index, ClockType type,
+            ClockType rangeClock, long start, long end) {
+        long inclusiveTime = calls.getInclusiveTime(index, type);
+        long entry = calls.getEntryTime(index, rangeClock);
+        long exit = calls.getExitTime(index, rangeClock);
+        long timeInRange = Math.min(exit, end) - Math.max(entry, start);
+        if (timeInRange >= exit - entry) {
+            return inclusiveTime;
+        }
+        if (timeInRange <= 0) {
+            return 0;
+        }
+        if (type == rangeClock) {
+            return timeInRange;
+        }
+        return Math.round((double) inclusiveTime * timeInRange / (exit - entry));
+    }
+
+    @NonNull
+    private MethodProfileData.Builder getProfileDataBuilder(long methodId) {
+        MethodProfileData.Builder builder = mBuilderMap.get(methodId);
+        if (builder == null) {
+            builder = new MethodProfileData.Builder();
+            mBuilderMap.put(methodId, builder);
+        }
+        return builder;
+    }
+
+    public Set<Long> getMethodsWithProfileData() {
+        return mBuilderMap.keySet();
+    }
+
+    public MethodProfileData getProfileData(Long methodId) {
+        return mBuilderMap.get(methodId).build();
+    }
+
+    /** Returns the profile data of all methods, keyed by method id. */
+    @NonNull
+    public Map<Long, MethodProfileData> build() {
+        Map<Long, MethodProfileData> profileData =
+                Maps.newHashMapWithExpectedSize(mBuilderMap.size());
+        for (Map.Entry<Long, MethodProfileData.Builder> entry : mBuilderMap.entrySet()) {
+            profileData.put(entry.getKey(), entry.getValue().build());
+        }
+        return profileData;
+    }
+}
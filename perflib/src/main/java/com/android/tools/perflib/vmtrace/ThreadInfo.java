@@ -26,13 +26,27 @@ public class ThreadInfo {
     /** Thread name */
     private final String mName;
 
-    /** Top level call in this thread */
-    private final Call mTopLevelCall;
+    /** Top level call in this thread, built from {@link #mCallTable} on first use if set */
+    private Call mTopLevelCall;
+
+    /** Calls in this thread, for traces parsed with compact calls */
+    @Nullable
+    private final CallTable mCallTable;
+
+    /** Time range index over the calls in this thread, built on first use */
+    private CallIndex mCallIndex;
 
     public ThreadInfo(int threadId, @NonNull String name, @Nullable Call topLevelCall) {
         mId = threadId;
         mName = name;
         mTopLevelCall = topLevelCall;
+        mCallTable = null;
+    }
+
+    public ThreadInfo(int threadId, @NonNull String name, @NonNull CallTable callTable) {
+        mId = threadId;
+        mName = name;
+        mCallTable = callTable;
     }
 
     public int getId() {
@@ -45,7 +59,38 @@ public class ThreadInfo {
     }
 
     @Nullable
-    public Call getTopLevelCall() {
+    public synchronized Call getTopLevelCall() {
+        if (mTopLevelCall == null && mCallTable != null) {
+            mTopLevelCall = mCallTable.getCall(0);
+        }
         return mTopLevelCall;
     }
+
+    /** Returns the calls in this thread if the trace was parsed with compact calls. */
+    @Nullable
+    public CallTable getCallTable() {
+        return mCallTable;
+    }
+
+    /** Returns an index for time range queries over the calls in this thread, if any. */
+    @Nullable
+    public synchronized CallIndex getCallIndex() {
+        if (mCallIndex == null) {
+            CallTable calls = mCallTable;
+            if (calls == null) {
+                Call topLevelCall = getTopLevelCall();
+                if (topLevelCall == null) {
+                    return null;
+                }
+                calls = CallTable.of(topLevelCall);
+            }
+            mCallIndex = new CallIndex(calls);
+        }
+        return mCallIndex;
+    }
+
+    /** Returns whether there are any calls in this thread, without building them. */
+    public boolean hasCalls() {
+        return mCallTable != null || getTopLevelCall() != null;
+    }
 }
@@ -24,6 +24,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -76,7 +77,9 @@ public class VmTraceData {
                 name = String.format("%1$s-%2$d", name, id);
             }
 
-            info = new ThreadInfo(id, name, b.mTopLevelCalls.get(id));
+            CallTable callTable = b.mCallTables.get(id);
+            info = callTable != null ? new ThreadInfo(id, name, callTable)
+                    : new ThreadInfo(id, name, b.mTopLevelCalls.get(id));
             mThreadInfo.put(name, info);
         }
     }
@@ -121,7 +124,7 @@ public class VmTraceData {
             @Override
             public boolean apply(
                     com.android.tools.perflib.vmtrace.ThreadInfo input) {
-                return input.getTopLevelCall() != null;
+                return input.hasCalls();
             }
         }));
     }
@@ -138,10 +141,38 @@ public class VmTraceData {
         return mMethods.get(methodId);
     }
 
+    /**
+     * Returns the profile data of the methods called on the given thread between {@code start}
+     * and {@code end} of the given clock, keyed by method id. Calls only partially in the range
+     * count for the part that is, and their times in the other clock are prorated.
+     */
+    public Map<Long, MethodProfileData> getProfileData(ThreadInfo thread, ClockType clockType,
+            long start, long end, TimeUnit unit) {
+        CallIndex index = thread.getCallIndex();
+        if (index == null) {
+            return Collections.emptyMap();
+        }
+
+        TimeUnit units = getDefaultTimeUnits();
+        ProfileDataBuilder builder = new ProfileDataBuilder();
+        builder.computeCallStats(index, thread, clockType, units.convert(start, unit),
+                units.convert(end, unit));
+        return builder.build();
+    }
+
     /** Returns the duration of this call as a percentage of the duration of the top level call. */
     public double getDurationPercentage(Call call, ThreadInfo thread, ClockType clockType,
             boolean inclusiveTime) {
-        MethodInfo methodInfo = getMethod(call.getMethodId());
+        return getDurationPercentage(call.getMethodId(), thread, clockType, inclusiveTime);
+    }
+
+    /**
+     * Returns the duration of the calls to a method as a percentage of the duration of the top
+     * level call.
+     */
+    public double getDurationPercentage(long methodId, ThreadInfo thread, ClockType clockType,
+            boolean inclusiveTime) {
+        MethodInfo methodInfo = getMethod(methodId);
         TimeSelector selector = TimeSelector.create(clockType, inclusiveTime);
         long methodTime = selector.get(methodInfo, thread, TimeUnit.NANOSECONDS);
         return getDurationPercentage(methodTime, thread, clockType);
@@ -152,12 +183,20 @@ public class VmTraceData {
      * in given thread.
      */
     public double getDurationPercentage(long methodTime, ThreadInfo thread, ClockType clockType) {
-        Call topCall = getThread(thread.getName()).getTopLevelCall();
-        if (topCall == null) {
-            return 100.;
+        ThreadInfo threadInfo = getThread(thread.getName());
+        CallTable callTable = threadInfo.getCallTable();
+        long topMethodId;
+        if (callTable != null) {
+            topMethodId = callTable.getMethodId(0);
+        } else {
+            Call topCall = threadInfo.getTopLevelCall();
+            if (topCall == null) {
+                return 100.;
+            }
+            topMethodId = topCall.getMethodId();
         }
 
-        MethodInfo topInfo = getMethod(topCall.getMethodId());
+        MethodInfo topInfo = getMethod(topMethodId);
 
         // always use inclusive time to obtain the top level's time when computing percentages
         TimeSelector selector = TimeSelector.create(clockType, true);
@@ -211,6 +250,7 @@ public class VmTraceData {
         private boolean mDataFileOverflow;
         private VmClockType mVmClockType = VmClockType.THREAD_CPU;
         private String mVm = "";
+        private boolean mCompactCalls;
         private final Map<String, String> mProperties = new HashMap<String, String>(10);
 
         /** Map from thread ids to thread names. */
@@ -226,6 +266,13 @@ public class VmTraceData {
         /** Map from thread id to the top level call for that thread. */
         private final SparseArray<Call> mTopLevelCalls = new SparseArray<Call>(10);
 
+        /** Map from thread id to the builder of the calls of that thread, with compact calls. */
+        private final SparseArray<CallTable.Builder> mCallTableBuilders
+                = new SparseArray<CallTable.Builder>(10);
+
+        /** Map from thread id to the calls of that thread, with compact calls. */
+        private final SparseArray<CallTable> mCallTables = new SparseArray<CallTable>(10);
+
         public void setVersion(int version) {
             mVersion = version;
         }
@@ -254,6 +301,18 @@ public class VmTraceData {
             mVm = vm;
         }
 
+        /**
+         * Sets whether calls are stored in a {@link CallTable} per thread instead of as a tree of
+         * {@link Call}s, which are then only built if queried.
+         */
+        public void setCompactCalls(boolean compactCalls) {
+            mCompactCalls = compactCalls;
+        }
+
+        public boolean isCompactCalls() {
+            return mCompactCalls;
+        }
+
         public void addThread(int id, String name) {
             mThreads.put(id, name);
         }
@@ -282,6 +341,17 @@ public class VmTraceData {
                         mThreads.get(threadId), methodId, methodInfo.getShortName(), methodAction);
             }
 
+            if (mCompactCalls) {
+                CallTable.Builder callTableBuilder = mCallTableBuilders.get(threadId);
+                if (callTableBuilder == null) {
+                    long topLevelCallId = createUniqueMethodIdForThread(threadId);
+                    callTableBuilder = new CallTable.Builder(topLevelCallId);
+                    mCallTableBuilders.put(threadId, callTableBuilder);
+                }
+                callTableBuilder.addTraceAction(methodId, methodAction, threadTime, globalTime);
+                return;
+            }
+
             CallStackReconstructor reconstructor = mStackReconstructors.get(threadId);
             if (reconstructor == null) {
                 long topLevelCallId = createUniqueMethodIdForThread(threadId);
@@ -307,6 +377,11 @@ public class VmTraceData {
                 CallStackReconstructor reconstructor = mStackReconstructors.valueAt(i);
                 mTopLevelCalls.put(threadId, reconstructor.getTopLevel());
             }
+            for (int i = 0; i < mCallTableBuilders.size(); i++) {
+                CallTable callTable = mCallTableBuilders.valueAt(i).build();
+                mCallTables.put(mCallTableBuilders.keyAt(i), callTable);
+            }
+            mCallTableBuilders.clear();
 
             return new VmTraceData(this);
         }
@@ -16,11 +16,10 @@
 
 package com.android.tools.perflib.vmtrace;
 
-import com.android.annotations.NonNull;
 import com.android.annotations.VisibleForTesting;
-import com.android.ddmlib.ByteBufferUtil;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.google.common.base.Charsets;
-import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
 import com.google.common.primitives.UnsignedInts;
 
@@ -29,10 +28,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Map;
-import java.util.Set;
 
 public class VmTraceParser {
     private static final int TRACE_MAGIC = 0x574f4c53; // 'SLOW'
@@ -52,18 +48,35 @@ public class VmTraceParser {
     private VmTraceData mTraceData;
 
     public VmTraceParser(File traceFile) {
+        this(traceFile, false);
+    }
+
+    /**
+     * @param compactCalls whether to store the calls of each thread in a {@link CallTable} rather
+     *                     than as {@link Call}s, for traces too large to hold one object per call.
+     *                     {@link Call}s and {@link MethodProfileData} are then only built when
+     *                     first queried.
+     */
+    public VmTraceParser(File traceFile, boolean compactCalls) {
         if (!traceFile.exists()) {
             throw new IllegalArgumentException(
                     "Trace file " + traceFile.getAbsolutePath() + " does not exist.");
         }
         mTraceFile = traceFile;
         mTraceDataBuilder = new VmTraceData.Builder();
+        mTraceDataBuilder.setCompactCalls(compactCalls);
     }
 
     public void parse() throws IOException {
         long headerLength = parseHeader(mTraceFile);
-        ByteBuffer buffer = ByteBufferUtil.mapFile(mTraceFile, headerLength, ByteOrder.LITTLE_ENDIAN);
-        parseData(buffer);
+        // The data section is mapped in windows, so it isn't limited to 2GB.
+        DataBuffer buffer = new MemoryMappedFileBuffer(mTraceFile, headerLength,
+                ByteOrder.LITTLE_ENDIAN);
+        try {
+            parseData(buffer);
+        } finally {
+            buffer.dispose();
+        }
         computeTimingStatistics();
     }
 
@@ -235,7 +248,7 @@ public class VmTraceParser {
      *
      * All values are stored in little-endian order.
      */
-    private void parseData(ByteBuffer buffer) {
+    private void parseData(DataBuffer buffer) {
         int recordSize = readDataFileHeader(buffer);
         parseMethodTraceData(buffer, recordSize);
     }
@@ -260,7 +273,7 @@ public class VmTraceParser {
      *
      * 32 bits of microseconds is 70 minutes.
      */
-    private void parseMethodTraceData(ByteBuffer buffer, int recordSize) {
+    private void parseMethodTraceData(DataBuffer buffer, int recordSize) {
         int methodId;
         int threadId;
         int version = mTraceDataBuilder.getVersion();
@@ -269,31 +282,31 @@ public class VmTraceParser {
             int threadTime;
             int globalTime;
 
-            int positionStart = buffer.position();
+            long positionStart = buffer.position();
 
-            threadId = version == 1 ? buffer.get() : buffer.getShort();
-            methodId = buffer.getInt();
+            threadId = version == 1 ? buffer.readByte() : buffer.readShort();
+            methodId = buffer.readInt();
 
             switch (vmClockType) {
                 case WALL:
-                    globalTime = buffer.getInt();
+                    globalTime = buffer.readInt();
                     threadTime = globalTime;
                     break;
                 case DUAL:
-                    threadTime = buffer.getInt();
-                    globalTime = buffer.getInt();
+                    threadTime = buffer.readInt();
+                    globalTime = buffer.readInt();
                     break;
                 case THREAD_CPU:
                 default:
-                    threadTime = buffer.getInt();
+                    threadTime = buffer.readInt();
                     globalTime = threadTime;
                     break;
             }
 
-            int positionEnd = buffer.position();
-            int bytesRead = positionEnd - positionStart;
+            long positionEnd = buffer.position();
+            long bytesRead = positionEnd - positionStart;
             if (bytesRead < recordSize) {
-                buffer.position(positionEnd + (recordSize - bytesRead));
+                buffer.setPosition(positionEnd + (recordSize - bytesRead));
             }
 
             int action = methodId & 0x03;
@@ -331,8 +344,8 @@ public class VmTraceParser {
      * @param buffer byte buffer pointing to the header
      * @return record size for each data entry following the header
      */
-    private int readDataFileHeader(ByteBuffer buffer) {
-        int magic = buffer.getInt();
+    private int readDataFileHeader(DataBuffer buffer) {
+        int magic = buffer.readInt();
         if (magic != TRACE_MAGIC) {
             String msg = String.format("Error: magic number mismatch; got 0x%x, expected 0x%x\n",
                     magic, TRACE_MAGIC);
@@ -340,7 +353,7 @@ public class VmTraceParser {
         }
 
         // read version
-        int version = buffer.getShort();
+        int version = buffer.readShort();
         if (version != mTraceDataBuilder.getVersion()) {
             String msg = String.format(
                     "Error: version number mismatch; got %d in data header but %d in options\n",
@@ -356,10 +369,10 @@ public class VmTraceParser {
         }
 
         // read offset
-        int offsetToData = buffer.getShort() - 16;
+        int offsetToData = buffer.readShort() - 16;
 
         // read startWhen
-        buffer.getLong();
+        buffer.readLong();
 
         // read record size
         int recordSize;
@@ -371,24 +384,52 @@ public class VmTraceParser {
                 recordSize = 10;
                 break;
             default:
-                recordSize = buffer.getShort();
+                recordSize = buffer.readShort();
                 offsetToData -= 2;
                 break;
         }
 
         // Skip over offsetToData bytes
-        while (offsetToData-- > 0) {
-            buffer.get();
+        if (offsetToData > 0) {
+            buffer.setPosition(buffer.position() + offsetToData);
         }
 
         return recordSize;
     }
 
     private void computeTimingStatistics() {
-        VmTraceData data = getTraceData();
+        final VmTraceData data = getTraceData();
+        if (!mTraceDataBuilder.isCompactCalls()) {
+            computeTimingStatistics(data);
+            return;
+        }
+
+        // With compact calls, the statistics are only computed once they are first queried.
+        Runnable initializer = new Runnable() {
+            private boolean mComputed;
+
+            @Override
+            public synchronized void run() {
+                if (!mComputed) {
+                    mComputed = true;
+                    computeTimingStatistics(data);
+                }
+            }
+        };
+        for (MethodInfo method : data.getMethods().values()) {
+            method.setProfileDataInitializer(initializer);
+        }
+    }
 
+    private static void computeTimingStatistics(VmTraceData data) {
         ProfileDataBuilder builder = new ProfileDataBuilder();
         for (ThreadInfo thread : data.getThreads()) {
+            CallTable callTable = thread.getCallTable();
+            if (callTable != null) {
+                builder.computeCallStats(callTable, thread);
+                continue;
+            }
+
             Call c = thread.getTopLevelCall();
             if (c == null) {
                 continue;
@@ -402,41 +443,4 @@ public class VmTraceParser {
             method.setProfileData(builder.getProfileData(methodId));
         }
     }
-
-    private static class ProfileDataBuilder {
-        /** Maps method ids to their corresponding method data builders */
-        private final Map<Long, MethodProfileData.Builder> mBuilderMap = Maps.newHashMap();
-
-        public void computeCallStats(Call c, Call parent, ThreadInfo thread) {
-            long methodId = c.getMethodId();
-            MethodProfileData.Builder builder = getProfileDataBuilder(methodId);
-            builder.addCallTime(c, parent, thread);
-            builder.incrementInvocationCount(c, parent, thread);
-            if (c.isRecursive()) {
-                builder.setRecursive();
-            }
-
-            for (Call callee: c.getCallees()) {
-                computeCallStats(callee, c, thread);
-            }
-        }
-
-        @NonNull
-        private MethodProfileData.Builder getProfileDataBuilder(long methodId) {
-            MethodProfileData.Builder builder = mBuilderMap.get(methodId);
-            if (builder == null) {
-                builder = new MethodProfileData.Builder();
-                mBuilderMap.put(methodId, builder);
-            }
-            return builder;
-        }
-
-        public Set<Long> getMethodsWithProfileData() {
-            return mBuilderMap.keySet();
-        }
-
-        public MethodProfileData getProfileData(Long methodId) {
-            return mBuilderMap.get(methodId).build();
-        }
-    }
 }
@@ -17,7 +17,8 @@
 package com.android.tools.perflib.vmtrace.viz;
 
 import com.android.annotations.NonNull;
-import com.android.tools.perflib.vmtrace.Call;
+import com.android.tools.perflib.vmtrace.CallIndex;
+import com.android.tools.perflib.vmtrace.CallTable;
 import com.android.tools.perflib.vmtrace.ClockType;
 import com.android.tools.perflib.vmtrace.MethodInfo;
 import com.android.tools.perflib.vmtrace.ThreadInfo;
@@ -26,10 +27,10 @@ import com.android.utils.HtmlBuilder;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
-import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.tools.perflib.vmtrace.ClockType.THREAD;
@@ -46,7 +47,8 @@ public class CallHierarchyRenderer {
 
     private final VmTraceData mTraceData;
     private final ThreadInfo mThread;
-    private final Call mTopCall;
+    private final CallIndex mCallIndex;
+    private final CallTable mCalls;
     private final int mYOffset;
     private final TimeUnit mLayoutTimeUnits;
     private final RenderContext mRenderContext;
@@ -61,7 +63,8 @@ public class CallHierarchyRenderer {
             int yOffset, TimeUnit defaultTimeUnits, RenderContext renderContext) {
         mTraceData = vmTraceData;
         mThread = thread;
-        mTopCall = thread.getTopLevelCall();
+        mCallIndex = thread.getCallIndex();
+        mCalls = mCallIndex.getCalls();
         mYOffset = yOffset;
         mLayoutTimeUnits = defaultTimeUnits;
         mRenderContext = renderContext;
@@ -69,16 +72,13 @@ public class CallHierarchyRenderer {
 
     /**
      * Renders the call hierarchy on a given graphics context.
-     * This essentially iterates through every single call in the hierarchy and renders it if it is
-     * visible in the current viewport.
+     * This looks up the calls in the time range visible in the current viewport, and renders
+     * each of them if it is visible.
      */
     public void render(Graphics2D g, AffineTransform viewPortTransform) {
         Rectangle clip = g.getClipBounds();
 
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
-
+        for (int c : findVisibleCalls(clip, viewPortTransform)) {
             // obtain layout in item space
             fillLayoutBounds(c, mLayout);
 
@@ -96,16 +96,43 @@ public class CallHierarchyRenderer {
             }
 
             // obtain the fill color based on its importance
-            Color fillColor = mRenderContext.getFillColor(c, mThread);
+            long methodId = mCalls.getMethodId(c);
+            Color fillColor = mRenderContext.getFillColor(methodId, mThread);
             g.setColor(fillColor);
             g.fill(mLayout);
 
             // paint its name within the rectangle if possible
-            String name = getName(c);
-            drawString(g, name, mLayout, mRenderContext.getFontColor(c, mThread));
+            String name = getName(methodId);
+            drawString(g, name, mLayout, mRenderContext.getFontColor(methodId, mThread));
         }
     }
 
+    /** Returns the calls in the time range of the clip bounds, in item space. */
+    private int[] findVisibleCalls(Rectangle clip, AffineTransform viewPortTransform) {
+        ClockType renderClock = mRenderContext.getRenderClock();
+        long topEntryTime = mCalls.getEntryTime(0, renderClock, mLayoutTimeUnits);
+        if (clip == null) {
+            return findCalls(renderClock, topEntryTime, Long.MAX_VALUE);
+        }
+
+        mTmpPoint1.setLocation(clip.getMinX(), clip.getMinY());
+        mTmpPoint2.setLocation(clip.getMaxX(), clip.getMaxY());
+        try {
+            viewPortTransform.inverseTransform(mTmpPoint1, mTmpPoint1);
+            viewPortTransform.inverseTransform(mTmpPoint2, mTmpPoint2);
+        } catch (NoninvertibleTransformException e) {
+            return findCalls(renderClock, topEntryTime, Long.MAX_VALUE);
+        }
+        double start = Math.min(mTmpPoint1.getX(), mTmpPoint2.getX()) - PADDING;
+        double end = Math.max(mTmpPoint1.getX(), mTmpPoint2.getX()) + PADDING;
+        return findCalls(renderClock, topEntryTime + (long) Math.floor(start),
+                topEntryTime + (long) Math.ceil(end));
+    }
+
+    private int[] findCalls(ClockType renderClock, long start, long end) {
+        return mCallIndex.findCalls(renderClock, Math.max(start, 0), end, mLayoutTimeUnits);
+    }
+
     private Rectangle2D transformRect(AffineTransform viewPortTransform, Rectangle2D rect) {
         mTmpPoint1.setLocation(rect.getX(), rect.getY());
         mTmpPoint2.setLocation(rect.getWidth(), rect.getHeight());
@@ -147,23 +174,22 @@ public class CallHierarchyRenderer {
     }
 
     /** Fills the layout bounds corresponding to a given call in the given Rectangle object. */
-    private void fillLayoutBounds(Call c, Rectangle2D layoutBounds) {
+    private void fillLayoutBounds(int c, Rectangle2D layoutBounds) {
         ClockType renderClock = mRenderContext.getRenderClock();
-        double x = c.getEntryTime(renderClock, mLayoutTimeUnits)
-                - mTopCall.getEntryTime(renderClock, mLayoutTimeUnits)
+        double x = mCalls.getEntryTime(c, renderClock, mLayoutTimeUnits)
+                - mCalls.getEntryTime(0, renderClock, mLayoutTimeUnits)
                 + PADDING;
-        double y = c.getDepth() * PER_LEVEL_HEIGHT_PX + mYOffset + PADDING;
-        double width  = c.getInclusiveTime(renderClock, mLayoutTimeUnits) - 2 * PADDING;
+        double y = mCalls.getDepth(c) * PER_LEVEL_HEIGHT_PX + mYOffset + PADDING;
+        double width  = mCalls.getInclusiveTime(c, renderClock, mLayoutTimeUnits) - 2 * PADDING;
         double height = PER_LEVEL_HEIGHT_PX - 2 * PADDING;
         layoutBounds.setRect(x, y, width, height);
     }
 
     /** Get the tooltip corresponding to given location (in item coordinates). */
     public String getToolTipFor(double x, double y) {
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
-
+        ClockType renderClock = mRenderContext.getRenderClock();
+        long time = mCalls.getEntryTime(0, renderClock, mLayoutTimeUnits) + (long) x;
+        for (int c : findCalls(renderClock, time - PADDING, time + PADDING)) {
             fillLayoutBounds(c, mLayout);
             if (mLayout.contains(x, y)) {
                 return formatToolTip(c);
@@ -175,23 +201,27 @@ public class CallHierarchyRenderer {
 
     private static final DecimalFormat PERCENTAGE_FORMATTER = new DecimalFormat("#.##");
 
-    private String formatToolTip(Call c) {
+    private String formatToolTip(int c) {
         HtmlBuilder htmlBuilder = new HtmlBuilder();
         htmlBuilder.openHtmlBody();
 
-        htmlBuilder.addHeading(getMethodInfo(c).getFullName(), "black");
+        long methodId = mCalls.getMethodId(c);
+        htmlBuilder.addHeading(getMethodInfo(methodId).getFullName(), "black");
 
-        long span = c.getExitTime(GLOBAL, TimeUnit.NANOSECONDS) -
-                c.getEntryTime(GLOBAL, TimeUnit.NANOSECONDS);
         TimeUnit unit = TimeUnit.NANOSECONDS;
-        String entryGlobal = TimeUtils.makeHumanReadable(c.getEntryTime(GLOBAL, unit), span, unit);
-        String entryThread = TimeUtils.makeHumanReadable(c.getEntryTime(THREAD, unit), span, unit);
-        String exitGlobal = TimeUtils.makeHumanReadable(c.getExitTime(GLOBAL, unit), span, unit);
-        String exitThread = TimeUtils.makeHumanReadable(c.getExitTime(THREAD, unit), span, unit);
+        long entryGlobalTime = mCalls.getEntryTime(c, GLOBAL, unit);
+        long entryThreadTime = mCalls.getEntryTime(c, THREAD, unit);
+        long exitGlobalTime = mCalls.getExitTime(c, GLOBAL, unit);
+        long exitThreadTime = mCalls.getExitTime(c, THREAD, unit);
+        long span = exitGlobalTime - entryGlobalTime;
+        String entryGlobal = TimeUtils.makeHumanReadable(entryGlobalTime, span, unit);
+        String entryThread = TimeUtils.makeHumanReadable(entryThreadTime, span, unit);
+        String exitGlobal = TimeUtils.makeHumanReadable(exitGlobalTime, span, unit);
+        String exitThread = TimeUtils.makeHumanReadable(exitThreadTime, span, unit);
         String durationGlobal = TimeUtils.makeHumanReadable(
-                c.getExitTime(GLOBAL, unit) - c.getEntryTime(GLOBAL, unit), span, unit);
+                exitGlobalTime - entryGlobalTime, span, unit);
         String durationThread = TimeUtils.makeHumanReadable(
-                c.getExitTime(THREAD, unit) - c.getEntryTime(THREAD, unit), span, unit);
+                exitThreadTime - entryThreadTime, span, unit);
 
         htmlBuilder.beginTable();
         htmlBuilder.addTableRow("Wallclock Time:", durationGlobal,
@@ -203,7 +233,7 @@ public class CallHierarchyRenderer {
         htmlBuilder.newline();
         htmlBuilder.add("Inclusive Time: ");
         htmlBuilder.beginBold();
-        double inclusivePercentage = mTraceData.getDurationPercentage(c, mThread,
+        double inclusivePercentage = mTraceData.getDurationPercentage(methodId, mThread,
                 mRenderContext.getRenderClock(), true /* use inclusive time */);
         htmlBuilder.add(PERCENTAGE_FORMATTER.format(inclusivePercentage));
         htmlBuilder.add("%");
@@ -212,7 +242,7 @@ public class CallHierarchyRenderer {
         htmlBuilder.newline();
         htmlBuilder.add("Exclusive Time: ");
         htmlBuilder.beginBold();
-        double exclusivePercentage = mTraceData.getDurationPercentage(c, mThread,
+        double exclusivePercentage = mTraceData.getDurationPercentage(methodId, mThread,
                 mRenderContext.getRenderClock(), false /* don't use inclusive time */);
         htmlBuilder.add(PERCENTAGE_FORMATTER.format(exclusivePercentage));
         htmlBuilder.add("%");
@@ -223,12 +253,11 @@ public class CallHierarchyRenderer {
     }
 
     @NonNull
-    private String getName(@NonNull Call c) {
-        return getMethodInfo(c).getShortName();
+    private String getName(long methodId) {
+        return getMethodInfo(methodId).getShortName();
     }
 
-    private MethodInfo getMethodInfo(@NonNull Call c) {
-        long methodId = c.getMethodId();
+    private MethodInfo getMethodInfo(long methodId) {
         return mTraceData.getMethod(methodId);
     }
 }
@@ -86,11 +86,17 @@ public class RenderContext {
      */
     @NonNull
     public Color getFillColor(Call c, ThreadInfo thread) {
-        if (isHighlightedMethod(c)) {
+        return getFillColor(c.getMethodId(), thread);
+    }
+
+    /** Returns the fill color for the calls to a particular method. */
+    @NonNull
+    public Color getFillColor(long methodId, ThreadInfo thread) {
+        if (isHighlightedMethod(methodId)) {
             return HIGHLIGHTED_METHOD_COLOR;
         }
 
-        double percent = mTraceData.getDurationPercentage(c, thread, mRenderClock,
+        double percent = mTraceData.getDurationPercentage(methodId, thread, mRenderClock,
                 mUseInclusiveTimeForColorAssignment);
         return QUANTIZED_COLORS[getColorIndex(percent)];
     }
@@ -100,8 +106,8 @@ public class RenderContext {
         mHighlightedMethods = highlightedMethods;
     }
 
-    private boolean isHighlightedMethod(Call c) {
-        MethodInfo method = mTraceData.getMethod(c.getMethodId());
+    private boolean isHighlightedMethod(long methodId) {
+        MethodInfo method = mTraceData.getMethod(methodId);
         return mHighlightedMethods != null && mHighlightedMethods.contains(method);
     }
 
@@ -112,7 +118,13 @@ public class RenderContext {
      */
     @NonNull
     public Color getFontColor(Call c, ThreadInfo thread) {
-        double percent = mTraceData.getDurationPercentage(c, thread, mRenderClock,
+        return getFontColor(c.getMethodId(), thread);
+    }
+
+    /** Returns the font color for the calls to a particular method. */
+    @NonNull
+    public Color getFontColor(long methodId, ThreadInfo thread) {
+        double percent = mTraceData.getDurationPercentage(methodId, thread, mRenderClock,
                 mUseInclusiveTimeForColorAssignment);
         return getColorIndex(percent) < BRIGHT_TO_DARK_CROSSOVER_INDEX ? Color.BLACK : Color.WHITE;
     }
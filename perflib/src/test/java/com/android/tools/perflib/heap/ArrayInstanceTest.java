@@ -18,6 +18,8 @@ package com.android.tools.perflib.heap;
 
 import com.android.tools.perflib.heap.hprof.*;
 import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
 
 import junit.framework.TestCase;
 
@@ -62,6 +64,78 @@ public class ArrayInstanceTest extends TestCase {
         assertArrayEquals(new char[]{'a', 'b', 'c', 'd'}, a.asCharArray(0, 4));
         assertArrayEquals(new char[]{'b', 'c'}, a.asCharArray(1, 2));
         assertArrayEquals(new char[]{}, a.asCharArray(1, 0));
+
+        CharArrayView view = a.asCharSequence(1, 3);
+        assertEquals(3, view.length());
+        assertEquals('c', view.charAt(1));
+        assertEquals("bcd", view.toString());
+        assertEquals("bcd".hashCode(), view.hashCode());
+        assertTrue(view.contentEquals("bcd"));
+        assertFalse(view.contentEquals("bce"));
+        assertEquals(a.asCharSequence(2, 1), view.subSequence(1, 2));
+        assertFalse(a.asCharSequence(0, 1).equals(view.subSequence(1, 2)));
+        try {
+            view.charAt(3);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+
+        // Out of range requests are clamped to the array.
+        assertEquals("cd", a.asCharSequence(2, 3).toString());
+        assertEquals("a", a.asCharSequence(-1, 1).toString());
+        assertArrayEquals(new char[]{}, a.asCharArray(5, 1));
+        assertArrayEquals(new char[]{}, a.asCharArray(1, -1));
+    }
+
+    public void testMalformedString() throws IOException {
+        // Set up a heap dump with strings whose offset and count don't fit their value,
+        // {'a', 'b', 'c', 'd'}.
+        HprofStringBuilder strings = new HprofStringBuilder(0);
+        List<HprofRecord> records = new ArrayList<HprofRecord>();
+        List<HprofDumpRecord> dump = new ArrayList<HprofDumpRecord>();
+
+        long chars[] = new long[]{'a', 'b', 'c', 'd'};
+        dump.add(new HprofPrimitiveArrayDump(0xA, 0, HprofType.TYPE_CHAR, chars));
+
+        records.add(new HprofLoadClass(0, 0, 0xC, 0, strings.get("java.lang.String")));
+        dump.add(new HprofClassDump(0xC, 0, 0, 0, 0, 0, 0, 0, 10,
+                new HprofConstant[0], new HprofStaticField[0],
+                new HprofInstanceField[]{
+                        new HprofInstanceField(strings.get("value"), HprofType.TYPE_OBJECT),
+                        new HprofInstanceField(strings.get("offset"), HprofType.TYPE_INT),
+                        new HprofInstanceField(strings.get("count"), HprofType.TYPE_INT)}));
+        dump.add(newString(0x1, 0xC, 0xA, 2, 5));
+        dump.add(newString(0x2, 0xC, 0xA, 7, 1));
+        dump.add(newString(0x3, 0xC, 0xA, -1, 2));
+
+        records.add(new HprofHeapDump(0, dump.toArray(new HprofDumpRecord[0])));
+
+        List<HprofRecord> actualRecords = new ArrayList<HprofRecord>();
+        actualRecords.addAll(strings.getStringRecords());
+        actualRecords.addAll(records);
+
+        Hprof hprof = new Hprof("JAVA PROFILE 1.0.3", 2, new Date(), actualRecords);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        hprof.write(os);
+        Snapshot snapshot = Snapshot.createSnapshot(new InMemoryBuffer(os.toByteArray()));
+
+        assertEquals("cd", ((ClassInstance) snapshot.findInstance(0x1))
+                .getStringCharSequence().toString());
+        assertEquals("", ((ClassInstance) snapshot.findInstance(0x2))
+                .getStringCharSequence().toString());
+        assertArrayEquals(new char[]{'a', 'b'},
+                ((ClassInstance) snapshot.findInstance(0x3)).getStringChars());
+        assertArrayEquals(new char[]{'c'},
+                ((ClassInstance) snapshot.findInstance(0x1)).getStringChars(1));
+    }
+
+    private static HprofInstanceDump newString(long id, long classId, long valueId, int offset,
+            int count) {
+        ByteArrayDataOutput values = ByteStreams.newDataOutput();
+        values.writeShort((int) valueId);
+        values.writeInt(offset);
+        values.writeInt(count);
+        return new HprofInstanceDump(id, 0, classId, values.toByteArray());
     }
 
     private static void assertArrayEquals(char[] a, char[] b) {
@@ -21,8 +21,16 @@ import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import gnu.trove.TObjectProcedure;
 
 public class HprofParserTest extends TestCase {
 
@@ -186,4 +194,97 @@ public class HprofParserTest extends TestCase {
         assertTrue(subSoftReferenceClass.getIsSoftReference());
         assertTrue(subSubSoftReferenceClass.getIsSoftReference());
     }
+
+    public void testParallelParse() throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file), executor);
+        executor.shutdown();
+
+        try {
+            assertEquals(mSnapshot.getHeaps().size(), snapshot.getHeaps().size());
+            assertEquals(mSnapshot.getGCRoots().size(), snapshot.getGCRoots().size());
+            for (Heap heap : mSnapshot.getHeaps()) {
+                Heap parallelHeap = snapshot.getHeap(heap.getName());
+                assertNotNull(parallelHeap);
+                assertEquals(heap.getId(), parallelHeap.getId());
+                assertEquals(heap.getInstancesCount(), parallelHeap.getInstancesCount());
+                assertEquals(heap.getClasses().size(), parallelHeap.getClasses().size());
+            }
+
+            ClassObj byteArray = snapshot.findClass("byte[]");
+            assertEquals(1406, byteArray.getInstancesList().size());
+            assertEquals(681489, byteArray.getShallowSize());
+
+            ClassObj application = snapshot.findClass("android.app.Application");
+            assertEquals("android.content.ContextWrapper",
+                    application.getSuperClassObj().getClassName());
+        } finally {
+            snapshot.dispose();
+        }
+    }
+
+    public void testTruncatedParallelParse() throws Exception {
+        // Cut the heap dump in the middle of a record.
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        byte[] content = new byte[(int) (file.length() * 2 / 3)];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.readFully(content);
+        } finally {
+            input.close();
+        }
+        File truncated = File.createTempFile("truncated", ".hprof");
+        truncated.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(truncated);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+
+        Snapshot sequential = Snapshot.createSnapshot(new MemoryMappedFileBuffer(truncated));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Snapshot parallel =
+                Snapshot.createSnapshot(new MemoryMappedFileBuffer(truncated), executor);
+        executor.shutdown();
+
+        try {
+            List<String> objects = describeObjects(sequential);
+            assertTrue(objects.size() > 1000);
+            assertTrue(objects.size() < describeObjects(mSnapshot).size());
+            assertEquals(objects, describeObjects(parallel));
+            assertEquals(sequential.getGCRoots().size(), parallel.getGCRoots().size());
+            // The classes were resolved.
+            assertNotNull(parallel.findClass("java.lang.String"));
+        } finally {
+            sequential.dispose();
+            parallel.dispose();
+        }
+    }
+
+    /**
+     * Returns the heaps, classes and instances of a snapshot as sorted strings, with the classes
+     * of the instances.
+     */
+    private static List<String> describeObjects(Snapshot snapshot) {
+        final List<String> objects = new ArrayList<String>();
+        for (final Heap heap : snapshot.getHeaps()) {
+            for (ClassObj classObj : heap.getClasses()) {
+                objects.add(heap.getName() + " class " + classObj.getId() + " "
+                        + classObj.getClassName());
+            }
+            heap.forEachInstance(new TObjectProcedure<Instance>() {
+                @Override
+                public boolean execute(Instance instance) {
+                    ClassObj classObj = instance.getClassObj();
+                    objects.add(heap.getName() + " instance " + instance.getId() + " "
+                            + (classObj != null ? classObj.getClassName() : null));
+                    return true;
+                }
+            });
+        }
+        Collections.sort(objects);
+        return objects;
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.memoryanalyzer.StreamingClassHistogram;
+import com.android.tools.perflib.heap.memoryanalyzer.StreamingDuplicatedStrings;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class HprofStreamParserTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private MemoryMappedFileBuffer mBuffer;
+
+    private HprofStreamParser mParser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mBuffer = new MemoryMappedFileBuffer(file);
+        mParser = new HprofStreamParser(mBuffer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshot.dispose();
+        mBuffer.dispose();
+        super.tearDown();
+    }
+
+    public void testRecords() {
+        final int[] counts = new int[3];
+        final Set<Long> roots = new HashSet<Long>();
+        mParser.parse(new HprofVisitor() {
+            @Override
+            public void visitRoot(@NonNull RootType type, long id) {
+                roots.add(id);
+            }
+
+            @Override
+            public void visitClass(@NonNull HprofStreamParser.ClassRecord record) {
+                assertNotNull(mSnapshot.findClass(record.getId()));
+                counts[0]++;
+            }
+
+            @Override
+            public void visitInstance(@NonNull HprofStreamParser.InstanceRecord record) {
+                Instance instance = mSnapshot.findInstance(record.getId());
+                assertTrue(instance instanceof ClassInstance);
+                assertEquals(record.getClassId(), instance.getClassObj().getId());
+                assertEquals(record.getHeapId(), instance.getHeap().getId());
+                counts[1]++;
+            }
+
+            @Override
+            public void visitArray(@NonNull HprofStreamParser.ArrayRecord record) {
+                Instance instance = mSnapshot.findInstance(record.getId());
+                assertTrue(instance instanceof ArrayInstance);
+                assertEquals(record.getType(), ((ArrayInstance) instance).getArrayType());
+                assertEquals(record.getLength(), ((ArrayInstance) instance).getLength());
+                counts[2]++;
+            }
+        });
+
+        int classCount = 0;
+        int instanceCount = 0;
+        Set<Long> snapshotRoots = new HashSet<Long>();
+        for (Heap heap : mSnapshot.getHeaps()) {
+            classCount += heap.getClasses().size();
+            instanceCount += heap.getInstancesCount();
+        }
+        for (RootObj root : mSnapshot.getGCRoots()) {
+            snapshotRoots.add(root.getId());
+        }
+        assertEquals(classCount, counts[0]);
+        assertEquals(instanceCount, counts[1] + counts[2]);
+        assertEquals(snapshotRoots, roots);
+    }
+
+    public void testFieldOffsets() {
+        mParser.parse(new HprofVisitor() {
+        });
+        ClassObj stringClass = mSnapshot.findClass("java.lang.String");
+        int offset = mParser.getFieldOffset(stringClass.getId(), "count");
+        assertTrue(offset >= 0);
+
+        ClassInstance string = (ClassInstance) stringClass.getInstancesList().get(0);
+        Integer count = null;
+        for (ClassInstance.FieldValue value : string.getValues()) {
+            if ("count".equals(value.getField().getName())) {
+                count = (Integer) value.getValue();
+            }
+        }
+        mBuffer.setPosition(string.getValuesOffset() + offset);
+        assertEquals(count.intValue(), mBuffer.readInt());
+        assertEquals(-1, mParser.getFieldOffset(stringClass.getId(), "noSuchField"));
+    }
+
+    public void testClassHistogram() {
+        List<StreamingClassHistogram.Entry> entries = StreamingClassHistogram.compute(mParser);
+        assertFalse(entries.isEmpty());
+
+        long previousSize = Long.MAX_VALUE;
+        for (StreamingClassHistogram.Entry entry : entries) {
+            assertTrue(entry.getShallowSize() <= previousSize);
+            previousSize = entry.getShallowSize();
+        }
+
+        for (StreamingClassHistogram.Entry entry : entries) {
+            ClassObj classObj = mSnapshot.findClass(entry.getClassName());
+            if (classObj == null || entry.getClassName().endsWith("[]")
+                    || mSnapshot.findClasses(entry.getClassName()).size() > 1) {
+                continue;
+            }
+            int heapId = entry.getHeapId();
+            assertEquals(entry.getClassName(), classObj.getHeapInstancesCount(heapId),
+                    entry.getInstanceCount());
+            assertEquals(entry.getClassName(), classObj.getShallowSize(heapId),
+                    entry.getShallowSize());
+        }
+    }
+
+    public void testDuplicatedStrings() throws IOException {
+        Map<String, Set<Long>> expected = new HashMap<String, Set<Long>>();
+        for (Instance instance : mSnapshot.findClass("java.lang.String").getInstancesList()) {
+            char[] chars = ((ClassInstance) instance).getStringChars();
+            if (chars != null) {
+                String value = new String(chars);
+                if (!expected.containsKey(value)) {
+                    expected.put(value, new HashSet<Long>());
+                }
+                expected.get(value).add(instance.getId());
+            }
+        }
+
+        List<StreamingDuplicatedStrings.DuplicatedString> duplicates =
+                StreamingDuplicatedStrings.findDuplicates(mParser);
+        assertFalse(duplicates.isEmpty());
+
+        int expectedCount = 0;
+        for (Set<Long> ids : expected.values()) {
+            if (ids.size() > 1) {
+                expectedCount++;
+            }
+        }
+        assertEquals(expectedCount, duplicates.size());
+
+        for (StreamingDuplicatedStrings.DuplicatedString duplicate : duplicates) {
+            Set<Long> ids = new HashSet<Long>();
+            for (long id : duplicate.getInstanceIds()) {
+                ids.add(id);
+            }
+            assertEquals(expected.get(duplicate.getValue()), ids);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ObjectGraphTest extends TestCase {
+
+    public void testReferences() {
+        Snapshot snapshot = new SnapshotBuilder(4, 1, 0)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4)
+                .insertSoftReference(3, 4)
+                .addRoot(1)
+                .buildCompact();
+        snapshot.resolveReferences();
+
+        ObjectGraph graph = snapshot.getObjectGraph();
+        assertNotNull(graph);
+        assertTrue(graph.hasReferences());
+
+        assertEquals(setOf(2, 3), getForwardReferenceIds(graph, 1));
+        assertEquals(setOf(4), getForwardReferenceIds(graph, 2));
+        // Node 3 points to the soft reference node 5, whose referent is not a hard reference.
+        assertEquals(setOf(5), getForwardReferenceIds(graph, 3));
+        assertEquals(setOf(), getForwardReferenceIds(graph, 5));
+
+        int node4 = graph.findNode(4);
+        assertEquals(1, graph.getReverseReferenceCount(node4));
+        assertEquals(2, graph.getId(graph.getReverseReference(node4, 0)));
+
+        // The referent of the soft reference node 5 is node 4.
+        int node5 = graph.findNode(5);
+        assertEquals(node4, graph.getSoftForwardReference(node5));
+        assertEquals(ObjectGraph.NO_NODE, graph.getSoftForwardReference(graph.findNode(2)));
+        assertEquals(1, graph.getSoftReverseReferenceCount(node4));
+        assertEquals(node5, graph.getSoftReverseReference(node4, 0));
+        assertEquals(0, graph.getSoftReverseReferenceCount(node5));
+    }
+
+    public void testInstanceViewReferences() {
+        Snapshot snapshot = new SnapshotBuilder(4, 1, 0)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 4)
+                .insertSoftReference(2, 4)
+                .addRoot(1)
+                .buildCompact();
+        snapshot.resolveReferences();
+
+        // Views are the same object for as long as they are in use.
+        Instance instance4 = snapshot.findInstance(4);
+        assertSame(instance4, snapshot.findInstance(4));
+        assertSame(instance4, snapshot.findInstance(2).getHardForwardReferences().get(0));
+
+        assertEquals(setOf(2, 3), getIds(instance4.getHardReverseReferences()));
+        assertEquals(setOf(5), getIds(instance4.getSoftReverseReferences()));
+        Instance softReference = snapshot.findInstance(5);
+        assertSame(instance4, softReference.getSoftForwardReference());
+        assertTrue(softReference.getHardForwardReferences().isEmpty());
+        assertNull(snapshot.findInstance(3).getSoftReverseReferences());
+    }
+
+    public void testDominators() {
+        Snapshot snapshot = new SnapshotBuilder(6)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4, 6)
+                .addReferences(3, 4, 5)
+                .addReferences(4, 6)
+                .addRoot(1)
+                .buildCompact();
+        Instance instance6 = snapshot.findInstance(6);
+        snapshot.computeDominators();
+
+        ObjectGraph graph = snapshot.getObjectGraph();
+        assertTrue(graph.hasDominators());
+        assertEquals(6, snapshot.getReachableInstances().size());
+        assertEquals(6, snapshot.getTopologicalOrdering().size());
+        assertEquals(ObjectGraph.NO_NODE, graph.getImmediateDominator(graph.findNode(1)));
+        assertEquals(graph.findNode(1), graph.getImmediateDominator(graph.findNode(4)));
+        assertEquals(graph.findNode(3), graph.getImmediateDominator(graph.findNode(5)));
+
+        // Views created before the computation see its results too.
+        Instance instance1 = snapshot.findInstance(1);
+        assertSame(Snapshot.SENTINEL_ROOT, instance1.getImmediateDominator());
+        assertSame(instance1, instance6.getImmediateDominator());
+        assertEquals(2, instance6.getDistanceToGcRoot());
+        assertEquals(2, instance6.getNextInstanceToGcRoot().getId());
+        assertEquals(21, instance1.getTotalRetainedSize());
+        assertEquals(8, snapshot.findInstance(3).getTotalRetainedSize());
+        assertEquals(6, instance6.getTotalRetainedSize());
+    }
+
+    public void testSoftReferentAlsoHardReferenced() {
+        // Node 3 is a soft reference to node 2, which also holds it in another field.
+        Snapshot snapshot = new SnapshotBuilder(2, 0, 1)
+                .insertSoftAndHardReference(1, 2, 2)
+                .addRoot(1)
+                .buildCompact();
+        snapshot.computeDominators();
+
+        Instance instance2 = snapshot.findInstance(2);
+        assertEquals(2, instance2.getDistanceToGcRoot());
+        assertEquals(3, instance2.getNextInstanceToGcRoot().getId());
+        assertSame(snapshot.findInstance(3), instance2.getImmediateDominator());
+    }
+
+    public void testInstanceViews() {
+        Snapshot snapshot = new SnapshotBuilder(3)
+                .addReferences(1, 2)
+                .addRoot(1)
+                .buildCompact();
+
+        assertEquals(ObjectGraph.NO_NODE, snapshot.getObjectGraph().findNode(1000));
+        assertNull(snapshot.findInstance(1000));
+
+        Instance instance = snapshot.findInstance(2);
+        assertTrue(instance instanceof ClassInstance);
+        assertEquals(2, instance.getId());
+        assertEquals(2, instance.getSize());
+        assertEquals("testHeap", instance.getHeap().getName());
+        assertEquals(102, instance.getClassObj().getId());
+
+        List<ClassInstance.FieldValue> values = ((ClassInstance) snapshot.findInstance(1))
+                .getValues();
+        assertEquals(1, values.size());
+        assertEquals(2, ((Instance) values.get(0).getValue()).getId());
+
+        // Class objects are not instances of their heap.
+        assertNull(snapshot.getHeap("testHeap").getInstance(102));
+        assertTrue(snapshot.findInstance(102) instanceof ClassObj);
+    }
+
+    public void testMatchesRegularSnapshot() throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        Snapshot compactSnapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(file));
+
+        try {
+            for (Heap heap : snapshot.getHeaps()) {
+                Heap compactHeap = compactSnapshot.getHeap(heap.getId());
+                assertNotNull(compactHeap);
+                assertEquals(heap.getInstancesCount(), compactHeap.getInstancesCount());
+
+                for (ClassObj classObj : heap.getClasses()) {
+                    ClassObj compactClassObj = compactSnapshot.findClass(classObj.getId());
+                    assertNotNull(compactClassObj);
+                    assertEquals(classObj.getInstanceCount(), compactClassObj.getInstanceCount());
+                    assertEquals(classObj.getShallowSize(), compactClassObj.getShallowSize());
+                }
+            }
+
+            ClassObj stringClass = compactSnapshot.findClass("java.lang.String");
+            int decodedStrings = 0;
+            for (Instance instance : stringClass.getInstancesList()) {
+                if (((ClassInstance) instance).getStringChars() != null) {
+                    decodedStrings++;
+                }
+            }
+            assertEquals(stringClass.getInstanceCount(), decodedStrings);
+        } finally {
+            snapshot.dispose();
+            compactSnapshot.dispose();
+        }
+    }
+
+    public void testDominatorsMatchRegularSnapshot() throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        Snapshot compactSnapshot = Snapshot.createCompactSnapshot(new MemoryMappedFileBuffer(file));
+
+        try {
+            snapshot.computeDominators();
+            compactSnapshot.computeDominators();
+
+            assertEquals(snapshot.getTopologicalOrdering().size(),
+                    compactSnapshot.getTopologicalOrdering().size());
+            assertEquals(snapshot.getReachableInstances().size(),
+                    compactSnapshot.getReachableInstances().size());
+            int heapCount = snapshot.getHeaps().size();
+            for (Instance expected : snapshot.getReachableInstances()) {
+                Instance actual = compactSnapshot.findInstance(expected.getId());
+                assertNotNull(actual);
+                assertEquals(expected.getImmediateDominator().getId(),
+                        actual.getImmediateDominator().getId());
+                assertEquals(expected.getDistanceToGcRoot(), actual.getDistanceToGcRoot());
+                for (int heapIndex = 0; heapIndex < heapCount; heapIndex++) {
+                    assertEquals(expected.getRetainedSize(heapIndex),
+                            actual.getRetainedSize(heapIndex));
+                }
+                assertEquals(getIds(expected.getHardReverseReferences()),
+                        getIds(actual.getHardReverseReferences()));
+                assertEquals(getIds(expected.getSoftReverseReferences()),
+                        getIds(actual.getSoftReverseReferences()));
+            }
+        } finally {
+            snapshot.dispose();
+            compactSnapshot.dispose();
+        }
+    }
+
+    private static Set<Long> getIds(List<Instance> instances) {
+        Set<Long> result = new HashSet<Long>();
+        if (instances != null) {
+            for (Instance instance : instances) {
+                result.add(instance.getId());
+            }
+        }
+        return result;
+    }
+
+    private static Set<Long> getForwardReferenceIds(ObjectGraph graph, long id) {
+        int node = graph.findNode(id);
+        Set<Long> result = new HashSet<Long>();
+        for (int i = 0; i < graph.getForwardReferenceCount(node); i++) {
+            result.add(graph.getId(graph.getForwardReference(node, i)));
+        }
+        return result;
+    }
+
+    private static Set<Long> setOf(long... ids) {
+        Set<Long> result = new HashSet<Long>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SnapshotIndexTest extends TestCase {
+
+    private File mDirectory;
+
+    private File mHprofFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = Files.createTempDir();
+        mHprofFile = new File(mDirectory, "dialer.android-hprof");
+        Files.copy(new File(getClass().getResource("/dialer.android-hprof").getFile()),
+                mHprofFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SnapshotIndex.getIndexFile(mHprofFile).delete();
+        mHprofFile.delete();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        assertNull(SnapshotIndex.read(mHprofFile));
+        Snapshot computed = Snapshot.openCompactSnapshot(mHprofFile);
+        assertTrue(SnapshotIndex.getIndexFile(mHprofFile).isFile());
+
+        Snapshot restored = SnapshotIndex.read(mHprofFile);
+        assertNotNull(restored);
+        try {
+            assertEquals(42839, restored.getReachableInstances().size());
+            assertEquals(computed.getTopologicalOrdering().size(),
+                    restored.getTopologicalOrdering().size());
+
+            // The heaps, classes and roots are parsed again, in the same order.
+            List<Heap> expectedHeaps = new ArrayList<Heap>(computed.getHeaps());
+            List<Heap> actualHeaps = new ArrayList<Heap>(restored.getHeaps());
+            assertEquals(expectedHeaps.size(), actualHeaps.size());
+            for (int i = 0; i < expectedHeaps.size(); i++) {
+                Heap expected = expectedHeaps.get(i);
+                Heap actual = actualHeaps.get(i);
+                assertEquals(expected.getId(), actual.getId());
+                assertEquals(expected.getName(), actual.getName());
+                assertEquals(expected.getClasses().size(), actual.getClasses().size());
+                assertEquals(expected.getInstancesCount(), actual.getInstancesCount());
+            }
+            assertEquals(computed.getGCRoots().size(), restored.getGCRoots().size());
+            ClassObj expectedClass = computed.findClass("java.lang.String");
+            ClassObj actualClass = restored.findClass("java.lang.String");
+            assertEquals(expectedClass.getInstanceCount(), actualClass.getInstanceCount());
+
+            int heapCount = computed.getHeaps().size();
+            for (Instance expected : computed.getTopologicalOrdering()) {
+                Instance actual = restored.findInstance(expected.getId());
+                assertNotNull(actual);
+                assertEquals(expected.getTopologicalOrder(), actual.getTopologicalOrder());
+                assertEquals(expected.getImmediateDominator().getId(),
+                        actual.getImmediateDominator().getId());
+                assertEquals(expected.getDistanceToGcRoot(), actual.getDistanceToGcRoot());
+                if (expected.getNextInstanceToGcRoot() == null) {
+                    assertNull(actual.getNextInstanceToGcRoot());
+                } else {
+                    assertEquals(expected.getNextInstanceToGcRoot().getId(),
+                            actual.getNextInstanceToGcRoot().getId());
+                }
+                for (int heapIndex = 0; heapIndex < heapCount; heapIndex++) {
+                    assertEquals(expected.getRetainedSize(heapIndex),
+                            actual.getRetainedSize(heapIndex));
+                }
+                assertEquals(expected.getHardReverseReferences().size(),
+                        actual.getHardReverseReferences().size());
+            }
+
+            // Instances still read their values from the heap dump.
+            Instance instance = restored.findInstance(0xB0EDFFA0);
+            assertEquals(Snapshot.SENTINEL_ROOT, instance.getImmediateDominator());
+            assertFalse(instance.getHardReverseReferences().isEmpty());
+            assertEquals(computed.findInstance(0xB0EDFFA0).getClassObj().getClassName(),
+                    instance.getClassObj().getClassName());
+        } finally {
+            computed.dispose();
+            restored.dispose();
+        }
+    }
+
+    public void testCorruptIndexIsIgnored() throws Exception {
+        Snapshot.openCompactSnapshot(mHprofFile).dispose();
+
+        File indexFile = SnapshotIndex.getIndexFile(mHprofFile);
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            file.seek(SnapshotIndex.HEADER_SIZE);
+            int first = file.read();
+            file.seek(SnapshotIndex.HEADER_SIZE);
+            file.write(first ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        try {
+            SnapshotIndex.read(mHprofFile);
+            fail("The corrupt index was read");
+        } catch (IOException expected) {
+        }
+        assertIndexIsReplaced();
+    }
+
+    public void testTruncatedIndexIsIgnored() throws Exception {
+        Snapshot.openCompactSnapshot(mHprofFile).dispose();
+
+        File indexFile = SnapshotIndex.getIndexFile(mHprofFile);
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            file.setLength(indexFile.length() - 4);
+        } finally {
+            file.close();
+        }
+
+        try {
+            SnapshotIndex.read(mHprofFile);
+            fail("The truncated index was read");
+        } catch (IOException expected) {
+        }
+        assertIndexIsReplaced();
+    }
+
+    public void testStaleIndexIsIgnored() throws Exception {
+        Snapshot.openCompactSnapshot(mHprofFile).dispose();
+
+        RandomAccessFile file = new RandomAccessFile(mHprofFile, "rw");
+        try {
+            file.setLength(mHprofFile.length() + 1);
+        } finally {
+            file.close();
+        }
+
+        assertNull(SnapshotIndex.read(mHprofFile));
+        assertIndexIsReplaced();
+    }
+
+    /**
+     * Checks that opening the snapshot parses the heap dump again, and writes a valid index.
+     */
+    private void assertIndexIsReplaced() throws IOException {
+        Snapshot snapshot = Snapshot.openCompactSnapshot(mHprofFile);
+        try {
+            assertEquals(42839, snapshot.getReachableInstances().size());
+        } finally {
+            snapshot.dispose();
+        }
+
+        snapshot = SnapshotIndex.read(mHprofFile);
+        assertNotNull(snapshot);
+        snapshot.dispose();
+    }
+}
@@ -24,6 +24,8 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DominatorsTest extends TestCase {
 
@@ -274,6 +276,39 @@ public class DominatorsTest extends TestCase {
         mSnapshot = null;
     }
 
+    public void testParallelMatchesLinkEval() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        Snapshot linkEvalSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        linkEvalSnapshot.prepareDominatorComputation();
+        linkEvalSnapshot.doComputeDominators(new LinkEvalDominators(linkEvalSnapshot));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        try {
+            mSnapshot.computeDominators(executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(linkEvalSnapshot.getReachableInstances().size(),
+                mSnapshot.getReachableInstances().size());
+        int heapCount = mSnapshot.getHeaps().size();
+        for (Instance expected : linkEvalSnapshot.getReachableInstances()) {
+            Instance actual = mSnapshot.findInstance(expected.getId());
+            assertNotNull(actual);
+            assertEquals(expected.getImmediateDominator().getId(),
+                    actual.getImmediateDominator().getId());
+            for (int heapIndex = 0; heapIndex < heapCount; heapIndex++) {
+                assertEquals(expected.getRetainedSize(heapIndex),
+                        actual.getRetainedSize(heapIndex));
+            }
+        }
+
+        linkEvalSnapshot.dispose();
+        mSnapshot.dispose();
+        mSnapshot = null;
+    }
+
     /**
      * Asserts that nodeA dominates nodeB in mHeap.
      */
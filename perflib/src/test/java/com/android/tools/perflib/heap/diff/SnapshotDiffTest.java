@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.diff;
+
+import com.android.tools.perflib.analyzer.CaptureGroup;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.HprofStreamParser;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.List;
+
+public class SnapshotDiffTest extends TestCase {
+
+    private Snapshot mBaseline;
+
+    private Snapshot mCurrent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBaseline = new SnapshotBuilder(3)
+                .addReferences(1, 2)
+                .addReferences(2, 3)
+                .addRoot(1)
+                .build();
+        mBaseline.computeDominators();
+
+        // Instances 4 and 5 are new, and 4 dominates 5.
+        mCurrent = new SnapshotBuilder(5)
+                .addReferences(1, 2, 4)
+                .addReferences(2, 3)
+                .addReferences(4, 5)
+                .addRoot(1)
+                .build();
+        mCurrent.computeDominators();
+    }
+
+    public void testMatchById() {
+        checkDiff(SnapshotDiff.compute(SnapshotDiff.Summary.of(mBaseline,
+                SnapshotDiff.InstanceMatching.ID, true), mCurrent));
+    }
+
+    public void testMatchByAllocationStack() {
+        checkDiff(SnapshotDiff.compute(SnapshotDiff.Summary.of(mBaseline,
+                SnapshotDiff.InstanceMatching.ALLOCATION_STACK, true), mCurrent));
+    }
+
+    private static void checkDiff(SnapshotDiff diff) {
+        assertTrue(diff.hasRetainedSizes());
+
+        List<Instance> subtrees = diff.getNewSubtrees();
+        assertEquals(1, subtrees.size());
+        assertEquals(4, subtrees.get(0).getId());
+        assertEquals(9, subtrees.get(0).getTotalRetainedSize());
+
+        // Instances 4 and 5 are of Class2, and instance 1 of Class0 retains them.
+        List<SnapshotDiff.ClassDelta> deltas = diff.getClassDeltas();
+        assertEquals(2, deltas.size());
+        assertEquals("Class2", deltas.get(0).getClassName());
+        assertEquals(2, deltas.get(0).getCountDelta());
+        assertEquals(9, deltas.get(0).getShallowSizeDelta());
+        // Instance 5 is counted both on its own and as part of instance 4.
+        assertEquals(14, deltas.get(0).getRetainedSizeDelta());
+        assertEquals("Class0", deltas.get(1).getClassName());
+        assertEquals(0, deltas.get(1).getCountDelta());
+        assertEquals(0, deltas.get(1).getShallowSizeDelta());
+        assertEquals(9, deltas.get(1).getRetainedSizeDelta());
+    }
+
+    public void testAnalyzer() {
+        CaptureGroup group = new CaptureGroup();
+        group.addCapture(mBaseline);
+        SnapshotDiffAnalyzer analyzer = new SnapshotDiffAnalyzer();
+        assertFalse(analyzer.accept(group));
+
+        group.addCapture(mCurrent);
+        assertTrue(analyzer.accept(group));
+        assertNotNull(analyzer.analyze(group));
+        checkDiff(analyzer.diff(group));
+    }
+
+    public void testStreamedBaseline() throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(file);
+        try {
+            snapshot.computeDominators();
+            SnapshotDiff diff = SnapshotDiff.compute(
+                    SnapshotDiff.Summary.of(new HprofStreamParser(buffer)), snapshot);
+            assertFalse(diff.hasRetainedSizes());
+            assertTrue(diff.getNewSubtrees().isEmpty());
+            // Nothing changed, and the retained sizes of the current snapshot aren't reported.
+            assertTrue(diff.getClassDeltas().isEmpty());
+        } finally {
+            snapshot.dispose();
+            buffer.dispose();
+        }
+    }
+}
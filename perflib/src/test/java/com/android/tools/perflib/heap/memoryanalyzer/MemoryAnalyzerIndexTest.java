@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisReport;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.analyzer.CaptureGroup;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class MemoryAnalyzerIndexTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private List<Heap> mHeaps;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mSnapshot.computeDominators();
+        mHeaps = Collections.singletonList(mSnapshot.getHeap("app"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshot.dispose();
+        super.tearDown();
+    }
+
+    public void testIndex() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MemoryAnalyzerIndex index =
+                    MemoryAnalyzerIndex.build(mSnapshot, mHeaps, executor).get();
+            checkIndex(index);
+        } finally {
+            executor.shutdown();
+        }
+        checkIndex(MemoryAnalyzerIndex.build(mSnapshot, mHeaps));
+    }
+
+    private void checkIndex(@NonNull MemoryAnalyzerIndex index) {
+        int heapId = mHeaps.get(0).getId();
+        ClassObj stringClass = mSnapshot.findClass(MemoryAnalyzerIndex.STRING_CLASS_NAME);
+        assertEquals(stringClass.getHeapInstances(heapId), index.getInstances(stringClass));
+
+        Map<String, Set<Instance>> expected = new HashMap<String, Set<Instance>>();
+        for (Instance instance : stringClass.getHeapInstances(heapId)) {
+            char[] characters = ((ClassInstance) instance).getStringChars();
+            if (instance.isReachable() && characters != null) {
+                String value = new String(characters);
+                if (!expected.containsKey(value)) {
+                    expected.put(value, new HashSet<Instance>());
+                }
+                expected.get(value).add(instance);
+            }
+        }
+        Map<CharSequence, List<ClassInstance>> strings = index.getStringsByValue();
+        assertEquals(expected.size(), strings.size());
+        for (Map.Entry<CharSequence, List<ClassInstance>> entry : strings.entrySet()) {
+            Set<Instance> instances = expected.get(entry.getKey().toString());
+            assertEquals(instances.size(), entry.getValue().size());
+            assertEquals(instances, new HashSet<Instance>(entry.getValue()));
+        }
+
+        assertEquals(new HashSet<ClassObj>(mSnapshot.findAllDescendantClasses(
+                MemoryAnalyzerIndex.ACTIVITY_CLASS_NAME)), index.getActivityClasses());
+    }
+
+    public void testAnalyzerSharesIndex() throws Exception {
+        CaptureGroup group = new CaptureGroup();
+        group.addCapture(mSnapshot);
+
+        final List<AnalysisResultEntry<?>> results = new ArrayList<AnalysisResultEntry<?>>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        AnalysisReport.Listener listener = new AnalysisReport.Listener() {
+            @Override
+            public void onResultsAdded(@NonNull List<AnalysisResultEntry> entries) {
+                for (AnalysisResultEntry<?> entry : entries) {
+                    results.add(entry);
+                }
+            }
+
+            @Override
+            public void onAnalysisComplete() {
+                completed.countDown();
+            }
+
+            @Override
+            public void onAnalysisCancelled() {
+            }
+        };
+
+        // A single thread must be enough, since no task waits for another.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new MemoryAnalyzer().analyze(group, Collections.singleton(listener),
+                    new HashSet<MemoryAnalyzerTask>(Collections.<MemoryAnalyzerTask>singleton(
+                            new DuplicatedStringsAnalyzerTask())),
+                    MoreExecutors.directExecutor(), executor);
+            assertTrue(completed.await(60, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+
+        int expectedCount = new DuplicatedStringsAnalyzerTask().analyze(
+                new MemoryAnalyzerTask.Configuration(mHeaps), mSnapshot).size();
+        assertTrue(expectedCount > 0);
+        assertEquals(expectedCount, results.size());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.HprofStreamParser;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class StreamingDuplicatedStringsTest extends TestCase {
+
+    private MemoryMappedFileBuffer mBuffer;
+
+    private HprofStreamParser mParser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        mBuffer = new MemoryMappedFileBuffer(file);
+        mParser = new HprofStreamParser(mBuffer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBuffer.dispose();
+        super.tearDown();
+    }
+
+    public void testPartitions() throws Exception {
+        StreamingDuplicatedStrings whole = new StreamingDuplicatedStrings(mParser, 1);
+        List<StreamingDuplicatedStrings.DuplicatedString> expected = whole.findDuplicates();
+        assertFalse(expected.isEmpty());
+
+        StreamingDuplicatedStrings partitioned = new StreamingDuplicatedStrings(mParser, 16);
+        List<StreamingDuplicatedStrings.DuplicatedString> actual = partitioned.findDuplicates();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+            long[] expectedIds = expected.get(i).getInstanceIds();
+            long[] actualIds = actual.get(i).getInstanceIds();
+            Arrays.sort(expectedIds);
+            Arrays.sort(actualIds);
+            assertTrue(Arrays.equals(expectedIds, actualIds));
+        }
+
+        // Only about a sixteenth of the char arrays and strings are held in memory at once.
+        assertTrue(partitioned.getMaxPartitionSize() * 8 < whole.getMaxPartitionSize());
+    }
+}
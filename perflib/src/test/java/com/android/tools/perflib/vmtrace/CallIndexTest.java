@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import gnu.trove.TIntArrayList;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class CallIndexTest extends TestCase {
+    private static final TimeUnit UNITS = VmTraceData.getDefaultTimeUnits();
+
+    private VmTraceData mTraceData;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTraceData = getVmTraceData("/basic.trace", false);
+    }
+
+    public void testFindCalls() {
+        for (ThreadInfo thread : mTraceData.getThreads(true)) {
+            CallIndex index = thread.getCallIndex();
+            assertNotNull(index);
+            CallTable calls = index.getCalls();
+            assertEquals(thread.getTopLevelCall().getMethodId(), calls.getMethodId(0));
+
+            for (ClockType clock : ClockType.values()) {
+                long start = calls.getEntryTime(0, clock, UNITS);
+                long end = calls.getExitTime(0, clock, UNITS);
+                long step = Math.max(1, (end - start) / 7);
+                for (long t0 = start - step; t0 <= end + step; t0 += step) {
+                    for (long t1 = t0; t1 <= end + step; t1 += step) {
+                        assertTrue(Arrays.equals(findCalls(calls, clock, t0, t1),
+                                index.findCalls(clock, t0, t1, UNITS)));
+                    }
+                }
+            }
+        }
+    }
+
+    private static int[] findCalls(CallTable calls, ClockType clock, long start, long end) {
+        TIntArrayList found = new TIntArrayList();
+        for (int i = 0; i < calls.getCallCount(); i++) {
+            if (calls.getEntryTime(i, clock, UNITS) < end
+                    && calls.getExitTime(i, clock, UNITS) > start) {
+                found.add(i);
+            }
+        }
+        return found.toNativeArray();
+    }
+
+    public void testProfileDataOfWholeTrace() {
+        for (ThreadInfo thread : mTraceData.getThreads(true)) {
+            Map<Long, MethodProfileData> profiles = mTraceData.getProfileData(thread,
+                    ClockType.GLOBAL, 0, Long.MAX_VALUE, UNITS);
+            assertFalse(profiles.isEmpty());
+            for (Map.Entry<Long, MethodProfileData> entry : profiles.entrySet()) {
+                MethodProfileData expected = mTraceData.getMethod(entry.getKey()).getProfileData();
+                MethodProfileData profile = entry.getValue();
+                assertEquals(expected.getInvocationCount(thread),
+                        profile.getInvocationCount(thread));
+                assertEquals(expected.getCallers(thread), profile.getCallers(thread));
+                assertEquals(expected.getCallees(thread), profile.getCallees(thread));
+                for (ClockType clock : ClockType.values()) {
+                    assertEquals(expected.getInclusiveTime(thread, clock, UNITS),
+                            profile.getInclusiveTime(thread, clock, UNITS));
+                    assertEquals(expected.getExclusiveTime(thread, clock, UNITS),
+                            profile.getExclusiveTime(thread, clock, UNITS));
+                }
+            }
+        }
+    }
+
+    public void testTimeRange() {
+        ThreadInfo thread = mTraceData.getThread("AsyncTask #1");
+        CallIndex index = thread.getCallIndex();
+        CallTable calls = index.getCalls();
+        long start = calls.getEntryTime(0, ClockType.GLOBAL, UNITS);
+        long end = calls.getExitTime(0, ClockType.GLOBAL, UNITS);
+        long t0 = start + (end - start) / 3;
+        long t1 = start + 2 * (end - start) / 3;
+
+        // The exclusive times in a range add up to the length of the range.
+        Map<Long, Long> exclusiveTimes = index.getExclusiveTimes(ClockType.GLOBAL, t0, t1, UNITS);
+        long total = 0;
+        for (long time : exclusiveTimes.values()) {
+            total += time;
+        }
+        assertEquals(t1 - t0, total);
+
+        Map<Long, MethodProfileData> profiles =
+                mTraceData.getProfileData(thread, ClockType.GLOBAL, t0, t1, UNITS);
+        assertEquals(exclusiveTimes.keySet(), profiles.keySet());
+        for (Map.Entry<Long, Long> entry : exclusiveTimes.entrySet()) {
+            assertEquals(entry.getValue().longValue(), profiles.get(entry.getKey())
+                    .getExclusiveTime(thread, ClockType.GLOBAL, UNITS));
+        }
+        assertEquals(t1 - t0, profiles.get(calls.getMethodId(0))
+                .getInclusiveTime(thread, ClockType.GLOBAL, UNITS));
+
+        List<Long> top = index.getTopMethodsByExclusiveTime(ClockType.GLOBAL, t0, t1, UNITS, 3);
+        assertEquals(Math.min(3, exclusiveTimes.size()), top.size());
+        for (int i = 1; i < top.size(); i++) {
+            assertTrue(exclusiveTimes.get(top.get(i - 1)) >= exclusiveTimes.get(top.get(i)));
+        }
+        for (long time : exclusiveTimes.values()) {
+            assertTrue(exclusiveTimes.get(top.get(0)) >= time);
+        }
+    }
+
+    public void testCompactCalls() throws IOException {
+        VmTraceData compact = getVmTraceData("/basic.trace", true);
+        for (ThreadInfo thread : mTraceData.getThreads(true)) {
+            CallTable expected = thread.getCallIndex().getCalls();
+            CallTable calls = compact.getThread(thread.getName()).getCallIndex().getCalls();
+            assertEquals(expected.getCallCount(), calls.getCallCount());
+            for (int i = 0; i < calls.getCallCount(); i++) {
+                assertEquals(expected.getMethodId(i), calls.getMethodId(i));
+                assertEquals(expected.getDepth(i), calls.getDepth(i));
+                assertEquals(expected.getSubtreeEnd(i), calls.getSubtreeEnd(i));
+                for (ClockType clock : ClockType.values()) {
+                    assertEquals(expected.getEntryTime(i, clock, UNITS),
+                            calls.getEntryTime(i, clock, UNITS));
+                    assertEquals(expected.getExitTime(i, clock, UNITS),
+                            calls.getExitTime(i, clock, UNITS));
+                }
+            }
+        }
+    }
+
+    public void testCallsTouchingRangeAreNotCounted() {
+        ThreadInfo thread = mTraceData.getThread("AsyncTask #1");
+        CallTable calls = thread.getCallIndex().getCalls();
+        long start = calls.getEntryTime(0, ClockType.GLOBAL, UNITS);
+        long end = calls.getExitTime(0, ClockType.GLOBAL, UNITS);
+        for (int i = 1; i < calls.getCallCount(); i = calls.getSubtreeEnd(i)) {
+            // Ranges ending when a callee enters and starting when it exits.
+            checkInvocationCounts(thread, start, calls.getEntryTime(i, ClockType.GLOBAL, UNITS));
+            checkInvocationCounts(thread, calls.getExitTime(i, ClockType.GLOBAL, UNITS), end);
+        }
+    }
+
+    private void checkInvocationCounts(ThreadInfo thread, long start, long end) {
+        CallTable calls = thread.getCallIndex().getCalls();
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int i : findCalls(calls, ClockType.GLOBAL, start, end)) {
+            Integer count = expected.get(calls.getMethodId(i));
+            expected.put(calls.getMethodId(i), count == null ? 1 : count + 1);
+        }
+
+        Map<Long, MethodProfileData> profiles =
+                mTraceData.getProfileData(thread, ClockType.GLOBAL, start, end, UNITS);
+        assertEquals(expected.keySet(), profiles.keySet());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().longValue(),
+                    profiles.get(entry.getKey()).getInvocationCount(thread));
+        }
+    }
+
+    private VmTraceData getVmTraceData(String traceFilePath, boolean compactCalls)
+            throws IOException {
+        File file = new File(getClass().getResource(traceFilePath).getFile());
+        VmTraceParser parser = new VmTraceParser(file, compactCalls);
+        parser.parse();
+        return parser.getTraceData();
+    }
+}
@@ -335,8 +335,82 @@ public class VmTraceParserTest extends TestCase {
         }
     }
 
+    public void testCompactCalls() throws IOException {
+        for (String trace : new String[] {"/basic.trace", "/basic-api10.trace",
+                "/mismatched.trace", "/exception.trace"}) {
+            VmTraceData expected = getVmTraceData(trace);
+            VmTraceData compact = getVmTraceData(trace, true);
+
+            assertEquals(expected.getThreads().size(), compact.getThreads().size());
+            for (ThreadInfo thread : expected.getThreads()) {
+                ThreadInfo compactThread = compact.getThread(thread.getName());
+                assertEquals(thread.getId(), compactThread.getId());
+                assertEquals(thread.getTopLevelCall() != null, compactThread.hasCalls());
+                if (thread.getTopLevelCall() == null) {
+                    continue;
+                }
+                assertNotNull(compactThread.getCallTable());
+
+                // Profile data has to be computed without building the calls.
+                for (MethodInfo method : expected.getMethods().values()) {
+                    MethodProfileData profile = method.getProfileData();
+                    MethodProfileData compactProfile =
+                            compact.getMethod(method.id).getProfileData();
+                    if (profile == null) {
+                        assertNull(compactProfile);
+                        continue;
+                    }
+                    assertEquals(profile.isRecursive(), compactProfile.isRecursive());
+                    assertEquals(profile.getInvocationCount(thread),
+                            compactProfile.getInvocationCount(compactThread));
+                    assertEquals(profile.getCallers(thread),
+                            compactProfile.getCallers(compactThread));
+                    assertEquals(profile.getCallees(thread),
+                            compactProfile.getCallees(compactThread));
+                    for (ClockType type : ClockType.values()) {
+                        assertEquals(profile.getInclusiveTime(thread, type, TimeUnit.NANOSECONDS),
+                                compactProfile.getInclusiveTime(compactThread, type,
+                                        TimeUnit.NANOSECONDS));
+                        assertEquals(profile.getExclusiveTime(thread, type, TimeUnit.NANOSECONDS),
+                                compactProfile.getExclusiveTime(compactThread, type,
+                                        TimeUnit.NANOSECONDS));
+                        for (Long callee : profile.getCallees(thread)) {
+                            assertEquals(profile.getInclusiveTimeByCallee(thread, callee, type,
+                                    TimeUnit.NANOSECONDS),
+                                    compactProfile.getInclusiveTimeByCallee(compactThread,
+                                            callee, type, TimeUnit.NANOSECONDS));
+                        }
+                    }
+                }
+
+                Iterator<Call> calls = thread.getTopLevelCall().getCallHierarchyIterator();
+                Iterator<Call> compactCalls =
+                        compactThread.getTopLevelCall().getCallHierarchyIterator();
+                while (calls.hasNext()) {
+                    Call call = calls.next();
+                    Call compactCall = compactCalls.next();
+                    assertEquals(call.getMethodId(), compactCall.getMethodId());
+                    assertEquals(call.getDepth(), compactCall.getDepth());
+                    assertEquals(call.isRecursive(), compactCall.isRecursive());
+                    for (ClockType type : ClockType.values()) {
+                        assertEquals(call.getEntryTime(type, TimeUnit.MICROSECONDS),
+                                compactCall.getEntryTime(type, TimeUnit.MICROSECONDS));
+                        assertEquals(call.getExitTime(type, TimeUnit.MICROSECONDS),
+                                compactCall.getExitTime(type, TimeUnit.MICROSECONDS));
+                    }
+                }
+                assertFalse(compactCalls.hasNext());
+            }
+        }
+    }
+
     private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
-        VmTraceParser parser = new VmTraceParser(getFile(traceFilePath));
+        return getVmTraceData(traceFilePath, false);
+    }
+
+    private VmTraceData getVmTraceData(String traceFilePath, boolean compactCalls)
+            throws IOException {
+        VmTraceParser parser = new VmTraceParser(getFile(traceFilePath), compactCalls);
         parser.parse();
         return parser.getTraceData();
     }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of a single channel's {@link PipeInputStream}, with a writer thread feeding it messages
+ * while the benchmark thread reads them, as the multiplexer receiver and a channel reader do. The writer either
+ * writes each message through {@link PipeInputStream#getSource()}, or reads it straight from a stream into the pipe,
+ * like the multiplexer receiver. The score is in messages per second, and the "bytes" counter in bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PipeInputStreamBenchmark {
+  private static final int MESSAGES_PER_INVOCATION = 1000;
+
+  @Param({"64", "1024", "16384"})
+  public int messageSize;
+
+  @Param({"write", "readFrom"})
+  public String writeMode;
+
+  private PipeInputStream mPipe;
+  private byte[] mReadBuffer;
+  private Thread mWriter;
+
+  /** Each element asks the writer to write {@link #MESSAGES_PER_INVOCATION} messages. */
+  private final SynchronousQueue<Boolean> mRequests = new SynchronousQueue<Boolean>();
+
+  @AuxCounters
+  @State(Scope.Thread)
+  public static class Counters {
+    public long bytes;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mPipe = new PipeInputStream();
+    mReadBuffer = new byte[messageSize];
+    final byte[] message = new byte[messageSize];
+    final boolean readFrom = writeMode.equals("readFrom");
+    final InputStream source = new RepeatingInputStream(message);
+    mWriter = new Thread("PipeInputStreamBenchmark writer") {
+      @Override
+      public void run() {
+        try {
+          while (mRequests.take()) {
+            for (int i = 0; i < MESSAGES_PER_INVOCATION; i++) {
+              if (readFrom) {
+                mPipe.readFrom(source, message.length);
+              }
+              else {
+                mPipe.getSource().write(message, 0, message.length);
+              }
+            }
+          }
+        }
+        catch (InterruptedException ignored) {
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    mWriter.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    mRequests.put(false);
+    mWriter.join();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+  public void transfer(Counters counters) throws Exception {
+    mRequests.put(true);
+    for (int i = 0; i < MESSAGES_PER_INVOCATION; i++) {
+      for (int offset = 0; offset < messageSize; ) {
+        offset += mPipe.read(mReadBuffer, offset, messageSize - offset);
+      }
+    }
+    counters.bytes += (long)MESSAGES_PER_INVOCATION * messageSize;
+  }
+
+  /** An endless stream, repeating a message. */
+  private static final class RepeatingInputStream extends InputStream {
+    private final byte[] mMessage;
+    private int mOffset;
+
+    RepeatingInputStream(byte[] message) {
+      mMessage = message;
+    }
+
+    @Override
+    public int read() {
+      int b = mMessage[mOffset] & 0xff;
+      mOffset = (mOffset + 1) % mMessage.length;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      int n = Math.min(len, mMessage.length - mOffset);
+      System.arraycopy(mMessage, mOffset, b, off, n);
+      mOffset = (mOffset + n) % mMessage.length;
+      return n;
+    }
+  }
+}
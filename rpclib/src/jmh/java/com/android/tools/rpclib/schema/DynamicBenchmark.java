@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.schema;
+
+import com.android.tools.rpclib.binary.BinaryClass;
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding {@link Dynamic} objects through the codecs compiled from their schema, for a struct
+ * of primitives with a nested struct, for slices, and for a map. The score is in objects per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DynamicBenchmark {
+  private static final int OBJECTS = 100;
+
+  @Param({"struct", "slice", "map"})
+  public String shape;
+
+  private BinaryClass mKlass;
+  private BinaryObject[] mObjects;
+  private byte[] mBytes;
+  private Encoder mEncoder;
+
+  @Setup
+  public void setUp() throws IOException {
+    mKlass = Dynamic.register(createEntity(shape));
+
+    // Generate the encoded objects, and decode them to get objects to encode.
+    Random random = new Random(0);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    for (int i = 0; i < OBJECTS; i++) {
+      writeStruct(e, mKlass.entity(), random);
+    }
+    mBytes = output.toByteArray();
+    mObjects = decode();
+    mEncoder = new Encoder(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    }, 64 * 1024);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OBJECTS)
+  public void encode() throws IOException {
+    for (BinaryObject obj : mObjects) {
+      mEncoder.value(obj);
+    }
+    mEncoder.flush();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OBJECTS)
+  public BinaryObject[] decode() throws IOException {
+    Decoder d = new Decoder(new ByteArrayInputStream(mBytes));
+    BinaryObject[] objects = new BinaryObject[OBJECTS];
+    for (int i = 0; i < objects.length; i++) {
+      objects[i] = mKlass.create();
+      mKlass.decode(d, objects[i]);
+    }
+    return objects;
+  }
+
+  private static Entity createEntity(String shape) {
+    Entity entity = new Entity("benchmark", shape, "", "");
+    if (shape.equals("struct")) {
+      Entity point = new Entity("benchmark", "point", "", "");
+      point.setFields(new Field[]{
+        new Field("X", new Primitive("float32", Method.Float32)),
+        new Field("Y", new Primitive("float32", Method.Float32)),
+      });
+      Dynamic.register(point);
+      entity.setFields(new Field[]{
+        new Field("Id", new Primitive("int32", Method.Int32)),
+        new Field("Size", new Primitive("uint64", Method.Uint64)),
+        new Field("Scale", new Primitive("float64", Method.Float64)),
+        new Field("Visible", new Primitive("bool", Method.Bool)),
+        new Field("Name", new Primitive("string", Method.String)),
+        new Field("Origin", new Struct(point)),
+      });
+    }
+    else if (shape.equals("slice")) {
+      entity.setFields(new Field[]{
+        new Field("Values", new Slice("", new Primitive("int64", Method.Int64))),
+        new Field("Weights", new Slice("", new Primitive("float64", Method.Float64))),
+        new Field("Data", new Slice("", new Primitive("uint8", Method.Uint8))),
+      });
+    }
+    else {
+      entity.setFields(new Field[]{
+        new Field("Counts", new Map("", new Primitive("string", Method.String), new Primitive("int32", Method.Int32))),
+      });
+    }
+    return entity;
+  }
+
+  private static void writeStruct(Encoder e, Entity entity, Random random) throws IOException {
+    for (Field field : entity.getFields()) {
+      write(e, field.getType(), random);
+    }
+  }
+
+  /** Writes a random value of the given type. */
+  private static void write(Encoder e, Type type, Random random) throws IOException {
+    if (type instanceof Struct) {
+      writeStruct(e, ((Struct)type).getEntity(), random);
+    }
+    else if (type instanceof Slice) {
+      Type valueType = ((Slice)type).getValueType();
+      int length = Primitive.isMethod(valueType, Method.Uint8) ? 256 : 64;
+      e.uint32(length);
+      for (int i = 0; i < length; i++) {
+        write(e, valueType, random);
+      }
+    }
+    else if (type instanceof Map) {
+      e.uint32(16);
+      for (int i = 0; i < 16; i++) {
+        e.string("key" + i);
+        write(e, ((Map)type).getValueType(), random);
+      }
+    }
+    else {
+      switch (((Primitive)type).getMethod().getValue()) {
+        case Method.BoolValue:
+          e.bool(random.nextBoolean());
+          break;
+        case Method.Uint8Value:
+          e.uint8((short)random.nextInt(256));
+          break;
+        case Method.Int32Value:
+          e.int32(random.nextInt(100000));
+          break;
+        case Method.Int64Value:
+          e.int64(random.nextLong());
+          break;
+        case Method.Uint64Value:
+          e.uint64(random.nextInt(Integer.MAX_VALUE));
+          break;
+        case Method.Float32Value:
+          e.float32(random.nextFloat());
+          break;
+        case Method.Float64Value:
+          e.float64(random.nextDouble());
+          break;
+        case Method.StringValue:
+          e.string("name" + random.nextInt(1000));
+          break;
+        default:
+          throw new IllegalArgumentException("Unexpected type " + type);
+      }
+    }
+  }
+}
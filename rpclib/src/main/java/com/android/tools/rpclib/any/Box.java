@@ -16,6 +16,10 @@
 package com.android.tools.rpclib.any;
 
 import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Encoder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
 
 public abstract class Box implements BinaryObject {
   public abstract Object unwrap();
@@ -52,4 +56,49 @@ public abstract class Box implements BinaryObject {
     // TODO: slice types
     throw new UnsupportedOperationException();
   }
+
+  /**
+   * Encodes <var>value</var> as the variant {@link #wrap} would box it in, without allocating the box.
+   */
+  public static void encode(@NotNull Encoder e, Object value) throws IOException {
+    if (value instanceof BinaryObject) {
+      e.entity(ObjectBox.Klass.INSTANCE.entity());
+      e.object((BinaryObject)value);
+    }
+    else if (value instanceof Boolean) {
+      e.entity(Bool.Klass.INSTANCE.entity());
+      e.bool((Boolean)value);
+    }
+    else if (value instanceof Byte) {
+      e.entity(Uint8.Klass.INSTANCE.entity());
+      e.uint8((Byte)value);
+    }
+    else if (value instanceof Short) {
+      e.entity(Uint16.Klass.INSTANCE.entity());
+      e.uint16((Short)value);
+    }
+    else if (value instanceof Integer) {
+      e.entity(Uint32.Klass.INSTANCE.entity());
+      e.uint32((Integer)value);
+    }
+    else if (value instanceof Long) {
+      e.entity(Uint64.Klass.INSTANCE.entity());
+      e.uint64((Long)value);
+    }
+    else if (value instanceof Float) {
+      e.entity(Float32.Klass.INSTANCE.entity());
+      e.float32((Float)value);
+    }
+    else if (value instanceof Double) {
+      e.entity(Float64.Klass.INSTANCE.entity());
+      e.float64((Double)value);
+    }
+    else if (value instanceof String) {
+      e.entity(StringBox.Klass.INSTANCE.entity());
+      e.string((String)value);
+    }
+    else {
+      e.variant(wrap(value));
+    }
+  }
 }
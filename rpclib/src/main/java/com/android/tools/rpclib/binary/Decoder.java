@@ -21,27 +21,52 @@ import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import com.google.common.base.Charsets;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  * A decoder of various RPC primitive types.
  * The encoding format is documented at the following link:
  * https://android.googlesource.com/platform/tools/gpu/+/master/binary/doc.go
+ * <p/>
+ * The data is read from the stream in bulk into a buffer, which the values are decoded from. As the decoder may read
+ * past the values it decoded, any raw data following them must be read through {@link #stream()}.
  */
 public class Decoder {
+  /** The default size of the buffer. */
+  public static final int DEFAULT_BUFFER_SIZE = 4096;
+  /** The largest size of an encoded varint. */
+  private static final int MAX_VARINT_SIZE = 9;
+
   @NotNull private final TIntObjectHashMap<Entity> mEntities;
   @NotNull private final TIntObjectHashMap<BinaryObject> mObjects;
+  /** The classes of the decoded entities, which are unique per decoder, saving the lookups in the namespace. */
+  @NotNull private final Map<Entity, BinaryClass> mClasses = new IdentityHashMap<Entity, BinaryClass>();
   @NotNull private final InputStream mInputStream;
-  @NotNull private final byte[] mBuffer;
+  /** The data read ahead from the stream, between its position and limit. */
+  @NotNull private final ByteBuffer mBuffer;
+  @NotNull private final byte[] mBytes;
+  @NotNull private final InputStream mStream;
   @NotNull private final EncodingControl mControl = new EncodingControl();
 
   public Decoder(@NotNull InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public Decoder(@NotNull InputStream in, int bufferSize) {
     mEntities = new TIntObjectHashMap<Entity>();
     mObjects = new TIntObjectHashMap<BinaryObject>();
     mInputStream = in;
-    mBuffer = new byte[9];
+    mBuffer = ByteBuffer.allocate(Math.max(bufferSize, MAX_VARINT_SIZE * 2));
+    mBuffer.flip();
+    mBytes = mBuffer.array();
+    mStream = new Stream();
     mEntities.put(0, null);
     mObjects.put(0, null);
   }
@@ -49,22 +74,64 @@ public class Decoder {
   public void read(byte[] buf, int count) throws IOException {
     int off = 0;
     while (off < count) {
-      off += mInputStream.read(buf, off, count - off);
+      int n = read(buf, off, count - off);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      off += n;
     }
   }
 
-  private void read(int count) throws IOException {
-    read(mBuffer, count);
+  /**
+   * Reads up to <var>len</var> bytes, from the buffer if it has any, or else directly from the stream for large
+   * reads.
+   */
+  private int read(byte[] buf, int off, int len) throws IOException {
+    if (!mBuffer.hasRemaining()) {
+      if (len >= mBuffer.capacity()) {
+        return mInputStream.read(buf, off, len);
+      }
+      if (!fill()) {
+        return -1;
+      }
+    }
+    int n = Math.min(len, mBuffer.remaining());
+    mBuffer.get(buf, off, n);
+    return n;
+  }
+
+  /**
+   * Reads more data from the stream into the buffer, blocking only if the buffer is empty.
+   *
+   * @return false at the end of the stream.
+   */
+  private boolean fill() throws IOException {
+    mBuffer.compact();
+    int n = mInputStream.read(mBytes, mBuffer.position(), mBuffer.remaining());
+    if (n > 0) {
+      mBuffer.position(mBuffer.position() + n);
+    }
+    mBuffer.flip();
+    return n >= 0;
+  }
+
+  /** Waits for at least <var>count</var> bytes in the buffer, which must fit. */
+  private void require(int count) throws IOException {
+    while (mBuffer.remaining() < count) {
+      if (!fill()) {
+        throw new EOFException();
+      }
+    }
   }
 
   public boolean bool() throws IOException {
-    read(1);
-    return mBuffer[0] != 0;
+    require(1);
+    return mBuffer.get() != 0;
   }
 
   public byte int8() throws IOException {
-    read(1);
-    return mBuffer[0];
+    require(1);
+    return mBuffer.get();
   }
 
   public byte uint8() throws IOException {
@@ -82,17 +149,20 @@ public class Decoder {
   }
 
   private long uintv() throws IOException {
-    read(1);
+    require(1);
+    int position = mBuffer.position();
+    int first = mBytes[position];
     int count = 0;
-    while (((0x80 >> count) & mBuffer[0]) != 0) count++;
-    long v = mBuffer[0] & (0xff >> count);
-    if (count == 0) {
-      return v;
+    while (((0x80 >> count) & first) != 0) count++;
+    if (count > 0) {
+      require(count + 1);
+      position = mBuffer.position();
     }
-    read(count);
-    for (int i = 0; i < count; i++) {
-      v = (v << 8) | (mBuffer[i] & 0xffL);
+    long v = first & (0xff >> count);
+    for (int i = 1; i <= count; i++) {
+      v = (v << 8) | (mBytes[position + i] & 0xffL);
     }
+    mBuffer.position(position + count + 1);
     return v;
   }
 
@@ -142,18 +212,20 @@ public class Decoder {
     return Double.longBitsToDouble(shuffled);
   }
 
+  /**
+   * Decodes a UTF-8 string, straight from the buffer if it fits.
+   */
   public String string() throws IOException {
     int size = uint32();
-    byte[] bytes = new byte[size];
-    for (int i = 0; i < size; i++) {
-      bytes[i] = int8();
-    }
-    try {
-      return new String(bytes, "UTF-8");
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); // Should never happen
+    if (size <= mBuffer.capacity()) {
+      require(size);
+      String string = new String(mBytes, mBuffer.position(), size, Charsets.UTF_8);
+      mBuffer.position(mBuffer.position() + size);
+      return string;
     }
+    byte[] bytes = new byte[size];
+    read(bytes, size);
+    return new String(bytes, Charsets.UTF_8);
   }
 
   public String nonCompactString() throws IOException {
@@ -196,9 +268,13 @@ public class Decoder {
     if (entity == null) {
       return  null;
     }
-    BinaryClass c = Namespace.lookup(entity);
+    BinaryClass c = mClasses.get(entity);
     if (c == null) {
-      c = Dynamic.register(entity);
+      c = Namespace.lookup(entity);
+      if (c == null) {
+        c = Dynamic.register(entity);
+      }
+      mClasses.put(entity, c);
     }
     BinaryObject obj = c.create();
     c.decode(this, obj);
@@ -220,11 +296,34 @@ public class Decoder {
     return mObjects.get(sid);
   }
 
+  /**
+   * @return a stream reading the raw data following the values decoded so far.
+   */
   public InputStream stream() {
-    return mInputStream;
+    return mStream;
   }
 
   public int getMode() {
     return mControl.mode;
   }
+
+  private class Stream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      if (!mBuffer.hasRemaining() && !fill()) {
+        return -1;
+      }
+      return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return (len == 0) ? 0 : Decoder.this.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return mBuffer.remaining() + mInputStream.available();
+    }
+  }
 }
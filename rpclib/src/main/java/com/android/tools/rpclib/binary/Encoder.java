@@ -22,47 +22,132 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * An encoder of various primitive types.
  * The encoding format is documented at the following link:
  * https://android.googlesource.com/platform/tools/gpu/+/master/binary/doc.go
+ * <p/>
+ * Values are encoded into a buffer, and written to the stream in bulk. A buffered encoder only writes the buffer
+ * when it is full, or on {@link #flush()}. Otherwise, the encoder writes through: the buffer is written at the end of
+ * each call, so that each value, or each object and everything it contains, is written with a single call to the
+ * stream.
  */
 public class Encoder {
+  /** The size of the buffer of encoders writing through. */
+  private static final int WRITE_THROUGH_BUFFER_SIZE = 256;
+  /** The largest size of an encoded varint. */
+  private static final int MAX_VARINT_SIZE = 9;
+
   @NotNull private final OutputStream mOutputStream;
   @NotNull private final TObjectIntHashMap<Entity> mEntities;
+  /** The last entity referenced, and its sid, saving the lookups when encoding objects of the same type in a row. */
+  @Nullable private Entity mLastEntity;
+  private int mLastEntitySid;
   @NotNull private final TObjectIntHashMap<BinaryObject> mObjects;
-  @NotNull private final byte[] mBuffer;
+  @NotNull private final ByteBuffer mBuffer;
+  @NotNull private final byte[] mBytes;
+  @NotNull private final OutputStream mStream;
+  private final boolean mWriteThrough;
+  /** The depth of the object being encoded, the buffer is only written through once back at 0. */
+  private int mDepth;
   private boolean mControlNeeded = false;
   @NotNull private final EncodingControl mControl = new EncodingControl();
 
+  /**
+   * Creates an encoder writing through to <var>out</var>.
+   */
   public Encoder(@NotNull OutputStream out) {
+    this(out, WRITE_THROUGH_BUFFER_SIZE, true);
+  }
+
+  /**
+   * Creates an encoder buffering up to <var>bufferSize</var> bytes. The encoded data is only guaranteed to be written
+   * to <var>out</var> after a call to {@link #flush()}.
+   */
+  public Encoder(@NotNull OutputStream out, int bufferSize) {
+    this(out, bufferSize, false);
+  }
+
+  private Encoder(@NotNull OutputStream out, int bufferSize, boolean writeThrough) {
     mEntities = new TObjectIntHashMap<Entity>();
     mObjects = new TObjectIntHashMap<BinaryObject>();
     mOutputStream = out;
-    mBuffer = new byte[9];
+    mBuffer = ByteBuffer.allocate(Math.max(bufferSize, MAX_VARINT_SIZE * 2));
+    mBytes = mBuffer.array();
+    mStream = new Stream();
+    mWriteThrough = writeThrough;
     mEntities.put(null, 0);
     mObjects.put(null, 0);
   }
 
   public void write(byte[] b, int len) throws IOException {
-    mOutputStream.write(b, 0, len);
+    write(b, 0, len);
+    written();
+  }
+
+  private void write(byte[] b, int off, int len) throws IOException {
+    if (len <= mBuffer.remaining()) {
+      mBuffer.put(b, off, len);
+      return;
+    }
+    // Too large to be worth copying into the buffer, write it directly after what's already buffered.
+    drain();
+    if (len < mBuffer.capacity()) {
+      mBuffer.put(b, off, len);
+    }
+    else {
+      mOutputStream.write(b, off, len);
+    }
+  }
+
+  /**
+   * Writes the buffered data to the stream, and flushes the stream.
+   */
+  public void flush() throws IOException {
+    drain();
+    mOutputStream.flush();
+  }
+
+  /** Writes the buffered data to the stream. */
+  private void drain() throws IOException {
+    if (mBuffer.position() > 0) {
+      mOutputStream.write(mBytes, 0, mBuffer.position());
+      mBuffer.clear();
+    }
+  }
+
+  /** Makes room for at least <var>count</var> bytes in the buffer. */
+  private void ensure(int count) throws IOException {
+    if (mBuffer.remaining() < count) {
+      drain();
+    }
+  }
+
+  /** Called once a value has been encoded, to write it through if needed. */
+  private void written() throws IOException {
+    if (mWriteThrough && mDepth == 0) {
+      drain();
+    }
   }
 
   public void bool(boolean v) throws IOException {
-    mBuffer[0] = (byte)(v ? 1 : 0);
-    mOutputStream.write(mBuffer, 0, 1);
+    ensure(1);
+    mBuffer.put((byte)(v ? 1 : 0));
+    written();
   }
 
   public void int8(byte v) throws IOException {
-    mBuffer[0] = v;
-    mOutputStream.write(mBuffer, 0, 1);
+    ensure(1);
+    mBuffer.put(v);
+    written();
   }
 
   public void uint8(short v) throws IOException {
-    mBuffer[0] = (byte)(v & 0xff);
-    mOutputStream.write(mBuffer, 0, 1);
+    ensure(1);
+    mBuffer.put((byte)(v & 0xff));
+    written();
   }
 
   private void intv(long v) throws IOException {
@@ -72,19 +157,23 @@ public class Encoder {
   }
 
   private void uintv(long v) throws IOException {
+    ensure(MAX_VARINT_SIZE);
+    // Count the bytes following the first one, which holds as many leading 1 bits as there are following bytes.
     long space = ~0x7fL;
-    int tag = 0;
-    for (int o = 8; true; o--) {
-      if ((v & space) == 0) {
-        mBuffer[o] = (byte)(v | tag);
-        mOutputStream.write(mBuffer, o, 9 - o);
-        return;
-      }
-      mBuffer[o] = (byte)(v&0xff);
-      v >>>= 8;
+    long high = v;
+    int count = 0;
+    while ((high & space) != 0) {
+      high >>>= 8;
       space >>= 1;
-      tag =(tag >> 1) | 0x80;
+      count++;
+    }
+    int position = mBuffer.position();
+    mBytes[position++] = (byte)(high | (0xff00 >> count));
+    for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+      mBytes[position++] = (byte)(v >>> shift);
     }
+    mBuffer.position(position);
+    written();
   }
 
   public void int16(short v) throws IOException {
@@ -133,22 +222,77 @@ public class Encoder {
     uintv(shuffled);
   }
 
+  /**
+   * Encodes a string as UTF-8, straight into the buffer. Like {@link String#getBytes(String)}, unpaired surrogates
+   * are replaced with '?'.
+   */
   public void string(@Nullable String v) throws IOException {
+    if (v == null) {
+      uint32(0);
+      return;
+    }
+
+    mDepth++;
     try {
-      if (v == null) {
-        uint32(0);
-        return;
+      uint32(utf8Length(v));
+      int length = v.length();
+      for (int i = 0; i < length; i++) {
+        ensure(4);
+        int position = mBuffer.position();
+        char c = v.charAt(i);
+        if (c < 0x80) {
+          mBytes[position++] = (byte)c;
+        }
+        else if (c < 0x800) {
+          mBytes[position++] = (byte)(0xc0 | (c >> 6));
+          mBytes[position++] = (byte)(0x80 | (c & 0x3f));
+        }
+        else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+          mBytes[position++] = (byte)(0xe0 | (c >> 12));
+          mBytes[position++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+          mBytes[position++] = (byte)(0x80 | (c & 0x3f));
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(v.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, v.charAt(++i));
+          mBytes[position++] = (byte)(0xf0 | (codePoint >> 18));
+          mBytes[position++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+          mBytes[position++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+          mBytes[position++] = (byte)(0x80 | (codePoint & 0x3f));
+        }
+        else {
+          mBytes[position++] = (byte)'?';
+        }
+        mBuffer.position(position);
       }
+    }
+    finally {
+      mDepth--;
+    }
+    written();
+  }
 
-      byte[] bytes = v.getBytes("UTF-8");
-      uint32(bytes.length);
-      for (byte b : bytes) {
-        int8(b);
+  /** @return the length of the UTF-8 encoding of <var>v</var>, as encoded by {@link #string}. */
+  private static int utf8Length(@NotNull String v) {
+    int length = v.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = v.charAt(i);
+      if (c < 0x80) {
+        continue;
+      }
+      if (c < 0x800) {
+        bytes += 1;
+      }
+      else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+        bytes += 2;
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(v.charAt(i + 1))) {
+        // 4 bytes for the 2 chars of the pair.
+        bytes += 2;
+        i++;
       }
     }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); // Should never happen
-    }
+    return bytes;
   }
 
   public void nonCompactString(@Nullable String v) throws IOException {
@@ -167,43 +311,79 @@ public class Encoder {
   }
 
   public void entity(Entity entity) throws IOException {
-    if (mEntities.containsKey(entity)) {
-      writeSid(mEntities.get(entity), false);
-    } else {
-      int sid = mEntities.size();
-      mEntities.put(entity, sid);
-      writeSid(sid, true);
-      entity.encode(this);
+    mDepth++;
+    try {
+      if (entity == mLastEntity) {
+        writeSid(mLastEntitySid, false);
+      } else if (mEntities.containsKey(entity)) {
+        int sid = mEntities.get(entity);
+        writeSid(sid, false);
+        mLastEntity = entity;
+        mLastEntitySid = sid;
+      } else {
+        int sid = mEntities.size();
+        mEntities.put(entity, sid);
+        writeSid(sid, true);
+        entity.encode(this);
+      }
+    }
+    finally {
+      mDepth--;
     }
+    written();
   }
 
   public void value(@Nullable BinaryObject obj) throws IOException {
-    obj.klass().encode(this, obj);
+    mDepth++;
+    try {
+      obj.klass().encode(this, obj);
+    }
+    finally {
+      mDepth--;
+    }
+    written();
   }
 
   public void variant(@Nullable BinaryObject obj) throws IOException {
-    if (obj == null) {
-      entity(null);
-    } else {
-      BinaryClass c = obj.klass();
-      entity(c.entity());
-      c.encode(this, obj);
+    mDepth++;
+    try {
+      if (obj == null) {
+        entity(null);
+      } else {
+        BinaryClass c = obj.klass();
+        entity(c.entity());
+        c.encode(this, obj);
+      }
+    }
+    finally {
+      mDepth--;
     }
+    written();
   }
 
   public void object(@Nullable BinaryObject obj) throws IOException {
-    if (mObjects.containsKey(obj)) {
-      writeSid(mObjects.get(obj), false);
-    } else {
-      int sid = mObjects.size();
-      mObjects.put(obj, sid);
-      writeSid(sid, true);
-      variant(obj);
+    mDepth++;
+    try {
+      if (mObjects.containsKey(obj)) {
+        writeSid(mObjects.get(obj), false);
+      } else {
+        int sid = mObjects.size();
+        mObjects.put(obj, sid);
+        writeSid(sid, true);
+        variant(obj);
+      }
+    }
+    finally {
+      mDepth--;
     }
+    written();
   }
 
+  /**
+   * @return a stream writing raw data through the encoder, after the values encoded so far.
+   */
   public OutputStream stream() {
-    return mOutputStream;
+    return mStream;
   }
 
   public int getMode() {
@@ -218,4 +398,22 @@ public class Encoder {
     }
     return oldMode;
   }
+
+  private class Stream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      int8((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      Encoder.this.write(b, off, len);
+      written();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      Encoder.this.flush();
+    }
+  }
 }
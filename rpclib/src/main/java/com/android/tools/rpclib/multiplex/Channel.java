@@ -58,14 +58,21 @@ public class Channel implements Closeable {
     }
   }
 
-  void receive(byte[] data) throws IOException {
-    mPipeInputStream.getSource().write(data);
+  /**
+   * Reads <var>count</var> bytes of received data from <var>in</var> into the channel, which buffers it until it is
+   * read. Once {@link PipeInputStream#DEFAULT_CAPACITY} bytes are buffered, this waits for the reader to catch up.
+   */
+  void receive(InputStream in, int count) throws IOException {
+    mPipeInputStream.readFrom(in, count);
   }
 
+  /**
+   * Closes the channel after the other end closed it. The data received before can still be read.
+   */
   synchronized void closeNoEvent() throws IOException {
     if (!mIsClosed) {
       mIsClosed = true;
-      mInputStream.close();
+      mPipeInputStream.getSource().close();
       mOutputStream.close();
     }
   }
@@ -32,6 +32,8 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class Multiplexer {
   @NotNull private static final Logger LOG = Logger.getInstance(Multiplexer.class);
+  /** The largest size of a message header: its type, channel id and data size. */
+  private static final int MAX_HEADER_SIZE = 11;
   private final Decoder mDecoder;
   private final Encoder mEncoder;
   private final NewChannelListener mNewChannelListener;
@@ -44,7 +46,8 @@ public class Multiplexer {
                      @NotNull ExecutorService executorService,
                      @Nullable NewChannelListener newChannelListener) {
     mDecoder = new Decoder(in);
-    mEncoder = new Encoder(out);
+    // Buffer whole messages, so that each is written with a single call.
+    mEncoder = new Encoder(out, mtu + MAX_HEADER_SIZE);
     mNewChannelListener = newChannelListener;
     mChannelEventHandler = new ChannelEventHandler();
     mSender = new Sender(mtu, executorService);
@@ -126,6 +129,8 @@ public class Multiplexer {
   }
 
   private class Receiver extends Thread {
+    private final byte[] mDiscardBuffer = new byte[4096];
+
     Receiver() {
       super("rpclib.multiplex Receiver");
     }
@@ -154,18 +159,20 @@ public class Multiplexer {
             }
             case Message.DATA: {
               int count = mDecoder.uint32();
-              byte[] buf = new byte[count];
-              for (int offset = 0; offset < count;) {
-                offset += mDecoder.stream().read(buf, offset, count-offset);
-              }
               Channel channel = getChannel(id);
               if (channel != null) {
-                channel.receive(buf);
+                // Read straight into the channel. A channel only buffers so much: past that, this waits for its
+                // reader, which holds up the other channels but stops reading the connection, so that the sender
+                // is pushed back on instead of the data piling up in memory.
+                channel.receive(mDecoder.stream(), count);
               }
               else {
                 // Likely this channel was closed this side, and we're receiving data
                 // that should be dropped on the floor.
                 LOG.info("Received data on unknown channel " + id);
+                for (int offset = 0; offset < count; offset += mDiscardBuffer.length) {
+                  mDecoder.read(mDiscardBuffer, Math.min(count - offset, mDiscardBuffer.length));
+                }
               }
               break;
             }
@@ -15,33 +15,74 @@
  */
 package com.android.tools.rpclib.multiplex;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * An object that provides an {@link java.io.InputStream} interface to read data that has been written to a
  * {@link java.io.OutputStream}.
  * <p/>
- * Buffers passed to {@link java.io.OutputStream#write} on the {@link #mSource} stream are <b>not</b> internally copied,
- * and are assumed immutable. Mutation of any buffers passed to the {@link java.io.OutputStream#write} after the method
- * has returned will result in undefined behaviour when calling the {@link #read} methods.
+ * The data is copied into a chain of segments, shared by a single writer thread and a single reader thread without
+ * locks: each side only publishes its own position. The segments start small and double in size up to
+ * {@link #MAX_SEGMENT_SIZE}, and the reader hands the last one it consumed back to the writer for reuse, so that a
+ * steady stream of data doesn't allocate. When the reader is more than the capacity of the stream behind, writes to
+ * {@link #getSource()} and {@link #readFrom(InputStream, int)} block until it catches up, which pushes back on whoever
+ * produces the data. When there is no data, the reader blocks until more is written.
  * <p/>
  * Note: This is similar to {@link java.io.PipedInputStream} and {@link java.io.PipedOutputStream}, except this
- * implementation does not use an internal ring buffer, and and does not suffer from 1 second stalls (JDK-4404700).
+ * implementation does not lock, and does not suffer from 1 second stalls (JDK-4404700).
  */
 public class PipeInputStream extends InputStream {
-  private static final Item ITEM_CLOSE = new Item(null, 0, 0);
+  /** The default number of buffered bytes above which writes block. */
+  public static final int DEFAULT_CAPACITY = 256 * 1024;
+  /** The size of the first segment. */
+  static final int MIN_SEGMENT_SIZE = 1024;
+  /** The size segments grow to. */
+  static final int MAX_SEGMENT_SIZE = 64 * 1024;
+
   private final OutputStream mSource;
-  private final LinkedList<Item> mQueue;
-  private final Semaphore mSemaphore;
+  private final int mCapacity;
   private final byte[] mByte;
 
+  /** The segment being read, only accessed by the reader. */
+  private Segment mReadSegment;
+  /** The segment being written, only accessed by the writer. */
+  private Segment mWriteSegment;
+  /** The last segment consumed by the reader, for the writer to reuse. */
+  private final AtomicReference<Segment> mSpareSegment = new AtomicReference<Segment>();
+  /** Where the writer writes the data once the stream is closed. */
+  private byte[] mDiscardBuffer;
+
+  /** The total number of bytes written, only advanced by the writer. */
+  private final AtomicLong mWritePosition = new AtomicLong();
+  /** The total number of bytes read, only advanced by the reader. */
+  private final AtomicLong mReadPosition = new AtomicLong();
+
+  /** Set once the writer has closed the source: the reader reaches the end of the stream once the data is read. */
+  private volatile boolean mSourceClosed;
+  /** Set once the reader has closed the stream: the buffered and future data are dropped. */
+  private volatile boolean mClosed;
+
+  /** The reader and writer threads waiting on the other side, if any. */
+  private volatile Thread mWaitingReader;
+  private volatile Thread mWaitingWriter;
+
   PipeInputStream() {
-    mQueue = new LinkedList<Item>();
-    mSemaphore = new Semaphore(0);
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity the number of buffered bytes above which writes block.
+   */
+  PipeInputStream(int capacity) {
+    mCapacity = Math.max(capacity, 1);
+    mReadSegment = mWriteSegment = new Segment(Math.min(mCapacity, MIN_SEGMENT_SIZE));
     mByte = new byte[1];
     mSource = new Writer();
   }
@@ -52,65 +93,186 @@ public class PipeInputStream extends InputStream {
 
   @Override
   public int read() throws IOException {
-    return (read(mByte, 0, 1) > 0) ? mByte[0] : -1;
+    return (read(mByte, 0, 1) > 0) ? (mByte[0] & 0xff) : -1;
   }
 
   @Override
   public int read(byte b[], int off, int len) throws IOException {
-    int n = 0;
-    boolean closed = false;
-    while (!closed && len > n) {
-      try {
-        mSemaphore.acquire();
-        synchronized (mQueue) {
-          Item item = mQueue.getFirst();
-          if (item != ITEM_CLOSE) {
-            n += item.read(b, off + n, len - n);
-            if (item.remaining() == 0) {
-              mQueue.removeFirst();
-            }
-            else {
-              mSemaphore.release();
-            }
-          }
-          else {
-            closed = true;
-          }
+    if (len == 0) {
+      return 0;
+    }
+    long readPosition = mReadPosition.get();
+    int available = awaitData(readPosition);
+    if (available < 0) {
+      return -1;
+    }
+
+    // Read what's available in the current segment, moving to the next one once it is consumed.
+    Segment segment = mReadSegment;
+    int start = (int)(readPosition - segment.mStart);
+    if (start == segment.mData.length) {
+      Segment next = segment.mNext;
+      mSpareSegment.set(segment);
+      mReadSegment = segment = next;
+      start = 0;
+    }
+    int n = Math.min(Math.min(available, len), segment.mData.length - start);
+    System.arraycopy(segment.mData, start, b, off, n);
+    mReadPosition.set(readPosition + n);
+    LockSupport.unpark(mWaitingWriter);
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return mClosed ? 0 : (int)Math.min(mWritePosition.get() - mReadPosition.get(), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Closes the reading side: the buffered data is dropped, and so is any data written afterwards. A read blocked in
+   * another thread returns the end of the stream.
+   */
+  @Override
+  public void close() throws IOException {
+    mClosed = true;
+    LockSupport.unpark(mWaitingWriter);
+    LockSupport.unpark(mWaitingReader);
+  }
+
+  /**
+   * Reads exactly <var>count</var> bytes from <var>in</var> directly into the stream, as the writer. Like writes to
+   * {@link #getSource()}, this waits for the reader while the stream is full, so <var>in</var> is only read as fast as
+   * the data is consumed. The data is dropped if the stream is closed.
+   */
+  void readFrom(InputStream in, int count) throws IOException {
+    while (count > 0) {
+      int n;
+      if (mClosed) {
+        if (mDiscardBuffer == null) {
+          mDiscardBuffer = new byte[MIN_SEGMENT_SIZE];
+        }
+        n = in.read(mDiscardBuffer, 0, Math.min(count, mDiscardBuffer.length));
+        if (n < 0) {
+          throw new EOFException();
         }
       }
-      catch (InterruptedException e) {
-        break;
+      else {
+        long writePosition = mWritePosition.get();
+        int free = awaitSpace(writePosition);
+        if (free == 0) {
+          // Closed while waiting: discard the rest.
+          continue;
+        }
+        Segment segment = getWriteSegment(writePosition);
+        int start = (int)(writePosition - segment.mStart);
+        n = in.read(segment.mData, start, Math.min(Math.min(free, count), segment.mData.length - start));
+        if (n < 0) {
+          throw new EOFException();
+        }
+        publish(writePosition + n);
       }
+      count -= n;
     }
-    if (n == 0 && closed) {
-      return -1;
+  }
+
+  /**
+   * Returns the segment to write the byte at <var>writePosition</var> in, chaining a new one once the current one is
+   * full.
+   */
+  private Segment getWriteSegment(long writePosition) {
+    Segment segment = mWriteSegment;
+    if (writePosition - segment.mStart < segment.mData.length) {
+      return segment;
     }
-    return n;
+    int size = Math.min(segment.mData.length * 2, Math.min(mCapacity, MAX_SEGMENT_SIZE));
+    Segment next = mSpareSegment.getAndSet(null);
+    if (next == null || next.mData.length < size) {
+      next = new Segment(size);
+    }
+    next.mStart = writePosition;
+    next.mNext = null;
+    // Published to the reader along with the data written to the new segment.
+    segment.mNext = next;
+    mWriteSegment = next;
+    return next;
   }
 
-  private static class Item {
-    private final byte[] mData;
-    private final int mCount;
-    private int mOffset;
+  /**
+   * Waits until there is data to read.
+   *
+   * @return the number of bytes available, or -1 at the end of the stream.
+   */
+  private int awaitData(long readPosition) throws IOException {
+    while (true) {
+      if (mClosed) {
+        return -1;
+      }
+      int available = (int)Math.min(mWritePosition.get() - readPosition, Integer.MAX_VALUE);
+      if (available > 0) {
+        return available;
+      }
+      if (mSourceClosed) {
+        // Check again, as data may have been written just before the source was closed.
+        available = (int)Math.min(mWritePosition.get() - readPosition, Integer.MAX_VALUE);
+        return available > 0 ? available : -1;
+      }
 
-    public Item(byte[] data, int offset, int count) {
-      mData = data;
-      mCount = count;
-      mOffset = offset;
+      // Register before checking again, so that the writer either sees the registration, or wrote before the check.
+      mWaitingReader = Thread.currentThread();
+      if (mWritePosition.get() == readPosition && !mSourceClosed && !mClosed) {
+        LockSupport.park(this);
+      }
+      mWaitingReader = null;
+      if (Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
     }
+  }
+
+  /**
+   * Waits until fewer than the capacity bytes are buffered, or the stream is closed.
+   *
+   * @return the number of bytes that can be written, or 0 if the stream is closed.
+   */
+  private int awaitSpace(long writePosition) throws IOException {
+    while (true) {
+      if (mClosed) {
+        return 0;
+      }
+      long free = mCapacity - (writePosition - mReadPosition.get());
+      if (free > 0) {
+        return (int)free;
+      }
 
-    public int read(byte[] out, int offset, int count) {
-      int remaining = remaining();
-      if (count > remaining) {
-        count = remaining;
+      mWaitingWriter = Thread.currentThread();
+      if (writePosition - mReadPosition.get() >= mCapacity && !mClosed) {
+        LockSupport.park(this);
+      }
+      mWaitingWriter = null;
+      if (Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
       }
-      System.arraycopy(mData, mOffset, out, offset, count);
-      mOffset += count;
-      return count;
     }
+  }
+
+  private void publish(long writePosition) {
+    mWritePosition.set(writePosition);
+    LockSupport.unpark(mWaitingReader);
+  }
 
-    public int remaining() {
-      return mCount - mOffset;
+  /**
+   * A part of the buffered data. Its fields are set by the writer before it publishes any data in the segment.
+   */
+  private static final class Segment {
+    final byte[] mData;
+    /** The position in the stream of the first byte of the segment. */
+    long mStart;
+    Segment mNext;
+
+    Segment(int size) {
+      mData = new byte[size];
     }
   }
 
@@ -122,20 +284,30 @@ public class PipeInputStream extends InputStream {
 
     @Override
     public void write(byte b[], int off, int len) throws IOException {
-      if (len > 0) {
-        synchronized (mQueue) {
-          mQueue.addLast(new Item(b, off, len));
+      while (len > 0) {
+        long writePosition = mWritePosition.get();
+        int free = awaitSpace(writePosition);
+        if (free == 0) {
+          // Nobody will read the data.
+          return;
         }
-        mSemaphore.release();
+        Segment segment = getWriteSegment(writePosition);
+        int start = (int)(writePosition - segment.mStart);
+        int n = Math.min(Math.min(free, len), segment.mData.length - start);
+        System.arraycopy(b, off, segment.mData, start, n);
+        publish(writePosition + n);
+        off += n;
+        len -= n;
       }
     }
 
+    /**
+     * Closes the writing side: the reader reaches the end of the stream once it has read the buffered data.
+     */
     @Override
     public void close() throws IOException {
-      synchronized (mQueue) {
-        mQueue.addLast(ITEM_CLOSE);
-        mSemaphore.release();
-      }
+      mSourceClosed = true;
+      LockSupport.unpark(mWaitingReader);
     }
   }
 }
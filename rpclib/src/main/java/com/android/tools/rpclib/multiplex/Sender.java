@@ -90,13 +90,15 @@ class Sender {
     }
 
     /**
-     * Encodes the item to the provided {@link Encoder}, unblocking any calls to {@link #sync}.
+     * Encodes the item to the provided {@link Encoder} and flushes it, unblocking any calls to {@link #sync}.
      *
      * @return true if the item was fully sent, or false if there is more to send.
      */
     final boolean send(Encoder e) {
       try {
-        return encode(e);
+        boolean done = encode(e);
+        e.flush();
+        return done;
       }
       catch (IOException exception) {
         synchronized (this) {
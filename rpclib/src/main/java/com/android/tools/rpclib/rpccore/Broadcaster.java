@@ -22,7 +22,6 @@ import com.android.tools.rpclib.multiplex.Channel;
 import com.android.tools.rpclib.multiplex.Multiplexer;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -54,8 +53,7 @@ public class Broadcaster {
     Channel channel = mMultiplexer.openChannel();
 
     try {
-      BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), mMtu);
-      Encoder e = new Encoder(out);
+      Encoder e = new Encoder(channel.getOutputStream(), mMtu);
       Decoder d = new Decoder(channel.getInputStream());
 
       // Write the RPC header
@@ -65,7 +63,7 @@ public class Broadcaster {
       e.object(call);
 
       // Flush the buffer
-      out.flush();
+      e.flush();
 
       // Wait for and read the response
       BinaryObject res = d.object();
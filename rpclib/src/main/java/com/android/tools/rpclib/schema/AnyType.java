@@ -31,18 +31,10 @@ public final class AnyType extends Type {
     public AnyType(Decoder d) {
     }
 
+    @NotNull
     @Override
-    public void encodeValue(@NotNull Encoder e, Object value) throws IOException {
-        e.variant(Box.wrap(value));
-    }
-
-    @Override
-    public Object decodeValue(@NotNull Decoder d) throws IOException {
-        Box boxed = (Box) d.variant();
-        if (boxed == null) {
-            return null;
-        }
-        return boxed.unwrap();
+    Codec compile() {
+        return ANY;
     }
 
     @Override
@@ -59,4 +51,20 @@ public final class AnyType extends Type {
     public void signature(StringBuilder out) {
         out.append('~');
     }
+
+    private static final Codec ANY = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            Box.encode(e, value);
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            Box boxed = (Box) d.variant();
+            if (boxed == null) {
+                return null;
+            }
+            return boxed.unwrap();
+        }
+    };
 }
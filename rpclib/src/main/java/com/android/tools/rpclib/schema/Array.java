@@ -53,22 +53,30 @@ public final class Array extends Type {
         return mSize;
     }
 
+    @NotNull
     @Override
-    public void encodeValue(@NotNull Encoder e, Object value) throws IOException {
-        assert (value instanceof Object[]);
-        Object[] array = (Object[]) value;
-        for (int i = 0; i < mSize; i++) {
-            mValueType.encodeValue(e, array[i]);
-        }
-    }
-
-    @Override
-    public Object decodeValue(@NotNull Decoder d) throws IOException {
-        Object[] array = new Object[mSize];
-        for (int i = 0; i < mSize; i++) {
-            array[i] = mValueType.decodeValue(d);
-        }
-        return array;
+    Codec compile() {
+        final int size = mSize;
+        final Codec valueCodec = mValueType.codec();
+        return new Codec() {
+            @Override
+            void encode(@NotNull Encoder e, Object value) throws IOException {
+                assert (value instanceof Object[]);
+                Object[] array = (Object[]) value;
+                for (int i = 0; i < size; i++) {
+                    valueCodec.encode(e, array[i]);
+                }
+            }
+
+            @Override
+            Object decode(@NotNull Decoder d) throws IOException {
+                Object[] array = new Object[size];
+                for (int i = 0; i < size; i++) {
+                    array[i] = valueCodec.decode(d);
+                }
+                return array;
+            }
+        };
     }
 
     @Override
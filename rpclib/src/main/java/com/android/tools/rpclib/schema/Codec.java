@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.schema;
+
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes the values of a {@link Type}.
+ * <p/>
+ * A codec is built once per type by {@link Type#compile()}, which picks a codec specialized for the kind of the type,
+ * and for its element types. Encoding or decoding a value then goes straight to the matching {@link Encoder} or
+ * {@link Decoder} methods, instead of switching on the kind of the type, and looking up classes, for every value.
+ */
+abstract class Codec {
+    /** The codec of the types holding references to objects, which may be null. */
+    static final Codec OBJECT = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            assert (value == null || value instanceof BinaryObject);
+            e.object((BinaryObject)value);
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.object();
+        }
+    };
+
+    abstract void encode(@NotNull Encoder e, Object value) throws IOException;
+
+    abstract Object decode(@NotNull Decoder d) throws IOException;
+}
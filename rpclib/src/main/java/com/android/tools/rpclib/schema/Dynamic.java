@@ -95,6 +95,8 @@ public class Dynamic implements BinaryObject {
 
         private Entity mType;
 
+        private volatile Codec[] mCodecs;
+
         Klass(Entity type) {
             mType = type;
         }
@@ -111,24 +113,40 @@ public class Dynamic implements BinaryObject {
             return new Dynamic(this);
         }
 
+        /**
+         * @return the codecs of the fields, compiled on first use.
+         */
+        @NotNull
+        private Codec[] codecs() {
+            Codec[] codecs = mCodecs;
+            if (codecs == null) {
+                Field[] fields = mType.getFields();
+                codecs = new Codec[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    codecs[i] = fields[i].getType().codec();
+                }
+                mCodecs = codecs;
+            }
+            return codecs;
+        }
+
         @Override
         public void encode(@NotNull Encoder e, BinaryObject obj) throws IOException {
             Dynamic o = (Dynamic) obj;
             assert (o.mKlass == this);
-            for (int i = 0; i < mType.getFields().length; i++) {
-                Field field = mType.getFields()[i];
-                Object value = o.mFields[i];
-                field.getType().encodeValue(e, value);
+            Codec[] codecs = codecs();
+            for (int i = 0; i < codecs.length; i++) {
+                codecs[i].encode(e, o.mFields[i]);
             }
         }
 
         @Override
         public void decode(@NotNull Decoder d, BinaryObject obj) throws IOException {
             Dynamic o = (Dynamic) obj;
-            o.mFields = new Object[mType.getFields().length];
-            for (int i = 0; i < mType.getFields().length; i++) {
-                Field field = mType.getFields()[i];
-                o.mFields[i] = field.getType().decodeValue(d);
+            Codec[] codecs = codecs();
+            o.mFields = new Object[codecs.length];
+            for (int i = 0; i < codecs.length; i++) {
+                o.mFields[i] = codecs[i].decode(d);
             }
         }
 
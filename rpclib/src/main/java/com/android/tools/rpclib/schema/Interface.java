@@ -15,7 +15,6 @@
  */
 package com.android.tools.rpclib.schema;
 
-import com.android.tools.rpclib.binary.BinaryObject;
 import com.android.tools.rpclib.binary.Decoder;
 import com.android.tools.rpclib.binary.Encoder;
 
@@ -34,15 +33,10 @@ public final class Interface extends Type {
         this.name = d.nonCompactString();
     }
 
+    @NotNull
     @Override
-    public void encodeValue(@NotNull Encoder e, Object value) throws IOException {
-        assert (value instanceof BinaryObject);
-        e.object((BinaryObject) value);
-    }
-
-    @Override
-    public Object decodeValue(@NotNull Decoder d) throws IOException {
-        return d.object();
+    Codec compile() {
+        return Codec.OBJECT;
     }
 
     @Override
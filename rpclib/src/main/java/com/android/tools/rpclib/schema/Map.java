@@ -49,25 +49,33 @@ public final class Map extends Type {
         return mKeyType;
     }
 
+    @NotNull
     @Override
-    public void encodeValue(@NotNull Encoder e, Object value) throws IOException {
-        assert (value instanceof java.util.Map);
-        java.util.Map<?, ?> map = (java.util.Map<?, ?>) value;
-        e.uint32(map.size());
-        for (java.util.Map.Entry<?, ?> entry : map.entrySet()) {
-            mKeyType.encodeValue(e, entry.getKey());
-            mValueType.encodeValue(e, entry.getValue());
-        }
-    }
+    Codec compile() {
+        final Codec keyCodec = mKeyType.codec();
+        final Codec valueCodec = mValueType.codec();
+        return new Codec() {
+            @Override
+            void encode(@NotNull Encoder e, Object value) throws IOException {
+                assert (value instanceof java.util.Map);
+                java.util.Map<?, ?> map = (java.util.Map<?, ?>) value;
+                e.uint32(map.size());
+                for (java.util.Map.Entry<?, ?> entry : map.entrySet()) {
+                    keyCodec.encode(e, entry.getKey());
+                    valueCodec.encode(e, entry.getValue());
+                }
+            }
 
-    @Override
-    public Object decodeValue(@NotNull Decoder d) throws IOException {
-        int size = d.uint32();
-        LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
-        for (int i = 0; i < size; i++) {
-            map.put(mKeyType.decodeValue(d), mValueType.decodeValue(d));
-        }
-        return map;
+            @Override
+            Object decode(@NotNull Decoder d) throws IOException {
+                int size = d.uint32();
+                LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
+                for (int i = 0; i < size; i++) {
+                    map.put(keyCodec.decode(d), valueCodec.decode(d));
+                }
+                return map;
+            }
+        };
     }
 
     public Type getValueType() {
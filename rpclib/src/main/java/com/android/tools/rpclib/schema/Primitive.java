@@ -47,79 +47,36 @@ public final class Primitive extends Type {
         return mMethod;
     }
 
+    @NotNull
     @Override
-    public void encodeValue(@NotNull Encoder e, Object value) throws IOException {
+    Codec compile() {
         switch (mMethod.getValue()) {
             case Method.BoolValue:
-                e.bool((Boolean) value);
-                break;
+                return BOOL;
             case Method.Int8Value:
-                e.int8(((Number)value).byteValue());
-                break;
+                return INT8;
             case Method.Uint8Value:
-                e.uint8(((Number)value).shortValue());
-                break;
+                return UINT8;
             case Method.Int16Value:
-                e.int16(((Number)value).shortValue());
-                break;
+                return INT16;
             case Method.Uint16Value:
-                e.uint16(((Number)value).intValue());
-                break;
+                return UINT16;
             case Method.Int32Value:
-                e.int32(((Number)value).intValue());
-                break;
+                return INT32;
             case Method.Uint32Value:
-                e.uint32(((Number)value).longValue());
-                break;
+                return UINT32;
             case Method.Int64Value:
-                e.int64(((Number)value).longValue());
-                break;
+                return INT64;
             case Method.Uint64Value:
-                e.uint64(((Number)value).longValue());
-                break;
+                return UINT64;
             case Method.Float32Value:
-                e.float32(((Number)value).floatValue());
-                break;
+                return FLOAT32;
             case Method.Float64Value:
-                e.float64(((Number)value).doubleValue());
-                break;
+                return FLOAT64;
             case Method.StringValue:
-                e.string((value == null) ? null : value.toString());
-                break;
+                return STRING;
             default:
-                throw new IOException("Invalid primitive method in encode");
-        }
-    }
-
-    @Override
-    public Object decodeValue(@NotNull Decoder d) throws IOException {
-        switch (mMethod.getValue()) {
-            case Method.BoolValue:
-                return d.bool();
-            case Method.Int8Value:
-                return d.int8();
-            case Method.Uint8Value:
-                return d.uint8();
-            case Method.Int16Value:
-                return d.int16();
-            case Method.Uint16Value:
-                return d.uint16();
-            case Method.Int32Value:
-                return d.int32();
-            case Method.Uint32Value:
-                return d.uint32();
-            case Method.Int64Value:
-                return d.int64();
-            case Method.Uint64Value:
-                return d.uint64();
-            case Method.Float32Value:
-                return d.float32();
-            case Method.Float64Value:
-                return d.float64();
-            case Method.StringValue:
-                return d.string();
-            default:
-                throw new IOException("Invalid primitive method in decode");
+                return INVALID;
         }
     }
 
@@ -149,4 +106,160 @@ public final class Primitive extends Type {
         }
         return ((Primitive)(ty)).mMethod.equals(method);
     }
+
+    private static final Codec BOOL = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.bool((Boolean)value);
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.bool();
+        }
+    };
+
+    private static final Codec INT8 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.int8(((Number)value).byteValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.int8();
+        }
+    };
+
+    private static final Codec UINT8 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.uint8(((Number)value).shortValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.uint8();
+        }
+    };
+
+    private static final Codec INT16 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.int16(((Number)value).shortValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.int16();
+        }
+    };
+
+    private static final Codec UINT16 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.uint16(((Number)value).intValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.uint16();
+        }
+    };
+
+    private static final Codec INT32 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.int32(((Number)value).intValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.int32();
+        }
+    };
+
+    private static final Codec UINT32 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.uint32(((Number)value).longValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.uint32();
+        }
+    };
+
+    private static final Codec INT64 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.int64(((Number)value).longValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.int64();
+        }
+    };
+
+    private static final Codec UINT64 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.uint64(((Number)value).longValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.uint64();
+        }
+    };
+
+    private static final Codec FLOAT32 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.float32(((Number)value).floatValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.float32();
+        }
+    };
+
+    private static final Codec FLOAT64 = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.float64(((Number)value).doubleValue());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.float64();
+        }
+    };
+
+    private static final Codec STRING = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            e.string((value == null) ? null : value.toString());
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            return d.string();
+        }
+    };
+
+    private static final Codec INVALID = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            throw new IOException("Invalid primitive method in encode");
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            throw new IOException("Invalid primitive method in decode");
+        }
+    };
 }
@@ -45,36 +45,33 @@ public final class Slice extends Type {
         return mValueType;
     }
 
+    @NotNull
     @Override
-    public void encodeValue(@NotNull Encoder e, Object value) throws IOException {
+    Codec compile() {
         if (Primitive.isMethod(mValueType, Method.Uint8)) {
-            assert (value instanceof byte[]);
-            byte[] array = (byte[])value;
-            e.uint32(array.length);
-            e.write(array, array.length);
-        } else {
-            assert (value instanceof Object[]);
-            Object[] array = (Object[])value;
-            e.uint32(array.length);
-            for (Object v : array) {
-                mValueType.encodeValue(e, v);
-            }
+            return BYTES;
         }
-    }
+        final Codec valueCodec = mValueType.codec();
+        return new Codec() {
+            @Override
+            void encode(@NotNull Encoder e, Object value) throws IOException {
+                assert (value instanceof Object[]);
+                Object[] array = (Object[])value;
+                e.uint32(array.length);
+                for (Object v : array) {
+                    valueCodec.encode(e, v);
+                }
+            }
 
-    @Override
-    public Object decodeValue(@NotNull Decoder d) throws IOException {
-        if (Primitive.isMethod(mValueType, Method.Uint8)) {
-            byte[] array = new byte[d.uint32()];
-            d.read(array, array.length);
-            return array;
-        } else {
-            Object[] array = new Object[d.uint32()];
-            for (int i = 0; i < array.length; i++) {
-                array[i] = mValueType.decodeValue(d);
+            @Override
+            Object decode(@NotNull Decoder d) throws IOException {
+                Object[] array = new Object[d.uint32()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = valueCodec.decode(d);
+                }
+                return array;
             }
-            return array;
-        }
+        };
     }
 
     @Override
@@ -96,4 +93,22 @@ public final class Slice extends Type {
         out.append("[]");
         mValueType.signature(out);
     }
+
+    /** The codec of byte slices, which are copied in bulk. */
+    private static final Codec BYTES = new Codec() {
+        @Override
+        void encode(@NotNull Encoder e, Object value) throws IOException {
+            assert (value instanceof byte[]);
+            byte[] array = (byte[])value;
+            e.uint32(array.length);
+            e.write(array, array.length);
+        }
+
+        @Override
+        Object decode(@NotNull Decoder d) throws IOException {
+            byte[] array = new byte[d.uint32()];
+            d.read(array, array.length);
+            return array;
+        }
+    };
 }
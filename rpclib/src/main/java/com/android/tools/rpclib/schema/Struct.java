@@ -37,21 +37,34 @@ public final class Struct extends Type {
         return mEntity;
     }
 
+    @NotNull
     @Override
-    public void encodeValue(@NotNull Encoder e, Object value) throws IOException {
-        assert (value instanceof BinaryObject);
-        e.value((BinaryObject) value);
-    }
+    Codec compile() {
+        return new Codec() {
+            /** The class of the struct, looked up once it's registered. */
+            private BinaryClass mKlass;
 
-    @Override
-    public Object decodeValue(@NotNull Decoder d) throws IOException {
-        BinaryClass klass = Namespace.lookup(mEntity);
-        if (klass == null) {
-            throw new IOException("Unknown type: " + mEntity);
-        }
-        BinaryObject obj = klass.create();
-        klass.decode(d, obj);
-        return obj;
+            @Override
+            void encode(@NotNull Encoder e, Object value) throws IOException {
+                assert (value instanceof BinaryObject);
+                e.value((BinaryObject) value);
+            }
+
+            @Override
+            Object decode(@NotNull Decoder d) throws IOException {
+                BinaryClass klass = mKlass;
+                if (klass == null) {
+                    klass = Namespace.lookup(mEntity);
+                    if (klass == null) {
+                        throw new IOException("Unknown type: " + mEntity);
+                    }
+                    mKlass = klass;
+                }
+                BinaryObject obj = klass.create();
+                klass.decode(d, obj);
+                return obj;
+            }
+        };
     }
 
     @Override
@@ -26,6 +26,7 @@ import java.io.IOException;
 
 public abstract class Type {
     private String mName = null;
+    private Codec mCodec = null;
 
     @NotNull
     public final String getName() {
@@ -37,9 +38,33 @@ public abstract class Type {
         return mName;
     }
 
-    public abstract void encodeValue(@NotNull Encoder e, Object value) throws IOException;
+    public final void encodeValue(@NotNull Encoder e, Object value) throws IOException {
+        codec().encode(e, value);
+    }
+
+    public final Object decodeValue(@NotNull Decoder d) throws IOException {
+        return codec().decode(d);
+    }
+
+    /**
+     * @return the codec of the values of this type, compiled on first use.
+     */
+    @NotNull
+    final Codec codec() {
+        // Compiling twice when racing is harmless, as the codecs are equivalent.
+        Codec codec = mCodec;
+        if (codec == null) {
+            codec = compile();
+            mCodec = codec;
+        }
+        return codec;
+    }
 
-    public abstract Object decodeValue(@NotNull Decoder d) throws IOException;
+    /**
+     * Builds the codec of the values of this type.
+     */
+    @NotNull
+    abstract Codec compile();
 
     public abstract void encode(@NotNull Encoder e) throws IOException;
 
@@ -16,6 +16,7 @@
 package com.android.tools.rpclib.binary;
 
 import junit.framework.TestCase;
+import org.junit.Assert;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.ByteArrayInputStream;
@@ -229,4 +230,54 @@ public class DecoderTest extends TestCase {
       }
     }
   }
+
+  public void testDecodeAcrossBuffer() throws IOException {
+    final long[] values = new long[]{0, 0x7f, 0x80, 0x3fff, 0x4000, 0x01234567, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+    final String text = "Hello こんにちは世界";
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    for (int i = 0; i < 10; i++) {
+      for (long value : values) {
+        e.int64(value);
+        e.uint64(value);
+      }
+      e.string(text);
+    }
+    e.string(text + text + text);
+
+    // The smallest buffer splits values across reads.
+    Decoder d = new Decoder(new ByteArrayInputStream(output.toByteArray()), 0);
+    for (int i = 0; i < 10; i++) {
+      for (long value : values) {
+        assertEquals(value, d.int64());
+        assertEquals(value, d.uint64());
+      }
+      assertEquals(text, d.string());
+    }
+    assertEquals(text + text + text, d.string());
+  }
+
+  public void testStream() throws IOException {
+    final byte[] data = new byte[10000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)i;
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    e.string("header");
+    e.write(data, data.length);
+    e.uint32(42);
+
+    // The raw data can be read through the stream, after the data read ahead by the decoder.
+    Decoder d = new Decoder(new ByteArrayInputStream(output.toByteArray()), 64);
+    assertEquals("header", d.string());
+    byte[] received = new byte[data.length];
+    for (int offset = 0; offset < received.length; ) {
+      offset += d.stream().read(received, offset, Math.min(received.length - offset, 1000));
+    }
+    Assert.assertArrayEquals(data, received);
+    assertEquals(42, d.uint32());
+    assertEquals(-1, d.stream().read());
+  }
 }
@@ -20,6 +20,7 @@ import org.junit.Assert;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class EncoderTest extends TestCase {
   public void testEncodeBool() throws IOException {
@@ -255,4 +256,42 @@ public class EncoderTest extends TestCase {
     }
     Assert.assertArrayEquals(expected, output.toByteArray());
   }
+
+  public void testEncodeUnpairedSurrogates() throws IOException {
+    final String[] input = new String[]{"\ud83d\ude00", "a\ud83db", "\ude00", "\u00e9\u0800\uffff"};
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (String str : input) {
+      e.string(str);
+      byte[] bytes = str.getBytes("UTF-8");
+      expected.write(bytes.length);
+      expected.write(bytes);
+    }
+    Assert.assertArrayEquals(expected.toByteArray(), output.toByteArray());
+  }
+
+  public void testBufferedEncoder() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output, 64);
+
+    e.uint32(0x01234567);
+    e.string("Hello");
+    assertEquals(0, output.size());
+
+    // Data larger than the buffer is written straight after the buffered values.
+    byte[] data = new byte[100];
+    data[0] = 1;
+    e.write(data, data.length);
+    assertEquals(110, output.size());
+    e.int8((byte)2);
+    e.flush();
+
+    byte[] bytes = output.toByteArray();
+    assertEquals(111, bytes.length);
+    Assert.assertArrayEquals(new byte[]{(byte)0xe1, 0x23, 0x45, 0x67, 0x05, 'H', 'e', 'l', 'l', 'o', 1},
+                             Arrays.copyOf(bytes, 11));
+    assertEquals(2, bytes[110]);
+  }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PipeInputStreamTest extends TestCase {
+  public void testWrapAround() throws IOException {
+    PipeInputStream in = new PipeInputStream(16);
+    OutputStream out = in.getSource();
+    byte[] buf = new byte[16];
+    for (int i = 0; i < 10; i++) {
+      out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}, 0, 11);
+      assertEquals(11, in.available());
+      Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, read(in, 6));
+      Assert.assertArrayEquals(new byte[]{7, 8, 9, 10, 11}, read(in, 5));
+    }
+    assertEquals(0, in.read(buf, 0, 0));
+  }
+
+  public void testReadFrom() throws IOException {
+    PipeInputStream in = new PipeInputStream(16);
+    ByteArrayInputStream source = new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+    in.readFrom(source, 10);
+    Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, read(in, 10));
+    // Continues in a new segment.
+    in.readFrom(source, 2);
+    assertEquals(11, in.read());
+    assertEquals(12, in.read());
+  }
+
+  public void testBackpressure() throws Exception {
+    final PipeInputStream in = new PipeInputStream(1024);
+    final byte[] data = new byte[1024 * 1024];
+    new Random(0).nextBytes(data);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch written = new CountDownLatch(1);
+
+    // The writer blocks until the reader makes room for the rest of the data.
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          OutputStream out = in.getSource();
+          for (int offset = 0; offset < data.length; offset += 3000) {
+            out.write(data, offset, Math.min(3000, data.length - offset));
+          }
+          out.close();
+        }
+        catch (Throwable t) {
+          failure.set(t);
+        }
+        written.countDown();
+      }
+    };
+    writer.start();
+
+    assertFalse(written.await(100, TimeUnit.MILLISECONDS));
+    assertEquals(1024, in.available());
+
+    byte[] received = new byte[data.length];
+    int offset = 0;
+    byte[] buf = new byte[777];
+    for (int n = in.read(buf, 0, buf.length); n >= 0; n = in.read(buf, 0, buf.length)) {
+      System.arraycopy(buf, 0, received, offset, n);
+      offset += n;
+    }
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    assertNull(failure.get());
+    assertEquals(data.length, offset);
+    Assert.assertArrayEquals(data, received);
+  }
+
+  public void testReadFromBeyondCapacity() throws Exception {
+    // Like writes, reading into the stream waits for the reader to catch up.
+    final PipeInputStream in = new PipeInputStream(1024);
+    final byte[] data = new byte[1024 * 1024];
+    new Random(0).nextBytes(data);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch written = new CountDownLatch(1);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          in.readFrom(new ByteArrayInputStream(data), data.length);
+        }
+        catch (Throwable t) {
+          failure.set(t);
+        }
+        written.countDown();
+      }
+    };
+    writer.start();
+
+    assertFalse(written.await(100, TimeUnit.MILLISECONDS));
+    assertEquals(1024, in.available());
+    Assert.assertArrayEquals(data, read(in, data.length));
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    assertNull(failure.get());
+    assertEquals(0, in.available());
+  }
+
+  public void testCloseWhileReadingFrom() throws Exception {
+    final PipeInputStream in = new PipeInputStream(16);
+    final ByteArrayInputStream source = new ByteArrayInputStream(new byte[100]);
+    final CountDownLatch written = new CountDownLatch(1);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          in.readFrom(source, 100);
+        }
+        catch (IOException ignored) {}
+        written.countDown();
+      }
+    };
+    writer.start();
+    assertFalse(written.await(100, TimeUnit.MILLISECONDS));
+
+    // Closing the stream releases the writer, which still consumes the rest of the source.
+    in.close();
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    assertEquals(0, source.available());
+  }
+
+  public void testCloseSource() throws IOException {
+    PipeInputStream in = new PipeInputStream(16);
+    in.getSource().write(new byte[]{1, 2}, 0, 2);
+    in.getSource().close();
+
+    // The buffered data can still be read.
+    Assert.assertArrayEquals(new byte[]{1, 2}, read(in, 2));
+    assertEquals(-1, in.read());
+  }
+
+  public void testClose() throws Exception {
+    final PipeInputStream in = new PipeInputStream(16);
+    final CountDownLatch written = new CountDownLatch(1);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          in.getSource().write(new byte[100], 0, 100);
+        }
+        catch (IOException ignored) {}
+        written.countDown();
+      }
+    };
+    writer.start();
+    assertFalse(written.await(100, TimeUnit.MILLISECONDS));
+
+    // Closing the stream releases the writer, and drops the data.
+    in.close();
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    assertEquals(-1, in.read());
+  }
+
+  private static byte[] read(PipeInputStream in, int count) throws IOException {
+    byte[] buf = new byte[count];
+    for (int offset = 0; offset < count; ) {
+      int n = in.read(buf, offset, count - offset);
+      assertTrue(n > 0);
+      offset += n;
+    }
+    return buf;
+  }
+}
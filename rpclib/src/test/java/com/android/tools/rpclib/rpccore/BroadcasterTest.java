@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.rpccore;
+
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import com.android.tools.rpclib.binary.TypeA;
+import com.android.tools.rpclib.multiplex.Channel;
+import com.android.tools.rpclib.multiplex.Multiplexer;
+import com.android.tools.rpclib.multiplex.NewChannelListener;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BroadcasterTest extends TestCase {
+  private static final int MTU = 1024;
+
+  private ExecutorService mExecutor;
+  private Socket mClientSocket;
+  private Socket mServerSocket;
+  private final AtomicInteger mChannelCount = new AtomicInteger();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    TypeA.register();
+    ErrUnknownFunction.register();
+    mExecutor = Executors.newCachedThreadPool();
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    try {
+      mClientSocket = new Socket(server.getInetAddress(), server.getLocalPort());
+      mServerSocket = server.accept();
+    }
+    finally {
+      server.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mClientSocket.close();
+    mServerSocket.close();
+    mExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testCalls() throws Exception {
+    startServer();
+    Broadcaster broadcaster = createBroadcaster();
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals("reply to call" + i, ((TypeA)broadcaster.Send(new TypeA().setData("call" + i))).getData());
+    }
+
+    // The server only serves a call per channel.
+    assertEquals(5, mChannelCount.get());
+  }
+
+  public void testErrorReply() throws Exception {
+    startServer();
+    Broadcaster broadcaster = createBroadcaster();
+
+    try {
+      broadcaster.Send(new TypeA().setData("unknown"));
+      fail("Expected the call to fail");
+    }
+    catch (ErrUnknownFunction e) {
+      // expected
+    }
+  }
+
+  private Broadcaster createBroadcaster() throws IOException {
+    return new Broadcaster(mClientSocket.getInputStream(), mClientSocket.getOutputStream(), MTU, mExecutor, 2);
+  }
+
+  /**
+   * Starts a server replying to {@link TypeA} calls, with an {@link ErrUnknownFunction} for the
+   * "unknown" call. It serves a single call per channel.
+   */
+  private void startServer() throws IOException {
+    new Multiplexer(mServerSocket.getInputStream(), mServerSocket.getOutputStream(), MTU, mExecutor,
+                    new NewChannelListener() {
+                      @Override
+                      public void onNewChannel(@NotNull final Channel channel) {
+                        mChannelCount.incrementAndGet();
+                        mExecutor.execute(new Runnable() {
+                          @Override
+                          public void run() {
+                            try {
+                              serve(channel);
+                            }
+                            catch (IOException e) {
+                              // the channel was closed.
+                            }
+                          }
+                        });
+                      }
+                    });
+  }
+
+  private void serve(Channel channel) throws IOException {
+    Decoder d = new Decoder(channel.getInputStream());
+    BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), MTU);
+    Encoder e = new Encoder(out);
+
+    byte[] header = new byte[4];
+    d.read(header, header.length);
+    assertEquals("rpc1", new String(header, "US-ASCII"));
+    TypeA call = (TypeA)d.object();
+    if (call.getData().equals("unknown")) {
+      e.object(new ErrUnknownFunction().setFunction("unknown"));
+    }
+    else {
+      e.object(new TypeA().setData("reply to " + call.getData()));
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.schema;
+
+import com.android.tools.rpclib.any.Box;
+import com.android.tools.rpclib.binary.BinaryClass;
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import com.android.tools.rpclib.binary.TypeA;
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class DynamicTest extends TestCase {
+  private static final Entity POINT = new Entity("test", "DynamicPoint", "", "");
+  private static final Entity SHAPE = new Entity("test", "DynamicShape", "", "");
+
+  static {
+    POINT.setFields(new Field[]{
+      new Field("X", new Primitive("float32", Method.Float32)),
+      new Field("Y", new Primitive("float32", Method.Float32)),
+    });
+    SHAPE.setFields(new Field[]{
+      new Field("Id", new Primitive("int32", Method.Int32)),
+      new Field("Size", new Primitive("uint64", Method.Uint64)),
+      new Field("Visible", new Primitive("bool", Method.Bool)),
+      new Field("Name", new Primitive("string", Method.String)),
+      new Field("Origin", new Struct(POINT)),
+      new Field("Points", new Slice("", new Struct(POINT))),
+      new Field("Data", new Slice("", new Primitive("uint8", Method.Uint8))),
+      new Field("Matrix", new Array("", new Primitive("float64", Method.Float64), 4)),
+      new Field("Tags", new Map("", new Primitive("string", Method.String), new Primitive("int16", Method.Int16))),
+      new Field("Parent", new Pointer(new Struct(SHAPE))),
+      new Field("Value", new AnyType()),
+    });
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    TypeA.register();
+  }
+
+  public void testRoundTrip() throws IOException {
+    BinaryClass point = Dynamic.register(POINT);
+    BinaryClass shape = Dynamic.register(SHAPE);
+
+    // Encode a shape field by field.
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    e.int32(-42);
+    e.uint64(1L << 40);
+    e.bool(true);
+    e.string("triangle");
+    encodePoint(e, 1.5f, -2.5f);
+    e.uint32(3);
+    encodePoint(e, 0, 0);
+    encodePoint(e, 1, 0);
+    encodePoint(e, 0, 1);
+    e.uint32(3);
+    e.write(new byte[]{1, 2, 3}, 3);
+    for (int i = 0; i < 4; i++) {
+      e.float64(i * 0.5);
+    }
+    e.uint32(2);
+    e.string("a");
+    e.int16((short)-1);
+    e.string("b");
+    e.int16((short)300);
+    e.object(null);
+    Box.encode(e, 1234L);
+    byte[] bytes = output.toByteArray();
+
+    Dynamic decoded = (Dynamic)shape.create();
+    shape.decode(new Decoder(new ByteArrayInputStream(bytes)), decoded);
+    assertEquals(-42, decoded.getFieldValue(0));
+    assertEquals(1L << 40, decoded.getFieldValue(1));
+    assertEquals(true, decoded.getFieldValue(2));
+    assertEquals("triangle", decoded.getFieldValue(3));
+    Dynamic origin = (Dynamic)decoded.getFieldValue(4);
+    assertEquals(point, origin.klass());
+    assertEquals(1.5f, origin.getFieldValue(0));
+    assertEquals(3, ((Object[])decoded.getFieldValue(5)).length);
+    Assert.assertArrayEquals(new byte[]{1, 2, 3}, (byte[])decoded.getFieldValue(6));
+    Assert.assertArrayEquals(new Object[]{0.0, 0.5, 1.0, 1.5}, (Object[])decoded.getFieldValue(7));
+    assertEquals((short)300, ((java.util.Map<?, ?>)decoded.getFieldValue(8)).get("b"));
+    assertNull(decoded.getFieldValue(9));
+    assertEquals(1234L, decoded.getFieldValue(10));
+
+    // Encoding the decoded shape gives back the same bytes.
+    output.reset();
+    shape.encode(new Encoder(output), decoded);
+    Assert.assertArrayEquals(bytes, output.toByteArray());
+  }
+
+  public void testEncodeAny() throws IOException {
+    Object[] values = new Object[]{true, (byte)-1, (short)-2, 3, 4L, 5.5f, 6.5, "seven", new TypeA().setData("eight")};
+
+    // Encoding without the box gives the same bytes as encoding the box.
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    Encoder boxed = new Encoder(expected);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder unboxed = new Encoder(output);
+    for (Object value : values) {
+      boxed.variant(null);
+      boxed.variant(Box.wrap(value));
+      unboxed.variant(null);
+      Box.encode(unboxed, value);
+    }
+    Assert.assertArrayEquals(expected.toByteArray(), output.toByteArray());
+
+    Decoder d = new Decoder(new ByteArrayInputStream(output.toByteArray()));
+    for (Object value : values) {
+      assertNull(d.variant());
+      Object decoded = ((Box)d.variant()).unwrap();
+      if (value instanceof BinaryObject) {
+        assertEquals("eight", ((TypeA)decoded).getData());
+      }
+      else {
+        assertEquals(value.toString(), decoded.toString());
+      }
+    }
+  }
+
+  private static void encodePoint(Encoder e, float x, float y) throws IOException {
+    e.float32(x);
+    e.float32(y);
+  }
+}